@@ -0,0 +1,191 @@
+/*
+ * Lazarus: Credentials management library
+ *     Copyright (C) 2014 Alfredo 'wisedevil' Mungo
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wisedevil.credentials;
+
+/**
+ * This class describes a change made to a credential database or to one of its records.
+ *
+ * @see ChangeListener
+ * @see CredentialDatabase#addChangeListener(ChangeListener)
+ */
+public final class ChangeEvent {
+	/**
+	 * The kinds of change.
+	 */
+	public enum Type {
+		/**
+		 * A record has been added to the database.
+		 */
+		ADDED,
+		
+		/**
+		 * A record has been removed from the database.
+		 */
+		REMOVED,
+		
+		/**
+		 * The title of a record has changed.
+		 */
+		TITLE,
+		
+		/**
+		 * The description of a record has changed.
+		 */
+		DESCRIPTION,
+		
+		/**
+		 * The username of a credential has changed.
+		 */
+		USER,
+		
+		/**
+		 * The password of a credential has changed.
+		 * <blockquote>Password events carry no values: the new password can be read from the credential.</blockquote>
+		 */
+		PASSWORD,
+		
+		/**
+		 * A credential has been added to a keyring.
+		 */
+		MEMBER_ADDED,
+		
+		/**
+		 * A credential has been removed from a keyring.
+		 */
+		MEMBER_REMOVED;
+		
+		/**
+		 * Returns true if events of this type describe a property whose consecutive changes can be coalesced.
+		 *
+		 * @return True for property changes
+		 */
+		boolean isProperty() {
+			return this == TITLE || this == DESCRIPTION || this == USER || this == PASSWORD;
+		}
+		
+		/**
+		 * Returns true if events of this type affect the indexes of a database, which must then always be notified.
+		 *
+		 * @return True for every change but password changes
+		 */
+		boolean isIndexed() {
+			return this != PASSWORD;
+		}
+	}
+	
+	/**
+	 * The change type.
+	 */
+	private final Type type;
+	
+	/**
+	 * The credential involved, if any.
+	 */
+	private final Credential credential;
+	
+	/**
+	 * The keyring involved, if any.
+	 */
+	private final Keyring keyring;
+	
+	/**
+	 * The old value of the changed property.
+	 */
+	private final String oldValue;
+	
+	/**
+	 * The new value of the changed property.
+	 */
+	private final String newValue;
+	
+	/**
+	 * Initializes a new instance of this class.
+	 *
+	 * @param type The change type
+	 * @param credential The credential involved, if any
+	 * @param keyring The keyring involved, if any
+	 * @param oldValue The old value of the changed property
+	 * @param newValue The new value of the changed property
+	 */
+	ChangeEvent(Type type, Credential credential, Keyring keyring, String oldValue, String newValue) {
+		this.type = type;
+		this.credential = credential;
+		this.keyring = keyring;
+		this.oldValue = oldValue;
+		this.newValue = newValue;
+	}
+	
+	/**
+	 * Returns the change type.
+	 *
+	 * @return The type
+	 */
+	public Type getType() { return type; }
+	
+	/**
+	 * Returns the credential involved in the change.
+	 * <blockquote>For membership changes, this is the member credential.</blockquote>
+	 *
+	 * @return The credential or <code>null</code> if the change involves a keyring only
+	 */
+	public Credential getCredential() { return credential; }
+	
+	/**
+	 * Returns the keyring involved in the change.
+	 *
+	 * @return The keyring or <code>null</code> if the change involves a credential only
+	 */
+	public Keyring getKeyring() { return keyring; }
+	
+	/**
+	 * Returns the record the change has been made to: the keyring if any, the credential otherwise.
+	 *
+	 * @return The changed record
+	 */
+	public Object getSource() { return keyring != null ? keyring : credential; }
+	
+	/**
+	 * Returns the value of the changed property before the change.
+	 *
+	 * @return The old title, description or username, or <code>null</code> for other changes
+	 */
+	public String getOldValue() { return oldValue; }
+	
+	/**
+	 * Returns the value of the changed property after the change.
+	 *
+	 * @return The new title, description or username, or <code>null</code> for other changes
+	 */
+	public String getNewValue() { return newValue; }
+	
+	@Override
+	public String toString() {
+		final StringBuilder b = new StringBuilder(type.name());
+		
+		if(keyring != null)
+			b.append(" keyring ").append(keyring.getTitle());
+		
+		if(credential != null)
+			b.append(" credential ").append(credential.getTitle());
+		
+		if(oldValue != null || newValue != null)
+			b.append(": ").append(oldValue).append(" -> ").append(newValue);
+		
+		return b.toString();
+	}
+}
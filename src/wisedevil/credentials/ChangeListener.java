@@ -0,0 +1,41 @@
+/*
+ * Lazarus: Credentials management library
+ *     Copyright (C) 2014 Alfredo 'wisedevil' Mungo
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wisedevil.credentials;
+
+import java.util.List;
+
+/**
+ * This interface receives the changes made to a credential database.
+ *
+ * <p>Outside of a batch, every change is delivered on its own as soon as it is made. Changes made within
+ * {@link CredentialDatabase#batch(Runnable)} are delivered together once the batch completes, with
+ * consecutive changes to the same property of a record coalesced into one.</p>
+ *
+ * <p>Listeners are called on the thread that made the changes, without holding any lock of the database.</p>
+ *
+ * @see CredentialDatabase#addChangeListener(ChangeListener)
+ */
+@FunctionalInterface
+public interface ChangeListener {
+	/**
+	 * Receives a batch of changes, in the order they were made.
+	 *
+	 * @param events The changes, which must not be modified
+	 */
+	void changed(List<ChangeEvent> events);
+}
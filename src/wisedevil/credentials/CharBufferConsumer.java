@@ -0,0 +1,41 @@
+/*
+ * Lazarus: Credentials management library
+ *     Copyright (C) 2014 Alfredo 'wisedevil' Mungo
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wisedevil.credentials;
+
+import java.nio.CharBuffer;
+
+/**
+ * This interface receives a temporary, read-only view of password characters.
+ *
+ * @param <X> The type of the exception thrown by the consumer
+ *
+ * @see TextPassword#withChars(CharBufferConsumer)
+ * @see DirectPassword#withChars(CharBufferConsumer)
+ */
+@FunctionalInterface
+public interface CharBufferConsumer<X extends Exception> {
+	/**
+	 * Consumes the password characters.
+	 * <blockquote>NOTE: The view is only valid during this call and must neither be stored nor copied to long-lived memory.</blockquote>
+	 *
+	 * @param chars The read-only view of the password characters, positioned at the first character
+	 *
+	 * @throws X If the consumer fails
+	 */
+	void accept(CharBuffer chars) throws X;
+}
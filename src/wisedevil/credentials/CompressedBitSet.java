@@ -0,0 +1,706 @@
+/*
+ * Lazarus: Credentials management library
+ *     Copyright (C) 2014 Alfredo 'wisedevil' Mungo
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wisedevil.credentials;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+import java.util.function.IntPredicate;
+
+/**
+ * A set of non-negative integers, compressed in the manner of Roaring bitmaps.
+ *
+ * <p>Integers are grouped into chunks of 65536 by their upper 16 bits. A chunk holding at most
+ * {@link #ARRAY_MAX} integers is a sorted array of their lower bits, a fuller one is a plain bitmap,
+ * so that a chunk never takes more than 8 KiB and sparse sets stay small. Set operations work chunk
+ * by chunk, on whole words for bitmaps.</p>
+ *
+ * <p>Instances are not thread-safe.</p>
+ */
+final class CompressedBitSet {
+	/**
+	 * The largest number of integers of an array chunk.
+	 */
+	static final int ARRAY_MAX = 4096;
+	
+	/**
+	 * The number of words of a bitmap chunk.
+	 */
+	private static final int WORDS = 1024;
+	
+	/**
+	 * The upper 16 bits of the integers of each chunk, sorted.
+	 */
+	private char[] keys;
+	
+	/**
+	 * The chunks.
+	 */
+	private Chunk[] chunks;
+	
+	/**
+	 * The number of chunks.
+	 */
+	private int size;
+	
+	/**
+	 * Initializes a new, empty instance of this class.
+	 */
+	CompressedBitSet() {
+		this(new char[4], new Chunk[4], 0);
+	}
+	
+	/**
+	 * Initializes a new instance of this class.
+	 *
+	 * @param keys The upper bits of the chunks
+	 * @param chunks The chunks
+	 * @param size The number of chunks
+	 */
+	private CompressedBitSet(char[] keys, Chunk[] chunks, int size) {
+		this.keys = keys;
+		this.chunks = chunks;
+		this.size = size;
+	}
+	
+	/**
+	 * Adds an integer.
+	 *
+	 * @param x The integer
+	 */
+	void add(int x) {
+		final char key = (char)(x >>> 16);
+		int i = Arrays.binarySearch(keys, 0, size, key);
+		
+		if(i < 0) {
+			i = -i - 1;
+			
+			if(size == keys.length) {
+				keys = Arrays.copyOf(keys, size * 2);
+				chunks = Arrays.copyOf(chunks, size * 2);
+			}
+			
+			System.arraycopy(keys, i, keys, i + 1, size - i);
+			System.arraycopy(chunks, i, chunks, i + 1, size - i);
+			keys[i] = key;
+			chunks[i] = new ArrayChunk(new char[4], 0);
+			size++;
+		}
+		
+		chunks[i] = chunks[i].add((char)x);
+	}
+	
+	/**
+	 * Removes an integer.
+	 *
+	 * @param x The integer
+	 */
+	void remove(int x) {
+		final int i = Arrays.binarySearch(keys, 0, size, (char)(x >>> 16));
+		
+		if(i < 0)
+			return;
+		
+		chunks[i] = chunks[i].remove((char)x);
+		
+		if(chunks[i].cardinality() == 0) {
+			System.arraycopy(keys, i + 1, keys, i, size - i - 1);
+			System.arraycopy(chunks, i + 1, chunks, i, size - i - 1);
+			chunks[--size] = null;
+		}
+	}
+	
+	/**
+	 * Returns true if the set contains an integer.
+	 *
+	 * @param x The integer
+	 *
+	 * @return True if the set contains <code>x</code>
+	 */
+	boolean contains(int x) {
+		final int i = Arrays.binarySearch(keys, 0, size, (char)(x >>> 16));
+		
+		return i >= 0 && chunks[i].contains((char)x);
+	}
+	
+	/**
+	 * Returns the number of integers of the set.
+	 *
+	 * @return The number of integers
+	 */
+	int cardinality() {
+		int res = 0;
+		
+		for(int i = 0; i < size; i++)
+			res += chunks[i].cardinality();
+		
+		return res;
+	}
+	
+	/**
+	 * Returns the intersection of this set and another one.
+	 *
+	 * @param o The other set
+	 *
+	 * @return A new set
+	 */
+	CompressedBitSet and(CompressedBitSet o) {
+		final CompressedBitSet res = new CompressedBitSet(new char[Math.max(1, Math.min(size, o.size))], new Chunk[Math.max(1, Math.min(size, o.size))], 0);
+		int i = 0, j = 0;
+		
+		while(i < size && j < o.size)
+			if(keys[i] < o.keys[j])
+				i++;
+			else if(keys[i] > o.keys[j])
+				j++;
+			else
+				res.append(keys[i], chunks[i++].and(o.chunks[j++]));
+		
+		return res;
+	}
+	
+	/**
+	 * Returns the union of this set and another one.
+	 *
+	 * @param o The other set
+	 *
+	 * @return A new set
+	 */
+	CompressedBitSet or(CompressedBitSet o) {
+		final CompressedBitSet res = new CompressedBitSet(new char[Math.max(1, size + o.size)], new Chunk[Math.max(1, size + o.size)], 0);
+		int i = 0, j = 0;
+		
+		while(i < size || j < o.size)
+			if(j == o.size || i < size && keys[i] < o.keys[j])
+				res.append(keys[i], chunks[i++].copy());
+			else if(i == size || keys[i] > o.keys[j])
+				res.append(o.keys[j], o.chunks[j++].copy());
+			else
+				res.append(keys[i], chunks[i++].or(o.chunks[j++]));
+		
+		return res;
+	}
+	
+	/**
+	 * Returns the integers of this set which are not in another one.
+	 *
+	 * @param o The other set
+	 *
+	 * @return A new set
+	 */
+	CompressedBitSet andNot(CompressedBitSet o) {
+		final CompressedBitSet res = new CompressedBitSet(new char[Math.max(1, size)], new Chunk[Math.max(1, size)], 0);
+		int j = 0;
+		
+		for(int i = 0; i < size; i++) {
+			while(j < o.size && o.keys[j] < keys[i])
+				j++;
+			
+			res.append(keys[i], j < o.size && o.keys[j] == keys[i] ? chunks[i].andNot(o.chunks[j]) : chunks[i].copy());
+		}
+		
+		return res;
+	}
+	
+	/**
+	 * Returns a copy of the set.
+	 *
+	 * @return A new set
+	 */
+	CompressedBitSet copy() {
+		final CompressedBitSet res = new CompressedBitSet(new char[Math.max(1, size)], new Chunk[Math.max(1, size)], 0);
+		
+		for(int i = 0; i < size; i++)
+			res.append(keys[i], chunks[i].copy());
+		
+		return res;
+	}
+	
+	/**
+	 * Performs an action for each integer of the set, in increasing order.
+	 *
+	 * @param action The action
+	 */
+	void forEach(IntConsumer action) {
+		for(int i = 0; i < size; i++)
+			chunks[i].forEach(keys[i] << 16, action);
+	}
+	
+	/**
+	 * Performs an action for each integer of the set from a given one, in increasing order,
+	 * until the action returns false.
+	 *
+	 * @param from The smallest integer
+	 * @param action The action
+	 *
+	 * @return False if the action has returned false
+	 */
+	boolean forEach(int from, IntPredicate action) {
+		int i = Arrays.binarySearch(keys, 0, size, (char)(from >>> 16));
+		
+		if(i < 0)
+			i = -i - 1;
+		
+		for(; i < size; i++) {
+			final int high = keys[i] << 16;
+			final int low = high < from ? from & 0xFFFF : 0;
+			
+			if(!chunks[i].forEach(high, low, action))
+				return false;
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Appends a chunk, unless it is empty.
+	 *
+	 * @param key The upper bits of the chunk, greater than those of the last chunk
+	 * @param c The chunk
+	 */
+	private void append(char key, Chunk c) {
+		if(c.cardinality() == 0)
+			return;
+		
+		keys[size] = key;
+		chunks[size++] = c;
+	}
+	
+	/**
+	 * The integers of a set which have the same upper 16 bits.
+	 */
+	private static abstract class Chunk {
+		/**
+		 * Adds an integer.
+		 *
+		 * @param x The lower bits of the integer
+		 *
+		 * @return This chunk, or a chunk of another kind replacing it
+		 */
+		abstract Chunk add(char x);
+		
+		/**
+		 * Removes an integer.
+		 *
+		 * @param x The lower bits of the integer
+		 *
+		 * @return This chunk, or a chunk of another kind replacing it
+		 */
+		abstract Chunk remove(char x);
+		
+		/**
+		 * Returns true if the chunk contains an integer.
+		 *
+		 * @param x The lower bits of the integer
+		 *
+		 * @return True if the chunk contains <code>x</code>
+		 */
+		abstract boolean contains(char x);
+		
+		/**
+		 * Returns the number of integers of the chunk.
+		 *
+		 * @return The number of integers
+		 */
+		abstract int cardinality();
+		
+		/**
+		 * Returns a copy of the chunk.
+		 *
+		 * @return A new chunk
+		 */
+		abstract Chunk copy();
+		
+		/**
+		 * Performs an action for each integer of the chunk, in increasing order.
+		 *
+		 * @param high The upper bits of the integers
+		 * @param action The action
+		 */
+		abstract void forEach(int high, IntConsumer action);
+		
+		/**
+		 * Performs an action for each integer of the chunk from a given one, in increasing order,
+		 * until the action returns false.
+		 *
+		 * @param high The upper bits of the integers
+		 * @param low The lower bits of the smallest integer
+		 * @param action The action
+		 *
+		 * @return False if the action has returned false
+		 */
+		abstract boolean forEach(int high, int low, IntPredicate action);
+		
+		/**
+		 * Returns the intersection of this chunk and another one.
+		 *
+		 * @param o The other chunk
+		 *
+		 * @return A new chunk
+		 */
+		Chunk and(Chunk o) {
+			if(this instanceof BitmapChunk && o instanceof BitmapChunk) {
+				final long[] a = ((BitmapChunk)this).words, b = ((BitmapChunk)o).words;
+				final long[] w = new long[WORDS];
+				
+				for(int i = 0; i < WORDS; i++)
+					w[i] = a[i] & b[i];
+				
+				return BitmapChunk.of(w);
+			}
+			
+			final ArrayChunk small = (ArrayChunk)(this instanceof ArrayChunk ? this : o);
+			final Chunk other = small == this ? o : this;
+			final char[] v = new char[small.card];
+			int n = 0;
+			
+			for(int i = 0; i < small.card; i++)
+				if(other.contains(small.values[i]))
+					v[n++] = small.values[i];
+			
+			return new ArrayChunk(v, n);
+		}
+		
+		/**
+		 * Returns the union of this chunk and another one.
+		 *
+		 * @param o The other chunk
+		 *
+		 * @return A new chunk
+		 */
+		Chunk or(Chunk o) {
+			if(this instanceof ArrayChunk && o instanceof ArrayChunk) {
+				final ArrayChunk a = (ArrayChunk)this, b = (ArrayChunk)o;
+				final char[] v = new char[a.card + b.card];
+				int i = 0, j = 0, n = 0;
+				
+				while(i < a.card || j < b.card)
+					if(j == b.card || i < a.card && a.values[i] < b.values[j])
+						v[n++] = a.values[i++];
+					else if(i == a.card || a.values[i] > b.values[j])
+						v[n++] = b.values[j++];
+					else {
+						v[n++] = a.values[i++];
+						j++;
+					}
+				
+				return n <= ARRAY_MAX ? new ArrayChunk(v, n) : BitmapChunk.of(v, n);
+			}
+			
+			final BitmapChunk res = (BitmapChunk)(this instanceof BitmapChunk ? this : o).copy();
+			final Chunk other = this instanceof BitmapChunk ? o : this;
+			
+			if(other instanceof BitmapChunk) {
+				final long[] w = ((BitmapChunk)other).words;
+				
+				for(int i = 0; i < WORDS; i++)
+					res.words[i] |= w[i];
+				
+				res.count();
+			} else {
+				final ArrayChunk a = (ArrayChunk)other;
+				
+				for(int i = 0; i < a.card; i++)
+					res.add(a.values[i]);
+			}
+			
+			return res;
+		}
+		
+		/**
+		 * Returns the integers of this chunk which are not in another one.
+		 *
+		 * @param o The other chunk
+		 *
+		 * @return A new chunk
+		 */
+		Chunk andNot(Chunk o) {
+			if(this instanceof ArrayChunk) {
+				final ArrayChunk a = (ArrayChunk)this;
+				final char[] v = new char[a.card];
+				int n = 0;
+				
+				for(int i = 0; i < a.card; i++)
+					if(!o.contains(a.values[i]))
+						v[n++] = a.values[i];
+				
+				return new ArrayChunk(v, n);
+			}
+			
+			final long[] w = ((BitmapChunk)this).words.clone();
+			
+			if(o instanceof BitmapChunk) {
+				final long[] b = ((BitmapChunk)o).words;
+				
+				for(int i = 0; i < WORDS; i++)
+					w[i] &= ~b[i];
+			} else {
+				final ArrayChunk b = (ArrayChunk)o;
+				
+				for(int i = 0; i < b.card; i++)
+					w[b.values[i] >>> 6] &= ~(1L << b.values[i]);
+			}
+			
+			return BitmapChunk.of(w);
+		}
+	}
+	
+	/**
+	 * A chunk holding a sorted array of integers.
+	 */
+	private static final class ArrayChunk extends Chunk {
+		/**
+		 * The lower bits of the integers, sorted.
+		 */
+		char[] values;
+		
+		/**
+		 * The number of integers.
+		 */
+		int card;
+		
+		/**
+		 * Initializes a new instance of this class.
+		 *
+		 * @param values The lower bits of the integers, sorted
+		 * @param card The number of integers
+		 */
+		ArrayChunk(char[] values, int card) {
+			this.values = values;
+			this.card = card;
+		}
+		
+		@Override
+		Chunk add(char x) {
+			int i = Arrays.binarySearch(values, 0, card, x);
+			
+			if(i >= 0)
+				return this;
+			
+			if(card == ARRAY_MAX)
+				return BitmapChunk.of(values, card).add(x);
+			
+			i = -i - 1;
+			
+			if(card == values.length)
+				values = Arrays.copyOf(values, Math.min(ARRAY_MAX, card * 2));
+			
+			System.arraycopy(values, i, values, i + 1, card - i);
+			values[i] = x;
+			card++;
+			
+			return this;
+		}
+		
+		@Override
+		Chunk remove(char x) {
+			final int i = Arrays.binarySearch(values, 0, card, x);
+			
+			if(i >= 0) {
+				System.arraycopy(values, i + 1, values, i, card - i - 1);
+				card--;
+			}
+			
+			return this;
+		}
+		
+		@Override
+		boolean contains(char x) {
+			return Arrays.binarySearch(values, 0, card, x) >= 0;
+		}
+		
+		@Override
+		int cardinality() {
+			return card;
+		}
+		
+		@Override
+		Chunk copy() {
+			return new ArrayChunk(Arrays.copyOf(values, Math.max(1, card)), card);
+		}
+		
+		@Override
+		void forEach(int high, IntConsumer action) {
+			for(int i = 0; i < card; i++)
+				action.accept(high | values[i]);
+		}
+		
+		@Override
+		boolean forEach(int high, int low, IntPredicate action) {
+			int i = Arrays.binarySearch(values, 0, card, (char)low);
+			
+			for(i = i < 0 ? -i - 1 : i; i < card; i++)
+				if(!action.test(high | values[i]))
+					return false;
+			
+			return true;
+		}
+	}
+	
+	/**
+	 * A chunk holding a bitmap of 65536 bits.
+	 */
+	private static final class BitmapChunk extends Chunk {
+		/**
+		 * The bits.
+		 */
+		final long[] words;
+		
+		/**
+		 * The number of bits set.
+		 */
+		int card;
+		
+		/**
+		 * Initializes a new instance of this class.
+		 *
+		 * @param words The bits
+		 * @param card The number of bits set
+		 */
+		private BitmapChunk(long[] words, int card) {
+			this.words = words;
+			this.card = card;
+		}
+		
+		/**
+		 * Returns the chunk best holding the given bits.
+		 *
+		 * @param words The bits
+		 *
+		 * @return A bitmap chunk, or an array chunk if few bits are set
+		 */
+		static Chunk of(long[] words) {
+			final BitmapChunk res = new BitmapChunk(words, 0);
+			
+			res.count();
+			
+			return res.card <= ARRAY_MAX ? res.toArray() : res;
+		}
+		
+		/**
+		 * Returns a bitmap chunk holding the given integers.
+		 *
+		 * @param values The lower bits of the integers
+		 * @param card The number of integers
+		 *
+		 * @return A bitmap chunk
+		 */
+		static BitmapChunk of(char[] values, int card) {
+			final long[] w = new long[WORDS];
+			
+			for(int i = 0; i < card; i++)
+				w[values[i] >>> 6] |= 1L << values[i];
+			
+			return new BitmapChunk(w, card);
+		}
+		
+		/**
+		 * Recomputes the number of bits set.
+		 */
+		void count() {
+			int n = 0;
+			
+			for(long w: words)
+				n += Long.bitCount(w);
+			
+			card = n;
+		}
+		
+		/**
+		 * Converts the chunk to an array chunk.
+		 *
+		 * @return An array chunk
+		 */
+		ArrayChunk toArray() {
+			final char[] v = new char[Math.max(1, card)];
+			final int[] n = { 0 };
+			
+			forEach(0, x -> v[n[0]++] = (char)x);
+			
+			return new ArrayChunk(v, card);
+		}
+		
+		@Override
+		Chunk add(char x) {
+			final long bit = 1L << x;
+			
+			if((words[x >>> 6] & bit) == 0) {
+				words[x >>> 6] |= bit;
+				card++;
+			}
+			
+			return this;
+		}
+		
+		@Override
+		Chunk remove(char x) {
+			final long bit = 1L << x;
+			
+			if((words[x >>> 6] & bit) != 0) {
+				words[x >>> 6] &= ~bit;
+				
+				if(--card <= ARRAY_MAX / 2)
+					return toArray();
+			}
+			
+			return this;
+		}
+		
+		@Override
+		boolean contains(char x) {
+			return (words[x >>> 6] & (1L << x)) != 0;
+		}
+		
+		@Override
+		int cardinality() {
+			return card;
+		}
+		
+		@Override
+		Chunk copy() {
+			return new BitmapChunk(words.clone(), card);
+		}
+		
+		@Override
+		void forEach(int high, IntConsumer action) {
+			for(int i = 0; i < WORDS; i++) {
+				long w = words[i];
+				
+				while(w != 0) {
+					action.accept(high | (i << 6) + Long.numberOfTrailingZeros(w));
+					w &= w - 1;
+				}
+			}
+		}
+		
+		@Override
+		boolean forEach(int high, int low, IntPredicate action) {
+			for(int i = low >>> 6; i < WORDS; i++) {
+				long w = i == low >>> 6 ? words[i] & -1L << low : words[i];
+				
+				while(w != 0) {
+					if(!action.test(high | (i << 6) + Long.numberOfTrailingZeros(w)))
+						return false;
+					
+					w &= w - 1;
+				}
+			}
+			
+			return true;
+		}
+	}
+}
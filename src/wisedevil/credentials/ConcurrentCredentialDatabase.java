@@ -0,0 +1,313 @@
+/*
+ * Lazarus: Credentials management library
+ *     Copyright (C) 2014 Alfredo 'wisedevil' Mungo
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wisedevil.credentials;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class provides a credential database which can be shared by multiple threads.
+ *
+ * <p>Lookups and iterations take no lock: the title indexes are concurrent maps and iterators are weakly
+ * consistent, so they never throw <code>ConcurrentModificationException</code>. Title uniqueness is enforced
+ * atomically by the indexes themselves, both when records are added and when they are renamed.</p>
+ *
+ * <p>Additions, removals and changes to records take one of a fixed set of striped locks, chosen by the
+ * identity of the record involved, so that operations on different records proceed in parallel. A record
+ * holds its lock while a change is applied to it and tracked, so {@link #clearModified()}, {@link #snapshot()}
+ * and {@link #drainChanges(boolean)}, which take every lock, never observe a change half applied; the latter
+ * two only hold them while the copies are being made. The full-text indexes and title tries are built the
+ * same way when first queried. Change tracking queries return copies. Change listeners are called once the locks have
+ * been released.</p>
+ *
+ * <p>Unlike {@link CredentialDatabase}, records are not iterated in insertion order. Records themselves
+ * are not thread-safe: a single credential or keyring must not be modified by several threads at once.</p>
+ */
+public class ConcurrentCredentialDatabase extends CredentialDatabase {
+	/**
+	 * Serialization version number.
+	 */
+	private static final long serialVersionUID = 0L;
+	
+	/**
+	 * The number of lock stripes.
+	 */
+	private static final int STRIPES = 64;
+	
+	/**
+	 * The lock order of the next database.
+	 */
+	private static final AtomicLong ORDER = new AtomicLong();
+	
+	/**
+	 * The lock stripes.
+	 * <blockquote>Created by {@link #init()}, which runs before the field initializers of this class.</blockquote>
+	 */
+	private transient ReentrantLock[] locks;
+	
+	/**
+	 * The position of the database in the order the databases of a record are locked in.
+	 */
+	private transient long order;
+	
+	/**
+	 * Initializes a new instance of this class.
+	 */
+	public ConcurrentCredentialDatabase() {}
+	
+	@Override
+	void init() {
+		locks = new ReentrantLock[STRIPES];
+		
+		for(int i = 0; i < STRIPES; i++)
+			locks[i] = new ReentrantLock();
+		
+		order = ORDER.getAndIncrement();
+		super.init();
+	}
+	
+	@Override
+	<T> Map<String, T> newIndex() {
+		return new ConcurrentHashMap<String, T>();
+	}
+	
+	/**
+	 * Returns the index unchanged.
+	 * <blockquote>Concurrent maps grow incrementally, without blocking readers.</blockquote>
+	 */
+	@Override
+	<T> Map<String, T> grow(Map<String, T> index, int capacity) {
+		return index;
+	}
+	
+	@Override
+	<T> Set<T> newIdentitySet() {
+		return Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<T, Boolean>()));
+	}
+	
+	@Override
+	<K, V> Map<K, V> newIdentityMap() {
+		return Collections.synchronizedMap(new IdentityHashMap<K, V>());
+	}
+	
+	@Override
+	Set<String> newTitleSet() {
+		return Collections.synchronizedSet(new LinkedHashSet<String>());
+	}
+	
+	@Override
+	<T> Iterable<T> view(Set<T> set) {
+		synchronized(set) {
+			return Collections.unmodifiableList(new ArrayList<T>(set));
+		}
+	}
+	
+	/**
+	 * Returns the lock stripe of a record.
+	 *
+	 * @param o The record
+	 *
+	 * @return The lock
+	 */
+	private ReentrantLock lockFor(Object o) {
+		final int h = System.identityHashCode(o);
+		
+		return locks[(h ^ (h >>> 16)) & (STRIPES - 1)];
+	}
+	
+	@Override
+	public boolean add(Credential value) {
+		final ReentrantLock l = lockFor(value);
+		
+		beginBatch();
+		l.lock();
+		
+		try {
+			return super.add(value);
+		} finally {
+			l.unlock();
+			endBatch();
+		}
+	}
+	
+	@Override
+	public boolean add(Keyring value) {
+		final ReentrantLock l = lockFor(value);
+		
+		beginBatch();
+		l.lock();
+		
+		try {
+			return super.add(value);
+		} finally {
+			l.unlock();
+			endBatch();
+		}
+	}
+	
+	@Override
+	public boolean remove(Credential value) {
+		final ReentrantLock l = lockFor(value);
+		
+		beginBatch();
+		l.lock();
+		
+		try {
+			return super.remove(value);
+		} finally {
+			l.unlock();
+			endBatch();
+		}
+	}
+	
+	@Override
+	public boolean remove(Keyring value) {
+		final ReentrantLock l = lockFor(value);
+		
+		beginBatch();
+		l.lock();
+		
+		try {
+			return super.remove(value);
+		} finally {
+			l.unlock();
+			endBatch();
+		}
+	}
+	
+	@Override
+	void lockRecord(Object r) {
+		lockFor(r).lock();
+	}
+	
+	@Override
+	void unlockRecord(Object r) {
+		lockFor(r).unlock();
+	}
+	
+	@Override
+	long lockOrder() { return order; }
+	
+	@Override
+	public void clearModified() {
+		lockAll();
+		
+		try {
+			super.clearModified();
+		} finally {
+			unlockAll();
+		}
+	}
+	
+	/**
+	 * Builds the full-text indexes and the title tries, blocking writers meanwhile.
+	 */
+	@Override
+	void buildTextIndexes() {
+		lockAll();
+		
+		try {
+			super.buildTextIndexes();
+		} finally {
+			unlockAll();
+		}
+	}
+	
+	@Override
+	DatabaseChanges changes(boolean drain, boolean snapshot) {
+		lockAll();
+		
+		try {
+			return super.changes(drain, snapshot);
+		} finally {
+			unlockAll();
+		}
+	}
+	
+	@Override
+	void restore(DatabaseChanges changes) {
+		lockAll();
+		
+		try {
+			super.restore(changes);
+		} finally {
+			unlockAll();
+		}
+	}
+	
+	/**
+	 * Checks and applies the changes of a transaction, blocking writers meanwhile.
+	 * <blockquote>Lookups may observe a transaction being applied.</blockquote>
+	 *
+	 * @param tx The transaction
+	 */
+	@Override
+	void commit(DatabaseTransaction tx) {
+		beginBatch();
+		lockAll();
+		
+		try {
+			super.commit(tx);
+		} finally {
+			unlockAll();
+			endBatch();
+		}
+	}
+	
+	/**
+	 * Returns a read-only, point-in-time copy of the database.
+	 * <blockquote>Writers are blocked while the snapshot is built, but not while it is used.</blockquote>
+	 *
+	 * @return The snapshot
+	 *
+	 * @see CredentialDatabase#snapshot()
+	 */
+	@Override
+	public CredentialDatabase snapshot() {
+		lockAll();
+		
+		try {
+			return super.snapshot();
+		} finally {
+			unlockAll();
+		}
+	}
+	
+	/**
+	 * Acquires every lock stripe, in order.
+	 */
+	private void lockAll() {
+		for(int i = 0; i < STRIPES; i++)
+			locks[i].lock();
+	}
+	
+	/**
+	 * Releases every lock stripe.
+	 */
+	private void unlockAll() {
+		for(int i = STRIPES - 1; i >= 0; i--)
+			locks[i].unlock();
+	}
+}
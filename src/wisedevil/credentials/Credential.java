@@ -18,14 +18,13 @@
 package wisedevil.credentials;
 
 import java.io.Serializable;
-import java.util.Observable;
 
 /**
  * Contains credential information.
  *
  * @see Password
  */
-public class Credential extends Observable implements Serializable {
+public class Credential implements Serializable {
 	/**
 	 * Serialization version number.
 	 */
@@ -56,6 +55,29 @@ public class Credential extends Observable implements Serializable {
 	 */
 	transient boolean modified = false;
 	
+	/**
+	 * The number of changes made to the instance, used to tell whether a snapshot copy is up to date.
+	 * <blockquote>Volatile and incremented after every change, so that snapshots taken by other threads read
+	 * properties at least as recent as the version.</blockquote>
+	 */
+	private transient volatile int version = 0;
+	
+	/**
+	 * True if the instance is a read-only snapshot copy.
+	 */
+	private transient boolean frozen = false;
+	
+	/**
+	 * The last snapshot copy of the instance.
+	 */
+	private transient volatile Credential snapshot;
+	
+	/**
+	 * The databases the instance belongs to, notified of every change.
+	 * <blockquote>The array is replaced, never modified, so that it can be read without locking.</blockquote>
+	 */
+	private transient volatile CredentialDatabase[] owners;
+	
 	/**
 	 * Initializes a new instance of this class.
 	 *
@@ -108,15 +130,72 @@ public class Credential extends Observable implements Serializable {
 	
 	/**
 	 * Returns the credential's password or <code>null</code> if none is set.
+	 * <blockquote>A sealed password is decrypted by the first call, and the decrypted copy is returned
+	 * until the password is sealed again.</blockquote>
 	 *
 	 * @return The password
+	 *
+	 * @throws IllegalStateException If the password is sealed and cannot be decrypted
+	 *
+	 * @see PasswordSeal
+	 */
+	public Password getPassword() {
+		final Password p = password;
+		
+		return p instanceof SealedPassword ? ((SealedPassword)p).open() : p;
+	}
+	
+	/**
+	 * Returns true if the credential's password is sealed and not decrypted.
+	 *
+	 * @return True if the password is sealed
+	 *
+	 * @see PasswordSeal
+	 */
+	public boolean isPasswordSealed() {
+		final Password p = password;
+		
+		return p instanceof SealedPassword && ((SealedPassword)p).isSealed();
+	}
+	
+	/**
+	 * Returns a new decrypted copy of the credential's password, if it was sealed when set.
+	 * <blockquote>The copy belongs to the caller, who must destroy it; the password and the decrypted
+	 * copy returned by {@link #getPassword()} are left untouched.</blockquote>
+	 *
+	 * @return The copy, or null if the password was not sealed when set
+	 *
+	 * @throws IllegalStateException If the password cannot be decrypted
+	 *
+	 * @see PasswordSeal
 	 */
-	public Password getPassword() { return password; }
+	public Password copySealedPassword() {
+		final Password p = password;
+		
+		return p instanceof SealedPassword ? ((SealedPassword)p).copy() : null;
+	}
+	
+	/**
+	 * Seals the credential's password again, if it was sealed when set.
+	 * <blockquote>The decrypted copy returned by {@link #getPassword()} is destroyed, and must not be used
+	 * afterwards; the next call decrypts the password again. Snapshot copies share the password of the
+	 * instance, so this method also seals theirs.</blockquote>
+	 *
+	 * @return True if a decrypted copy has been destroyed
+	 *
+	 * @see PasswordSeal
+	 */
+	public boolean sealPassword() {
+		final Password p = password;
+		
+		return p instanceof SealedPassword && ((SealedPassword)p).seal();
+	}
 	
 	/**
 	 * Sets the credential's title.
 	 *
-	 * <p>When the credential's title changes, observers are notified and the old title string is passed to them.</p>
+	 * <p>Every change is reported to the databases the credential belongs to, which may reject a title
+	 * already taken by another credential and restore the old one.</p>
 	 *
 	 * @param value The new value
 	 *
@@ -130,14 +209,17 @@ public class Credential extends Observable implements Serializable {
 		if(value.isEmpty())
 			throw new IllegalArgumentException("Credential title cannot be empty");
 		
-		final String oldTitle = title;
+		checkFrozen();
 		
-		this.title = value;
+		final CredentialDatabase[] o = lockOwners();
 		
-		if(!hasChanged()) {
-			setChanged();
-			notifyObservers(oldTitle);
-			modified = true;
+		try {
+			final String oldTitle = title;
+			
+			this.title = value;
+			changed(o, ChangeEvent.Type.TITLE, oldTitle, value);
+		} finally {
+			CredentialDatabase.unlockRecord(o, this);
 		}
 	}
 	
@@ -147,11 +229,21 @@ public class Credential extends Observable implements Serializable {
 	 * @param value The new value
 	 */
 	public void setDescription(String value) {
+		checkFrozen();
+		
 		if(value == null)
 			value = new String();
+		
+		final CredentialDatabase[] o = lockOwners();
+		
+		try {
+			final String old = description;
 			
-		this.description = value;
-		modified = true;
+			this.description = value;
+			changed(o, ChangeEvent.Type.DESCRIPTION, old, value);
+		} finally {
+			CredentialDatabase.unlockRecord(o, this);
+		}
 	}
 	
 	/**
@@ -160,11 +252,21 @@ public class Credential extends Observable implements Serializable {
 	 * @param value The new value
 	 */
 	public void setUser(String value) {
+		checkFrozen();
+		
 		if(value == null)
 			value = new String();
+		
+		final CredentialDatabase[] o = lockOwners();
+		
+		try {
+			final String old = user;
 			
-		this.user = value;
-		modified = true;
+			this.user = value;
+			changed(o, ChangeEvent.Type.USER, old, value);
+		} finally {
+			CredentialDatabase.unlockRecord(o, this);
+		}
 	}
 	
 	/**
@@ -173,8 +275,16 @@ public class Credential extends Observable implements Serializable {
 	 * @param value The new value
 	 */
 	public void setPassword(Password value) {
-		this.password = value;
-		modified = true;
+		checkFrozen();
+		
+		final CredentialDatabase[] o = lockOwners();
+		
+		try {
+			this.password = value;
+			changed(o, ChangeEvent.Type.PASSWORD, null, null);
+		} finally {
+			CredentialDatabase.unlockRecord(o, this);
+		}
 	}
 	
 	@Override
@@ -186,6 +296,106 @@ public class Credential extends Observable implements Serializable {
 		} else return false;
 	}
 	
+	/**
+	 * Locks the instance in the databases it belongs to, so that a change is applied and tracked atomically.
+	 *
+	 * @return The databases, or null if there are none
+	 *
+	 * @see CredentialDatabase#lockRecord(CredentialDatabase[], Object)
+	 */
+	private CredentialDatabase[] lockOwners() {
+		for(;;) {
+			final CredentialDatabase[] o = owners;
+			
+			CredentialDatabase.lockRecord(o, this);
+			
+			if(o == owners)
+				return o;
+			
+			CredentialDatabase.unlockRecord(o, this);
+		}
+	}
+	
+	/**
+	 * Marks the instance as modified and reports the change to its databases.
+	 *
+	 * @param o The databases locked by {@link #lockOwners()}
+	 * @param type The change type
+	 * @param oldValue The old value of the changed property
+	 * @param newValue The new value of the changed property
+	 */
+	private void changed(CredentialDatabase[] o, ChangeEvent.Type type, String oldValue, String newValue) {
+		final boolean first = !modified;
+		
+		modified = true;
+		version++;
+		
+		if(o != null) {
+			ChangeEvent e = null;
+			
+			for(CredentialDatabase db: o)
+				if(first || type.isIndexed() || db.hasListeners()) {
+					if(e == null)
+						e = new ChangeEvent(type, this, null, oldValue, newValue);
+					
+					db.recordChanged(e, first);
+				}
+		}
+	}
+	
+	/**
+	 * Registers a database the instance belongs to.
+	 *
+	 * @param db The database
+	 */
+	synchronized void addOwner(CredentialDatabase db) {
+		owners = CredentialDatabase.with(owners, db);
+	}
+	
+	/**
+	 * Unregisters a database the instance belongs to.
+	 *
+	 * @param db The database
+	 */
+	synchronized void removeOwner(CredentialDatabase db) {
+		owners = CredentialDatabase.without(owners, db);
+	}
+	
+	/**
+	 * Checks that the instance can be modified.
+	 *
+	 * @throws UnsupportedOperationException If the instance is a snapshot copy
+	 */
+	private void checkFrozen() {
+		if(frozen)
+			throw new UnsupportedOperationException("Snapshot credentials cannot be modified");
+	}
+	
+	/**
+	 * Returns a read-only copy of the instance, sharing its password.
+	 * <blockquote>The last copy is reused as long as the instance has not changed.</blockquote>
+	 *
+	 * @return The copy
+	 *
+	 * @see CredentialDatabase#snapshot()
+	 */
+	Credential snapshotCopy() {
+		final int v = version;
+		Credential c = snapshot;
+		
+		if(c == null || c.version != v) {
+			c = new Credential(title);
+			c.user = user;
+			c.password = password;
+			c.description = description;
+			c.version = v;
+			c.frozen = true;
+			snapshot = c;
+		}
+		
+		return c;
+	}
+	
 	/**
 	 * Returns true if the instance has been modified.
 	 *
@@ -193,6 +403,11 @@ public class Credential extends Observable implements Serializable {
 	 */
 	boolean isModified() { return modified; }
 	
+	/**
+	 * Marks the instance as not modified.
+	 */
+	void clearModified() { modified = false; }
+	
 	@Override
 	public int hashCode() {
 		return title.hashCode();
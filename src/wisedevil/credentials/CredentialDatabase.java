@@ -17,15 +17,50 @@
  */
 package wisedevil.credentials;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
-import java.util.Observable;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.stream.Stream;
 
 /**
  * This class provide a facility for maintaining
  * a database of credentials and keyrings.
+ *
+ * <p>Credentials and keyrings are indexed by title, so lookups and
+ * rename conflict checks take constant time. Modified, renamed and removed
+ * records are tracked as they change, so checking for modifications doesn't
+ * scan the database and changes can be saved incrementally.</p>
+ *
+ * <p>Credentials are also indexed by username, and keyrings by the credentials they contain, so that
+ * {@link #findCredentialsByUser(String)} and {@link #findKeyrings(Credential)} don't scan the database either.
+ * Keyring membership is indexed by credential identity, and also kept as compressed bitsets of credential ids
+ * for set algebra across keyrings (see {@link #findCredentials(Collection, Collection, Collection)}). The words of titles and descriptions are indexed
+ * too, for ranked full-text queries (see {@link #searchCredentials(String, int)}), and titles are kept in
+ * a trie for completion and fuzzy lookups (see {@link #findCredentialsByPrefix(String, int)}). These two
+ * are only built when first queried, and kept up to date from then on, so that loading and bulk additions don't
+ * pay for them. Snapshots build all of their secondary indexes when first queried.</p>
+ *
+ * <p>A read-only, point-in-time copy of the database can be taken with {@link #snapshot()},
+ * so that it can be exported or read while the database keeps changing.</p>
+ *
+ * <p>Changes to the database and to its records are reported to the listeners registered with
+ * {@link #addChangeListener(ChangeListener)}, one by one or in batches (see {@link #batch(Runnable)}).</p>
  */
 public class CredentialDatabase implements ICredentialDatabase {
 	/**
@@ -34,21 +69,243 @@ public class CredentialDatabase implements ICredentialDatabase {
 	private static final long serialVersionUID = 0L;
 	
 	/**
-	 * The credentials.
+	 * Serialized fields.
+	 * <blockquote>The title indexes are serialized as the plain sets they replaced, so
+	 * the serialized form of the database is left unchanged.</blockquote>
+	 */
+	private static final ObjectStreamField[] serialPersistentFields = {
+		new ObjectStreamField("credentials", Set.class),
+		new ObjectStreamField("keyrings", Set.class)
+	};
+	
+	/**
+	 * The credentials, indexed by title.
+	 */
+	private transient Map<String, Credential> credentials;
+	
+	/**
+	 * The keyrings, indexed by title.
+	 */
+	private transient Map<String, Keyring> keyrings;
+	
+	/**
+	 * The modified credentials.
+	 */
+	private transient Set<Credential> modifiedCredentials;
+	
+	/**
+	 * The modified keyrings.
+	 */
+	private transient Set<Keyring> modifiedKeyrings;
+	
+	/**
+	 * The credentials added since the last call to {@link #clearModified()}.
+	 */
+	private transient Set<Credential> addedCredentials;
+	
+	/**
+	 * The keyrings added since the last call to {@link #clearModified()}.
+	 */
+	private transient Set<Keyring> addedKeyrings;
+	
+	/**
+	 * The original titles of the renamed credentials.
+	 */
+	private transient Map<Credential, String> renamedCredentials;
+	
+	/**
+	 * The original titles of the renamed keyrings.
+	 */
+	private transient Map<Keyring, String> renamedKeyrings;
+	
+	/**
+	 * The original titles of the removed credentials.
+	 */
+	private transient Set<String> removedCredentials;
+	
+	/**
+	 * The original titles of the removed keyrings.
+	 */
+	private transient Set<String> removedKeyrings;
+	
+	/**
+	 * The credentials, indexed by username.
+	 */
+	private transient Map<String, Set<Credential>> users;
+	
+	/**
+	 * The keyrings of the database, indexed by the credentials they contain.
+	 */
+	private transient Map<Credential, Set<Keyring>> memberships;
+	
+	/**
+	 * The members of the keyrings, as bitsets of credential ids.
+	 */
+	private transient MembershipIndex members;
+	
+	/**
+	 * The credentials, indexed by the words of their titles and descriptions.
+	 */
+	private transient TextIndex<Credential> credentialWords;
+	
+	/**
+	 * The keyrings, indexed by the words of their titles and descriptions.
+	 */
+	private transient TextIndex<Keyring> keyringWords;
+	
+	/**
+	 * The credentials, indexed by title for prefix and fuzzy lookups.
+	 */
+	private transient TitleTrie<Credential> credentialTitles;
+	
+	/**
+	 * The keyrings, indexed by title for prefix and fuzzy lookups.
+	 */
+	private transient TitleTrie<Keyring> keyringTitles;
+	
+	/**
+	 * False if the secondary indexes are yet to be built, which snapshots only do when first queried.
+	 */
+	private transient volatile boolean indexed;
+	
+	/**
+	 * False if the full-text indexes and the title tries are yet to be built, which is only done when first queried.
+	 */
+	private transient volatile boolean textIndexed;
+	
+	/**
+	 * True if records have been added to or removed from the database.
 	 */
-	private Set<Credential> credentials;
+	private transient volatile boolean modified;
 	
 	/**
-	 * The keyrings.
+	 * True if the database is a snapshot.
 	 */
-	private Set<Keyring> keyrings;
+	private transient boolean readOnly;
+	
+	/**
+	 * The change listeners, or null if there are none.
+	 * <blockquote>The array is replaced, never modified, so that events can be delivered without locking.</blockquote>
+	 */
+	private transient volatile ChangeListener[] listeners;
+	
+	/**
+	 * The batch of changes of each thread.
+	 */
+	private transient ThreadLocal<Batch> batches;
 	
 	/**
 	 * Initializes a new instance of this class.
 	 */
 	public CredentialDatabase() {
-		credentials = new LinkedHashSet<Credential>();
-		keyrings = new LinkedHashSet<Keyring>();
+		init();
+	}
+	
+	/**
+	 * Initializes the transient state of the database.
+	 * <blockquote>Subclasses overriding this method must call it first.</blockquote>
+	 */
+	void init() {
+		credentials = newIndex();
+		keyrings = newIndex();
+		modifiedCredentials = newIdentitySet();
+		modifiedKeyrings = newIdentitySet();
+		addedCredentials = newIdentitySet();
+		addedKeyrings = newIdentitySet();
+		renamedCredentials = newIdentityMap();
+		renamedKeyrings = newIdentityMap();
+		removedCredentials = newTitleSet();
+		removedKeyrings = newTitleSet();
+		users = newIndex();
+		memberships = newIdentityMap();
+		members = new MembershipIndex();
+		credentialWords = new TextIndex<Credential>();
+		keyringWords = new TextIndex<Keyring>();
+		credentialTitles = new TitleTrie<Credential>();
+		keyringTitles = new TitleTrie<Keyring>();
+		indexed = true;
+		textIndexed = false;
+		modified = false;
+		readOnly = false;
+		listeners = null;
+		batches = ThreadLocal.withInitial(Batch::new);
+	}
+	
+	/**
+	 * Creates a title index.
+	 *
+	 * @param <T> The record type
+	 *
+	 * @return An empty map
+	 */
+	<T> Map<String, T> newIndex() {
+		return new LinkedHashMap<String, T>();
+	}
+	
+	/**
+	 * Returns a title index able to hold a given number of records without growing.
+	 * <blockquote>The index is only copied if it is empty or the capacity is several times its size,
+	 * so that the cost of the copy is repaid by the records added afterwards.</blockquote>
+	 *
+	 * @param <T> The record type
+	 * @param index The index
+	 * @param capacity The number of records
+	 *
+	 * @return <code>index</code> or a larger copy of it
+	 */
+	<T> Map<String, T> grow(Map<String, T> index, int capacity) {
+		if(capacity <= index.size() || !index.isEmpty() && capacity / 4 < index.size())
+			return index;
+		
+		final Map<String, T> res = new LinkedHashMap<String, T>(capacity * 4 / 3 + 1);
+		
+		res.putAll(index);
+		
+		return res;
+	}
+	
+	/**
+	 * Creates a set of records, compared by identity.
+	 *
+	 * @param <T> The record type
+	 *
+	 * @return An empty set
+	 */
+	<T> Set<T> newIdentitySet() {
+		return Collections.newSetFromMap(new IdentityHashMap<T, Boolean>());
+	}
+	
+	/**
+	 * Creates a map from records, compared by identity.
+	 *
+	 * @param <K> The record type
+	 * @param <V> The value type
+	 *
+	 * @return An empty map
+	 */
+	<K, V> Map<K, V> newIdentityMap() {
+		return new IdentityHashMap<K, V>();
+	}
+	
+	/**
+	 * Creates a set of titles.
+	 *
+	 * @return An empty set
+	 */
+	Set<String> newTitleSet() {
+		return new LinkedHashSet<String>();
+	}
+	
+	/**
+	 * Returns a read-only view of a change tracking set.
+	 *
+	 * @param <T> The element type
+	 * @param set The set
+	 *
+	 * @return The view
+	 */
+	<T> Iterable<T> view(Set<T> set) {
+		return Collections.unmodifiableSet(set);
 	}
 	
 	/**
@@ -57,13 +314,23 @@ public class CredentialDatabase implements ICredentialDatabase {
 	 * @param value The value to add
 	 *
 	 * @return True if the value is successfully added to the database
+	 *
+	 * @throws UnsupportedOperationException If the database is a snapshot
 	 */
 	public boolean add(Credential value) {
-		boolean res = credentials.add(value);
+		checkReadOnly();
 		
-		value.addObserver(this);
+		if(credentials.putIfAbsent(value.getTitle(), value) != null)
+			return false;
 		
-		return res;
+		value.addOwner(this);
+		index(value);
+		modifiedCredentials.add(value);
+		addedCredentials.add(value);
+		modified = true;
+		fire(new ChangeEvent(ChangeEvent.Type.ADDED, value, null, null, null));
+		
+		return true;
 	}
 	
 	/**
@@ -72,13 +339,23 @@ public class CredentialDatabase implements ICredentialDatabase {
 	 * @param value The value to add
 	 *
 	 * @return True if the value is successfully added to the database
+	 *
+	 * @throws UnsupportedOperationException If the database is a snapshot
 	 */
 	public boolean add(Keyring value) {
-		boolean res = keyrings.add(value);
+		checkReadOnly();
 		
-		value.addObserver(this);
+		if(keyrings.putIfAbsent(value.getTitle(), value) != null)
+			return false;
 		
-		return res;
+		value.addOwner(this);
+		index(value);
+		modifiedKeyrings.add(value);
+		addedKeyrings.add(value);
+		modified = true;
+		fire(new ChangeEvent(ChangeEvent.Type.ADDED, null, value, null, null));
+		
+		return true;
 	}
 	
 	/**
@@ -87,13 +364,28 @@ public class CredentialDatabase implements ICredentialDatabase {
 	 * @param value The value to remove
 	 *
 	 * @return True if the value is successfully removed from the database
+	 *
+	 * @throws UnsupportedOperationException If the database is a snapshot
 	 */
 	public boolean remove(Credential value) {
-		boolean res = credentials.remove(value);
+		checkReadOnly();
 		
-		value.deleteObserver(this);
+		if(!credentials.remove(value.getTitle(), value))
+			return false;
 		
-		return res;
+		final String title = renamedCredentials.remove(value);
+		
+		value.removeOwner(this);
+		unindex(value);
+		modifiedCredentials.remove(value);
+		
+		if(!addedCredentials.remove(value))
+			removedCredentials.add(title != null ? title : value.getTitle());
+		
+		modified = true;
+		fire(new ChangeEvent(ChangeEvent.Type.REMOVED, value, null, null, null));
+		
+		return true;
 	}
 	
 	/**
@@ -102,97 +394,1638 @@ public class CredentialDatabase implements ICredentialDatabase {
 	 * @param value The value to remove
 	 *
 	 * @return True if the value is successfully removed from the database
+	 *
+	 * @throws UnsupportedOperationException If the database is a snapshot
 	 */
 	public boolean remove(Keyring value) {
-		boolean res = keyrings.remove(value);
+		checkReadOnly();
+		
+		if(!keyrings.remove(value.getTitle(), value))
+			return false;
+		
+		final String title = renamedKeyrings.remove(value);
 		
-		value.deleteObserver(this);
+		value.removeOwner(this);
+		unindex(value);
+		modifiedKeyrings.remove(value);
+		
+		if(!addedKeyrings.remove(value))
+			removedKeyrings.add(title != null ? title : value.getTitle());
+		
+		modified = true;
+		fire(new ChangeEvent(ChangeEvent.Type.REMOVED, null, value, null, null));
+		
+		return true;
+	}
+	
+	/**
+	 * Grows the title indexes, so that they can hold the given numbers of records without growing again.
+	 * <blockquote>This is a hint, to be given before adding many records one by one or in a transaction.
+	 * It is ignored unless the database is empty or the expected numbers are several times the current ones.</blockquote>
+	 *
+	 * @param credentials The expected number of credentials
+	 * @param keyrings The expected number of keyrings
+	 */
+	public void ensureCapacity(int credentials, int keyrings) {
+		this.credentials = grow(this.credentials, credentials);
+		this.keyrings = grow(this.keyrings, keyrings);
+	}
+	
+	/**
+	 * Starts a transaction, collecting changes to be applied all at once.
+	 *
+	 * @return The transaction
+	 *
+	 * @see DatabaseTransaction#commit()
+	 */
+	public DatabaseTransaction begin() {
+		return new DatabaseTransaction(this);
+	}
+	
+	/**
+	 * Checks and applies the changes of a transaction.
+	 *
+	 * @param tx The transaction
+	 *
+	 * @throws IllegalStateException If a title would be taken by more than one record, or if a renamed record
+	 * is neither in the database nor added by the transaction, or is removed by it
+	 * @throws UnsupportedOperationException If the database is a snapshot
+	 */
+	void commit(DatabaseTransaction tx) {
+		checkReadOnly();
+		
+		// Without removals and renames, additions are checked while being inserted
+		if(!tx.removedCredentials.isEmpty() || !tx.renamedCredentials.isEmpty() || !tx.removedKeyrings.isEmpty() || !tx.renamedKeyrings.isEmpty()) {
+			validate(credentials, tx.removedCredentials, tx.renamedCredentials, tx.addedCredentials, Credential::getTitle, "credential");
+			validate(keyrings, tx.removedKeyrings, tx.renamedKeyrings, tx.addedKeyrings, Keyring::getTitle, "keyring");
+		}
+		
+		beginBatch();
+		
+		try {
+			tx.removedCredentials.forEach(this::remove);
+			tx.removedKeyrings.forEach(this::remove);
+			
+			rename(credentials, tx.renamedCredentials, Credential::getTitle, Credential::setTitle);
+			rename(keyrings, tx.renamedKeyrings, Keyring::getTitle, Keyring::setTitle);
+			
+			final List<Credential> cs = insert(credentials, tx.addedCredentials, Credential::getTitle, "credential");
+			final List<Keyring> ks;
+			
+			try {
+				ks = insert(keyrings, tx.addedKeyrings, Keyring::getTitle, "keyring");
+			} catch(IllegalStateException e) {
+				cs.forEach(c -> credentials.remove(c.getTitle(), c));
+				throw e;
+			}
+			
+			for(Credential c: cs) {
+				c.addOwner(this);
+				index(c);
+				modifiedCredentials.add(c);
+				addedCredentials.add(c);
+				fire(new ChangeEvent(ChangeEvent.Type.ADDED, c, null, null, null));
+			}
+			
+			for(Keyring k: ks) {
+				k.addOwner(this);
+				index(k);
+				modifiedKeyrings.add(k);
+				addedKeyrings.add(k);
+				fire(new ChangeEvent(ChangeEvent.Type.ADDED, null, k, null, null));
+			}
+			
+			if(!cs.isEmpty() || !ks.isEmpty())
+				modified = true;
+		} finally {
+			endBatch();
+		}
+	}
+	
+	/**
+	 * Inserts the records added by a transaction into a title index.
+	 * <blockquote>Records already in the index are skipped. If a title is taken by another record, the
+	 * records inserted so far are taken out of the index again.</blockquote>
+	 *
+	 * @param <T> The record type
+	 * @param index The title index
+	 * @param added The records to add
+	 * @param title The function returning the title of a record
+	 * @param kind The record kind, for error messages
+	 *
+	 * @return The inserted records
+	 *
+	 * @throws IllegalStateException If a title is taken by another record
+	 */
+	private static <T> List<T> insert(Map<String, T> index, List<T> added, Function<T, String> title, String kind) {
+		final List<T> res = new ArrayList<T>(added.size());
+		
+		for(T r: added) {
+			final T other = index.putIfAbsent(title.apply(r), r);
+			
+			if(other == null)
+				res.add(r);
+			else if(other != r) {
+				res.forEach(x -> index.remove(title.apply(x), x));
+				throw new IllegalStateException("Duplicate " + kind + " title: " + title.apply(r));
+			}
+		}
 		
 		return res;
 	}
 	
 	/**
-	 * This callback method is called whenever a key in the database has changed.
+	 * Checks that the titles of the records of a transaction will be unique once it has been applied.
 	 *
-	 * @param o The Observable record that has changed
-	 * @param arg The old value of the changed key
+	 * @param <T> The record type
+	 * @param index The title index
+	 * @param removed The records to remove
+	 * @param renamed The new titles of the records to rename
+	 * @param added The records to add
+	 * @param title The function returning the current title of a record
+	 * @param kind The record kind, for error messages
 	 *
-	 * @see java.util.Observer#update(Observable, Object)
+	 * @throws IllegalStateException If a title would be taken by more than one record, or if a renamed record
+	 * is neither in the database nor added, or is removed
 	 */
-	public void update(Observable o, Object arg) {
-		if(o instanceof Credential)
-			updateCredentials((Credential)o, (String)arg);
-		else if(o instanceof Keyring)
-			updateKeyrings((Keyring)o, (String)arg);
+	private static <T> void validate(Map<String, T> index, Set<T> removed, Map<T, String> renamed, List<T> added, Function<T, String> title, String kind) {
+		final Map<String, T> claims = new HashMap<String, T>();
+		final Set<T> adding = Collections.newSetFromMap(new IdentityHashMap<T, Boolean>());
+		
+		for(T r: added)
+			if((index.get(title.apply(r)) != r || removed.contains(r)) && adding.add(r)) {
+				final String t = renamed.get(r);
+				
+				claim(index, removed, renamed, claims, t != null ? t : title.apply(r), r, kind);
+			}
+		
+		renamed.forEach((r, t) -> {
+			if(adding.contains(r))
+				return;
+			
+			if(index.get(title.apply(r)) != r || removed.contains(r))
+				throw new IllegalStateException("Renamed " + kind + " not in the database: " + title.apply(r));
+			
+			claim(index, removed, renamed, claims, t, r, kind);
+		});
 	}
 	
 	/**
-	 * This callback method is called whenever a Credential key in the database has changed.
+	 * Claims a title for a record of a transaction.
 	 *
-	 * @param c The Credential record that has changed
-	 * @param oldTitle The old value of the changed key
+	 * @param <T> The record type
+	 * @param index The title index
+	 * @param removed The records to remove
+	 * @param renamed The new titles of the records to rename
+	 * @param claims The titles claimed so far
+	 * @param t The title
+	 * @param r The record
+	 * @param kind The record kind, for error messages
+	 *
+	 * @throws IllegalStateException If the title is claimed by another record or kept by a record of the database
 	 */
-	private void updateCredentials(Credential c, String oldTitle) {
-		if(credentials.stream().filter(x -> x.getTitle() == c.getTitle()).count() > 1)
-			c.setTitle(oldTitle);
+	private static <T> void claim(Map<String, T> index, Set<T> removed, Map<T, String> renamed, Map<String, T> claims, String t, T r, String kind) {
+		final T other = claims.putIfAbsent(t, r);
+		final T holder = index.get(t);
+		
+		if(other != null && other != r)
+			throw new IllegalStateException("Duplicate " + kind + " title: " + t);
+		
+		if(holder != null && holder != r && !removed.contains(holder)) {
+			final String next = renamed.get(holder);
+			
+			if(next == null || next.equals(t))
+				throw new IllegalStateException("Duplicate " + kind + " title: " + t);
+		}
 	}
 	
 	/**
-	 * This callback method is called whenever a Keyring key in the database has changed.
+	 * Applies the renames of a transaction.
+	 * <blockquote>The old titles of the renamed records of the database are released first, so that records can swap titles.</blockquote>
 	 *
-	 * @param c The Keyring record that has changed
-	 * @param oldTitle The old value of the changed key
+	 * @param <T> The record type
+	 * @param index The title index
+	 * @param renamed The new titles of the records to rename
+	 * @param title The function returning the current title of a record
+	 * @param setTitle The function setting the title of a record
 	 */
-	private void updateKeyrings(Keyring c, String oldTitle) {
-		if(keyrings.stream().filter(x -> x.getTitle() == c.getTitle()).count() > 1)
-			c.setTitle(oldTitle);
+	private static <T> void rename(Map<String, T> index, Map<T, String> renamed, Function<T, String> title, BiConsumer<T, String> setTitle) {
+		renamed.forEach((r, t) -> {
+			if(!t.equals(title.apply(r)))
+				index.remove(title.apply(r), r);
+		});
+		
+		renamed.forEach((r, t) -> {
+			if(!t.equals(title.apply(r)))
+				setTitle.accept(r, t);
+		});
 	}
 	
 	/**
-	 * Returns <code>true</code> if the database has been modified.
+	 * Checks that the database can be modified.
 	 *
-	 * @return True if the database has been modified
+	 * @throws UnsupportedOperationException If the database is a snapshot
 	 */
-	public boolean isModified() {
-		return (
-			credentials.stream().filter(x -> x.isModified()).count()
-			+ keyrings.stream().filter(x -> x.isModified()).count()
-		) > 0;
+	private void checkReadOnly() {
+		if(readOnly)
+			throw new UnsupportedOperationException("Snapshots cannot be modified");
 	}
 	
 	/**
-	 * Returns an iterator for the credentials of the database
+	 * Returns the credential with the given title.
 	 *
-	 * @return An iterator for the credentials of the dataabse
+	 * @param title The title of the credential
+	 *
+	 * @return The credential or <code>null</code> if the database contains no credential with such title
 	 */
-	public Iterable<Credential> getCredentials() {
-		return credentials;
+	public Credential findCredential(String title) {
+		return credentials.get(title);
 	}
 	
 	/**
-	 * Returns an iterator for the keyrings of the database
+	 * Returns the keyring with the given title.
 	 *
-	 * @return An iterator for the keyrings of the dataabse
+	 * @param title The title of the keyring
+	 *
+	 * @return The keyring or <code>null</code> if the database contains no keyring with such title
 	 */
-	public Iterable<Keyring> getKeyrings() {
-		return keyrings;
+	public Keyring findKeyring(String title) {
+		return keyrings.get(title);
 	}
 	
 	/**
-	 * Returns a stream for the credentials of the database
+	 * Returns the credentials with the given username.
+	 * <blockquote>The cost of this method only depends on the number of credentials found.</blockquote>
 	 *
-	 * @return A stream for the credentials of the dataabse
+	 * @param user The username
+	 *
+	 * @return The credentials, in no particular order
+	 *
+	 * @throws NullPointerException If <code>user</code> is null
 	 */
-	public Stream<Credential> getCredentialsStream() {
-		return credentials.stream();
+	public Iterable<Credential> findCredentialsByUser(String user) {
+		if(user == null)
+			throw new NullPointerException();
+		
+		checkIndexed();
+		
+		return found(users.get(user));
 	}
 	
 	/**
-	 * Returns a stream for the keyrings of the database
+	 * Returns the keyrings of the database which contain the given credential.
+	 * <blockquote>The cost of this method only depends on the number of keyrings found.</blockquote>
 	 *
-	 * @return A stream for the keyrings of the dataabse
+	 * @param value The credential
+	 *
+	 * @return The keyrings, in no particular order
+	 *
+	 * @throws NullPointerException If <code>value</code> is null
 	 */
-	public Stream<Keyring> getKeyringsStream() {
-		return keyrings.stream();
+	public Iterable<Keyring> findKeyrings(Credential value) {
+		if(value == null)
+			throw new NullPointerException();
+		
+		checkIndexed();
+		
+		return found(memberships.get(value));
+	}
+	
+	/**
+	 * Returns the credentials of the database which belong to all of some keyrings, to at least one of
+	 * others and to none of others.
+	 * <blockquote>For example, the credentials in keyrings A and B but not in C are found with
+	 * <code>findCredentials(Arrays.asList(a, b), Collections.emptySet(), Collections.singleton(c))</code>.
+	 * Keyring members are kept as compressed bitsets of credential ids, so the cost of this method
+	 * depends on the number of members of the keyrings, not on the number of keyrings they belong to.</blockquote>
+	 *
+	 * @param all The keyrings the credentials must all belong to, or an empty collection for no such constraint
+	 * @param any The keyrings the credentials must belong to at least one of, or an empty collection for
+	 * no such constraint
+	 * @param none The keyrings the credentials must not belong to
+	 *
+	 * @return The credentials
+	 *
+	 * @throws NullPointerException If any of the arguments is null
+	 */
+	public List<Credential> findCredentials(Collection<Keyring> all, Collection<Keyring> any, Collection<Keyring> none) {
+		if(all == null || any == null || none == null)
+			throw new NullPointerException();
+		
+		checkIndexed();
+		
+		return members.find(all, any, none);
+	}
+	
+	/**
+	 * Returns the number of credentials of the database which belong to all of some keyrings, to at least one of
+	 * others and to none of others.
+	 *
+	 * @param all The keyrings the credentials must all belong to, or an empty collection for no such constraint
+	 * @param any The keyrings the credentials must belong to at least one of, or an empty collection for
+	 * no such constraint
+	 * @param none The keyrings the credentials must not belong to
+	 *
+	 * @return The number of credentials
+	 *
+	 * @throws NullPointerException If any of the arguments is null
+	 *
+	 * @see #findCredentials(Collection, Collection, Collection)
+	 */
+	public int countCredentials(Collection<Keyring> all, Collection<Keyring> any, Collection<Keyring> none) {
+		if(all == null || any == null || none == null)
+			throw new NullPointerException();
+		
+		checkIndexed();
+		
+		return members.count(all, any, none);
+	}
+	
+	/**
+	 * Starts a query on the credentials of the database.
+	 * <blockquote>For example, the first 20 credentials of user "root" in keyring <code>k</code>, sorted by title,
+	 * are found with <code>query().userIs("root").inKeyring(k).orderByTitle().limit(20).list()</code>.
+	 * The query is planned against the secondary indexes of the database when run.</blockquote>
+	 *
+	 * @return A new query, matching every credential
+	 *
+	 * @see CredentialQuery
+	 */
+	public CredentialQuery query() {
+		return new CredentialQuery(this);
+	}
+	
+	/**
+	 * Returns the number of credentials of the database.
+	 *
+	 * @return The number of credentials
+	 */
+	int credentialCount() {
+		return credentials.size();
+	}
+	
+	/**
+	 * Returns the number of credentials with the given username.
+	 *
+	 * @param user The username
+	 *
+	 * @return The number of credentials
+	 */
+	int countByUser(String user) {
+		checkIndexed();
+		
+		final Set<Credential> set = users.get(user);
+		
+		return set != null ? set.size() : 0;
+	}
+	
+	/**
+	 * Returns the number of credentials whose title starts with the given prefix, ignoring case.
+	 *
+	 * @param prefix The prefix
+	 *
+	 * @return The number of credentials
+	 */
+	int countByPrefix(String prefix) {
+		checkTextIndexed();
+		
+		return credentialTitles.count(prefix);
+	}
+	
+	/**
+	 * Returns a page of the credentials whose title starts with the given prefix, ignoring case.
+	 *
+	 * @param prefix The prefix
+	 * @param after The title of the last credential of the previous page, or null for the first page
+	 * @param limit The maximum number of credentials to return, which may be exceeded by credentials
+	 * whose titles only differ in case
+	 *
+	 * @return The credentials, sorted by title
+	 */
+	List<Credential> pageByPrefix(String prefix, String after, int limit) {
+		checkTextIndexed();
+		
+		return credentialTitles.prefix(prefix, after, limit);
+	}
+	
+	/**
+	 * Returns the number of credentials containing the rarest word of a text in their title or description.
+	 *
+	 * @param text The text
+	 *
+	 * @return The number of credentials, or -1 if the text has no words
+	 */
+	int countByWords(String text) {
+		checkTextIndexed();
+		
+		return credentialWords.rarestCount(text);
+	}
+	
+	/**
+	 * Returns the credentials containing the rarest word of a text in their title or description.
+	 *
+	 * @param text The text
+	 *
+	 * @return The credentials, or null if the text has no words
+	 */
+	List<Credential> findByWords(String text) {
+		checkTextIndexed();
+		
+		return credentialWords.rarest(text);
+	}
+	
+	/**
+	 * Returns the number of members of a keyring which belong to the database.
+	 *
+	 * @param k The keyring
+	 *
+	 * @return The number of credentials
+	 */
+	int countByKeyring(Keyring k) {
+		checkIndexed();
+		
+		return members.size(k);
+	}
+	
+	/**
+	 * Returns a page of the credentials of the database which belong to all of some keyrings and to none of others.
+	 *
+	 * @param all The keyrings the credentials must all belong to
+	 * @param none The keyrings the credentials must not belong to
+	 * @param from The position of the first credential of the page, 0 for the first page
+	 * @param max The maximum number of credentials of the page
+	 * @param page Receives the credentials
+	 *
+	 * @return The position of the first credential of the next page, or -1 if there are no more credentials
+	 */
+	int pageByKeyrings(Collection<Keyring> all, Collection<Keyring> none, int from, int max, List<Credential> page) {
+		checkIndexed();
+		
+		return members.page(all, none, from, max, page);
+	}
+	
+	/**
+	 * Returns true if a credential belongs to a keyring of the database.
+	 *
+	 * @param c The credential
+	 * @param k The keyring
+	 *
+	 * @return True if the credential belongs to the keyring
+	 */
+	boolean isMember(Credential c, Keyring k) {
+		checkIndexed();
+		
+		final Set<Keyring> set = memberships.get(c);
+		
+		return set != null && set.contains(k);
+	}
+	
+	/**
+	 * Returns a read-only view of an entry of a secondary index.
+	 *
+	 * @param <T> The record type
+	 * @param set The records of the entry, or null if there is no entry
+	 *
+	 * @return The view
+	 */
+	private <T> Iterable<T> found(Set<T> set) {
+		return set != null ? view(set) : Collections.<T>emptySet();
+	}
+	
+	/**
+	 * Returns the credentials whose title starts with the given prefix, ignoring case.
+	 * <blockquote>The cost of this method only depends on the length of the prefix and the number of
+	 * credentials found, which makes it suitable for completing titles as they are typed.</blockquote>
+	 *
+	 * @param prefix The prefix
+	 * @param limit The maximum number of credentials to return
+	 *
+	 * @return The credentials, sorted by title
+	 *
+	 * @throws NullPointerException If <code>prefix</code> is null
+	 * @throws IllegalArgumentException If <code>limit</code> is negative
+	 */
+	public List<Credential> findCredentialsByPrefix(String prefix, int limit) {
+		if(prefix == null)
+			throw new NullPointerException();
+		
+		if(limit < 0)
+			throw new IllegalArgumentException("Negative limit");
+		
+		checkTextIndexed();
+		
+		return credentialTitles.prefix(prefix, limit);
+	}
+	
+	/**
+	 * Returns the keyrings whose title starts with the given prefix, ignoring case.
+	 * <blockquote>The cost of this method only depends on the length of the prefix and the number of
+	 * keyrings found, which makes it suitable for completing titles as they are typed.</blockquote>
+	 *
+	 * @param prefix The prefix
+	 * @param limit The maximum number of keyrings to return
+	 *
+	 * @return The keyrings, sorted by title
+	 *
+	 * @throws NullPointerException If <code>prefix</code> is null
+	 * @throws IllegalArgumentException If <code>limit</code> is negative
+	 */
+	public List<Keyring> findKeyringsByPrefix(String prefix, int limit) {
+		if(prefix == null)
+			throw new NullPointerException();
+		
+		if(limit < 0)
+			throw new IllegalArgumentException("Negative limit");
+		
+		checkTextIndexed();
+		
+		return keyringTitles.prefix(prefix, limit);
+	}
+	
+	/**
+	 * Returns the credentials whose title is within the given edit distance of a title, ignoring case.
+	 * <blockquote>The distance is the Levenshtein distance: the number of characters to insert, delete
+	 * or replace to turn one title into the other.</blockquote>
+	 *
+	 * @param title The title
+	 * @param distance The maximum distance
+	 * @param limit The maximum number of credentials to return
+	 *
+	 * @return The credentials, closest first
+	 *
+	 * @throws NullPointerException If <code>title</code> is null
+	 * @throws IllegalArgumentException If <code>distance</code> or <code>limit</code> is negative
+	 */
+	public List<Credential> findSimilarCredentials(String title, int distance, int limit) {
+		if(title == null)
+			throw new NullPointerException();
+		
+		if(distance < 0 || limit < 0)
+			throw new IllegalArgumentException("Negative distance or limit");
+		
+		checkTextIndexed();
+		
+		return credentialTitles.similar(title, distance, limit);
+	}
+	
+	/**
+	 * Returns the keyrings whose title is within the given edit distance of a title, ignoring case.
+	 * <blockquote>The distance is the Levenshtein distance: the number of characters to insert, delete
+	 * or replace to turn one title into the other.</blockquote>
+	 *
+	 * @param title The title
+	 * @param distance The maximum distance
+	 * @param limit The maximum number of keyrings to return
+	 *
+	 * @return The keyrings, closest first
+	 *
+	 * @throws NullPointerException If <code>title</code> is null
+	 * @throws IllegalArgumentException If <code>distance</code> or <code>limit</code> is negative
+	 */
+	public List<Keyring> findSimilarKeyrings(String title, int distance, int limit) {
+		if(title == null)
+			throw new NullPointerException();
+		
+		if(distance < 0 || limit < 0)
+			throw new IllegalArgumentException("Negative distance or limit");
+		
+		checkTextIndexed();
+		
+		return keyringTitles.similar(title, distance, limit);
+	}
+	
+	/**
+	 * Returns the credentials best matching a full-text query on their titles and descriptions.
+	 * <blockquote>Credentials containing more of the words of the query, and rarer words, come first.
+	 * Words are the runs of letters and digits, compared case-insensitively.</blockquote>
+	 *
+	 * @param query The query
+	 * @param limit The maximum number of credentials to return
+	 *
+	 * @return The credentials, best match first
+	 *
+	 * @throws NullPointerException If <code>query</code> is null
+	 * @throws IllegalArgumentException If <code>limit</code> is negative
+	 */
+	public List<Credential> searchCredentials(String query, int limit) {
+		if(query == null)
+			throw new NullPointerException();
+		
+		if(limit < 0)
+			throw new IllegalArgumentException("Negative limit");
+		
+		checkTextIndexed();
+		
+		return credentialWords.search(query, limit, credentials.size());
+	}
+	
+	/**
+	 * Returns the keyrings best matching a full-text query on their titles and descriptions.
+	 * <blockquote>Keyrings containing more of the words of the query, and rarer words, come first.
+	 * Words are the runs of letters and digits, compared case-insensitively.</blockquote>
+	 *
+	 * @param query The query
+	 * @param limit The maximum number of keyrings to return
+	 *
+	 * @return The keyrings, best match first
+	 *
+	 * @throws NullPointerException If <code>query</code> is null
+	 * @throws IllegalArgumentException If <code>limit</code> is negative
+	 */
+	public List<Keyring> searchKeyrings(String query, int limit) {
+		if(query == null)
+			throw new NullPointerException();
+		
+		if(limit < 0)
+			throw new IllegalArgumentException("Negative limit");
+		
+		checkTextIndexed();
+		
+		return keyringWords.search(query, limit, keyrings.size());
+	}
+	
+	/**
+	 * This callback method is called whenever a record of the database has changed.
+	 * <blockquote>Records only report changes which turned them modified, changes to indexed properties, and
+	 * every change if the database has change listeners.</blockquote>
+	 *
+	 * @param e The change
+	 * @param first True if the change turned the record from unmodified to modified
+	 */
+	void recordChanged(ChangeEvent e, boolean first) {
+		if(track(e, first))
+			fire(e);
+	}
+	
+	/**
+	 * Updates the indexes and the change tracking after a record has changed.
+	 *
+	 * @param e The change
+	 * @param first True if the change turned the record from unmodified to modified
+	 *
+	 * @return False if the change is a rejected or no-op title change, which must not be reported
+	 */
+	boolean track(ChangeEvent e, boolean first) {
+		boolean res = true;
+		
+		if(e.getKeyring() != null) {
+			final Keyring k = e.getKeyring();
+			
+			if(e.getType() == ChangeEvent.Type.TITLE) {
+				res = updateKeyrings(k, e.getOldValue());
+				
+				if(res && textIndexed) {
+					keyringWords.update(k, new String[] { e.getOldValue(), k.getDescription() }, new String[] { e.getNewValue(), k.getDescription() });
+					keyringTitles.remove(e.getOldValue(), k);
+					keyringTitles.add(e.getNewValue(), k);
+				}
+			} else if(e.getType() == ChangeEvent.Type.DESCRIPTION && textIndexed)
+				keyringWords.update(k, new String[] { k.getTitle(), e.getOldValue() }, new String[] { k.getTitle(), e.getNewValue() });
+			else if(e.getType() == ChangeEvent.Type.MEMBER_ADDED) {
+				index(e.getCredential(), k);
+				members.addMember(k, e.getCredential());
+			} else if(e.getType() == ChangeEvent.Type.MEMBER_REMOVED) {
+				unindex(e.getCredential(), k);
+				members.removeMember(k, e.getCredential());
+			}
+			
+			if(first)
+				modifiedKeyrings.add(k);
+		} else {
+			final Credential c = e.getCredential();
+			
+			if(e.getType() == ChangeEvent.Type.TITLE) {
+				res = updateCredentials(c, e.getOldValue());
+				
+				if(res && textIndexed) {
+					credentialWords.update(c, new String[] { e.getOldValue(), c.getDescription() }, new String[] { e.getNewValue(), c.getDescription() });
+					credentialTitles.remove(e.getOldValue(), c);
+					credentialTitles.add(e.getNewValue(), c);
+				}
+			} else if(e.getType() == ChangeEvent.Type.DESCRIPTION && textIndexed)
+				credentialWords.update(c, new String[] { c.getTitle(), e.getOldValue() }, new String[] { c.getTitle(), e.getNewValue() });
+			else if(e.getType() == ChangeEvent.Type.USER && !Objects.equals(e.getOldValue(), e.getNewValue())) {
+				unindex(e.getOldValue(), c);
+				index(e.getNewValue(), c);
+			}
+			
+			if(first)
+				modifiedCredentials.add(c);
+		}
+		
+		return res;
+	}
+	
+	/**
+	 * Adds a credential to the secondary indexes.
+	 *
+	 * @param c The credential
+	 */
+	private void index(Credential c) {
+		index(c.getUser(), c);
+		members.add(c, found(memberships.get(c)));
+		
+		if(textIndexed) {
+			credentialWords.add(c, c.getTitle(), c.getDescription());
+			credentialTitles.add(c.getTitle(), c);
+		}
+	}
+	
+	/**
+	 * Removes a credential from the secondary indexes.
+	 *
+	 * @param c The credential
+	 */
+	private void unindex(Credential c) {
+		unindex(c.getUser(), c);
+		members.remove(c, found(memberships.get(c)));
+		
+		if(textIndexed) {
+			credentialWords.remove(c, c.getTitle(), c.getDescription());
+			credentialTitles.remove(c.getTitle(), c);
+		}
+	}
+	
+	/**
+	 * Adds a keyring to the secondary indexes.
+	 *
+	 * @param k The keyring
+	 */
+	private void index(Keyring k) {
+		k.forEach(c -> index(c, k));
+		members.add(k);
+		
+		if(textIndexed) {
+			keyringWords.add(k, k.getTitle(), k.getDescription());
+			keyringTitles.add(k.getTitle(), k);
+		}
+	}
+	
+	/**
+	 * Removes a keyring from the secondary indexes.
+	 *
+	 * @param k The keyring
+	 */
+	private void unindex(Keyring k) {
+		members.remove(k);
+		k.forEach(c -> unindex(c, k));
+		
+		if(textIndexed) {
+			keyringWords.remove(k, k.getTitle(), k.getDescription());
+			keyringTitles.remove(k.getTitle(), k);
+		}
+	}
+	
+	/**
+	 * Builds the secondary indexes of a snapshot, if not built yet.
+	 */
+	private void checkIndexed() {
+		if(!indexed)
+			synchronized(this) {
+				if(!indexed) {
+					credentials.values().forEach(this::index);
+					keyrings.values().forEach(this::index);
+					indexed = true;
+				}
+			}
+	}
+	
+	/**
+	 * Builds the full-text indexes and the title tries, if not built yet.
+	 */
+	private void checkTextIndexed() {
+		if(!textIndexed)
+			buildTextIndexes();
+	}
+	
+	/**
+	 * Builds the full-text indexes and the title tries, which are then kept up to date.
+	 * <blockquote>Subclasses may override this method to block writers meanwhile.</blockquote>
+	 */
+	void buildTextIndexes() {
+		checkIndexed();
+		
+		synchronized(this) {
+			if(!textIndexed) {
+				for(Credential c: credentials.values()) {
+					credentialWords.add(c, c.getTitle(), c.getDescription());
+					credentialTitles.add(c.getTitle(), c);
+				}
+				
+				for(Keyring k: keyrings.values()) {
+					keyringWords.add(k, k.getTitle(), k.getDescription());
+					keyringTitles.add(k.getTitle(), k);
+				}
+				
+				textIndexed = true;
+			}
+		}
+	}
+	
+	/**
+	 * Adds a credential to the username index.
+	 *
+	 * @param user The username, or null
+	 * @param c The credential
+	 */
+	private void index(String user, Credential c) {
+		if(user != null)
+			users.compute(user, (k, s) -> addTo(s, c));
+	}
+	
+	/**
+	 * Removes a credential from the username index.
+	 *
+	 * @param user The username, or null
+	 * @param c The credential
+	 */
+	private void unindex(String user, Credential c) {
+		if(user != null)
+			users.computeIfPresent(user, (k, s) -> removeFrom(s, c));
+	}
+	
+	/**
+	 * Adds a keyring to the membership index.
+	 *
+	 * @param c The credential contained in the keyring
+	 * @param k The keyring
+	 */
+	private void index(Credential c, Keyring k) {
+		memberships.compute(c, (x, s) -> addTo(s, k));
+	}
+	
+	/**
+	 * Removes a keyring from the membership index.
+	 *
+	 * @param c The credential no longer contained in the keyring
+	 * @param k The keyring
+	 */
+	private void unindex(Credential c, Keyring k) {
+		memberships.computeIfPresent(c, (x, s) -> removeFrom(s, k));
+	}
+	
+	/**
+	 * Adds a record to an entry of a secondary index.
+	 *
+	 * @param <T> The record type
+	 * @param set The records of the entry, or null if there is no entry yet
+	 * @param r The record
+	 *
+	 * @return The records of the entry
+	 */
+	private <T> Set<T> addTo(Set<T> set, T r) {
+		final Set<T> res = set != null ? set : this.<T>newIdentitySet();
+		
+		res.add(r);
+		
+		return res;
+	}
+	
+	/**
+	 * Removes a record from an entry of a secondary index.
+	 *
+	 * @param <T> The record type
+	 * @param set The records of the entry
+	 * @param r The record
+	 *
+	 * @return The records of the entry, or null if the entry must be dropped
+	 */
+	private static <T> Set<T> removeFrom(Set<T> set, T r) {
+		set.remove(r);
+		
+		return set.isEmpty() ? null : set;
+	}
+	
+	/**
+	 * This callback method is called whenever a Credential key in the database has changed.
+	 * <blockquote>If the new title is already taken by another credential, the old title is restored.</blockquote>
+	 *
+	 * @param c The Credential record that has changed
+	 * @param oldTitle The old value of the changed key
+	 *
+	 * @return True if the new title has been indexed
+	 */
+	private boolean updateCredentials(Credential c, String oldTitle) {
+		final Credential other = credentials.get(c.getTitle());
+		
+		if(other == c) // Title restored or unchanged
+			return false;
+		
+		if(other != null || credentials.putIfAbsent(c.getTitle(), c) != null) {
+			c.setTitle(oldTitle);
+			return false;
+		}
+		
+		credentials.remove(oldTitle, c);
+		
+		if(!addedCredentials.contains(c))
+			renamedCredentials.putIfAbsent(c, oldTitle);
+		
+		return true;
+	}
+	
+	/**
+	 * This callback method is called whenever a Keyring key in the database has changed.
+	 * <blockquote>If the new title is already taken by another keyring, the old title is restored.</blockquote>
+	 *
+	 * @param c The Keyring record that has changed
+	 * @param oldTitle The old value of the changed key
+	 *
+	 * @return True if the new title has been indexed
+	 */
+	private boolean updateKeyrings(Keyring c, String oldTitle) {
+		final Keyring other = keyrings.get(c.getTitle());
+		
+		if(other == c) // Title restored or unchanged
+			return false;
+		
+		if(other != null || keyrings.putIfAbsent(c.getTitle(), c) != null) {
+			c.setTitle(oldTitle);
+			return false;
+		}
+		
+		keyrings.remove(oldTitle, c);
+		
+		if(!addedKeyrings.contains(c))
+			renamedKeyrings.putIfAbsent(c, oldTitle);
+		
+		return true;
+	}
+	
+	/**
+	 * Registers a change listener.
+	 *
+	 * @param listener The listener
+	 *
+	 * @throws NullPointerException If <code>listener</code> is null
+	 */
+	public synchronized void addChangeListener(ChangeListener listener) {
+		if(listener == null)
+			throw new NullPointerException();
+		
+		final ChangeListener[] l = listeners;
+		
+		if(l == null)
+			listeners = new ChangeListener[] { listener };
+		else {
+			final ChangeListener[] n = Arrays.copyOf(l, l.length + 1);
+			
+			n[l.length] = listener;
+			listeners = n;
+		}
+	}
+	
+	/**
+	 * Unregisters a change listener.
+	 *
+	 * @param listener The listener
+	 */
+	public synchronized void removeChangeListener(ChangeListener listener) {
+		final ChangeListener[] l = listeners;
+		
+		if(l == null)
+			return;
+		
+		for(int i = 0; i < l.length; i++)
+			if(l[i] == listener) {
+				if(l.length == 1)
+					listeners = null;
+				else {
+					final ChangeListener[] n = new ChangeListener[l.length - 1];
+					
+					System.arraycopy(l, 0, n, 0, i);
+					System.arraycopy(l, i + 1, n, i, n.length - i);
+					listeners = n;
+				}
+				
+				return;
+			}
+	}
+	
+	/**
+	 * Returns true if change listeners are registered.
+	 *
+	 * @return True if changes must be reported to listeners
+	 */
+	boolean hasListeners() { return listeners != null; }
+	
+	/**
+	 * Runs a task, delivering the changes it makes to the change listeners as one batch once it completes.
+	 *
+	 * <p>Consecutive changes to the same property of a record, with no other change in between, are coalesced
+	 * into one, carrying the first old value and the last new value, and dropped if the property is back to
+	 * its original value. Batches are per thread and may be nested: changes are delivered when the outermost
+	 * batch completes, even if the task fails.</p>
+	 *
+	 * @param task The task
+	 *
+	 * @throws NullPointerException If <code>task</code> is null
+	 */
+	public void batch(Runnable task) {
+		if(task == null)
+			throw new NullPointerException();
+		
+		beginBatch();
+		
+		try {
+			task.run();
+		} finally {
+			endBatch();
+		}
+	}
+	
+	/**
+	 * Starts a batch of changes on the current thread.
+	 *
+	 * @see #batch(Runnable)
+	 */
+	void beginBatch() {
+		batches.get().depth++;
+	}
+	
+	/**
+	 * Ends a batch of changes on the current thread, delivering the changes if it is the outermost one.
+	 *
+	 * @see #batch(Runnable)
+	 */
+	void endBatch() {
+		final Batch b = batches.get();
+		
+		if(--b.depth == 0 && !b.events.isEmpty())
+			deliver(b.drain());
+	}
+	
+	/**
+	 * Reports a change to the change listeners, or adds it to the batch of the current thread.
+	 *
+	 * @param e The change
+	 */
+	private void fire(ChangeEvent e) {
+		if(listeners == null)
+			return;
+		
+		final Batch b = batches.get();
+		
+		if(b.depth > 0)
+			b.add(e);
+		else
+			deliver(Collections.singletonList(e));
+	}
+	
+	/**
+	 * Delivers changes to the change listeners.
+	 *
+	 * @param events The changes
+	 */
+	private void deliver(List<ChangeEvent> events) {
+		final ChangeListener[] l = listeners;
+		
+		if(l != null)
+			for(ChangeListener listener: l)
+				listener.changed(events);
+	}
+	
+	/**
+	 * Blocks the changes made to a record by other threads.
+	 * <blockquote>Records hold this lock while a change is applied to them and tracked by the database, so that
+	 * operations blocking every writer never observe a change half applied. Databases of this class are not
+	 * thread-safe, so this implementation does nothing.</blockquote>
+	 *
+	 * @param r The record
+	 */
+	void lockRecord(Object r) {}
+	
+	/**
+	 * Releases the lock taken by {@link #lockRecord(Object)}.
+	 *
+	 * @param r The record
+	 */
+	void unlockRecord(Object r) {}
+	
+	/**
+	 * Returns the position of the database in the order the databases of a record are locked in.
+	 *
+	 * @return The lock order
+	 */
+	long lockOrder() { return 0; }
+	
+	/**
+	 * Locks a record in the databases it belongs to, and starts a batch of changes in each of them.
+	 * <blockquote>The databases are locked by increasing lock order, so that records belonging to
+	 * several databases cannot deadlock.</blockquote>
+	 *
+	 * @param owners The databases, or null if there are none
+	 * @param r The record
+	 *
+	 * @see #unlockRecord(CredentialDatabase[], Object)
+	 */
+	static void lockRecord(CredentialDatabase[] owners, Object r) {
+		if(owners == null)
+			return;
+		
+		if(owners.length > 1) {
+			owners = owners.clone();
+			Arrays.sort(owners, (a, b) -> Long.compare(a.lockOrder(), b.lockOrder()));
+		}
+		
+		for(CredentialDatabase db: owners) {
+			db.beginBatch();
+			db.lockRecord(r);
+		}
+	}
+	
+	/**
+	 * Unlocks a record in the databases it belongs to, and then delivers their batches of changes.
+	 *
+	 * @param owners The databases, or null if there are none
+	 * @param r The record
+	 *
+	 * @see #lockRecord(CredentialDatabase[], Object)
+	 */
+	static void unlockRecord(CredentialDatabase[] owners, Object r) {
+		if(owners == null)
+			return;
+		
+		for(CredentialDatabase db: owners)
+			db.unlockRecord(r);
+		
+		for(CredentialDatabase db: owners)
+			db.endBatch();
+	}
+	
+	/**
+	 * Adds a database to an array of databases.
+	 *
+	 * @param owners The databases, or null if there are none
+	 * @param db The database to add
+	 *
+	 * @return A new array
+	 *
+	 * @see Credential#addOwner(CredentialDatabase)
+	 */
+	static CredentialDatabase[] with(CredentialDatabase[] owners, CredentialDatabase db) {
+		if(owners == null)
+			return new CredentialDatabase[] { db };
+		
+		final CredentialDatabase[] n = Arrays.copyOf(owners, owners.length + 1);
+		
+		n[owners.length] = db;
+		
+		return n;
+	}
+	
+	/**
+	 * Removes a database from an array of databases.
+	 *
+	 * @param owners The databases, or null if there are none
+	 * @param db The database to remove
+	 *
+	 * @return A new array, the same array if it doesn't contain <code>db</code>, or null if it is left empty
+	 */
+	static CredentialDatabase[] without(CredentialDatabase[] owners, CredentialDatabase db) {
+		if(owners == null)
+			return null;
+		
+		for(int i = 0; i < owners.length; i++)
+			if(owners[i] == db) {
+				if(owners.length == 1)
+					return null;
+				
+				final CredentialDatabase[] n = new CredentialDatabase[owners.length - 1];
+				
+				System.arraycopy(owners, 0, n, 0, i);
+				System.arraycopy(owners, i + 1, n, i, n.length - i);
+				
+				return n;
+			}
+		
+		return owners;
+	}
+	
+	/**
+	 * Returns <code>true</code> if the database has been modified.
+	 *
+	 * @return True if the database has been modified
+	 */
+	public boolean isModified() {
+		return modified || !modifiedCredentials.isEmpty() || !modifiedKeyrings.isEmpty();
+	}
+	
+	/**
+	 * Returns the credentials that have been added to the database or modified
+	 * since the last call to {@link #clearModified()}.
+	 *
+	 * @return The modified credentials
+	 */
+	public Iterable<Credential> getModifiedCredentials() {
+		return view(modifiedCredentials);
+	}
+	
+	/**
+	 * Returns the keyrings that have been added to the database or modified
+	 * since the last call to {@link #clearModified()}.
+	 *
+	 * @return The modified keyrings
+	 */
+	public Iterable<Keyring> getModifiedKeyrings() {
+		return view(modifiedKeyrings);
+	}
+	
+	/**
+	 * Returns the credentials that have been renamed since the last call to {@link #clearModified()}.
+	 * <blockquote>Credentials added to the database since then are not reported.</blockquote>
+	 *
+	 * @return A map from the original titles to the current titles
+	 */
+	public Map<String, String> getRenamedCredentials() {
+		return renamedTitles(renamedCredentials, Credential::getTitle);
+	}
+	
+	/**
+	 * Returns the keyrings that have been renamed since the last call to {@link #clearModified()}.
+	 * <blockquote>Keyrings added to the database since then are not reported.</blockquote>
+	 *
+	 * @return A map from the original titles to the current titles
+	 */
+	public Map<String, String> getRenamedKeyrings() {
+		return renamedTitles(renamedKeyrings, Keyring::getTitle);
+	}
+	
+	/**
+	 * Maps the original titles of renamed records to their current titles.
+	 * <blockquote>Records renamed back to their original title are left out.</blockquote>
+	 *
+	 * @param <T> The record type
+	 * @param renamed The original titles of the renamed records
+	 * @param title The function returning the current title of a record
+	 *
+	 * @return A map from the original titles to the current titles
+	 */
+	static <T> Map<String, String> renamedTitles(Map<T, String> renamed, Function<T, String> title) {
+		final Map<String, String> res = new LinkedHashMap<String, String>();
+		
+		renamed.forEach((k, v) -> {
+			if(!v.equals(title.apply(k)))
+				res.put(v, title.apply(k));
+		});
+		
+		return res;
+	}
+	
+	/**
+	 * Returns the original titles of the credentials that have been removed from
+	 * the database since the last call to {@link #clearModified()}.
+	 * <blockquote>Credentials both added and removed since then are not reported.</blockquote>
+	 *
+	 * @return The titles of the removed credentials
+	 */
+	public Iterable<String> getRemovedCredentials() {
+		return view(removedCredentials);
+	}
+	
+	/**
+	 * Returns the original titles of the keyrings that have been removed from
+	 * the database since the last call to {@link #clearModified()}.
+	 * <blockquote>Keyrings both added and removed since then are not reported.</blockquote>
+	 *
+	 * @return The titles of the removed keyrings
+	 */
+	public Iterable<String> getRemovedKeyrings() {
+		return view(removedKeyrings);
+	}
+	
+	/**
+	 * Marks the database and all of its records as not modified.
+	 * <blockquote>This is usually called once the database has been saved. It has no effect on snapshots.</blockquote>
+	 */
+	public void clearModified() {
+		if(readOnly)
+			return;
+		
+		modifiedCredentials.forEach(Credential::clearModified);
+		modifiedKeyrings.forEach(Keyring::clearModified);
+		modifiedCredentials.clear();
+		modifiedKeyrings.clear();
+		addedCredentials.clear();
+		addedKeyrings.clear();
+		renamedCredentials.clear();
+		renamedKeyrings.clear();
+		removedCredentials.clear();
+		removedKeyrings.clear();
+		modified = false;
+	}
+	
+	/**
+	 * Returns the changes made to the database since the last call to {@link #clearModified()}.
+	 * <blockquote>The changed records are returned as read-only copies, so the changes can be saved
+	 * while the database keeps changing.</blockquote>
+	 *
+	 * @return The changes
+	 */
+	public DatabaseChanges getChanges() {
+		return changes(false, false);
+	}
+	
+	/**
+	 * Returns the changes made to the database since the last call to {@link #clearModified()},
+	 * and marks the database and all of its records as not modified in the same step.
+	 * <blockquote>Unlike calling {@link #clearModified()} once the changes have been saved, this does not lose
+	 * the changes made while saving. If the changes cannot be saved, {@link DatabaseChanges#restore()}
+	 * hands them back to the database.</blockquote>
+	 *
+	 * @param snapshot True to take a snapshot of the whole database along with the changes,
+	 * see {@link DatabaseChanges#getSnapshot()}
+	 *
+	 * @return The changes
+	 */
+	public DatabaseChanges drainChanges(boolean snapshot) {
+		return changes(true, snapshot);
+	}
+	
+	/**
+	 * Takes the changes made to the database since the last call to {@link #clearModified()}.
+	 * <blockquote>Subclasses may override this method to take the changes atomically.</blockquote>
+	 *
+	 * @param drain True to mark the database as not modified
+	 * @param snapshot True to take a snapshot of the whole database
+	 *
+	 * @return The changes
+	 */
+	DatabaseChanges changes(boolean drain, boolean snapshot) {
+		final DatabaseChanges res = new DatabaseChanges(this, snapshot ? snapshot() : null, drain && !readOnly);
+		
+		if(readOnly)
+			return res;
+		
+		modifiedCredentials.forEach(c -> res.credentials.put(c, c.snapshotCopy()));
+		modifiedKeyrings.forEach(k -> res.keyrings.put(k, k.snapshotCopy()));
+		renamedCredentials.keySet().forEach(c -> res.credentials.computeIfAbsent(c, Credential::snapshotCopy));
+		renamedKeyrings.keySet().forEach(k -> res.keyrings.computeIfAbsent(k, Keyring::snapshotCopy));
+		res.addedCredentials.addAll(addedCredentials);
+		res.addedKeyrings.addAll(addedKeyrings);
+		res.renamedCredentials.putAll(renamedCredentials);
+		res.renamedKeyrings.putAll(renamedKeyrings);
+		res.removedCredentials.addAll(removedCredentials);
+		res.removedKeyrings.addAll(removedKeyrings);
+		
+		// Members are copied along with their keyrings, so they are matched against the copies of the credentials
+		for(Keyring k: res.keyrings.values())
+			for(Credential m: k) {
+				final Credential c = credentials.get(m.getTitle());
+				
+				if(c != null && c.snapshotCopy() == m)
+					res.members.add(m);
+			}
+		
+		if(drain)
+			clearModified();
+		
+		return res;
+	}
+	
+	/**
+	 * Tracks again changes drained from the database, along with the changes made since.
+	 *
+	 * @param changes The drained changes
+	 *
+	 * @see DatabaseChanges#restore()
+	 */
+	void restore(DatabaseChanges changes) {
+		if(readOnly)
+			return;
+		
+		restore(changes.credentials, changes.addedCredentials, changes.renamedCredentials, credentials,
+				modifiedCredentials, addedCredentials, renamedCredentials, removedCredentials, Credential::getTitle, c -> c.modified = true);
+		restore(changes.keyrings, changes.addedKeyrings, changes.renamedKeyrings, keyrings,
+				modifiedKeyrings, addedKeyrings, renamedKeyrings, removedKeyrings, Keyring::getTitle, k -> k.modified = true);
+		
+		removedCredentials.addAll(changes.removedCredentials);
+		removedKeyrings.addAll(changes.removedKeyrings);
+		
+		if(!changes.isEmpty())
+			modified = true;
+	}
+	
+	/**
+	 * Merges drained changes to records of one type with the changes made since.
+	 * <blockquote>The titles a record had when the changes were drained are replaced with the titles
+	 * it had before, since those are the ones that were not saved.</blockquote>
+	 *
+	 * @param <T> The record type
+	 * @param copies The copies of the drained records, indexed by record
+	 * @param wasAdded The drained added records
+	 * @param wasRenamed The original titles of the drained renamed records
+	 * @param index The index of the records by title
+	 * @param modified The modified records
+	 * @param added The added records
+	 * @param renamed The original titles of the renamed records
+	 * @param removed The original titles of the removed records
+	 * @param title The function returning the title of a record
+	 * @param mark The function marking a record as modified
+	 */
+	private static <T> void restore(Map<T, T> copies, Set<T> wasAdded, Map<T, String> wasRenamed, Map<String, T> index,
+			Set<T> modified, Set<T> added, Map<T, String> renamed, Set<String> removed, Function<T, String> title, Consumer<T> mark) {
+		copies.forEach((r, copy) -> {
+			final String original = wasRenamed.get(r);
+			
+			if(index.get(title.apply(r)) != r || added.contains(r)) {
+				// Removed since: the removal was tracked under the title drained, not the saved one
+				if(wasAdded.contains(r) || original != null)
+					removed.remove(title.apply(copy));
+				
+				if(original != null && !wasAdded.contains(r))
+					removed.add(original);
+				
+				return;
+			}
+			
+			mark.accept(r);
+			modified.add(r);
+			
+			if(wasAdded.contains(r)) {
+				added.add(r);
+				renamed.remove(r);
+			} else if(original != null)
+				renamed.put(r, original);
+		});
+	}
+	
+	/**
+	 * Seals again the passwords of the credentials of the database which were sealed when set.
+	 * <blockquote>For example, a service can call this method when idle, so that the passwords it has read
+	 * do not stay decrypted in memory.</blockquote>
+	 *
+	 * @return The number of decrypted passwords destroyed
+	 *
+	 * @see Credential#sealPassword()
+	 */
+	public int sealPasswords() {
+		int res = 0;
+		
+		for(Credential c: credentials.values())
+			if(c.sealPassword())
+				res++;
+		
+		return res;
+	}
+	
+	/**
+	 * Returns a read-only, point-in-time copy of the database.
+	 *
+	 * <p>The snapshot holds read-only copies of the records, which throw <code>UnsupportedOperationException</code>
+	 * when modified, and shares their passwords with the database. Adding or removing records also throws
+	 * <code>UnsupportedOperationException</code>. Later changes to the database are not visible in the snapshot,
+	 * so it can be exported or read while the database keeps changing. The snapshot reports no changes and
+	 * {@link #clearModified()} has no effect on it.</p>
+	 *
+	 * <p>The cost of a snapshot is linear in the number of records, but only the records changed since
+	 * the last snapshot are copied: the copies of the others are shared with previous snapshots.</p>
+	 *
+	 * @return The snapshot
+	 */
+	public CredentialDatabase snapshot() {
+		final CredentialDatabase s = new CredentialDatabase();
+		
+		s.credentials = new LinkedHashMap<String, Credential>(credentials.size() * 4 / 3 + 1);
+		s.keyrings = new LinkedHashMap<String, Keyring>(keyrings.size() * 4 / 3 + 1);
+		
+		credentials.forEach((t, c) -> s.credentials.put(t, c.snapshotCopy()));
+		keyrings.forEach((t, k) -> s.keyrings.put(t, k.snapshotCopy()));
+		s.readOnly = true;
+		s.indexed = false;
+		
+		return s;
+	}
+	
+	/**
+	 * Returns an iterator for the credentials of the database
+	 *
+	 * @return An iterator for the credentials of the dataabse
+	 */
+	public Iterable<Credential> getCredentials() {
+		// Read the index when iterated, as it may be replaced by ensureCapacity
+		return () -> credentials.values().iterator();
+	}
+	
+	/**
+	 * Returns an iterator for the keyrings of the database
+	 *
+	 * @return An iterator for the keyrings of the dataabse
+	 */
+	public Iterable<Keyring> getKeyrings() {
+		return () -> keyrings.values().iterator();
+	}
+	
+	/**
+	 * Returns a stream for the credentials of the database
+	 *
+	 * @return A stream for the credentials of the dataabse
+	 */
+	public Stream<Credential> getCredentialsStream() {
+		return credentials.values().stream();
+	}
+	
+	/**
+	 * Returns a stream for the keyrings of the database
+	 *
+	 * @return A stream for the keyrings of the dataabse
+	 */
+	public Stream<Keyring> getKeyringsStream() {
+		return keyrings.values().stream();
+	}
+	
+	/**
+	 * Serializes the database.
+	 *
+	 * @param out The output stream
+	 *
+	 * @throws IOException If an output exception occurs during the serialization process
+	 */
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		ObjectOutputStream.PutField fields = out.putFields();
+		
+		fields.put("credentials", new LinkedHashSet<Credential>(credentials.values()));
+		fields.put("keyrings", new LinkedHashSet<Keyring>(keyrings.values()));
+		out.writeFields();
+	}
+	
+	/**
+	 * Deserializes the database, rebuilding the title indexes.
+	 * <blockquote>Record owners and change listeners are not serialized, so the database registers itself again
+	 * with every record.</blockquote>
+	 *
+	 * @param in The input stream
+	 *
+	 * @throws IOException If an input exception occurs during the deserialization process
+	 * @throws ClassNotFoundException If the class of a serialized record cannot be found
+	 */
+	@SuppressWarnings("unchecked")
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		ObjectInputStream.GetField fields = in.readFields();
+		Set<Credential> cs = (Set<Credential>)fields.get("credentials", null);
+		Set<Keyring> ks = (Set<Keyring>)fields.get("keyrings", null);
+		
+		init();
+		
+		if(cs != null)
+			cs.forEach(this::add);
+		
+		if(ks != null)
+			ks.forEach(this::add);
+		
+		clearModified();
+	}
+	
+	/**
+	 * The changes made by a thread within a batch.
+	 */
+	private static final class Batch {
+		/**
+		 * The nesting depth of the batch.
+		 */
+		int depth = 0;
+		
+		/**
+		 * The changes, in the order they were made.
+		 */
+		final List<ChangeEvent> events = new ArrayList<ChangeEvent>();
+		
+		/**
+		 * Adds a change, coalescing it with the previous change if both are to the same property of a record.
+		 *
+		 * @param e The change
+		 */
+		void add(ChangeEvent e) {
+			final int last = events.size() - 1;
+			
+			if(e.getType().isProperty() && last >= 0) {
+				final ChangeEvent p = events.get(last);
+				
+				if(p.getType() == e.getType() && p.getSource() == e.getSource()) {
+					events.set(last, new ChangeEvent(p.getType(), p.getCredential(), p.getKeyring(), p.getOldValue(), e.getNewValue()));
+					return;
+				}
+			}
+			
+			events.add(e);
+		}
+		
+		/**
+		 * Returns the changes and empties the batch.
+		 * <blockquote>Property changes which restored the original value are left out.</blockquote>
+		 *
+		 * @return The changes
+		 */
+		List<ChangeEvent> drain() {
+			final List<ChangeEvent> res = new ArrayList<ChangeEvent>(events.size());
+			
+			for(ChangeEvent e: events)
+				if(!e.getType().isProperty() || e.getType() == ChangeEvent.Type.PASSWORD || !Objects.equals(e.getOldValue(), e.getNewValue()))
+					res.add(e);
+			
+			events.clear();
+			
+			return Collections.unmodifiableList(res);
+		}
 	}
 }
@@ -0,0 +1,663 @@
+/*
+ * Lazarus: Credentials management library
+ *     Copyright (C) 2014 Alfredo 'wisedevil' Mungo
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wisedevil.credentials;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A query on the credentials of a database, built by chaining constraints and run lazily.
+ *
+ * <p>When run, the query is planned against the secondary indexes of the database: the constraint
+ * expected to match the fewest credentials provides the candidates, and the other constraints filter
+ * them. Title prefixes and keyring memberships are read a page at a time, so that taking the first
+ * results of a query does not cost as much as finding all of them.</p>
+ *
+ * <p>Instances are not thread safe, but the same query can be run several times, and sees the
+ * changes made to the database in between.</p>
+ *
+ * @see CredentialDatabase#query()
+ */
+public final class CredentialQuery {
+	/**
+	 * The ordering of credentials by title, ignoring case, which title prefix pages are sorted by.
+	 */
+	private static final Comparator<Credential> BY_TITLE = Comparator.comparing(c -> c.getTitle().toLowerCase(Locale.ROOT));
+	
+	/**
+	 * The size of the first page read from an index.
+	 */
+	private static final int FIRST_PAGE = 32;
+	
+	/**
+	 * The maximum size of the pages read from an index.
+	 */
+	private static final int MAX_PAGE = 4096;
+	
+	/**
+	 * The sources a query can read its candidates from.
+	 */
+	private enum Source {
+		/**
+		 * The title index.
+		 */
+		TITLE,
+		
+		/**
+		 * The username index.
+		 */
+		USER,
+		
+		/**
+		 * The full-text index.
+		 */
+		WORDS,
+		
+		/**
+		 * The keyring membership index.
+		 */
+		KEYRING,
+		
+		/**
+		 * The title prefix index, which returns the credentials sorted by title.
+		 */
+		PREFIX,
+		
+		/**
+		 * Every credential of the database.
+		 */
+		SCAN
+	}
+	
+	/**
+	 * The database.
+	 */
+	private final CredentialDatabase db;
+	
+	/**
+	 * The title, or null for no such constraint.
+	 */
+	private String title;
+	
+	/**
+	 * The title prefix, or null for no such constraint.
+	 */
+	private String prefix;
+	
+	/**
+	 * The username, or null for no such constraint.
+	 */
+	private String user;
+	
+	/**
+	 * The words of the description, or null for no such constraint.
+	 */
+	private List<String> words;
+	
+	/**
+	 * The keyrings the credentials must all belong to.
+	 */
+	private final List<Keyring> in = new ArrayList<Keyring>();
+	
+	/**
+	 * The keyrings the credentials must not belong to.
+	 */
+	private final List<Keyring> out = new ArrayList<Keyring>();
+	
+	/**
+	 * The custom conditions.
+	 */
+	private final List<Predicate<? super Credential>> conditions = new ArrayList<Predicate<? super Credential>>();
+	
+	/**
+	 * The ordering, or null for no particular order.
+	 */
+	private Comparator<? super Credential> order;
+	
+	/**
+	 * The number of results to skip.
+	 */
+	private int skip;
+	
+	/**
+	 * The maximum number of results, or -1 for no limit.
+	 */
+	private int limit = -1;
+	
+	/**
+	 * Initializes a new instance of this class.
+	 *
+	 * @param db The database
+	 */
+	CredentialQuery(CredentialDatabase db) {
+		this.db = db;
+	}
+	
+	/**
+	 * Only matches the credential with the given title.
+	 *
+	 * @param value The title
+	 *
+	 * @return This query
+	 *
+	 * @throws NullPointerException If <code>value</code> is null
+	 */
+	public CredentialQuery titleIs(String value) {
+		if(value == null)
+			throw new NullPointerException();
+		
+		title = value;
+		
+		return this;
+	}
+	
+	/**
+	 * Only matches the credentials whose title starts with the given prefix, ignoring case.
+	 *
+	 * @param value The prefix
+	 *
+	 * @return This query
+	 *
+	 * @throws NullPointerException If <code>value</code> is null
+	 */
+	public CredentialQuery titleStartsWith(String value) {
+		if(value == null)
+			throw new NullPointerException();
+		
+		prefix = value;
+		
+		return this;
+	}
+	
+	/**
+	 * Only matches the credentials with the given username.
+	 *
+	 * @param value The username
+	 *
+	 * @return This query
+	 *
+	 * @throws NullPointerException If <code>value</code> is null
+	 */
+	public CredentialQuery userIs(String value) {
+		if(value == null)
+			throw new NullPointerException();
+		
+		user = value;
+		
+		return this;
+	}
+	
+	/**
+	 * Only matches the credentials whose description contains all the words of a text.
+	 * <blockquote>Words are the runs of letters and digits, compared case-insensitively, as in
+	 * {@link CredentialDatabase#searchCredentials(String, int)}.</blockquote>
+	 *
+	 * @param value The text
+	 *
+	 * @return This query
+	 *
+	 * @throws NullPointerException If <code>value</code> is null
+	 */
+	public CredentialQuery descriptionHasWords(String value) {
+		if(value == null)
+			throw new NullPointerException();
+		
+		words = TextIndex.tokenize(value);
+		
+		return this;
+	}
+	
+	/**
+	 * Only matches the credentials belonging to a keyring of the database.
+	 * <blockquote>Calling this method several times matches the credentials belonging to all the keyrings.</blockquote>
+	 *
+	 * @param value The keyring
+	 *
+	 * @return This query
+	 *
+	 * @throws NullPointerException If <code>value</code> is null
+	 */
+	public CredentialQuery inKeyring(Keyring value) {
+		if(value == null)
+			throw new NullPointerException();
+		
+		in.add(value);
+		
+		return this;
+	}
+	
+	/**
+	 * Only matches the credentials not belonging to a keyring of the database.
+	 *
+	 * @param value The keyring
+	 *
+	 * @return This query
+	 *
+	 * @throws NullPointerException If <code>value</code> is null
+	 */
+	public CredentialQuery notInKeyring(Keyring value) {
+		if(value == null)
+			throw new NullPointerException();
+		
+		out.add(value);
+		
+		return this;
+	}
+	
+	/**
+	 * Only matches the credentials satisfying a condition.
+	 * <blockquote>Conditions are checked after every other constraint.</blockquote>
+	 *
+	 * @param condition The condition
+	 *
+	 * @return This query
+	 *
+	 * @throws NullPointerException If <code>condition</code> is null
+	 */
+	public CredentialQuery where(Predicate<? super Credential> condition) {
+		if(condition == null)
+			throw new NullPointerException();
+		
+		conditions.add(condition);
+		
+		return this;
+	}
+	
+	/**
+	 * Sorts the results by title, ignoring case.
+	 *
+	 * @return This query
+	 */
+	public CredentialQuery orderByTitle() {
+		order = BY_TITLE;
+		
+		return this;
+	}
+	
+	/**
+	 * Sorts the results.
+	 *
+	 * @param comparator The ordering
+	 *
+	 * @return This query
+	 *
+	 * @throws NullPointerException If <code>comparator</code> is null
+	 */
+	public CredentialQuery orderBy(Comparator<? super Credential> comparator) {
+		if(comparator == null)
+			throw new NullPointerException();
+		
+		order = comparator;
+		
+		return this;
+	}
+	
+	/**
+	 * Skips the first results.
+	 *
+	 * @param count The number of results to skip
+	 *
+	 * @return This query
+	 *
+	 * @throws IllegalArgumentException If <code>count</code> is negative
+	 */
+	public CredentialQuery skip(int count) {
+		if(count < 0)
+			throw new IllegalArgumentException("Negative count");
+		
+		skip = count;
+		
+		return this;
+	}
+	
+	/**
+	 * Limits the number of results.
+	 *
+	 * @param count The maximum number of results
+	 *
+	 * @return This query
+	 *
+	 * @throws IllegalArgumentException If <code>count</code> is negative
+	 */
+	public CredentialQuery limit(int count) {
+		if(count < 0)
+			throw new IllegalArgumentException("Negative count");
+		
+		limit = count;
+		
+		return this;
+	}
+	
+	/**
+	 * Only returns a page of the results.
+	 *
+	 * @param number The number of the page, 0 for the first page
+	 * @param size The number of results per page
+	 *
+	 * @return This query
+	 *
+	 * @throws IllegalArgumentException If <code>number</code> or <code>size</code> is negative
+	 */
+	public CredentialQuery page(int number, int size) {
+		if(number < 0 || size < 0)
+			throw new IllegalArgumentException("Negative page number or size");
+		
+		skip = (int)Math.min((long)number * size, Integer.MAX_VALUE);
+		limit = size;
+		
+		return this;
+	}
+	
+	/**
+	 * Runs the query.
+	 * <blockquote>Credentials are only looked up as the stream is consumed, unless the query is sorted in
+	 * an order no index provides.</blockquote>
+	 *
+	 * @return The matching credentials
+	 */
+	public Stream<Credential> stream() {
+		final Source source = plan(estimates());
+		Stream<Credential> res = candidates(source);
+		
+		for(Predicate<Credential> p: filters(source))
+			res = res.filter(p);
+		
+		if(order != null && !(source == Source.PREFIX && order == BY_TITLE))
+			res = limit >= 0 ? top(res) : res.sorted(order);
+		
+		if(skip > 0)
+			res = res.skip(skip);
+		
+		if(limit >= 0)
+			res = res.limit(limit);
+		
+		return res;
+	}
+	
+	/**
+	 * Runs the query and collects the results.
+	 *
+	 * @return The matching credentials
+	 */
+	public List<Credential> list() {
+		final List<Credential> res = new ArrayList<Credential>();
+		
+		stream().forEachOrdered(res::add);
+		
+		return res;
+	}
+	
+	/**
+	 * Describes how the query would be run, for diagnostics.
+	 * <blockquote>The description names the index the candidates would be read from and the expected
+	 * number of candidates, such as <code>KEYRING(120)</code>.</blockquote>
+	 *
+	 * @return The description
+	 */
+	public String explain() {
+		final long[] estimates = estimates();
+		final Source source = plan(estimates);
+		
+		return source + "(" + estimates[source.ordinal()] + ")";
+	}
+	
+	/**
+	 * Estimates the number of candidates of every source, or -1 for unusable sources.
+	 *
+	 * @return The estimates, by source ordinal
+	 */
+	private long[] estimates() {
+		final long[] res = new long[Source.values().length];
+		
+		res[Source.TITLE.ordinal()] = title != null ? 1 : -1;
+		res[Source.USER.ordinal()] = user != null ? db.countByUser(user) : -1;
+		res[Source.WORDS.ordinal()] = words != null && !words.isEmpty() ? db.countByWords(String.join(" ", words)) : -1;
+		res[Source.KEYRING.ordinal()] = -1;
+		
+		for(Keyring k: in) {
+			final int n = db.countByKeyring(k);
+			
+			if(res[Source.KEYRING.ordinal()] < 0 || n < res[Source.KEYRING.ordinal()])
+				res[Source.KEYRING.ordinal()] = n;
+		}
+		
+		res[Source.PREFIX.ordinal()] = db.countByPrefix(prefix != null ? prefix : "");
+		res[Source.SCAN.ordinal()] = db.credentialCount();
+		
+		return res;
+	}
+	
+	/**
+	 * Chooses the source to read the candidates from.
+	 *
+	 * @param estimates The estimated number of candidates of every source
+	 *
+	 * @return The source
+	 */
+	private Source plan(long[] estimates) {
+		Source best = Source.SCAN;
+		
+		for(Source s: Source.values())
+			if(estimates[s.ordinal()] >= 0 && estimates[s.ordinal()] < estimates[best.ordinal()])
+				best = s;
+		
+		// The prefix index returns sorted pages, in which the other constraints match about one candidate
+		// in n / b: it is worth reading if the wanted results turn up before b candidates are read and sorted
+		if(order == BY_TITLE && best != Source.PREFIX) {
+			final long n = estimates[Source.PREFIX.ordinal()];
+			final long b = estimates[best.ordinal()];
+			
+			if(n <= b || limit >= 0 && b > 0 && ((long)skip + limit) * n / b < b)
+				best = Source.PREFIX;
+		}
+		
+		return best;
+	}
+	
+	/**
+	 * Returns the candidates of a source.
+	 *
+	 * @param source The source
+	 *
+	 * @return The candidates
+	 */
+	private Stream<Credential> candidates(Source source) {
+		switch(source) {
+			case TITLE:
+				final Credential c = db.findCredential(title);
+				
+				return c != null ? Stream.of(c) : Stream.empty();
+			
+			case USER:
+				return StreamSupport.stream(db.findCredentialsByUser(user).spliterator(), false);
+			
+			case WORDS:
+				return db.findByWords(String.join(" ", words)).stream();
+			
+			case KEYRING:
+				return paged(new Pages() {
+					int next = 0;
+					
+					@Override
+					List<Credential> read(int size) {
+						final List<Credential> res = new ArrayList<Credential>();
+						
+						if(next >= 0)
+							next = db.pageByKeyrings(in, out, next, size, res);
+						
+						return res;
+					}
+				});
+			
+			case PREFIX:
+				final String p = prefix != null ? prefix : "";
+				
+				return paged(new Pages() {
+					String last = null;
+					
+					@Override
+					List<Credential> read(int size) {
+						final List<Credential> res = db.pageByPrefix(p, last, size);
+						
+						if(!res.isEmpty())
+							last = res.get(res.size() - 1).getTitle();
+						
+						return res;
+					}
+				});
+			
+			default:
+				return db.getCredentialsStream();
+		}
+	}
+	
+	/**
+	 * Returns the filters the candidates of a source must pass.
+	 *
+	 * @param source The source
+	 *
+	 * @return The filters
+	 */
+	private List<Predicate<Credential>> filters(Source source) {
+		final List<Predicate<Credential>> res = new ArrayList<Predicate<Credential>>();
+		final String t = title, p = prefix != null ? prefix.toLowerCase(Locale.ROOT) : null, u = user;
+		final List<String> w = words;
+		
+		if(t != null && source != Source.TITLE)
+			res.add(c -> c.getTitle().equals(t));
+		
+		if(p != null && source != Source.PREFIX)
+			res.add(c -> c.getTitle().toLowerCase(Locale.ROOT).startsWith(p));
+		
+		if(u != null && source != Source.USER)
+			res.add(c -> u.equals(c.getUser()));
+		
+		if(w != null)
+			res.add(c -> TextIndex.tokenize(c.getDescription()).containsAll(w));
+		
+		if(source != Source.KEYRING) {
+			for(Keyring k: in)
+				res.add(c -> db.isMember(c, k));
+			
+			for(Keyring k: out)
+				res.add(c -> !db.isMember(c, k));
+		}
+		
+		for(Predicate<? super Credential> condition: conditions)
+			res.add(condition::test);
+		
+		return res;
+	}
+	
+	/**
+	 * Sorts the first results of a stream, keeping no more of them than returned.
+	 *
+	 * @param stream The stream
+	 *
+	 * @return The first results, sorted
+	 */
+	private Stream<Credential> top(Stream<Credential> stream) {
+		final int n = (int)Math.min((long)skip + limit, Integer.MAX_VALUE);
+		
+		if(n == 0)
+			return Stream.empty();
+		
+		final Comparator<? super Credential> o = order;
+		final PriorityQueue<Credential> heap = new PriorityQueue<Credential>(Math.min(n, 1024), (a, b) -> o.compare(b, a));
+		
+		stream.forEachOrdered(c -> {
+			if(heap.size() < n)
+				heap.add(c);
+			else if(o.compare(c, heap.peek()) < 0) {
+				heap.poll();
+				heap.add(c);
+			}
+		});
+		
+		final List<Credential> res = new ArrayList<Credential>(heap);
+		
+		Collections.sort(res, o);
+		
+		return res.stream();
+	}
+	
+	/**
+	 * Returns a stream reading its elements a page at a time, as they are consumed.
+	 *
+	 * @param pages The pages
+	 *
+	 * @return The stream
+	 */
+	private Stream<Credential> paged(Pages pages) {
+		final int first = limit >= 0 ? (int)Math.max(FIRST_PAGE, Math.min((long)skip + limit, MAX_PAGE)) : FIRST_PAGE;
+		
+		final Iterator<Credential> it = new Iterator<Credential>() {
+			Iterator<Credential> page = Collections.emptyIterator();
+			int size = first;
+			boolean done = false;
+			
+			@Override
+			public boolean hasNext() {
+				while(!page.hasNext() && !done) {
+					final List<Credential> next = pages.read(size);
+					
+					done = next.size() < size;
+					page = next.iterator();
+					size = Math.min(size * 2, MAX_PAGE);
+				}
+				
+				return page.hasNext();
+			}
+			
+			@Override
+			public Credential next() {
+				if(!hasNext())
+					throw new NoSuchElementException();
+				
+				return page.next();
+			}
+		};
+		
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(it, Spliterator.ORDERED | Spliterator.NONNULL), false);
+	}
+	
+	/**
+	 * Reads the candidates of a paged source.
+	 */
+	private static abstract class Pages {
+		/**
+		 * Reads the next page.
+		 *
+		 * @param size The number of candidates to read
+		 *
+		 * @return The candidates, less than asked only if there are no more of them
+		 */
+		abstract List<Credential> read(int size);
+	}
+}
@@ -0,0 +1,216 @@
+/*
+ * Lazarus: Credentials management library
+ *     Copyright (C) 2014 Alfredo 'wisedevil' Mungo
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wisedevil.credentials;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * This class holds the changes made to a credential database since it was last marked as not modified,
+ * as they were at a point in time.
+ *
+ * <p>Changed records are held as read-only snapshot copies (see {@link CredentialDatabase#snapshot()}), so the
+ * changes can be saved while the database keeps changing. Changes taken with
+ * {@link CredentialDatabase#drainChanges(boolean)} are no longer tracked by the database, and can be handed
+ * back to it with {@link #restore()} if they could not be saved.</p>
+ *
+ * @see CredentialDatabase#getChanges()
+ */
+public final class DatabaseChanges {
+	/**
+	 * The database.
+	 */
+	private final CredentialDatabase db;
+	
+	/**
+	 * The snapshot of the whole database, or null if it has not been taken.
+	 */
+	private final CredentialDatabase snapshot;
+	
+	/**
+	 * True if the changes have been drained from the database and not restored yet.
+	 */
+	private boolean drained;
+	
+	/**
+	 * The copies of the added, modified or renamed credentials, indexed by credential.
+	 */
+	final Map<Credential, Credential> credentials = new IdentityHashMap<Credential, Credential>();
+	
+	/**
+	 * The copies of the added, modified or renamed keyrings, indexed by keyring.
+	 */
+	final Map<Keyring, Keyring> keyrings = new IdentityHashMap<Keyring, Keyring>();
+	
+	/**
+	 * The added credentials.
+	 */
+	final Set<Credential> addedCredentials = Collections.newSetFromMap(new IdentityHashMap<Credential, Boolean>());
+	
+	/**
+	 * The added keyrings.
+	 */
+	final Set<Keyring> addedKeyrings = Collections.newSetFromMap(new IdentityHashMap<Keyring, Boolean>());
+	
+	/**
+	 * The original titles of the renamed credentials.
+	 */
+	final Map<Credential, String> renamedCredentials = new IdentityHashMap<Credential, String>();
+	
+	/**
+	 * The original titles of the renamed keyrings.
+	 */
+	final Map<Keyring, String> renamedKeyrings = new IdentityHashMap<Keyring, String>();
+	
+	/**
+	 * The original titles of the removed credentials.
+	 */
+	final List<String> removedCredentials = new ArrayList<String>();
+	
+	/**
+	 * The original titles of the removed keyrings.
+	 */
+	final List<String> removedKeyrings = new ArrayList<String>();
+	
+	/**
+	 * The copies of the members of the modified keyrings which are credentials of the database.
+	 */
+	final Set<Credential> members = Collections.newSetFromMap(new IdentityHashMap<Credential, Boolean>());
+	
+	/**
+	 * Initializes a new instance of this class.
+	 *
+	 * @param db The database
+	 * @param snapshot The snapshot of the whole database, or null
+	 * @param drained True if the changes are drained from the database
+	 */
+	DatabaseChanges(CredentialDatabase db, CredentialDatabase snapshot, boolean drained) {
+		this.db = db;
+		this.snapshot = snapshot;
+		this.drained = drained;
+	}
+	
+	/**
+	 * Returns the snapshot of the whole database taken along with the changes.
+	 *
+	 * @return The snapshot, or <code>null</code> if it has not been requested
+	 *
+	 * @see CredentialDatabase#drainChanges(boolean)
+	 */
+	public CredentialDatabase getSnapshot() { return snapshot; }
+	
+	/**
+	 * Returns true if there are no changes.
+	 *
+	 * @return True if the database was not modified
+	 */
+	public boolean isEmpty() {
+		return credentials.isEmpty() && keyrings.isEmpty() && removedCredentials.isEmpty() && removedKeyrings.isEmpty();
+	}
+	
+	/**
+	 * Returns the copies of the credentials that had been added to the database or modified.
+	 *
+	 * @return The read-only copies of the credentials
+	 */
+	public Collection<Credential> getModifiedCredentials() {
+		return Collections.unmodifiableCollection(credentials.values());
+	}
+	
+	/**
+	 * Returns the copies of the keyrings that had been added to the database or modified.
+	 * <blockquote>The members of the copies are copies as well, see {@link #isDatabaseCredential(Credential)}.</blockquote>
+	 *
+	 * @return The read-only copies of the keyrings
+	 */
+	public Collection<Keyring> getModifiedKeyrings() {
+		return Collections.unmodifiableCollection(keyrings.values());
+	}
+	
+	/**
+	 * Returns true if a member of a modified keyring was a credential of the database,
+	 * rather than a credential only referenced by the keyring.
+	 *
+	 * @param member The copy of the member, as returned by iterating a modified keyring
+	 *
+	 * @return True if the credential belonged to the database
+	 */
+	public boolean isDatabaseCredential(Credential member) {
+		return members.contains(member);
+	}
+	
+	/**
+	 * Returns the credentials that had been renamed.
+	 * <blockquote>Credentials added to the database, or renamed back to their original title, are not reported.</blockquote>
+	 *
+	 * @return A map from the original titles to the titles the changes were taken with
+	 */
+	public Map<String, String> getRenamedCredentials() {
+		return CredentialDatabase.renamedTitles(renamedCredentials, c -> credentials.get(c).getTitle());
+	}
+	
+	/**
+	 * Returns the keyrings that had been renamed.
+	 * <blockquote>Keyrings added to the database, or renamed back to their original title, are not reported.</blockquote>
+	 *
+	 * @return A map from the original titles to the titles the changes were taken with
+	 */
+	public Map<String, String> getRenamedKeyrings() {
+		return CredentialDatabase.renamedTitles(renamedKeyrings, k -> keyrings.get(k).getTitle());
+	}
+	
+	/**
+	 * Returns the original titles of the credentials that had been removed from the database.
+	 *
+	 * @return The titles of the removed credentials
+	 */
+	public Iterable<String> getRemovedCredentials() {
+		return Collections.unmodifiableList(removedCredentials);
+	}
+	
+	/**
+	 * Returns the original titles of the keyrings that had been removed from the database.
+	 *
+	 * @return The titles of the removed keyrings
+	 */
+	public Iterable<String> getRemovedKeyrings() {
+		return Collections.unmodifiableList(removedKeyrings);
+	}
+	
+	/**
+	 * Hands drained changes back to the database, to be tracked again along with the changes made since.
+	 * <blockquote>This is meant for changes which could not be saved, so that the next save includes them.</blockquote>
+	 *
+	 * @throws IllegalStateException If the changes were not drained, or have already been restored
+	 */
+	public void restore() {
+		synchronized(this) {
+			if(!drained)
+				throw new IllegalStateException("Changes not drained or already restored");
+			
+			drained = false;
+		}
+		
+		db.restore(this);
+	}
+}
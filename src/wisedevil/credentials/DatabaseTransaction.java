@@ -0,0 +1,258 @@
+/*
+ * Lazarus: Credentials management library
+ *     Copyright (C) 2014 Alfredo 'wisedevil' Mungo
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wisedevil.credentials;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * This class collects changes to a credential database and applies them all at once.
+ *
+ * <p>Changes are only checked and applied by {@link #commit()}: removals first, then renames, then additions.
+ * Titles only need to be unique once every change has been applied, so records may swap titles. If any title
+ * would be taken twice, or a record to rename is neither in the database nor added, nothing is applied. Change listeners receive all the changes as one batch.</p>
+ *
+ * <p>Transactions are meant for bulk provisioning and migrations: uniqueness is checked in a single pass,
+ * and {@link CredentialDatabase#ensureCapacity(int, int)} can presize the title indexes beforehand. A transaction is not thread-safe and can be committed once.</p>
+ *
+ * @see CredentialDatabase#begin()
+ */
+public final class DatabaseTransaction {
+	/**
+	 * The database.
+	 */
+	private final CredentialDatabase db;
+	
+	/**
+	 * The credentials to add.
+	 */
+	final List<Credential> addedCredentials = new ArrayList<Credential>();
+	
+	/**
+	 * The keyrings to add.
+	 */
+	final List<Keyring> addedKeyrings = new ArrayList<Keyring>();
+	
+	/**
+	 * The credentials to remove.
+	 */
+	final Set<Credential> removedCredentials = Collections.newSetFromMap(new IdentityHashMap<Credential, Boolean>());
+	
+	/**
+	 * The keyrings to remove.
+	 */
+	final Set<Keyring> removedKeyrings = Collections.newSetFromMap(new IdentityHashMap<Keyring, Boolean>());
+	
+	/**
+	 * The new titles of the credentials to rename.
+	 */
+	final Map<Credential, String> renamedCredentials = new IdentityHashMap<Credential, String>();
+	
+	/**
+	 * The new titles of the keyrings to rename.
+	 */
+	final Map<Keyring, String> renamedKeyrings = new IdentityHashMap<Keyring, String>();
+	
+	/**
+	 * True if the transaction has been committed.
+	 */
+	private boolean committed = false;
+	
+	/**
+	 * Initializes a new instance of this class.
+	 *
+	 * @param db The database
+	 */
+	DatabaseTransaction(CredentialDatabase db) {
+		this.db = db;
+	}
+	
+	/**
+	 * Adds a credential to the database.
+	 *
+	 * @param value The value to add
+	 *
+	 * @return This transaction
+	 *
+	 * @throws NullPointerException If <code>value</code> is null
+	 */
+	public DatabaseTransaction add(Credential value) {
+		if(value == null)
+			throw new NullPointerException();
+		
+		addedCredentials.add(value);
+		
+		return this;
+	}
+	
+	/**
+	 * Adds credentials to the database.
+	 *
+	 * @param values The values to add
+	 *
+	 * @return This transaction
+	 *
+	 * @throws NullPointerException If <code>values</code> is null or contains null
+	 */
+	public DatabaseTransaction addAll(Iterable<? extends Credential> values) {
+		for(Credential c: values)
+			add(c);
+		
+		return this;
+	}
+	
+	/**
+	 * Adds a keyring to the database.
+	 *
+	 * @param value The value to add
+	 *
+	 * @return This transaction
+	 *
+	 * @throws NullPointerException If <code>value</code> is null
+	 */
+	public DatabaseTransaction add(Keyring value) {
+		if(value == null)
+			throw new NullPointerException();
+		
+		addedKeyrings.add(value);
+		
+		return this;
+	}
+	
+	/**
+	 * Removes a credential from the database.
+	 *
+	 * @param value The value to remove
+	 *
+	 * @return This transaction
+	 *
+	 * @throws NullPointerException If <code>value</code> is null
+	 */
+	public DatabaseTransaction remove(Credential value) {
+		if(value == null)
+			throw new NullPointerException();
+		
+		removedCredentials.add(value);
+		
+		return this;
+	}
+	
+	/**
+	 * Removes credentials from the database.
+	 *
+	 * @param values The values to remove
+	 *
+	 * @return This transaction
+	 *
+	 * @throws NullPointerException If <code>values</code> is null or contains null
+	 */
+	public DatabaseTransaction removeAll(Iterable<? extends Credential> values) {
+		for(Credential c: values)
+			remove(c);
+		
+		return this;
+	}
+	
+	/**
+	 * Removes a keyring from the database.
+	 *
+	 * @param value The value to remove
+	 *
+	 * @return This transaction
+	 *
+	 * @throws NullPointerException If <code>value</code> is null
+	 */
+	public DatabaseTransaction remove(Keyring value) {
+		if(value == null)
+			throw new NullPointerException();
+		
+		removedKeyrings.add(value);
+		
+		return this;
+	}
+	
+	/**
+	 * Renames a credential of the database, or a credential added by this transaction.
+	 * <blockquote>Renaming any other credential, or one removed and not added again by this transaction,
+	 * makes {@link #commit()} fail.</blockquote>
+	 *
+	 * @param value The credential to rename
+	 * @param title The new title
+	 *
+	 * @return This transaction
+	 *
+	 * @throws NullPointerException If any of the arguments is null
+	 * @throws IllegalArgumentException If <code>title</code> is an empty string
+	 */
+	public DatabaseTransaction rename(Credential value, String title) {
+		if(value == null || title == null)
+			throw new NullPointerException();
+		
+		if(title.isEmpty())
+			throw new IllegalArgumentException("Credential title cannot be empty");
+		
+		renamedCredentials.put(value, title);
+		
+		return this;
+	}
+	
+	/**
+	 * Renames a keyring of the database, or a keyring added by this transaction.
+	 * <blockquote>Renaming any other keyring, or one removed and not added again by this transaction,
+	 * makes {@link #commit()} fail.</blockquote>
+	 *
+	 * @param value The keyring to rename
+	 * @param title The new title
+	 *
+	 * @return This transaction
+	 *
+	 * @throws NullPointerException If any of the arguments is null
+	 * @throws IllegalArgumentException If <code>title</code> is an empty string
+	 */
+	public DatabaseTransaction rename(Keyring value, String title) {
+		if(value == null || title == null)
+			throw new NullPointerException();
+		
+		if(title.isEmpty())
+			throw new IllegalArgumentException("Keyring title cannot be empty");
+		
+		renamedKeyrings.put(value, title);
+		
+		return this;
+	}
+	
+	/**
+	 * Checks and applies the changes.
+	 *
+	 * @throws IllegalStateException If a title would be taken by more than one record or a renamed record
+	 * is not in the database once the removals are applied, in which case no change is applied,
+	 * or if the transaction has already been committed
+	 * @throws UnsupportedOperationException If the database is a snapshot
+	 */
+	public void commit() {
+		if(committed)
+			throw new IllegalStateException("Transaction already committed");
+		
+		db.commit(this);
+		committed = true;
+	}
+}
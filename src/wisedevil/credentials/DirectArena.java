@@ -0,0 +1,293 @@
+/*
+ * Lazarus: Credentials management library
+ *     Copyright (C) 2014 Alfredo 'wisedevil' Mungo
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wisedevil.credentials;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+
+import java.nio.ByteBuffer;
+
+import java.util.Arrays;
+
+/**
+ * Allocates the off-heap memory of {@link DirectPassword} objects.
+ *
+ * <p>Small blocks are carved out of shared direct slabs and recycled through per-size free lists,
+ * so that a password costs no direct buffer object of its own; larger blocks get a direct buffer each.
+ * Blocks are zeroed as soon as they are freed.</p>
+ *
+ * <p>Every block is tracked by a phantom reference to its owner, so that the block of an owner that
+ * becomes unreachable without being destroyed is zeroed and freed by a daemon thread.</p>
+ */
+final class DirectArena {
+	/**
+	 * The size of a shared slab.
+	 */
+	static final int SLAB_SIZE = 64 * 1024;
+	
+	/**
+	 * The allocation granularity of the shared slabs.
+	 */
+	static final int GRANULE = 16;
+	
+	/**
+	 * The size of the largest block carved out of the shared slabs.
+	 */
+	static final int MAX_SLAB_BLOCK = 1024;
+	
+	/**
+	 * The free blocks of each size class: slabs.
+	 */
+	private static final ByteBuffer[][] freeSlabs = new ByteBuffer[MAX_SLAB_BLOCK / GRANULE][];
+	
+	/**
+	 * The free blocks of each size class: offsets.
+	 */
+	private static final int[][] freeOffsets = new int[MAX_SLAB_BLOCK / GRANULE][];
+	
+	/**
+	 * The number of free blocks of each size class.
+	 */
+	private static final int[] freeCounts = new int[MAX_SLAB_BLOCK / GRANULE];
+	
+	/**
+	 * The slab blocks are currently carved from.
+	 */
+	private static ByteBuffer slab;
+	
+	/**
+	 * The offset of the unused space of the current slab.
+	 */
+	private static int slabOffset = SLAB_SIZE;
+	
+	/**
+	 * The queue of the blocks whose owner has become unreachable.
+	 */
+	private static final ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
+	
+	/**
+	 * The tracked blocks, indexed by slot.
+	 * <blockquote>Tracked blocks are kept here, so that their references stay reachable.</blockquote>
+	 */
+	private static Block[] tracked = new Block[1024];
+	
+	/**
+	 * The free slots of <code>tracked</code>.
+	 */
+	private static int[] freeSlots = new int[0];
+	
+	/**
+	 * The number of free slots.
+	 */
+	private static int freeSlotCount = 0;
+	
+	/**
+	 * The number of slots ever used.
+	 */
+	private static int slotCount = 0;
+	
+	static {
+		Thread t = new Thread(DirectArena::clean, "DirectPassword cleaner");
+		
+		t.setDaemon(true);
+		t.start();
+	}
+	
+	/**
+	 * Initializes a new instance of this class.
+	 */
+	private DirectArena() {}
+	
+	/**
+	 * An allocated block of off-heap memory.
+	 */
+	static final class Block extends PhantomReference<Object> {
+		/**
+		 * The buffer holding the block.
+		 */
+		final ByteBuffer buffer;
+		
+		/**
+		 * The offset of the block in the buffer.
+		 */
+		final int offset;
+		
+		/**
+		 * The requested block size.
+		 */
+		final int size;
+		
+		/**
+		 * The tracking slot of the block, or -1 if the block has been freed.
+		 */
+		private int slot;
+		
+		/**
+		 * Initializes a new instance of this class.
+		 *
+		 * @param owner The block owner
+		 * @param buffer The buffer holding the block
+		 * @param offset The offset of the block in the buffer
+		 * @param size The requested block size
+		 * @param slot The tracking slot of the block
+		 */
+		private Block(Object owner, ByteBuffer buffer, int offset, int size, int slot) {
+			super(owner, queue);
+			this.buffer = buffer;
+			this.offset = offset;
+			this.size = size;
+			this.slot = slot;
+		}
+		
+		/**
+		 * Zeroes and frees the block.
+		 * <blockquote>Freeing a block more than once has no effect.</blockquote>
+		 */
+		void free() {
+			synchronized(DirectArena.class) {
+				if(slot < 0)
+					return;
+				
+				clear();
+				
+				for(int i = 0; i < size; i++)
+					buffer.put(offset + i, (byte)0);
+				
+				untrack(slot);
+				slot = -1;
+				
+				if(size <= MAX_SLAB_BLOCK)
+					release(buffer, offset, roundUp(size));
+			}
+		}
+	}
+	
+	/**
+	 * Allocates a zeroed block.
+	 *
+	 * @param owner The block owner, whose unreachability frees the block
+	 * @param size The minimum block size
+	 *
+	 * @return The block
+	 */
+	static synchronized Block allocate(Object owner, int size) {
+		final int slot = track();
+		final Block b;
+		
+		if(size > MAX_SLAB_BLOCK)
+			b = new Block(owner, ByteBuffer.allocateDirect(size), 0, size, slot);
+		else {
+			final int rounded = roundUp(size);
+			final int cls = rounded / GRANULE - 1;
+			
+			if(freeCounts[cls] > 0) {
+				final int n = --freeCounts[cls];
+				
+				b = new Block(owner, freeSlabs[cls][n], freeOffsets[cls][n], size, slot);
+				freeSlabs[cls][n] = null;
+			} else {
+				if(slabOffset + rounded > SLAB_SIZE) {
+					slab = ByteBuffer.allocateDirect(SLAB_SIZE);
+					slabOffset = 0;
+				}
+				
+				b = new Block(owner, slab, slabOffset, size, slot);
+				slabOffset += rounded;
+			}
+		}
+		
+		tracked[slot] = b;
+		
+		return b;
+	}
+	
+	/**
+	 * Rounds a block size up to its slab size class.
+	 *
+	 * @param size The block size
+	 *
+	 * @return The size of the slab blocks holding <code>size</code> bytes
+	 */
+	private static int roundUp(int size) {
+		return Math.max(GRANULE, (size + GRANULE - 1) / GRANULE * GRANULE);
+	}
+	
+	/**
+	 * Reserves a tracking slot.
+	 *
+	 * @return The slot
+	 */
+	private static int track() {
+		if(freeSlotCount > 0)
+			return freeSlots[--freeSlotCount];
+		
+		if(slotCount == tracked.length)
+			tracked = Arrays.copyOf(tracked, slotCount * 2);
+		
+		return slotCount++;
+	}
+	
+	/**
+	 * Releases a tracking slot.
+	 *
+	 * @param slot The slot
+	 */
+	private static void untrack(int slot) {
+		tracked[slot] = null;
+		
+		if(freeSlotCount == freeSlots.length)
+			freeSlots = Arrays.copyOf(freeSlots, Math.max(16, freeSlotCount * 2));
+		
+		freeSlots[freeSlotCount++] = slot;
+	}
+	
+	/**
+	 * Puts a freed slab block back in its free list.
+	 *
+	 * @param buffer The slab
+	 * @param offset The block offset
+	 * @param size The block size
+	 */
+	private static void release(ByteBuffer buffer, int offset, int size) {
+		final int cls = size / GRANULE - 1;
+		final int n = freeCounts[cls];
+		
+		if(freeSlabs[cls] == null || n == freeSlabs[cls].length) {
+			final int cap = freeSlabs[cls] == null ? 16 : n * 2;
+			
+			freeSlabs[cls] = freeSlabs[cls] == null ? new ByteBuffer[cap] : Arrays.copyOf(freeSlabs[cls], cap);
+			freeOffsets[cls] = freeOffsets[cls] == null ? new int[cap] : Arrays.copyOf(freeOffsets[cls], cap);
+		}
+		
+		freeSlabs[cls][n] = buffer;
+		freeOffsets[cls][n] = offset;
+		freeCounts[cls] = n + 1;
+	}
+	
+	/**
+	 * Frees the blocks whose owner has become unreachable.
+	 */
+	private static void clean() {
+		for(;;)
+			try {
+				((Block)queue.remove()).free();
+			} catch(InterruptedException e) {
+				// Keep cleaning
+			}
+	}
+}
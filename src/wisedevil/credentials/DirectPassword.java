@@ -0,0 +1,253 @@
+/*
+ * Lazarus: Credentials management library
+ *     Copyright (C) 2014 Alfredo 'wisedevil' Mungo
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wisedevil.credentials;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+
+import java.util.Arrays;
+
+/**
+ * This class contains text password information stored off the Java heap.
+ *
+ * <p>The password characters live in direct memory, so that large vaults neither inflate the heap
+ * nor lengthen garbage collection pauses. The memory is zeroed by {@link #destroy()}; should an
+ * instance become unreachable without being destroyed, its memory is zeroed and freed by a background
+ * thread instead.</p>
+ */
+public class DirectPassword implements Password {
+	/**
+	 * Serialization version number.
+	 */
+	private static final long serialVersionUID = 0L;
+	
+	/**
+	 * The off-heap block holding the password data, or null if destroyed.
+	 */
+	private transient DirectArena.Block block;
+	
+	/**
+	 * The read-only view lent by {@link #withChars(CharBufferConsumer)}, created on first use.
+	 */
+	private transient CharBuffer view;
+	
+	/**
+	 * Initializes a new instance of this class.
+	 * <blockquote>NOTE: The content of <code>pass</code> is copied off-heap and then zeroed.</blockquote>
+	 *
+	 * @param pass The password
+	 *
+	 * @throws NullPointerException If <code>pass</code> is null
+	 */
+	public DirectPassword(char[] pass) {
+		if(pass == null)
+			throw new NullPointerException("Null text password declared");
+		
+		store(pass);
+	}
+	
+	/**
+	 * Copies the password off-heap and zeroes it.
+	 *
+	 * @param pass The password
+	 */
+	private void store(char[] pass) {
+		block = DirectArena.allocate(this, pass.length * 2);
+		
+		for(int i = 0; i < pass.length; i++)
+			block.buffer.putChar(block.offset + i * 2, pass[i]);
+		
+		Arrays.fill(pass, '\0');
+	}
+	
+	/**
+	 * Returns the password data.
+	 * <blockquote>NOTE: This method returns A COPY of the original data which must be manually destroyed.</blockquote>
+	 *
+	 * @return A copy of the password data
+	 *
+	 * @throws IllegalStateException If the password has been destroyed
+	 */
+	public char[] get() {
+		final char[] pass = copy();
+		
+		if(pass == null)
+			throw new IllegalStateException("Password destroyed");
+		
+		return pass;
+	}
+	
+	/**
+	 * Lends the password data to a consumer, without copying it on the heap.
+	 * <blockquote>The consumer receives a read-only view of the off-heap memory which is only valid during the call;
+	 * the password cannot be destroyed meanwhile. No memory is allocated, except the first time this method is called on this instance.</blockquote>
+	 *
+	 * @param <X> The type of the exception thrown by the consumer
+	 * @param consumer The consumer
+	 *
+	 * @throws NullPointerException If <code>consumer</code> is null
+	 * @throws IllegalStateException If the password has been destroyed
+	 * @throws X If the consumer fails
+	 */
+	public synchronized <X extends Exception> void withChars(CharBufferConsumer<X> consumer) throws X {
+		if(consumer == null)
+			throw new NullPointerException();
+		
+		if(block == null)
+			throw new IllegalStateException("Password destroyed");
+		
+		if(view == null) {
+			final ByteBuffer b = block.buffer.duplicate();
+			
+			b.limit(block.offset + block.size);
+			b.position(block.offset);
+			view = b.slice().asCharBuffer().asReadOnlyBuffer();
+		}
+		
+		view.clear();
+		consumer.accept(view);
+	}
+	
+	/**
+	 * Copies the password data on the heap.
+	 *
+	 * @return A copy of the password data, or null if the password has been destroyed
+	 */
+	private synchronized char[] copy() {
+		if(block == null)
+			return null;
+		
+		final char[] pass = new char[block.size / 2];
+		
+		for(int i = 0; i < pass.length; i++)
+			pass[i] = block.buffer.getChar(block.offset + i * 2);
+		
+		return pass;
+	}
+	
+	/**
+	 * Zeroes a heap copy of the password data.
+	 *
+	 * @param pass The copy, or null
+	 */
+	private static void wipe(char[] pass) {
+		if(pass != null)
+			Arrays.fill(pass, '\0');
+	}
+	
+	/**
+	 * Returns the password length.
+	 *
+	 * @return The number of characters of the password, or 0 if the password has been destroyed
+	 */
+	public synchronized int length() { return block == null ? 0 : block.size / 2; }
+	
+	@Override
+	public boolean equals(Object o) {
+		if(o instanceof DirectPassword) {
+			final DirectPassword p = (DirectPassword)o;
+			
+			if(p == this)
+				return true;
+			
+			final char[] a = copy();
+			final char[] b = p.copy();
+			
+			try {
+				return a != null && Arrays.equals(a, b);
+			} finally {
+				wipe(a);
+				wipe(b);
+			}
+		} else return false;
+	}
+	
+	@Override
+	public int hashCode() {
+		final char[] pass = copy();
+		
+		try {
+			return Arrays.hashCode(pass);
+		} finally {
+			wipe(pass);
+		}
+	}
+	
+	/**
+	 * Zeroes and frees the password memory.
+	 * <blockquote>Destroying a password more than once has no effect.</blockquote>
+	 */
+	public synchronized void destroy() {
+		if(block != null) {
+			block.free();
+			block = null;
+			view = null;
+		}
+	}
+	
+	public synchronized boolean isDestroyed() { return block == null; }
+	
+	/**
+	 * Serializes the password.
+	 *
+	 * @param out The output stream
+	 *
+	 * @throws IOException If an I/O error occurs
+	 */
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		final char[] pass = get();
+		
+		try {
+			out.defaultWriteObject();
+			out.writeInt(pass.length);
+			
+			for(char c : pass)
+				out.writeChar(c);
+		} finally {
+			Arrays.fill(pass, '\0');
+		}
+	}
+	
+	/**
+	 * Deserializes the password.
+	 *
+	 * @param in The input stream
+	 *
+	 * @throws IOException If an I/O error occurs
+	 * @throws ClassNotFoundException If a serialized class cannot be found
+	 */
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		
+		final int n = in.readInt();
+		
+		if(n < 0)
+			throw new IOException("Invalid password length");
+		
+		final char[] pass = new char[n];
+		
+		for(int i = 0; i < n; i++)
+			pass[i] = in.readChar();
+		
+		store(pass);
+	}
+}
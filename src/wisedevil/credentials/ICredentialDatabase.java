@@ -18,11 +18,10 @@
 package wisedevil.credentials;
 
 import java.io.Serializable;
-import java.util.Observer;
 
 /**
  * Interface for the CredentialDatabase class.
  *
  * @see CredentialDatabase
  */
-public interface ICredentialDatabase extends Serializable, Observer {}
+public interface ICredentialDatabase extends Serializable {}
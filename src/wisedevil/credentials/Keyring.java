@@ -18,7 +18,6 @@
 package wisedevil.credentials;
 
 import java.util.Iterator;
-import java.util.Observable;
 import java.util.LinkedHashSet;
 import java.util.Set;
 import java.util.Spliterator;
@@ -27,7 +26,7 @@ import java.util.stream.Stream;
 /**
  * This class provides a pooling facility for related credentials.
  */
-public class Keyring extends Observable implements IKeyring {
+public class Keyring implements IKeyring {
 	/**
 	 * Serialization version number.
 	 */
@@ -53,6 +52,29 @@ public class Keyring extends Observable implements IKeyring {
 	 */
 	transient boolean modified = false;
 	
+	/**
+	 * The number of changes made to the instance, used to tell whether a snapshot copy is up to date.
+	 * <blockquote>Volatile and incremented after every change, so that snapshots taken by other threads read
+	 * properties at least as recent as the version.</blockquote>
+	 */
+	private transient volatile int version = 0;
+	
+	/**
+	 * True if the instance is a read-only snapshot copy.
+	 */
+	private transient boolean frozen = false;
+	
+	/**
+	 * The last snapshot copy of the instance.
+	 */
+	private transient volatile Keyring snapshot;
+	
+	/**
+	 * The databases the instance belongs to, notified of every change.
+	 * <blockquote>The array is replaced, never modified, so that it can be read without locking.</blockquote>
+	 */
+	private transient volatile CredentialDatabase[] owners;
+	
 	/**
 	 * Initializes a new instance of this class.
 	 *
@@ -84,7 +106,8 @@ public class Keyring extends Observable implements IKeyring {
 	/**
 	 * Sets the keyring's title.
 	 *
-	 * <p>When the keyring's title changes, observers are notified and the old title string is passed to them.</p>
+	 * <p>Every change is reported to the databases the keyring belongs to, which may reject a title
+	 * already taken by another keyring and restore the old one.</p>
 	 *
 	 * @param value The new value
 	 *
@@ -98,14 +121,17 @@ public class Keyring extends Observable implements IKeyring {
 		if(value.isEmpty())
 			throw new IllegalArgumentException("Keyring title cannot be empty");
 		
-		final String oldTitle = title;
+		checkFrozen();
 		
-		this.title = value;
+		final CredentialDatabase[] o = lockOwners();
 		
-		if(!hasChanged()) {
-			setChanged();
-			notifyObservers(oldTitle);
-			modified = true;
+		try {
+			final String oldTitle = title;
+			
+			this.title = value;
+			changed(o, ChangeEvent.Type.TITLE, null, oldTitle, value);
+		} finally {
+			CredentialDatabase.unlockRecord(o, this);
 		}
 	}
 	
@@ -115,11 +141,21 @@ public class Keyring extends Observable implements IKeyring {
 	 * @param value The new value
 	 */
 	public void setDescription(String value) {
+		checkFrozen();
+		
 		if(value == null)
 			value = new String();
+		
+		final CredentialDatabase[] o = lockOwners();
+		
+		try {
+			final String old = description;
 			
-		this.description = value;
-		modified = true;
+			this.description = value;
+			changed(o, ChangeEvent.Type.DESCRIPTION, null, old, value);
+		} finally {
+			CredentialDatabase.unlockRecord(o, this);
+		}
 	}
 	
 	/**
@@ -131,10 +167,18 @@ public class Keyring extends Observable implements IKeyring {
 	 * @return True if the value has been added
 	 */
 	public boolean add(Credential value) {
-		if(keys.add(value)) {
-			modified = true;
-			return true;
-		} else return false;
+		checkFrozen();
+		
+		final CredentialDatabase[] o = lockOwners();
+		
+		try {
+			if(keys.add(value)) {
+				changed(o, ChangeEvent.Type.MEMBER_ADDED, value, null, null);
+				return true;
+			} else return false;
+		} finally {
+			CredentialDatabase.unlockRecord(o, this);
+		}
 	}
 	
 	/**
@@ -145,10 +189,133 @@ public class Keyring extends Observable implements IKeyring {
 	 * @return True if the value has been removed
 	 */
 	public boolean remove(Credential value) {
-		if(keys.remove(value)) {
-			modified = true;
-			return true;
-		} else return false;
+		checkFrozen();
+		
+		final CredentialDatabase[] o = lockOwners();
+		
+		try {
+			if(keys.remove(value)) {
+				changed(o, ChangeEvent.Type.MEMBER_REMOVED, value, null, null);
+				return true;
+			} else return false;
+		} finally {
+			CredentialDatabase.unlockRecord(o, this);
+		}
+	}
+	
+	/**
+	 * Locks the instance in the databases it belongs to, so that a change is applied and tracked atomically.
+	 *
+	 * @return The databases, or null if there are none
+	 *
+	 * @see CredentialDatabase#lockRecord(CredentialDatabase[], Object)
+	 */
+	private CredentialDatabase[] lockOwners() {
+		for(;;) {
+			final CredentialDatabase[] o = owners;
+			
+			CredentialDatabase.lockRecord(o, this);
+			
+			if(o == owners)
+				return o;
+			
+			CredentialDatabase.unlockRecord(o, this);
+		}
+	}
+	
+	/**
+	 * Marks the instance as modified and reports the change to its databases.
+	 *
+	 * @param o The databases locked by {@link #lockOwners()}
+	 * @param type The change type
+	 * @param member The credential added or removed, if any
+	 * @param oldValue The old value of the changed property
+	 * @param newValue The new value of the changed property
+	 */
+	private void changed(CredentialDatabase[] o, ChangeEvent.Type type, Credential member, String oldValue, String newValue) {
+		final boolean first = !modified;
+		
+		modified = true;
+		version++;
+		
+		if(o != null) {
+			ChangeEvent e = null;
+			
+			for(CredentialDatabase db: o)
+				if(first || type.isIndexed() || db.hasListeners()) {
+					if(e == null)
+						e = new ChangeEvent(type, member, this, oldValue, newValue);
+					
+					db.recordChanged(e, first);
+				}
+		}
+	}
+	
+	/**
+	 * Registers a database the instance belongs to.
+	 *
+	 * @param db The database
+	 */
+	synchronized void addOwner(CredentialDatabase db) {
+		owners = CredentialDatabase.with(owners, db);
+	}
+	
+	/**
+	 * Unregisters a database the instance belongs to.
+	 *
+	 * @param db The database
+	 */
+	synchronized void removeOwner(CredentialDatabase db) {
+		owners = CredentialDatabase.without(owners, db);
+	}
+	
+	/**
+	 * Checks that the instance can be modified.
+	 *
+	 * @throws UnsupportedOperationException If the instance is a snapshot copy
+	 */
+	private void checkFrozen() {
+		if(frozen)
+			throw new UnsupportedOperationException("Snapshot keyrings cannot be modified");
+	}
+	
+	/**
+	 * Returns a read-only copy of the instance, whose members are the snapshot copies of its credentials.
+	 * <blockquote>The last copy is reused as long as neither the instance nor its credentials have changed.</blockquote>
+	 *
+	 * @return The copy
+	 *
+	 * @see CredentialDatabase#snapshot()
+	 * @see Credential#snapshotCopy()
+	 */
+	Keyring snapshotCopy() {
+		final int v = version;
+		Keyring k = snapshot;
+		
+		if(k != null && k.version == v) {
+			final Iterator<Credential> it = k.keys.iterator();
+			
+			for(Credential c: keys)
+				if(!it.hasNext() || it.next() != c.snapshotCopy()) {
+					k = null;
+					break;
+				}
+		} else
+			k = null;
+		
+		if(k == null) {
+			k = new Keyring(title);
+			k.description = description;
+			
+			for(Credential c: keys)
+				k.keys.add(c.snapshotCopy());
+			
+			k.version = v;
+			k.frozen = true;
+			snapshot = k;
+		}
+		
+		return k;
 	}
 	
 	/**
@@ -158,6 +325,11 @@ public class Keyring extends Observable implements IKeyring {
 	 */
 	boolean isModified() { return modified; }
 	
+	/**
+	 * Marks the instance as not modified.
+	 */
+	void clearModified() { modified = false; }
+	
 	/**
 	 * @see java.lang.Object#hashCode
 	 */
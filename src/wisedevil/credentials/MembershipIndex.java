@@ -0,0 +1,393 @@
+/*
+ * Lazarus: Credentials management library
+ *     Copyright (C) 2014 Alfredo 'wisedevil' Mungo
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wisedevil.credentials;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Holds the members of the keyrings of a database as compressed bitsets of credential ids.
+ *
+ * <p>Each credential of the database gets a dense integer id, recycled once the credential is removed,
+ * and each keyring of the database a {@link CompressedBitSet} of the ids of its members which belong to
+ * the database. Set algebra across keyrings then works on whole words instead of hash lookups.</p>
+ *
+ * <p>The index is guarded by a read-write lock, so that it can be shared by the threads of a
+ * {@link ConcurrentCredentialDatabase}.</p>
+ */
+final class MembershipIndex {
+	/**
+	 * The ids of the credentials.
+	 */
+	private final Map<Credential, Integer> ids = new IdentityHashMap<Credential, Integer>();
+	
+	/**
+	 * The credentials, by id.
+	 */
+	private Credential[] credentials = new Credential[16];
+	
+	/**
+	 * The ids in use.
+	 */
+	private final CompressedBitSet used = new CompressedBitSet();
+	
+	/**
+	 * The released ids, to be reused.
+	 */
+	private int[] free = new int[16];
+	
+	/**
+	 * The number of released ids.
+	 */
+	private int freeCount = 0;
+	
+	/**
+	 * The next id never used.
+	 */
+	private int next = 0;
+	
+	/**
+	 * The members of the keyrings.
+	 */
+	private final Map<Keyring, CompressedBitSet> members = new IdentityHashMap<Keyring, CompressedBitSet>();
+	
+	/**
+	 * The lock guarding the index.
+	 */
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	
+	/**
+	 * Adds a credential.
+	 *
+	 * @param c The credential
+	 * @param keyrings The keyrings of the database containing the credential, or null
+	 */
+	void add(Credential c, Iterable<Keyring> keyrings) {
+		lock.writeLock().lock();
+		
+		try {
+			if(ids.containsKey(c))
+				return;
+			
+			final int id = freeCount > 0 ? free[--freeCount] : next++;
+			
+			if(id == credentials.length)
+				credentials = Arrays.copyOf(credentials, id * 2);
+			
+			credentials[id] = c;
+			ids.put(c, id);
+			used.add(id);
+			
+			if(keyrings != null)
+				for(Keyring k: keyrings) {
+					final CompressedBitSet m = members.get(k);
+					
+					if(m != null)
+						m.add(id);
+				}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Removes a credential.
+	 *
+	 * @param c The credential
+	 * @param keyrings The keyrings of the database containing the credential, or null
+	 */
+	void remove(Credential c, Iterable<Keyring> keyrings) {
+		lock.writeLock().lock();
+		
+		try {
+			final Integer id = ids.remove(c);
+			
+			if(id == null)
+				return;
+			
+			if(keyrings != null)
+				for(Keyring k: keyrings) {
+					final CompressedBitSet m = members.get(k);
+					
+					if(m != null)
+						m.remove(id);
+				}
+			
+			credentials[id] = null;
+			used.remove(id);
+			
+			if(freeCount == free.length)
+				free = Arrays.copyOf(free, freeCount * 2);
+			
+			free[freeCount++] = id;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Adds a keyring.
+	 *
+	 * @param k The keyring
+	 */
+	void add(Keyring k) {
+		lock.writeLock().lock();
+		
+		try {
+			final CompressedBitSet m = new CompressedBitSet();
+			
+			for(Credential c: k) {
+				final Integer id = ids.get(c);
+				
+				if(id != null)
+					m.add(id);
+			}
+			
+			members.put(k, m);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Removes a keyring.
+	 *
+	 * @param k The keyring
+	 */
+	void remove(Keyring k) {
+		lock.writeLock().lock();
+		
+		try {
+			members.remove(k);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Records that a keyring contains a credential.
+	 *
+	 * @param k The keyring
+	 * @param c The credential
+	 */
+	void addMember(Keyring k, Credential c) {
+		lock.writeLock().lock();
+		
+		try {
+			final CompressedBitSet m = members.get(k);
+			final Integer id = ids.get(c);
+			
+			if(m != null && id != null)
+				m.add(id);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Records that a keyring no longer contains a credential.
+	 *
+	 * @param k The keyring
+	 * @param c The credential
+	 */
+	void removeMember(Keyring k, Credential c) {
+		lock.writeLock().lock();
+		
+		try {
+			final CompressedBitSet m = members.get(k);
+			final Integer id = ids.get(c);
+			
+			if(m != null && id != null)
+				m.remove(id);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Returns the credentials belonging to all of some keyrings, to any of others and to none of others.
+	 *
+	 * @param all The keyrings the credentials must all belong to, or none for no such constraint
+	 * @param any The keyrings the credentials must belong to at least one of, or none for no such constraint
+	 * @param none The keyrings the credentials must not belong to
+	 *
+	 * @return The credentials, in id order
+	 */
+	List<Credential> find(Collection<Keyring> all, Collection<Keyring> any, Collection<Keyring> none) {
+		lock.readLock().lock();
+		
+		try {
+			final CompressedBitSet res = select(all, any, none);
+			final List<Credential> list = new ArrayList<Credential>(res.cardinality());
+			
+			res.forEach(id -> list.add(credentials[id]));
+			
+			return list;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Returns the number of credentials belonging to all of some keyrings, to any of others and to none of others.
+	 *
+	 * @param all The keyrings the credentials must all belong to, or none for no such constraint
+	 * @param any The keyrings the credentials must belong to at least one of, or none for no such constraint
+	 * @param none The keyrings the credentials must not belong to
+	 *
+	 * @return The number of credentials
+	 */
+	int count(Collection<Keyring> all, Collection<Keyring> any, Collection<Keyring> none) {
+		lock.readLock().lock();
+		
+		try {
+			return select(all, any, none).cardinality();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Returns a page of the credentials belonging to all of some keyrings and to none of others.
+	 *
+	 * @param all The keyrings the credentials must all belong to, or none for no such constraint
+	 * @param none The keyrings the credentials must not belong to
+	 * @param from The id of the first credential of the page
+	 * @param max The maximum number of credentials of the page
+	 * @param page Receives the credentials, in id order
+	 *
+	 * @return The id of the first credential of the next page, or -1 if there are no more credentials
+	 */
+	int page(Collection<Keyring> all, Collection<Keyring> none, int from, int max, List<Credential> page) {
+		final int[] next = { -1 };
+		
+		lock.readLock().lock();
+		
+		try {
+			// Walk the smallest keyring and probe the others, so that a page costs no more than its size
+			CompressedBitSet first = used;
+			final List<CompressedBitSet> in = new ArrayList<CompressedBitSet>();
+			final List<CompressedBitSet> out = new ArrayList<CompressedBitSet>();
+			
+			for(Keyring k: all) {
+				final CompressedBitSet m = bits(k);
+				
+				if(first == used || m.cardinality() < first.cardinality()) {
+					if(first != used)
+						in.add(first);
+					
+					first = m;
+				} else
+					in.add(m);
+			}
+			
+			for(Keyring k: none)
+				out.add(bits(k));
+			
+			first.forEach(from, id -> {
+				for(CompressedBitSet m: in)
+					if(!m.contains(id))
+						return true;
+				
+				for(CompressedBitSet m: out)
+					if(m.contains(id))
+						return true;
+				
+				if(page.size() == max) {
+					next[0] = id;
+					return false;
+				}
+				
+				page.add(credentials[id]);
+				
+				return true;
+			});
+			
+			return next[0];
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Returns the number of members of a keyring which belong to the database.
+	 *
+	 * @param k The keyring
+	 *
+	 * @return The number of members
+	 */
+	int size(Keyring k) {
+		lock.readLock().lock();
+		
+		try {
+			return bits(k).cardinality();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Computes the ids of the credentials belonging to all of some keyrings, to any of others and to none of others.
+	 * <blockquote>Must be called with the lock held.</blockquote>
+	 *
+	 * @param all The keyrings the credentials must all belong to, or none for no such constraint
+	 * @param any The keyrings the credentials must belong to at least one of, or none for no such constraint
+	 * @param none The keyrings the credentials must not belong to
+	 *
+	 * @return A new set of ids
+	 */
+	private CompressedBitSet select(Collection<Keyring> all, Collection<Keyring> any, Collection<Keyring> none) {
+		CompressedBitSet res = used;
+		
+		for(Keyring k: all)
+			res = res.and(bits(k));
+		
+		if(!any.isEmpty()) {
+			CompressedBitSet union = new CompressedBitSet();
+			
+			for(Keyring k: any)
+				union = union.or(bits(k));
+			
+			res = res.and(union);
+		}
+		
+		for(Keyring k: none)
+			res = res.andNot(bits(k));
+		
+		return res == used ? used.copy() : res;
+	}
+	
+	/**
+	 * Returns the members of a keyring.
+	 *
+	 * @param k The keyring
+	 *
+	 * @return The ids of the members, empty if the keyring doesn't belong to the database
+	 */
+	private CompressedBitSet bits(Keyring k) {
+		final CompressedBitSet m = members.get(k);
+		
+		return m != null ? m : new CompressedBitSet();
+	}
+}
@@ -0,0 +1,164 @@
+/*
+ * Lazarus: Credentials management library
+ *     Copyright (C) 2014 Alfredo 'wisedevil' Mungo
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wisedevil.credentials;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * This class seals passwords with a random key which never leaves memory, so that they can be kept
+ * encrypted until they are needed.
+ *
+ * <p>Passwords are sealed from their UTF-8 bytes and stay sealed until
+ * {@link Credential#getPassword()} is first called, which decrypts them into a regular password;
+ * {@link Credential#sealPassword()} wipes the decrypted copy again. Sealing does not protect against
+ * an attacker able to read the key from memory, but keeps plaintext passwords out of memory
+ * for as long as they are not used.</p>
+ *
+ * <p>Every password is encrypted with AES/CTR under its own counter block, made of a unique
+ * sequence number and a zero block counter. Instances can be used by several threads at once.</p>
+ */
+public final class PasswordSeal {
+	/**
+	 * The sealing key.
+	 */
+	private final SecretKeySpec key;
+	
+	/**
+	 * The sequence number of the last sealed password.
+	 */
+	private final AtomicLong sequence = new AtomicLong();
+	
+	/**
+	 * The cipher of every thread, created on first use.
+	 */
+	private final ThreadLocal<Cipher> ciphers = ThreadLocal.withInitial(() -> {
+		try {
+			return Cipher.getInstance("AES/CTR/NoPadding");
+		} catch(GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+	});
+	
+	/**
+	 * Initializes a new instance of this class, with a new random key.
+	 */
+	public PasswordSeal() {
+		final byte[] k = new byte[16];
+		
+		new SecureRandom().nextBytes(k);
+		key = new SecretKeySpec(k, "AES");
+		Arrays.fill(k, (byte)0);
+	}
+	
+	/**
+	 * Seals a password.
+	 * <blockquote>The password bytes are not modified, and should be wiped by the caller.</blockquote>
+	 *
+	 * @param utf8 The UTF-8 bytes of the password
+	 * @param off The offset of the password in <code>utf8</code>
+	 * @param len The length of the password in bytes
+	 * @param type Creates the decrypted password from its characters, such as <code>TextPassword::new</code>
+	 *
+	 * @return The sealed password
+	 *
+	 * @throws NullPointerException If <code>utf8</code> or <code>type</code> is null
+	 * @throws IndexOutOfBoundsException If <code>off</code> or <code>len</code> is out of bounds
+	 */
+	public Password seal(byte[] utf8, int off, int len, Function<char[], ? extends Password> type) {
+		if(utf8 == null || type == null)
+			throw new NullPointerException();
+		
+		if(off < 0 || len < 0 || off > utf8.length - len)
+			throw new IndexOutOfBoundsException();
+		
+		final long n = sequence.incrementAndGet();
+		
+		return new SealedPassword(this, n, crypt(n, utf8, off, len), type);
+	}
+	
+	/**
+	 * Decrypts a sealed password.
+	 *
+	 * @param n The sequence number of the password
+	 * @param data The encrypted UTF-8 bytes of the password
+	 *
+	 * @return The characters of the password, which must be manually wiped
+	 *
+	 * @throws IllegalStateException If the password is not valid UTF-8
+	 */
+	char[] open(long n, byte[] data) {
+		final byte[] plain = crypt(n, data, 0, data.length);
+		final CharBuffer chars = CharBuffer.allocate(plain.length);
+		
+		try {
+			final boolean ok = !StandardCharsets.UTF_8.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPORT)
+				.onUnmappableCharacter(CodingErrorAction.REPORT)
+				.decode(ByteBuffer.wrap(plain), chars, true).isError();
+			
+			if(!ok)
+				throw new IllegalStateException("Malformed sealed password");
+			
+			return Arrays.copyOf(chars.array(), chars.position());
+		} finally {
+			Arrays.fill(plain, (byte)0);
+			Arrays.fill(chars.array(), '\0');
+		}
+	}
+	
+	/**
+	 * Encrypts or decrypts the bytes of a password.
+	 *
+	 * @param n The sequence number of the password
+	 * @param data The bytes
+	 * @param off The offset of the password in <code>data</code>
+	 * @param len The length of the password in bytes
+	 *
+	 * @return The encrypted or decrypted bytes
+	 */
+	private byte[] crypt(long n, byte[] data, int off, int len) {
+		final byte[] iv = new byte[16];
+		
+		for(int i = 0; i < 8; i++)
+			iv[i] = (byte)(n >>> 56 - i * 8);
+		
+		try {
+			final Cipher c = ciphers.get();
+			
+			c.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
+			
+			return c.doFinal(data, off, len);
+		} catch(GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
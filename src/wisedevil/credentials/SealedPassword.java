@@ -0,0 +1,180 @@
+/*
+ * Lazarus: Credentials management library
+ *     Copyright (C) 2014 Alfredo 'wisedevil' Mungo
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wisedevil.credentials;
+
+import java.io.ObjectStreamException;
+
+import java.util.Arrays;
+import java.util.function.Function;
+
+import javax.security.auth.DestroyFailedException;
+
+/**
+ * This class contains password information sealed by a {@link PasswordSeal}.
+ *
+ * <p>The password is decrypted the first time it is opened, and the decrypted copy is kept until
+ * the password is sealed again. Instances are serialized as their decrypted password.</p>
+ */
+final class SealedPassword implements Password {
+	/**
+	 * Serialization version number.
+	 */
+	private static final long serialVersionUID = 0L;
+	
+	/**
+	 * The seal.
+	 */
+	private final transient PasswordSeal seal;
+	
+	/**
+	 * The sequence number of the password.
+	 */
+	private final transient long sequence;
+	
+	/**
+	 * The encrypted UTF-8 bytes of the password.
+	 */
+	private final transient byte[] data;
+	
+	/**
+	 * Creates the decrypted password from its characters.
+	 */
+	private final transient Function<char[], ? extends Password> type;
+	
+	/**
+	 * The decrypted password, or null if sealed.
+	 */
+	private transient Password open;
+	
+	/**
+	 * True if the password has been destroyed.
+	 */
+	private transient volatile boolean destroyed = false;
+	
+	/**
+	 * Initializes a new instance of this class.
+	 *
+	 * @param seal The seal
+	 * @param sequence The sequence number of the password
+	 * @param data The encrypted UTF-8 bytes of the password
+	 * @param type Creates the decrypted password from its characters
+	 */
+	SealedPassword(PasswordSeal seal, long sequence, byte[] data, Function<char[], ? extends Password> type) {
+		this.seal = seal;
+		this.sequence = sequence;
+		this.data = data;
+		this.type = type;
+	}
+	
+	/**
+	 * Returns the decrypted password, decrypting it if sealed.
+	 *
+	 * @return The decrypted password
+	 *
+	 * @throws IllegalStateException If the password has been destroyed
+	 */
+	synchronized Password open() {
+		if(destroyed)
+			throw new IllegalStateException("Password destroyed");
+		
+		if(open == null || open.isDestroyed())
+			open = decrypt();
+		
+		return open;
+	}
+	
+	/**
+	 * Returns a new decrypted password, leaving the instance unchanged.
+	 *
+	 * @return The decrypted password, which must be manually destroyed
+	 *
+	 * @throws IllegalStateException If the password has been destroyed
+	 */
+	Password copy() {
+		if(destroyed)
+			throw new IllegalStateException("Password destroyed");
+		
+		return decrypt();
+	}
+	
+	/**
+	 * Destroys the decrypted password, if any.
+	 *
+	 * @return True if a decrypted password has been destroyed
+	 */
+	synchronized boolean seal() {
+		final Password p = open;
+		
+		open = null;
+		
+		if(p == null || p.isDestroyed())
+			return false;
+		
+		try {
+			p.destroy();
+		} catch(DestroyFailedException e) {
+			// Plain passwords are always destroyed
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Returns true if the password is not decrypted.
+	 *
+	 * @return True if sealed
+	 */
+	synchronized boolean isSealed() {
+		return open == null || open.isDestroyed();
+	}
+	
+	/**
+	 * Decrypts the password into a new instance.
+	 *
+	 * @return The decrypted password
+	 */
+	private Password decrypt() {
+		final char[] chars = seal.open(sequence, data);
+		
+		try {
+			return type.apply(chars);
+		} catch(RuntimeException e) {
+			Arrays.fill(chars, '\0');
+			throw e;
+		}
+	}
+	
+	/**
+	 * Replaces the instance with its decrypted password when serialized.
+	 *
+	 * @return A new decrypted password
+	 *
+	 * @throws ObjectStreamException Never
+	 */
+	private Object writeReplace() throws ObjectStreamException {
+		return decrypt();
+	}
+	
+	public synchronized void destroy() throws DestroyFailedException {
+		seal();
+		Arrays.fill(data, (byte)0);
+		destroyed = true;
+	}
+	
+	public boolean isDestroyed() { return destroyed; }
+}
@@ -0,0 +1,467 @@
+/*
+ * Lazarus: Credentials management library
+ *     Copyright (C) 2014 Alfredo 'wisedevil' Mungo
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wisedevil.credentials;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+
+/**
+ * Maps the words of the titles and descriptions of records to the records containing them.
+ *
+ * <p>Words are the runs of letters and digits of a text, compared case-insensitively. Queries match
+ * records containing any of their words, ranked by the sum of the inverse document frequencies of
+ * the words they contain, so that records matching more and rarer words come first.</p>
+ *
+ * <p>The index is guarded by a read-write lock, so that it can be shared by the threads of a
+ * {@link ConcurrentCredentialDatabase}. Texts are split into words before the lock is taken.</p>
+ *
+ * @param <T> The record type
+ */
+final class TextIndex<T> {
+	/**
+	 * The records containing each word.
+	 */
+	private final Map<String, Postings<T>> terms = new HashMap<String, Postings<T>>();
+	
+	/**
+	 * The lock guarding the index.
+	 */
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	
+	/**
+	 * Adds a record to the index.
+	 *
+	 * @param r The record
+	 * @param texts The texts of the record, which may be null
+	 */
+	void add(T r, String... texts) {
+		update(r, Collections.<String>emptyList(), tokenize(texts));
+	}
+	
+	/**
+	 * Removes a record from the index.
+	 *
+	 * @param r The record
+	 * @param texts The texts the record has been added with
+	 */
+	void remove(T r, String... texts) {
+		update(r, tokenize(texts), Collections.<String>emptyList());
+	}
+	
+	/**
+	 * Updates the words of a record.
+	 *
+	 * @param r The record
+	 * @param oldTexts The texts the record has been added with
+	 * @param newTexts The new texts of the record
+	 */
+	void update(T r, String[] oldTexts, String[] newTexts) {
+		update(r, tokenize(oldTexts), tokenize(newTexts));
+	}
+	
+	/**
+	 * Replaces the words of a record.
+	 *
+	 * @param r The record
+	 * @param before The old words
+	 * @param after The new words
+	 */
+	private void update(T r, List<String> before, List<String> after) {
+		lock.writeLock().lock();
+		
+		try {
+			for(String t: before)
+				if(!after.contains(t)) {
+					final Postings<T> p = terms.get(t);
+					
+					if(p != null && p.remove(r))
+						terms.remove(t);
+				}
+			
+			for(String t: after)
+				if(!before.contains(t))
+					terms.computeIfAbsent(t, k -> new Postings<T>()).add(r);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Returns the records best matching a query.
+	 *
+	 * <p>Words are looked up from the rarest to the most common, and each record is fully scored
+	 * the first time it is found. A record first found through a word cannot score more than the
+	 * sum of the weights of that word and of the more common ones, so the lookup stops as soon as
+	 * enough records score at least as much: common words cost little.</p>
+	 *
+	 * @param query The query
+	 * @param limit The maximum number of records to return
+	 * @param count The number of records in the index, for computing word frequencies
+	 *
+	 * @return The records, best match first; records with the same score come in no particular order
+	 */
+	List<T> search(String query, int limit, int count) {
+		final List<String> words = tokenize(query);
+		
+		if(limit == 0)
+			return Collections.emptyList();
+		
+		lock.readLock().lock();
+		
+		try {
+			final List<Postings<T>> found = new ArrayList<Postings<T>>();
+			
+			for(String t: words) {
+				final Postings<T> p = terms.get(t);
+				
+				if(p != null)
+					found.add(p);
+			}
+			
+			found.sort(Comparator.comparingInt(Postings::size));
+			
+			final int n = found.size();
+			final double[] idf = new double[n];
+			final double[] rest = new double[n + 1];
+			
+			for(int i = n - 1; i >= 0; i--) {
+				final int df = found.get(i).size();
+				
+				idf[i] = Math.log(1 + (double)Math.max(count, df) / df);
+				rest[i] = rest[i + 1] + idf[i];
+			}
+			
+			final PriorityQueue<Scored<T>> best = new PriorityQueue<Scored<T>>(limit);
+			
+			for(int i = 0; i < n && !(best.size() == limit && best.peek().score >= rest[i]); i++) {
+				final int word = i;
+				
+				found.get(i).forEachUntil(r -> {
+					for(int j = 0; j < word; j++)
+						if(found.get(j).contains(r)) // Already scored
+							return false;
+					
+					double score = idf[word];
+					
+					for(int j = word + 1; j < n; j++)
+						if(found.get(j).contains(r))
+							score += idf[j];
+					
+					if(best.size() < limit)
+						best.add(new Scored<T>(r, score));
+					else if(score > best.peek().score) {
+						best.poll();
+						best.add(new Scored<T>(r, score));
+					}
+					
+					return best.size() == limit && best.peek().score >= rest[word];
+				});
+			}
+			
+			final List<T> res = new ArrayList<T>(best.size());
+			
+			while(!best.isEmpty())
+				res.add(best.poll().record);
+			
+			Collections.reverse(res);
+			
+			return res;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Returns the records containing the rarest word of a text.
+	 * <blockquote>Every record containing all the words of the text is among them.</blockquote>
+	 *
+	 * @param text The text
+	 *
+	 * @return The records, or null if the text has no words
+	 */
+	List<T> rarest(String text) {
+		final List<String> words = tokenize(text);
+		
+		if(words.isEmpty())
+			return null;
+		
+		lock.readLock().lock();
+		
+		try {
+			Postings<T> best = null;
+			
+			for(String t: words) {
+				final Postings<T> p = terms.get(t);
+				
+				if(p == null)
+					return Collections.emptyList();
+				
+				if(best == null || p.size() < best.size())
+					best = p;
+			}
+			
+			final List<T> res = new ArrayList<T>(best.size());
+			
+			best.forEachUntil(r -> !res.add(r));
+			
+			return res;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Returns the number of records containing the rarest word of a text.
+	 *
+	 * @param text The text
+	 *
+	 * @return The number of records, or -1 if the text has no words
+	 */
+	int rarestCount(String text) {
+		final List<String> words = tokenize(text);
+		
+		if(words.isEmpty())
+			return -1;
+		
+		lock.readLock().lock();
+		
+		try {
+			int res = Integer.MAX_VALUE;
+			
+			for(String t: words) {
+				final Postings<T> p = terms.get(t);
+				
+				res = Math.min(res, p != null ? p.size() : 0);
+			}
+			
+			return res;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Splits texts into lower case words.
+	 *
+	 * @param texts The texts, which may be null
+	 *
+	 * @return The distinct words
+	 */
+	static List<String> tokenize(String... texts) {
+		final List<String> res = new ArrayList<String>();
+		
+		for(String text: texts) {
+			if(text == null)
+				continue;
+			
+			int start = -1;
+			
+			for(int i = 0; i <= text.length(); i++) {
+				final boolean word = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+				
+				if(word && start < 0)
+					start = i;
+				else if(!word && start >= 0) {
+					final String t = text.substring(start, i).toLowerCase(Locale.ROOT);
+					
+					if(!res.contains(t))
+						res.add(t);
+					
+					start = -1;
+				}
+			}
+		}
+		
+		return res;
+	}
+	
+	/**
+	 * A record and its score.
+	 *
+	 * @param <T> The record type
+	 */
+	private static final class Scored<T> implements Comparable<Scored<T>> {
+		/**
+		 * The record.
+		 */
+		final T record;
+		
+		/**
+		 * The score.
+		 */
+		final double score;
+		
+		/**
+		 * Initializes a new instance of this class.
+		 *
+		 * @param record The record
+		 * @param score The score
+		 */
+		Scored(T record, double score) {
+			this.record = record;
+			this.score = score;
+		}
+		
+		@Override
+		public int compareTo(Scored<T> o) {
+			return Double.compare(score, o.score);
+		}
+	}
+	
+	/**
+	 * The records containing a word.
+	 * <blockquote>Most words belong to a handful of records, so small postings are kept in an array and
+	 * only turned into an identity set when they grow.</blockquote>
+	 *
+	 * @param <T> The record type
+	 */
+	static final class Postings<T> {
+		/**
+		 * The largest number of records kept in the array.
+		 */
+		private static final int SMALL = 8;
+		
+		/**
+		 * The records, while there are at most {@link #SMALL} of them.
+		 */
+		private Object[] small = new Object[1];
+		
+		/**
+		 * The number of records in {@link #small}.
+		 */
+		private int size;
+		
+		/**
+		 * The records, once there are more than {@link #SMALL} of them.
+		 */
+		private Set<T> large;
+		
+		/**
+		 * Adds a record.
+		 *
+		 * @param r The record
+		 */
+		@SuppressWarnings("unchecked")
+		void add(T r) {
+			if(large != null) {
+				large.add(r);
+				return;
+			}
+			
+			if(contains(r))
+				return;
+			
+			if(size < SMALL) {
+				if(size == small.length)
+					small = Arrays.copyOf(small, Math.min(SMALL, size * 2));
+				
+				small[size++] = r;
+			} else {
+				final Set<T> set = Collections.newSetFromMap(new IdentityHashMap<T, Boolean>());
+				
+				for(int i = 0; i < size; i++)
+					set.add((T)small[i]);
+				
+				set.add(r);
+				large = set;
+				small = null;
+				size = 0;
+			}
+		}
+		
+		/**
+		 * Removes a record.
+		 *
+		 * @param r The record
+		 *
+		 * @return True if no record is left
+		 */
+		boolean remove(T r) {
+			if(large != null) {
+				large.remove(r);
+				
+				return large.isEmpty();
+			}
+			
+			for(int i = 0; i < size; i++)
+				if(small[i] == r) {
+					small[i] = small[--size];
+					small[size] = null;
+					break;
+				}
+			
+			return size == 0;
+		}
+		
+		/**
+		 * Returns the number of records.
+		 *
+		 * @return The number of records
+		 */
+		int size() {
+			return large != null ? large.size() : size;
+		}
+		
+		/**
+		 * Returns true if a record contains the word.
+		 *
+		 * @param r The record
+		 *
+		 * @return True if the record contains the word
+		 */
+		boolean contains(T r) {
+			if(large != null)
+				return large.contains(r);
+			
+			for(int i = 0; i < size; i++)
+				if(small[i] == r)
+					return true;
+			
+			return false;
+		}
+		
+		/**
+		 * Performs an action for each record, until it returns true.
+		 *
+		 * @param action The action
+		 */
+		@SuppressWarnings("unchecked")
+		void forEachUntil(Predicate<? super T> action) {
+			if(large != null) {
+				for(T r: large)
+					if(action.test(r))
+						return;
+			} else
+				for(int i = 0; i < size; i++)
+					if(action.test((T)small[i]))
+						return;
+		}
+	}
+}
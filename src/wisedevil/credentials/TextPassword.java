@@ -17,6 +17,7 @@
  */
 package wisedevil.credentials;
 
+import java.nio.CharBuffer;
 import java.util.Arrays;
 import javax.security.auth.DestroyFailedException;
 
@@ -34,8 +35,20 @@ public class TextPassword implements Password {
 	 */
 	private final char[] data;
 	
+	/**
+	 * True if the password has been destroyed.
+	 */
+	private volatile boolean destroyed = false;
+	
+	/**
+	 * The read-only view lent by {@link #withChars(CharBufferConsumer)}, created on first use.
+	 */
+	private transient CharBuffer view;
+	
 	/**
 	 * Initializes a new instance of this class.
+	 * <blockquote>NOTE: <code>pass</code> is not copied; wiping it wipes the password, but only
+	 * {@link #destroy()} marks the instance as destroyed.</blockquote>
 	 *
 	 * @param pass The password
 	 *
@@ -56,6 +69,32 @@ public class TextPassword implements Password {
 	 */
 	public char[] get() { return Arrays.copyOf(data, data.length); }
 	
+	/**
+	 * Lends the password data to a consumer, without copying it.
+	 * <blockquote>The consumer receives a read-only view of the password which is only valid during the call.
+	 * No memory is allocated, except the first time this method is called on this instance.</blockquote>
+	 *
+	 * @param <X> The type of the exception thrown by the consumer
+	 * @param consumer The consumer
+	 *
+	 * @throws NullPointerException If <code>consumer</code> is null
+	 * @throws IllegalStateException If the password has been destroyed
+	 * @throws X If the consumer fails
+	 */
+	public synchronized <X extends Exception> void withChars(CharBufferConsumer<X> consumer) throws X {
+		if(consumer == null)
+			throw new NullPointerException();
+		
+		if(destroyed)
+			throw new IllegalStateException("Password destroyed");
+		
+		if(view == null)
+			view = CharBuffer.wrap(data).asReadOnlyBuffer();
+		
+		view.clear();
+		consumer.accept(view);
+	}
+	
 	@Override
 	public boolean equals(Object o) {
 		if(o instanceof TextPassword) {
@@ -70,15 +109,21 @@ public class TextPassword implements Password {
 		return Arrays.hashCode(data);
 	}
 	
-	public void destroy() throws DestroyFailedException {
+	/**
+	 * Zeroes the password data and marks the instance as destroyed.
+	 * <blockquote>The password cannot be destroyed while lent by {@link #withChars(CharBufferConsumer)}.</blockquote>
+	 */
+	public synchronized void destroy() throws DestroyFailedException {
 		Arrays.fill(data, '\0');
+		destroyed = true;
 	}
 	
-	public boolean isDestroyed() {
-		for(int i = 0; i < data.length; i++)
-			if(data[i] != 0)
-				return false;
-		
-		return true;
-	}
+	/**
+	 * Returns true if {@link #destroy()} has been called.
+	 * <blockquote>The password data is not inspected: an empty password, or one whose array has been
+	 * wiped by the caller, is not destroyed until <code>destroy()</code> is called.</blockquote>
+	 *
+	 * @return True if the password has been destroyed
+	 */
+	public boolean isDestroyed() { return destroyed; }
 }
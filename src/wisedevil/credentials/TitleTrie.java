@@ -0,0 +1,598 @@
+/*
+ * Lazarus: Credentials management library
+ *     Copyright (C) 2014 Alfredo 'wisedevil' Mungo
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wisedevil.credentials;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Maps titles to records through a radix trie, for prefix and fuzzy lookups.
+ *
+ * <p>Titles are compared case-insensitively. Each edge of the trie holds the longest run of characters
+ * shared by the titles below it, so the trie has fewer than two nodes per title whatever their length.
+ * Children are sorted by their first character and looked up by binary search.</p>
+ *
+ * <p>Fuzzy lookups walk the trie computing one row of the Levenshtein distance matrix per character,
+ * and prune every branch whose row exceeds the allowed distance, so that only a small part of the trie
+ * is visited.</p>
+ *
+ * <p>The trie is guarded by a read-write lock, so that it can be shared by the threads of a
+ * {@link ConcurrentCredentialDatabase}.</p>
+ *
+ * @param <T> The record type
+ */
+final class TitleTrie<T> {
+	/**
+	 * The empty list of children.
+	 */
+	private static final Node[] LEAF = new Node[0];
+	
+	/**
+	 * The root of the trie, whose edge is empty.
+	 */
+	private final Node root = new Node(new char[0]);
+	
+	/**
+	 * The lock guarding the trie.
+	 */
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	
+	/**
+	 * Adds a record.
+	 *
+	 * @param title The title of the record
+	 * @param r The record
+	 */
+	void add(String title, T r) {
+		final char[] key = fold(title);
+		
+		lock.writeLock().lock();
+		
+		try {
+			Node node = root;
+			int i = 0;
+			
+			node.count++;
+			
+			while(i < key.length) {
+				final int c = node.find(key[i]);
+				
+				if(c < 0) {
+					final Node leaf = new Node(Arrays.copyOfRange(key, i, key.length));
+					
+					leaf.values = new Object[] { r };
+					leaf.count = 1;
+					node.insert(-c - 1, leaf);
+					
+					return;
+				}
+				
+				final Node child = node.children[c];
+				final int m = common(child.edge, key, i);
+				
+				if(m < child.edge.length) { // Split the edge
+					final Node mid = new Node(Arrays.copyOf(child.edge, m));
+					
+					mid.count = child.count;
+					child.edge = Arrays.copyOfRange(child.edge, m, child.edge.length);
+					mid.children = new Node[] { child };
+					node.children[c] = mid;
+					node = mid;
+				} else
+					node = child;
+				
+				node.count++;
+				i += m;
+			}
+			
+			node.values = node.values == null ? new Object[] { r } : append(node.values, r);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Removes a record.
+	 *
+	 * @param title The title the record has been added with
+	 * @param r The record
+	 */
+	void remove(String title, T r) {
+		final char[] key = fold(title);
+		
+		lock.writeLock().lock();
+		
+		try {
+			final List<Node> path = new ArrayList<Node>();
+			Node parent = null;
+			Node node = root;
+			int i = 0;
+			
+			while(i < key.length) {
+				final int c = node.find(key[i]);
+				
+				if(c < 0)
+					return;
+				
+				final Node child = node.children[c];
+				
+				if(common(child.edge, key, i) < child.edge.length)
+					return;
+				
+				path.add(node);
+				parent = node;
+				node = child;
+				i += child.edge.length;
+			}
+			
+			if(node.values == null)
+				return;
+			
+			final Object[] values = without(node.values, r);
+			
+			if(values == node.values)
+				return;
+			
+			node.values = values;
+			node.count--;
+			path.forEach(n -> n.count--);
+			
+			if(node == root || node.values != null)
+				return;
+			
+			// Keep the trie compact: drop empty leaves and merge nodes left with a single child
+			if(node.children.length == 0) {
+				parent.delete(parent.find(node.edge[0]));
+				
+				if(parent != root && parent.values == null && parent.children.length == 1)
+					parent.merge();
+			} else if(node.children.length == 1)
+				node.merge();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Returns the records whose title starts with a prefix.
+	 *
+	 * @param prefix The prefix
+	 * @param limit The maximum number of records to return
+	 *
+	 * @return The records, sorted by title
+	 */
+	List<T> prefix(String prefix, int limit) {
+		final List<T> res = prefix(prefix, null, limit);
+		
+		while(res.size() > limit)
+			res.remove(res.size() - 1);
+		
+		return res;
+	}
+	
+	/**
+	 * Returns the records whose title starts with a prefix and comes after a given title, for paging.
+	 * <blockquote>Records whose titles only differ in case are never split across pages, so a page
+	 * may hold a few more records than asked.</blockquote>
+	 *
+	 * @param prefix The prefix
+	 * @param after The title of the last record of the previous page, or null for the first page
+	 * @param limit The maximum number of records to return
+	 *
+	 * @return The records, sorted by title
+	 */
+	List<T> prefix(String prefix, String after, int limit) {
+		final char[] key = fold(prefix);
+		final List<T> res = new ArrayList<T>();
+		
+		lock.readLock().lock();
+		
+		try {
+			final StringBuilder path = new StringBuilder();
+			final Node node = find(key, path);
+			
+			if(node != null)
+				collect(node, path, after != null ? fold(after) : null, res, limit);
+			
+			return res;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Returns the number of records whose title starts with a prefix.
+	 *
+	 * @param prefix The prefix
+	 *
+	 * @return The number of records
+	 */
+	int count(String prefix) {
+		final char[] key = fold(prefix);
+		
+		lock.readLock().lock();
+		
+		try {
+			final Node node = find(key, new StringBuilder());
+			
+			return node != null ? node.count : 0;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Looks up the highest node whose key starts with a prefix.
+	 * <blockquote>Must be called with the lock held.</blockquote>
+	 *
+	 * @param key The prefix
+	 * @param path Receives the key of the node
+	 *
+	 * @return The node, or null if no title starts with the prefix
+	 */
+	private Node find(char[] key, StringBuilder path) {
+		Node node = root;
+		int i = 0;
+		
+		while(i < key.length) {
+			final int c = node.find(key[i]);
+			
+			if(c < 0)
+				return null;
+			
+			node = node.children[c];
+			
+			final int m = common(node.edge, key, i);
+			
+			if(m < node.edge.length && i + m < key.length)
+				return null;
+			
+			path.append(node.edge);
+			i += m;
+		}
+		
+		return node;
+	}
+	
+	/**
+	 * Returns the records whose title is within a given edit distance of a title.
+	 *
+	 * @param title The title
+	 * @param distance The maximum Levenshtein distance
+	 * @param limit The maximum number of records to return
+	 *
+	 * @return The records, closest first, then sorted by title
+	 */
+	List<T> similar(String title, int distance, int limit) {
+		final char[] key = fold(title);
+		final List<List<T>> found = new ArrayList<List<T>>(distance + 1);
+		final int[][] rows = new int[key.length + distance + 1][key.length + 1];
+		
+		for(int d = 0; d <= distance; d++)
+			found.add(new ArrayList<T>());
+		
+		for(int j = 0; j <= key.length; j++)
+			rows[0][j] = j;
+		
+		lock.readLock().lock();
+		
+		try {
+			for(Node child: root.children)
+				similar(child, key, rows, 0, distance, found);
+		} finally {
+			lock.readLock().unlock();
+		}
+		
+		final List<T> res = new ArrayList<T>();
+		
+		for(List<T> l: found)
+			for(T r: l) {
+				if(res.size() == limit)
+					return res;
+				
+				res.add(r);
+			}
+		
+		return res;
+	}
+	
+	/**
+	 * Visits a subtree for a fuzzy lookup.
+	 * <blockquote>Row <code>d</code> holds the distances between the first <code>d</code> characters of the
+	 * current path and the prefixes of the title. Only the cells within <code>distance</code> of the diagonal
+	 * are computed, as the others cannot lead to a match.</blockquote>
+	 *
+	 * @param node The root of the subtree
+	 * @param key The title looked up
+	 * @param rows The rows of the distance matrix, by depth
+	 * @param depth The length of the path to the parent node
+	 * @param distance The maximum distance
+	 * @param found The records found, by distance
+	 */
+	private void similar(Node node, char[] key, int[][] rows, int depth, int distance, List<List<T>> found) {
+		final int n = key.length;
+		int d = depth;
+		
+		for(char ch: node.edge) {
+			if(d + 1 == rows.length) // Longer than the title by more than the distance
+				return;
+			
+			final int[] prev = rows[d];
+			final int[] row = rows[++d];
+			final int lo = Math.max(1, d - distance);
+			final int hi = Math.min(n, d + distance);
+			int min = row[0] = d;
+			
+			if(lo > 1)
+				row[lo - 1] = distance + 1;
+			
+			for(int j = lo; j <= hi; j++) {
+				row[j] = Math.min(Math.min(row[j - 1], prev[j]) + 1, prev[j - 1] + (key[j - 1] == ch ? 0 : 1));
+				min = Math.min(min, row[j]);
+			}
+			
+			if(hi < n)
+				row[hi + 1] = distance + 1;
+			
+			if(min > distance)
+				return;
+		}
+		
+		if(Math.abs(n - d) <= distance && rows[d][n] <= distance)
+			addValues(found.get(rows[d][n]), node.values);
+		
+		for(Node child: node.children)
+			similar(child, key, rows, d, distance, found);
+	}
+	
+	/**
+	 * Collects the records of a subtree, sorted by title.
+	 *
+	 * @param node The root of the subtree
+	 * @param path The key of the node
+	 * @param after The key the records must come after, or null
+	 * @param res The records collected so far
+	 * @param limit The maximum number of records to collect
+	 */
+	private void collect(Node node, StringBuilder path, char[] after, List<T> res, int limit) {
+		if(res.size() >= limit)
+			return;
+		
+		if(after != null) {
+			final int n = Math.min(path.length(), after.length);
+			int i = 0;
+			
+			while(i < n && path.charAt(i) == after[i])
+				i++;
+			
+			if(i == path.length()) { // The key of the node is a prefix of after: skip its records only
+				for(Node child: node.children) {
+					path.append(child.edge);
+					collect(child, path, after, res, limit);
+					path.setLength(path.length() - child.edge.length);
+				}
+				
+				return;
+			}
+			
+			if(i < after.length && path.charAt(i) < after[i])
+				return;
+		}
+		
+		addValues(res, node.values);
+		
+		for(Node child: node.children) {
+			if(res.size() >= limit)
+				return;
+			
+			path.append(child.edge);
+			collect(child, path, null, res, limit);
+			path.setLength(path.length() - child.edge.length);
+		}
+	}
+	
+	/**
+	 * Adds the records of a node to a list.
+	 *
+	 * @param res The list
+	 * @param values The records of the node, or null
+	 */
+	@SuppressWarnings("unchecked")
+	private void addValues(List<T> res, Object[] values) {
+		if(values != null)
+			for(Object v: values)
+				res.add((T)v);
+	}
+	
+	/**
+	 * Folds the case of a title.
+	 *
+	 * @param title The title
+	 *
+	 * @return The characters of the folded title
+	 */
+	private static char[] fold(String title) {
+		return title.toLowerCase(Locale.ROOT).toCharArray();
+	}
+	
+	/**
+	 * Returns the length of the common prefix of an edge and the rest of a key.
+	 *
+	 * @param edge The edge
+	 * @param key The key
+	 * @param from The start of the rest of the key
+	 *
+	 * @return The length of the common prefix
+	 */
+	private static int common(char[] edge, char[] key, int from) {
+		final int n = Math.min(edge.length, key.length - from);
+		int i = 0;
+		
+		while(i < n && edge[i] == key[from + i])
+			i++;
+		
+		return i;
+	}
+	
+	/**
+	 * Appends a record to an array.
+	 *
+	 * @param values The array
+	 * @param r The record
+	 *
+	 * @return The new array
+	 */
+	private static Object[] append(Object[] values, Object r) {
+		final Object[] res = Arrays.copyOf(values, values.length + 1);
+		
+		res[values.length] = r;
+		
+		return res;
+	}
+	
+	/**
+	 * Removes a record from an array.
+	 *
+	 * @param values The array
+	 * @param r The record
+	 *
+	 * @return The new array, or null if it would be empty
+	 */
+	private static Object[] without(Object[] values, Object r) {
+		for(int i = 0; i < values.length; i++)
+			if(values[i] == r) {
+				if(values.length == 1)
+					return null;
+				
+				final Object[] res = new Object[values.length - 1];
+				
+				System.arraycopy(values, 0, res, 0, i);
+				System.arraycopy(values, i + 1, res, i, res.length - i);
+				
+				return res;
+			}
+		
+		return values;
+	}
+	
+	/**
+	 * A node of the trie.
+	 */
+	private static final class Node {
+		/**
+		 * The characters of the edge leading to the node.
+		 */
+		char[] edge;
+		
+		/**
+		 * The number of records of the subtree.
+		 */
+		int count;
+		
+		/**
+		 * The children, sorted by the first character of their edge.
+		 */
+		Node[] children = LEAF;
+		
+		/**
+		 * The records whose folded title ends at the node, or null.
+		 * <blockquote>Titles are unique, but several of them may have the same folded case.</blockquote>
+		 */
+		Object[] values;
+		
+		/**
+		 * Initializes a new instance of this class.
+		 *
+		 * @param edge The characters of the edge leading to the node
+		 */
+		Node(char[] edge) {
+			this.edge = edge;
+		}
+		
+		/**
+		 * Looks up a child.
+		 *
+		 * @param c The first character of the edge of the child
+		 *
+		 * @return The index of the child, or <code>-(insertion point) - 1</code> if there is no such child
+		 */
+		int find(char c) {
+			int lo = 0, hi = children.length - 1;
+			
+			while(lo <= hi) {
+				final int mid = (lo + hi) >>> 1;
+				final char m = children[mid].edge[0];
+				
+				if(m < c)
+					lo = mid + 1;
+				else if(m > c)
+					hi = mid - 1;
+				else
+					return mid;
+			}
+			
+			return -lo - 1;
+		}
+		
+		/**
+		 * Inserts a child.
+		 *
+		 * @param i The index of the child
+		 * @param child The child
+		 */
+		void insert(int i, Node child) {
+			final Node[] res = new Node[children.length + 1];
+			
+			System.arraycopy(children, 0, res, 0, i);
+			res[i] = child;
+			System.arraycopy(children, i, res, i + 1, children.length - i);
+			children = res;
+		}
+		
+		/**
+		 * Deletes a child.
+		 *
+		 * @param i The index of the child
+		 */
+		void delete(int i) {
+			final Node[] res = children.length == 1 ? LEAF : new Node[children.length - 1];
+			
+			System.arraycopy(children, 0, res, 0, i);
+			System.arraycopy(children, i + 1, res, i, res.length - i);
+			children = res;
+		}
+		
+		/**
+		 * Merges the node with its only child.
+		 */
+		void merge() {
+			final Node child = children[0];
+			final char[] e = Arrays.copyOf(edge, edge.length + child.edge.length);
+			
+			System.arraycopy(child.edge, 0, e, edge.length, child.edge.length);
+			edge = e;
+			children = child.children;
+			values = child.values;
+		}
+	}
+}
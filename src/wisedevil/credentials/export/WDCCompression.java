@@ -0,0 +1,171 @@
+/*
+ * Lazarus: Credentials management library
+ *     Copyright (C) 2014 Alfredo 'wisedevil' Mungo
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wisedevil.credentials.export;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The compression codecs of WDC streams.
+ *
+ * <p>The data of a WDC stream is compressed before being encrypted, and the codec and level
+ * are recorded in the stream header. Compression mostly pays off on large databases, whose
+ * titles, users and descriptions are highly redundant.</p>
+ *
+ * <blockquote>NOTE: Compressing data before encrypting it leaks information about the data through
+ * the length of the stream. This matters when an attacker can both add chosen data to a database and
+ * observe the size of its exports, which is why compression is not enabled by default.</blockquote>
+ *
+ * @see WDCExporter#setCompression(WDCCompression, int)
+ */
+public enum WDCCompression {
+	/**
+	 * No compression.
+	 */
+	NONE(0, 0, 0),
+	
+	/**
+	 * DEFLATE compression in the zlib format (RFC 1950), with levels from 1 (fastest) to 9 (smallest).
+	 */
+	DEFLATE(1, Deflater.BEST_SPEED, Deflater.BEST_COMPRESSION);
+	
+	/**
+	 * The size of the compression buffers.
+	 */
+	private static final int BUFFER_SIZE = 8192;
+	
+	/**
+	 * The codec identifier stored in WDC streams.
+	 */
+	private final int id;
+	
+	/**
+	 * The minimum compression level.
+	 */
+	private final int minLevel;
+	
+	/**
+	 * The maximum compression level.
+	 */
+	private final int maxLevel;
+	
+	/**
+	 * Initializes a new instance of this enum.
+	 *
+	 * @param id The codec identifier
+	 * @param minLevel The minimum compression level
+	 * @param maxLevel The maximum compression level
+	 */
+	private WDCCompression(int id, int minLevel, int maxLevel) {
+		this.id = id;
+		this.minLevel = minLevel;
+		this.maxLevel = maxLevel;
+	}
+	
+	/**
+	 * Returns the codec identifier stored in WDC streams.
+	 *
+	 * @return The codec identifier
+	 */
+	int getId() { return id; }
+	
+	/**
+	 * Returns true if a compression level is supported by this codec.
+	 *
+	 * @param level The compression level
+	 *
+	 * @return True if the level is supported
+	 */
+	public boolean isLevelSupported(int level) {
+		return level >= minLevel && level <= maxLevel;
+	}
+	
+	/**
+	 * Returns the codec with a given identifier.
+	 *
+	 * @param id The codec identifier
+	 *
+	 * @return The codec or <code>null</code> if no codec has the identifier
+	 */
+	static WDCCompression fromId(int id) {
+		for(WDCCompression c: values())
+			if(c.id == id)
+				return c;
+		
+		return null;
+	}
+	
+	/**
+	 * Returns a stream compressing data with this codec.
+	 * <blockquote>Closing the returned stream finishes the compressed data and closes <code>out</code>.</blockquote>
+	 *
+	 * @param out The output stream
+	 * @param level The compression level
+	 *
+	 * @return The compressing stream
+	 */
+	OutputStream compress(OutputStream out, int level) {
+		if(this == NONE)
+			return out;
+		
+		final Deflater def = new Deflater(level);
+		
+		return new DeflaterOutputStream(out, def, BUFFER_SIZE) {
+			@Override
+			public void close() throws IOException {
+				try {
+					super.close();
+				} finally {
+					def.end();
+				}
+			}
+		};
+	}
+	
+	/**
+	 * Returns a stream decompressing data with this codec.
+	 * <blockquote>Closing the returned stream closes <code>in</code>.</blockquote>
+	 *
+	 * @param in The input stream
+	 *
+	 * @return The decompressing stream
+	 */
+	InputStream decompress(InputStream in) {
+		if(this == NONE)
+			return in;
+		
+		final Inflater inf = new Inflater();
+		
+		return new InflaterInputStream(in, inf, BUFFER_SIZE) {
+			@Override
+			public void close() throws IOException {
+				try {
+					super.close();
+				} finally {
+					inf.end();
+				}
+			}
+		};
+	}
+}
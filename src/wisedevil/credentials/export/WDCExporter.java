@@ -18,39 +18,62 @@
 package wisedevil.credentials.export;
 
 import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 
-import java.security.AlgorithmParameters;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
-import java.security.InvalidParameterException;
-import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 
-import java.security.spec.InvalidParameterSpecException;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
 
 import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
 
-import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
-import javax.crypto.SecretKey;
-
-import javax.crypto.spec.SecretKeySpec;
-import javax.crypto.spec.IvParameterSpec;
 
 import javax.security.auth.DestroyFailedException;
 
 import wisedevil.credentials.CredentialDatabase;
+import wisedevil.credentials.DatabaseChanges;
 import wisedevil.credentials.TextPassword;
+import wisedevil.credentials.export.internal.ChunkedCipherOutputStream;
+import wisedevil.credentials.export.internal.UnclosableOutputStream;
+import wisedevil.credentials.export.internal.WDCCodec;
+import wisedevil.credentials.export.internal.WDCCrypto;
 
+import static wisedevil.credentials.export.internal.WDCUtil.DEFAULT_CHUNK_SIZE;
+import static wisedevil.credentials.export.internal.WDCUtil.IV_SIZE;
+import static wisedevil.credentials.export.internal.WDCUtil.MAX_CHUNK_SIZE;
+import static wisedevil.credentials.export.internal.WDCUtil.NONCE_PREFIX_SIZE;
+import static wisedevil.credentials.export.internal.WDCUtil.STREAM_MAGIC;
+import static wisedevil.credentials.export.internal.WDCUtil.STREAM_VERSION;
+import static wisedevil.credentials.export.internal.WDCUtil.exportView;
 import static wisedevil.credentials.export.internal.WDCUtil.passToDigest;
 
 /**
  * This class provides support for exporting a CredentialDatabase as a
  * "WiseDevil Credentials" file format.
+ *
+ * <p>The database can either be exported to memory as a {@link WDCEncryptionRecord}
+ * or streamed to an {@link OutputStream} or {@link WritableByteChannel}.
+ * A WDC stream is made of the <code>WDC</code> magic number, the format version byte,
+ * the compression codec and level bytes, the chunk size as a big-endian int, the random nonce prefix and the encrypted data.
+ * The database is serialized and encrypted on the fly, so streaming never holds the whole
+ * database in memory.</p>
+ *
+ * <p>The data of a WDC stream is encrypted in chunks, each one with AES/GCM and its own nonce
+ * and authentication tag, so that chunks are encrypted in parallel by a fork-join pool
+ * (see {@link #setPool(ForkJoinPool)}). The data can be compressed before being encrypted
+ * (see {@link #setCompression(WDCCompression, int)}). Version 1 streams, encrypted as a whole
+ * with AES/CBC, and version 2 streams, which are never compressed, can still be imported.</p>
+ *
+ * <p>The database is encoded with the WDC binary codec before being encrypted. A
+ * {@link wisedevil.credentials.ConcurrentCredentialDatabase} is exported from a snapshot taken when the
+ * export starts, so that its writers can keep going meanwhile.</p>
+ *
+ * @see WDCCodec
  */
 public class WDCExporter implements Exporter<WDCEncryptionRecord> {
 	/**
@@ -59,10 +82,35 @@ public class WDCExporter implements Exporter<WDCEncryptionRecord> {
 	private final CredentialDatabase db;
 	
 	/**
-	 * The export password to encrypt the database.
+	 * The export password to encrypt the database, or <code>null</code> if exporting with a session.
 	 */
 	private final TextPassword pass;
 	
+	/**
+	 * The session holding the encryption key, or <code>null</code> if exporting with a password.
+	 */
+	private final WDCSession session;
+	
+	/**
+	 * The size of the plain chunks of WDC streams.
+	 */
+	private int chunkSize = DEFAULT_CHUNK_SIZE;
+	
+	/**
+	 * The pool encrypting the chunks of WDC streams.
+	 */
+	private ForkJoinPool pool = ForkJoinPool.commonPool();
+	
+	/**
+	 * The compression codec of WDC streams.
+	 */
+	private WDCCompression compression = WDCCompression.NONE;
+	
+	/**
+	 * The compression level of WDC streams.
+	 */
+	private int compressionLevel = 0;
+	
 	/**
 	 * Initializes a new instance of this class.
 	 *
@@ -77,6 +125,80 @@ public class WDCExporter implements Exporter<WDCEncryptionRecord> {
 			
 		this.db = db;
 		this.pass = pass;
+		session = null;
+	}
+	
+	/**
+	 * Initializes a new instance of this class.
+	 * <blockquote>The encryption key is taken from the session, without deriving it again.</blockquote>
+	 *
+	 * @param db The CredentialDatabase to export
+	 * @param session The session holding the encryption key
+	 *
+	 * @throws NullPointerException If any of the arguments is null
+	 */
+	public WDCExporter(CredentialDatabase db, WDCSession session) {
+		if(db == null || session == null)
+			throw new NullPointerException();
+		
+		this.db = db;
+		pass = null;
+		this.session = session;
+	}
+	
+	/**
+	 * Sets the size of the chunks WDC streams are encrypted in.
+	 * <blockquote>Larger chunks have a lower overhead, smaller chunks spread small databases over more cores.
+	 * The default size is 64 KiB.</blockquote>
+	 *
+	 * @param chunkSize The chunk size in bytes
+	 *
+	 * @throws IllegalArgumentException If <code>chunkSize</code> is not positive or is larger than 16 MiB
+	 */
+	public void setChunkSize(int chunkSize) {
+		if(chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE)
+			throw new IllegalArgumentException("Invalid chunk size: " + chunkSize);
+		
+		this.chunkSize = chunkSize;
+	}
+	
+	/**
+	 * Sets the pool encrypting the chunks of WDC streams.
+	 * <blockquote>The default pool is the common fork-join pool.</blockquote>
+	 *
+	 * @param pool The encryption pool
+	 *
+	 * @throws NullPointerException If <code>pool</code> is null
+	 */
+	public void setPool(ForkJoinPool pool) {
+		if(pool == null)
+			throw new NullPointerException();
+		
+		this.pool = pool;
+	}
+	
+	/**
+	 * Sets the compression stage of WDC streams, run before encryption.
+	 * <blockquote>WDC streams are not compressed by default. Disable compression with {@link WDCCompression#NONE},
+	 * whose level is ignored.</blockquote>
+	 *
+	 * @param codec The compression codec
+	 * @param level The compression level
+	 *
+	 * @throws NullPointerException If <code>codec</code> is null
+	 * @throws IllegalArgumentException If <code>level</code> is not supported by <code>codec</code>
+	 *
+	 * @see WDCCompression
+	 */
+	public void setCompression(WDCCompression codec, int level) {
+		if(codec == null)
+			throw new NullPointerException();
+		
+		if(codec != WDCCompression.NONE && !codec.isLevelSupported(level))
+			throw new IllegalArgumentException("Invalid compression level: " + level);
+		
+		compression = codec;
+		compressionLevel = codec != WDCCompression.NONE ? level : 0;
 	}
 	
 	/**
@@ -92,7 +214,7 @@ public class WDCExporter implements Exporter<WDCEncryptionRecord> {
 		WDCEncryptionRecord encData;
 		
 		try {
-			passBytes = passToDigest(pass.get());
+			passBytes = getKey();
 			dataBytes = serializeDatabase();
 			encData = encryptDatabase(dataBytes, passBytes);
 			
@@ -109,30 +231,165 @@ public class WDCExporter implements Exporter<WDCEncryptionRecord> {
 		}
 	}
 	
+	/**
+	 * Exports the credentials as a WDC stream.
+	 * <blockquote>The output stream is flushed but not closed.</blockquote>
+	 *
+	 * @param out The output stream
+	 *
+	 * @throws NullPointerException If <code>out</code> is null
+	 * @throws DatabaseExportException if an exception occurs during the process
+	 */
+	public void exportDatabase(OutputStream out) throws DatabaseExportException {
+		if(out == null)
+			throw new NullPointerException();
+		
+		byte[] passBytes = null;
+		
+		try {
+			passBytes = getKey();
+			writeDatabase(out, passBytes, null);
+		} catch(Exception e) {
+			throw new DatabaseExportException(e);
+		} finally {
+			if(passBytes != null)
+				Arrays.fill(passBytes, (byte)0);
+		}
+	}
+	
+	/**
+	 * Exports the credentials as a WDC stream.
+	 * <blockquote>The channel is not closed.</blockquote>
+	 *
+	 * @param out The output channel
+	 *
+	 * @throws NullPointerException If <code>out</code> is null
+	 * @throws DatabaseExportException if an exception occurs during the process
+	 */
+	public void exportDatabase(WritableByteChannel out) throws DatabaseExportException {
+		if(out == null)
+			throw new NullPointerException();
+		
+		exportDatabase(Channels.newOutputStream(out));
+	}
+	
+	/**
+	 * Exports the changes made to the credentials since they were last marked as not modified, as a WDC stream.
+	 * <blockquote>The output stream is flushed but not closed. The database is not marked as not modified.</blockquote>
+	 *
+	 * @param out The output stream
+	 *
+	 * @throws NullPointerException If <code>out</code> is null
+	 * @throws DatabaseExportException if an exception occurs during the process
+	 *
+	 * @see CredentialDatabase#getChanges()
+	 * @see WDCImporter#importChanges(CredentialDatabase)
+	 */
+	public void exportChanges(OutputStream out) throws DatabaseExportException {
+		if(out == null)
+			throw new NullPointerException();
+		
+		exportChanges(db.getChanges(), out);
+	}
+	
+	/**
+	 * Exports changes taken from the credential database as a WDC stream.
+	 * <blockquote>The output stream is flushed but not closed.</blockquote>
+	 *
+	 * @param changes The changes
+	 * @param out The output stream
+	 *
+	 * @throws NullPointerException If any of the arguments is null
+	 * @throws DatabaseExportException if an exception occurs during the process
+	 *
+	 * @see CredentialDatabase#drainChanges(boolean)
+	 * @see WDCImporter#importChanges(CredentialDatabase)
+	 */
+	public void exportChanges(DatabaseChanges changes, OutputStream out) throws DatabaseExportException {
+		if(changes == null || out == null)
+			throw new NullPointerException();
+		
+		byte[] passBytes = null;
+		
+		try {
+			passBytes = getKey();
+			writeDatabase(out, passBytes, changes);
+		} catch(Exception e) {
+			throw new DatabaseExportException(e);
+		} finally {
+			if(passBytes != null)
+				Arrays.fill(passBytes, (byte)0);
+		}
+	}
+	
 	public void destroy() throws DestroyFailedException {
-		pass.destroy();
+		if(pass != null)
+			pass.destroy();
+		else
+			session.destroy();
 	}
 	
-	public boolean isDestroyed() { return pass.isDestroyed(); }
+	public boolean isDestroyed() { return pass != null ? pass.isDestroyed() : session.isDestroyed(); }
+	
+	/**
+	 * Returns the encryption key, either derived from the password or taken from the session.
+	 * <blockquote>NOTE: The returned key must be manually wiped.</blockquote>
+	 *
+	 * @return The encryption key
+	 *
+	 * @throws NoSuchAlgorithmException If the platform doesn't support the key derivation algorithm
+	 * @throws IllegalStateException If the session has been destroyed or has expired
+	 */
+	private byte[] getKey() throws NoSuchAlgorithmException {
+		return pass != null ? passToDigest(pass) : session.getKey();
+	}
 
 	/**
-	 * Serializes the credential database as a byte array.
+	 * Encodes the credential database as a byte array.
 	 *
-	 * @return The serialized credential database
+	 * @return The encoded credential database
 	 *
-	 * @throws IOException If an output exception occurs during the serialization process
+	 * @throws IOException If an output exception occurs during the encoding process
 	 */
 	private byte[] serializeDatabase() throws IOException {
-		try (
-			ByteArrayOutputStream bs = new ByteArrayOutputStream();
-			ObjectOutputStream os = new ObjectOutputStream(bs);
-		) {
-			os.writeObject(db);
+		try(ByteArrayOutputStream bs = new ByteArrayOutputStream()) {
+			WDCCodec.encode(exportView(db), bs);
 			
 			return bs.toByteArray();
 		}
 	}
 	
+	/**
+	 * Writes the database as a WDC stream, encoding and encrypting it on the fly.
+	 *
+	 * @param out The output stream
+	 * @param pass The encryption password (hash)
+	 * @param changes The changes to write instead of the whole database, or null
+	 *
+	 * @throws IOException If an output exception occurs during the process
+	 */
+	private void writeDatabase(OutputStream out, byte[] pass, DatabaseChanges changes) throws IOException {
+		final byte[] prefix = new byte[NONCE_PREFIX_SIZE];
+		final DataOutputStream ds = new DataOutputStream(new UnclosableOutputStream(out));
+		
+		WDCCrypto.get().nextBytes(prefix);
+		
+		ds.write(STREAM_MAGIC);
+		ds.write(STREAM_VERSION);
+		ds.write(compression.getId());
+		ds.write(compressionLevel);
+		ds.writeInt(chunkSize);
+		ds.write(prefix);
+		
+		try(ChunkedCipherOutputStream cs = new ChunkedCipherOutputStream(ds, pass, prefix, chunkSize, pool);
+			OutputStream zs = compression.compress(cs, compressionLevel)) {
+			if(changes != null)
+				WDCCodec.encodeDelta(changes, zs);
+			else
+				WDCCodec.encode(exportView(db), zs);
+		}
+	}
+	
 	/**
 	 * Encrypts the database using AES/CBC/PKCS5Padding with SecureRandom generated IV.
 	 *
@@ -141,40 +398,22 @@ public class WDCExporter implements Exporter<WDCEncryptionRecord> {
 	 *
 	 * @return The encrypted database and relative IV as a {@link WDCEncryptionRecord} object
 	 *
-	 * @throws NoSuchAlgorithmException If the platform doesn't support AES/CBC
-	 * @throws InvalidKeyException If the key is invalid
-	 * @throws InvalidParameterException If an algorithm method parameter is invalid
-	 * @throws InvalidParameterSpecException If an algorithm parameter spec is invalid
-	 * @throws NoSuchPaddingException If the platform doesn't support PKCS5Padding
-	 * @throws InvalidAlgorithmParameterException If an algorithm parameter is invalid
-	 * @throws IllegalBlockSizeException If the data block size is not correct
-	 * @throws BadPaddingException If the data is not properly padded
+	 * @throws GeneralSecurityException If the cipher cannot be initialized or the data cannot be encrypted
 	 *
 	 * @see <a href="https://gist.github.com/wisedevil/47fd55226a7a4cbcf4c6">Java AES CBC gist</a>
 	 */
-	private static WDCEncryptionRecord encryptDatabase(byte[] data, byte[] pass)
-		throws NoSuchAlgorithmException,
-			NoSuchPaddingException,
-			InvalidKeyException,
-			InvalidParameterException,
-			InvalidParameterSpecException,
-			InvalidAlgorithmParameterException,
-			IllegalBlockSizeException,
-			BadPaddingException {
-		byte[] iv = new byte[16];
-		Cipher c = Cipher.getInstance("AES/CBC/PKCS5Padding");
-		SecureRandom rnd = new SecureRandom();
-		SecretKey seckey = new SecretKeySpec(pass, 0, pass.length, "AES");
-		AlgorithmParameters parms = AlgorithmParameters.getInstance("AES");
-
-		// Init
-		rnd.nextBytes(iv);
-		parms.init(new IvParameterSpec(iv));
-		c.init(Cipher.ENCRYPT_MODE, seckey, parms);
-
-		// Encrypt
-		byte[] res = c.doFinal(data);
-
-		return new WDCEncryptionRecord(res, iv);
+	private static WDCEncryptionRecord encryptDatabase(byte[] data, byte[] pass) throws GeneralSecurityException {
+		final WDCCrypto crypto = WDCCrypto.get();
+		final byte[] iv = new byte[IV_SIZE];
+		
+		crypto.nextBytes(iv);
+		
+		final Cipher c = crypto.acquire(Cipher.ENCRYPT_MODE, pass, iv);
+		
+		try {
+			return new WDCEncryptionRecord(c.doFinal(data), iv);
+		} finally {
+			crypto.release(c);
+		}
 	}
 }
@@ -0,0 +1,691 @@
+/*
+ * Lazarus: Credentials management library
+ *     Copyright (C) 2014 Alfredo 'wisedevil' Mungo
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wisedevil.credentials.export;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+
+import java.nio.ByteBuffer;
+
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import java.security.NoSuchAlgorithmException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+import wisedevil.credentials.CredentialDatabase;
+import wisedevil.credentials.DatabaseChanges;
+import wisedevil.credentials.TextPassword;
+import wisedevil.credentials.export.internal.ByteBufferInputStream;
+
+import static wisedevil.credentials.export.internal.WDCUtil.createTempFile;
+import static wisedevil.credentials.export.internal.WDCUtil.replaceFile;
+
+/**
+ * This class provides a file-backed store for WDC streams.
+ *
+ * <p>A WDC file is made of the <code>WDCF</code> magic number, the file format version byte,
+ * the length of the WDC stream as a big-endian long and the WDC stream itself (see {@link WDCExporter}).
+ * Storing the stream length allows truncated files to be detected before decrypting them.</p>
+ *
+ * <p>The database stream may be followed by a journal of changes, appended by
+ * {@link #append(CredentialDatabase, TextPassword)}. Every journal entry is made of its length as a
+ * big-endian long, followed by a WDC stream of changes (see {@link WDCExporter#exportChanges(java.io.OutputStream)}).
+ * The journal is replayed when the file is loaded, and folded back into the database stream by
+ * {@link #compact(TextPassword)}. A journal entry whose length is zero or exceeds the file size was not
+ * completely written, and is discarded along with the rest of the journal.</p>
+ *
+ * <p>Files are read through memory-mapped buffers, so the encrypted data is never copied to the heap
+ * as a whole. Files are written to a temporary file in the same directory, which then atomically
+ * replaces the target file, so a failed save never leaves a corrupted file behind.</p>
+ *
+ * <p>Every method accepts either a password or a {@link WDCSession}: the key is derived from
+ * a password on every call, while a session derives it only once, so that repeated loads and
+ * saves don't pay for the key derivation.</p>
+ *
+ * <p>Writes through the same instance are serialized; different instances, or processes, must not
+ * write to the same file at the same time.</p>
+ */
+public class WDCFile {
+	/**
+	 * The magic number at the beginning of a WDC file.
+	 */
+	private static final byte[] FILE_MAGIC = { 'W', 'D', 'C', 'F' };
+	
+	/**
+	 * The WDC file format version.
+	 * <blockquote>Version 1 files have no journal.</blockquote>
+	 */
+	private static final byte FILE_VERSION = 2;
+	
+	/**
+	 * The size of the WDC file header.
+	 */
+	private static final int HEADER_SIZE = FILE_MAGIC.length + 1 + Long.BYTES;
+	
+	/**
+	 * The size of the header of a journal entry.
+	 */
+	private static final int ENTRY_HEADER_SIZE = Long.BYTES;
+	
+	/**
+	 * The maximum size of a memory-mapped region.
+	 */
+	private static final long MAX_MAP_SIZE = Integer.MAX_VALUE;
+	
+	/**
+	 * The file path.
+	 */
+	private final Path path;
+	
+	/**
+	 * The number of times the file has been rewritten by this instance.
+	 */
+	private long generation = 0;
+	
+	/**
+	 * Initializes a new instance of this class.
+	 *
+	 * @param path The file path
+	 *
+	 * @throws NullPointerException If <code>path</code> is null
+	 */
+	public WDCFile(Path path) {
+		if(path == null)
+			throw new NullPointerException();
+		
+		this.path = path;
+	}
+	
+	/**
+	 * Returns the file path.
+	 *
+	 * @return The file path
+	 */
+	public Path getPath() { return path; }
+	
+	/**
+	 * Loads the credential database from the file, replaying its journal.
+	 * <blockquote>The loaded database is marked as not modified.</blockquote>
+	 *
+	 * @param pass The decryption password
+	 *
+	 * @return The credential database
+	 *
+	 * @throws NullPointerException If <code>pass</code> is null
+	 * @throws DatabaseImportException If the file cannot be read or is not a valid WDC file
+	 */
+	public CredentialDatabase load(TextPassword pass) throws DatabaseImportException {
+		WDCSession session = openSession(pass);
+		
+		try {
+			return load(session);
+		} finally {
+			session.destroy();
+		}
+	}
+	
+	/**
+	 * Loads the credential database from the file, replaying its journal.
+	 * <blockquote>The loaded database is marked as not modified.</blockquote>
+	 *
+	 * @param session The session holding the decryption key
+	 *
+	 * @return The credential database
+	 *
+	 * @throws NullPointerException If <code>session</code> is null
+	 * @throws DatabaseImportException If the file cannot be read, is not a valid WDC file or the session has expired
+	 */
+	public CredentialDatabase load(WDCSession session) throws DatabaseImportException {
+		return load(session, new long[1]);
+	}
+	
+	/**
+	 * Loads the credential database from the file, replaying its journal.
+	 *
+	 * @param session The session holding the decryption key
+	 * @param end Receives the offset of the end of the journal as its first element
+	 *
+	 * @return The credential database
+	 *
+	 * @throws DatabaseImportException If the file cannot be read or is not a valid WDC file
+	 */
+	private CredentialDatabase load(WDCSession session, long[] end) throws DatabaseImportException {
+		if(session == null)
+			throw new NullPointerException();
+		
+		try(FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+			final long base = readHeader(ch);
+			final List<long[]> journal = new ArrayList<long[]>();
+			final CredentialDatabase db;
+			
+			end[0] = scanJournal(ch, base, journal);
+			db = new WDCImporter(openRegion(ch, HEADER_SIZE, base), session).importDatabase();
+			
+			for(long[] entry: journal)
+				new WDCImporter(openRegion(ch, entry[0], entry[1]), session).importChanges(db);
+			
+			db.clearModified();
+			
+			return db;
+		} catch(IOException e) {
+			throw new DatabaseImportException(e);
+		}
+	}
+	
+	/**
+	 * Saves the credential database to the file, replacing its previous content and journal.
+	 * <blockquote>The database is marked as not modified as it is saved, so changes made meanwhile are
+	 * left for the next save. If the file cannot be written, the database is marked as modified again.</blockquote>
+	 *
+	 * @param db The credential database
+	 * @param pass The encryption password
+	 *
+	 * @throws NullPointerException If any of the arguments is null
+	 * @throws DatabaseExportException If the file cannot be written
+	 */
+	public void save(CredentialDatabase db, TextPassword pass) throws DatabaseExportException {
+		if(db == null)
+			throw new NullPointerException();
+		
+		WDCSession session = openExportSession(pass);
+		
+		try {
+			save(db, session);
+		} finally {
+			session.destroy();
+		}
+	}
+	
+	/**
+	 * Saves the credential database to the file, replacing its previous content and journal.
+	 * <blockquote>The database is marked as not modified as it is saved, so changes made meanwhile are
+	 * left for the next save. If the file cannot be written, the database is marked as modified again.</blockquote>
+	 *
+	 * @param db The credential database
+	 * @param session The session holding the encryption key
+	 *
+	 * @throws NullPointerException If any of the arguments is null
+	 * @throws DatabaseExportException If the file cannot be written or the session has expired
+	 */
+	public synchronized void save(CredentialDatabase db, WDCSession session) throws DatabaseExportException {
+		if(db == null || session == null)
+			throw new NullPointerException();
+		
+		// Changes made while saving are tracked for the next save or append
+		final DatabaseChanges changes = db.drainChanges(true);
+		final WDCExporter exporter = new WDCExporter(changes.getSnapshot(), session);
+		boolean saved = false;
+		Path tmp = null;
+		
+		try {
+			tmp = createTempFile(path);
+			
+			try(FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+				ch.position(HEADER_SIZE);
+				exporter.exportDatabase(ch);
+				writeHeader(ch, ch.position() - HEADER_SIZE);
+				ch.force(true);
+			}
+			
+			replaceFile(tmp, path);
+			tmp = null;
+			generation++;
+			saved = true;
+		} catch(IOException e) {
+			throw new DatabaseExportException(e);
+		} finally {
+			if(!saved)
+				changes.restore();
+			
+			deleteTemp(tmp);
+		}
+	}
+	
+	/**
+	 * Appends the changes made to the credential database since it was last marked as not modified
+	 * to the file journal. If the file doesn't exist, the whole database is saved instead.
+	 * <blockquote>The cost of appending depends on the size of the changes, not on the size of the database.
+	 * The database is marked as not modified as its changes are taken, so changes made meanwhile are
+	 * left for the next append. If the file cannot be written, the changes are tracked again.</blockquote>
+	 *
+	 * @param db The credential database, which must have been loaded from or saved to this file
+	 * @param pass The encryption password
+	 *
+	 * @throws NullPointerException If any of the arguments is null
+	 * @throws DatabaseExportException If the file cannot be written or is not a valid WDC file
+	 *
+	 * @see CredentialDatabase#drainChanges(boolean)
+	 */
+	public void append(CredentialDatabase db, TextPassword pass) throws DatabaseExportException {
+		if(db == null)
+			throw new NullPointerException();
+		
+		WDCSession session = openExportSession(pass);
+		
+		try {
+			append(db, session);
+		} finally {
+			session.destroy();
+		}
+	}
+	
+	/**
+	 * Appends the changes made to the credential database since it was last marked as not modified
+	 * to the file journal. If the file doesn't exist, the whole database is saved instead.
+	 * <blockquote>The cost of appending depends on the size of the changes, not on the size of the database.
+	 * The database is marked as not modified as its changes are taken, so changes made meanwhile are
+	 * left for the next append. If the file cannot be written, the changes are tracked again.</blockquote>
+	 *
+	 * @param db The credential database, which must have been loaded from or saved to this file
+	 * @param session The session holding the encryption key
+	 *
+	 * @throws NullPointerException If any of the arguments is null
+	 * @throws DatabaseExportException If the file cannot be written or the session has expired or is not a valid WDC file
+	 *
+	 * @see CredentialDatabase#drainChanges(boolean)
+	 */
+	public synchronized void append(CredentialDatabase db, WDCSession session) throws DatabaseExportException {
+		if(db == null || session == null)
+			throw new NullPointerException();
+		
+		if(!Files.exists(path)) {
+			save(db, session);
+			return;
+		}
+		
+		final WDCExporter exporter = new WDCExporter(db, session);
+		DatabaseChanges changes = null;
+		boolean saved = false;
+		
+		try(FileChannel ch = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			final long end = scanJournal(ch, readHeader(ch), null);
+			
+			// Discard any incomplete entry and write the new one with a zero length,
+			// so that it is ignored until it has been completely written
+			ch.truncate(end);
+			writeLong(ch, end, 0);
+			ch.position(end + ENTRY_HEADER_SIZE);
+			
+			// Changes made while appending are tracked for the next save or append
+			changes = db.drainChanges(false);
+			exporter.exportChanges(changes, Channels.newOutputStream(ch));
+			ch.force(true);
+			writeLong(ch, end, ch.position() - end - ENTRY_HEADER_SIZE);
+			writeVersion(ch);
+			ch.force(true);
+			saved = true;
+		} catch(IOException | DatabaseImportException e) {
+			throw new DatabaseExportException(e);
+		} finally {
+			if(changes != null && !saved)
+				changes.restore();
+		}
+	}
+	
+	/**
+	 * Returns the size of the file journal.
+	 * <blockquote>This can be used to decide when to compact the file.</blockquote>
+	 *
+	 * @return The size of the journal in bytes
+	 *
+	 * @throws DatabaseImportException If the file cannot be read or is not a valid WDC file
+	 */
+	public long getJournalSize() throws DatabaseImportException {
+		try(FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+			return ch.size() - HEADER_SIZE - readHeader(ch);
+		} catch(IOException e) {
+			throw new DatabaseImportException(e);
+		}
+	}
+	
+	/**
+	 * Folds the file journal back into the database stream.
+	 * <blockquote>The file is loaded and rewritten without holding the instance lock, so other threads can
+	 * keep appending changes in the meantime; those changes are carried over to the compacted file.
+	 * If the file is saved or compacted by another thread in the meantime, the compaction is discarded.</blockquote>
+	 *
+	 * @param pass The password of the file
+	 *
+	 * @throws NullPointerException If <code>pass</code> is null
+	 * @throws DatabaseImportException If the file cannot be read or is not a valid WDC file
+	 * @throws DatabaseExportException If the file cannot be written
+	 */
+	public void compact(TextPassword pass) throws DatabaseImportException, DatabaseExportException {
+		WDCSession session = openSession(pass);
+		
+		try {
+			compact(session);
+		} finally {
+			session.destroy();
+		}
+	}
+	
+	/**
+	 * Folds the file journal back into the database stream.
+	 *
+	 * @param session The session holding the key of the file
+	 *
+	 * @throws NullPointerException If <code>session</code> is null
+	 * @throws DatabaseImportException If the file cannot be read, is not a valid WDC file or the session has expired
+	 * @throws DatabaseExportException If the file cannot be written
+	 *
+	 * @see #compact(TextPassword)
+	 */
+	public void compact(WDCSession session) throws DatabaseImportException, DatabaseExportException {
+		final long gen;
+		final long[] end = new long[1];
+		final CredentialDatabase db;
+		
+		synchronized(this) {
+			gen = generation;
+			db = load(session, end);
+		}
+		
+		WDCExporter exporter = new WDCExporter(db, session);
+		Path tmp = null;
+		
+		try {
+			tmp = createTempFile(path);
+			
+			try(FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+				ch.position(HEADER_SIZE);
+				exporter.exportDatabase(ch);
+				writeHeader(ch, ch.position() - HEADER_SIZE);
+				
+				synchronized(this) {
+					if(gen != generation)
+						return;
+					
+					// Carry over the changes appended in the meantime
+					try(FileChannel src = FileChannel.open(path, StandardOpenOption.READ)) {
+						final long newEnd = scanJournal(src, readHeader(src), null);
+						
+						for(long pos = end[0]; pos < newEnd;)
+							pos += src.transferTo(pos, newEnd - pos, ch);
+					}
+					
+					ch.force(true);
+					replaceFile(tmp, path);
+					tmp = null;
+					generation++;
+				}
+			}
+		} catch(IOException e) {
+			throw new DatabaseExportException(e);
+		} finally {
+			deleteTemp(tmp);
+		}
+	}
+	
+	/**
+	 * Compacts the file in the background.
+	 *
+	 * @param pass The password of the file
+	 * @param executor The executor running the compaction
+	 *
+	 * @return A future completing when the compaction is done, or exceptionally with a
+	 * {@link CompletionException} wrapping the import or export exception
+	 *
+	 * @throws NullPointerException If any of the arguments is null
+	 *
+	 * @see #compact(TextPassword)
+	 */
+	public CompletableFuture<Void> compactAsync(TextPassword pass, Executor executor) {
+		if(pass == null || executor == null)
+			throw new NullPointerException();
+		
+		return CompletableFuture.runAsync(() -> {
+			try {
+				compact(pass);
+			} catch(DatabaseImportException | DatabaseExportException e) {
+				throw new CompletionException(e);
+			}
+		}, executor);
+	}
+	
+	/**
+	 * Compacts the file in the background.
+	 *
+	 * @param session The session holding the key of the file
+	 * @param executor The executor running the compaction
+	 *
+	 * @return A future completing when the compaction is done, or exceptionally with a
+	 * {@link CompletionException} wrapping the import or export exception
+	 *
+	 * @throws NullPointerException If any of the arguments is null
+	 *
+	 * @see #compact(WDCSession)
+	 */
+	public CompletableFuture<Void> compactAsync(WDCSession session, Executor executor) {
+		if(session == null || executor == null)
+			throw new NullPointerException();
+		
+		return CompletableFuture.runAsync(() -> {
+			try {
+				compact(session);
+			} catch(DatabaseImportException | DatabaseExportException e) {
+				throw new CompletionException(e);
+			}
+		}, executor);
+	}
+	
+	/**
+	 * Opens a session for a single import.
+	 *
+	 * @param pass The password of the file
+	 *
+	 * @return The session
+	 *
+	 * @throws DatabaseImportException If the key cannot be derived
+	 */
+	private static WDCSession openSession(TextPassword pass) throws DatabaseImportException {
+		try {
+			return new WDCSession(pass);
+		} catch(NoSuchAlgorithmException e) {
+			throw new DatabaseImportException(e);
+		}
+	}
+	
+	/**
+	 * Opens a session for a single export.
+	 *
+	 * @param pass The password of the file
+	 *
+	 * @return The session
+	 *
+	 * @throws DatabaseExportException If the key cannot be derived
+	 */
+	private static WDCSession openExportSession(TextPassword pass) throws DatabaseExportException {
+		try {
+			return new WDCSession(pass);
+		} catch(NoSuchAlgorithmException e) {
+			throw new DatabaseExportException(e);
+		}
+	}
+	
+	/**
+	 * Checks the header of a WDC file.
+	 *
+	 * @param ch The file channel
+	 *
+	 * @return The length of the database stream
+	 *
+	 * @throws IOException If an input exception occurs while reading the file
+	 * @throws DatabaseImportException If the file is not a valid WDC file
+	 */
+	private static long readHeader(FileChannel ch) throws IOException, DatabaseImportException {
+		final long size = ch.size();
+		
+		if(size < HEADER_SIZE)
+			throw new DatabaseImportException("Not a WDC file");
+		
+		ByteBuffer header = ch.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+		byte[] magic = new byte[FILE_MAGIC.length];
+		
+		header.get(magic);
+		
+		if(!Arrays.equals(magic, FILE_MAGIC))
+			throw new DatabaseImportException("Not a WDC file");
+		
+		int version = header.get() & 0xFF;
+		
+		if(version < 1 || version > FILE_VERSION)
+			throw new DatabaseImportException("Unsupported WDC file version: " + version);
+		
+		long length = header.getLong();
+		
+		if(length < 0 || length > size - HEADER_SIZE)
+			throw new DatabaseImportException("Truncated WDC file");
+		
+		return length;
+	}
+	
+	/**
+	 * Scans the file journal.
+	 *
+	 * @param ch The file channel
+	 * @param base The length of the database stream
+	 * @param entries Receives the offset and length of every complete journal entry, may be <code>null</code>
+	 *
+	 * @return The offset of the end of the last complete journal entry
+	 *
+	 * @throws IOException If an input exception occurs while reading the file
+	 */
+	private static long scanJournal(FileChannel ch, long base, List<long[]> entries) throws IOException {
+		final long size = ch.size();
+		final ByteBuffer header = ByteBuffer.allocate(ENTRY_HEADER_SIZE);
+		long pos = HEADER_SIZE + base;
+		
+		while(pos + ENTRY_HEADER_SIZE <= size) {
+			header.clear();
+			
+			while(header.hasRemaining())
+				ch.read(header, pos + header.position());
+			
+			final long length = header.getLong(0);
+			
+			if(length <= 0 || length > size - pos - ENTRY_HEADER_SIZE)
+				break;
+			
+			if(entries != null)
+				entries.add(new long[] { pos + ENTRY_HEADER_SIZE, length });
+			
+			pos += ENTRY_HEADER_SIZE + length;
+		}
+		
+		return pos;
+	}
+	
+	/**
+	 * Returns a stream over a region of the file, read from memory-mapped buffers.
+	 *
+	 * @param ch The file channel
+	 * @param offset The region offset
+	 * @param length The region length
+	 *
+	 * @return The region stream
+	 *
+	 * @throws IOException If the region cannot be mapped
+	 */
+	private static InputStream openRegion(FileChannel ch, long offset, long length) throws IOException {
+		final List<InputStream> parts = new ArrayList<InputStream>();
+		
+		for(long pos = 0; pos < length; pos += MAX_MAP_SIZE)
+			parts.add(new ByteBufferInputStream(ch.map(FileChannel.MapMode.READ_ONLY, offset + pos, Math.min(MAX_MAP_SIZE, length - pos))));
+		
+		return parts.size() == 1 ? parts.get(0) : new SequenceInputStream(Collections.enumeration(parts));
+	}
+	
+	/**
+	 * Writes the WDC file header.
+	 *
+	 * @param ch The file channel
+	 * @param length The length of the WDC stream
+	 *
+	 * @throws IOException If an output exception occurs while writing the header
+	 */
+	private static void writeHeader(FileChannel ch, long length) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		
+		header.put(FILE_MAGIC);
+		header.put(FILE_VERSION);
+		header.putLong(length);
+		header.flip();
+		
+		for(long pos = 0; header.hasRemaining();)
+			pos += ch.write(header, pos);
+	}
+	
+	/**
+	 * Upgrades the version in the WDC file header to the current version.
+	 *
+	 * @param ch The file channel
+	 *
+	 * @throws IOException If an output exception occurs while writing the header
+	 */
+	private static void writeVersion(FileChannel ch) throws IOException {
+		ByteBuffer version = ByteBuffer.wrap(new byte[] { FILE_VERSION });
+		
+		while(version.hasRemaining())
+			ch.write(version, FILE_MAGIC.length);
+	}
+	
+	/**
+	 * Writes a big-endian long at a given position.
+	 *
+	 * @param ch The file channel
+	 * @param pos The position
+	 * @param value The value
+	 *
+	 * @throws IOException If an output exception occurs
+	 */
+	private static void writeLong(FileChannel ch, long pos, long value) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(Long.BYTES);
+		
+		buf.putLong(value);
+		buf.flip();
+		
+		while(buf.hasRemaining())
+			ch.write(buf, pos + buf.position());
+	}
+	
+	/**
+	 * Deletes a temporary file, ignoring errors.
+	 *
+	 * @param tmp The temporary file path, may be <code>null</code>
+	 */
+	private static void deleteTemp(Path tmp) {
+		if(tmp != null)
+			try {
+				Files.deleteIfExists(tmp);
+			} catch(IOException e) {}
+	}
+}
@@ -17,51 +17,96 @@
  */
 package wisedevil.credentials.export;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
+import java.io.InputStream;
+import java.io.StreamCorruptedException;
 
-import java.security.AlgorithmParameters;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
-import java.security.InvalidParameterException;
-import java.security.NoSuchAlgorithmException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 
-import java.security.spec.InvalidParameterSpecException;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
 
 import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
 
-import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
-import javax.crypto.SecretKey;
-
-import javax.crypto.spec.SecretKeySpec;
-import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.CipherInputStream;
 
 import javax.security.auth.DestroyFailedException;
 
 import wisedevil.credentials.CredentialDatabase;
+import wisedevil.credentials.PasswordSeal;
 import wisedevil.credentials.TextPassword;
+import wisedevil.credentials.export.internal.ChunkedCipherInputStream;
+import wisedevil.credentials.export.internal.LegacyObjectInputStream;
+import wisedevil.credentials.export.internal.WDCCodec;
+import wisedevil.credentials.export.internal.WDCCrypto;
 
+import static wisedevil.credentials.export.internal.WDCUtil.IV_SIZE;
+import static wisedevil.credentials.export.internal.WDCUtil.MAX_CHUNK_SIZE;
+import static wisedevil.credentials.export.internal.WDCUtil.NONCE_PREFIX_SIZE;
+import static wisedevil.credentials.export.internal.WDCUtil.STREAM_MAGIC;
+import static wisedevil.credentials.export.internal.WDCUtil.STREAM_VERSION;
+import static wisedevil.credentials.export.internal.WDCUtil.STREAM_VERSION_CBC;
+import static wisedevil.credentials.export.internal.WDCUtil.STREAM_VERSION_CHUNKED;
 import static wisedevil.credentials.export.internal.WDCUtil.passToDigest;
 
 /**
  * This class provides support for importing a CredentialDatabase from a
  * "WiseDevil Credentials" file.
+ *
+ * <p>The database can either be imported from a {@link WDCEncryptionRecord} or
+ * from a WDC stream (see {@link WDCExporter}) read from an {@link InputStream} or
+ * {@link ReadableByteChannel}. Either way the data is decrypted and deserialized
+ * on the fly, without making a plain copy of the whole database.</p>
+ *
+ * <p>The chunks of version 2 WDC streams are authenticated and decrypted in parallel
+ * by a fork-join pool (see {@link #setPool(ForkJoinPool)}), while version 1 streams
+ * are decrypted sequentially. The credential segments of the decrypted database are
+ * decoded in parallel by the same pool. Compressed streams are decompressed with the codec
+ * recorded in their header.</p>
+ *
+ * <p>Databases encoded with the WDC binary codec are detected by their magic number. Legacy CBC data
+ * (encryption records and version 1 streams) without it is deserialized as a serialized Java object, as
+ * in older WDC data, restricted to the classes of credential databases. Any other data is rejected.</p>
+ *
+ * @see WDCCodec
  */
 public class WDCImporter implements Importer {
 	/**
-	 * The decryption password.
+	 * The decryption password, or <code>null</code> if importing with a session.
 	 */
 	private final TextPassword pass;
 	
 	/**
-	 * The encrypted data.
+	 * The session holding the decryption key, or <code>null</code> if importing with a password.
+	 */
+	private final WDCSession session;
+	
+	/**
+	 * The encrypted data or <code>null</code> if importing from a stream.
 	 */
 	private final WDCEncryptionRecord encdata;
 	
+	/**
+	 * The WDC stream or <code>null</code> if importing from an encryption record.
+	 */
+	private final InputStream input;
+	
+	/**
+	 * The pool decrypting the chunks of WDC streams and decoding the credential segments.
+	 */
+	private ForkJoinPool pool = ForkJoinPool.commonPool();
+	
+	/**
+	 * True if the passwords are imported sealed.
+	 */
+	private boolean sealed = false;
+	
 	/**
 	 * Initializes a new instance of this class.
 	 *
@@ -75,14 +120,150 @@ public class WDCImporter implements Importer {
 			throw new NullPointerException();
 		
 		this.pass = pass;
+		session = null;
+		encdata = data;
+		input = null;
+	}
+	
+	/**
+	 * Initializes a new instance of this class.
+	 * <blockquote>The decryption key is taken from the session, without deriving it again.</blockquote>
+	 *
+	 * @param data The encrypted data
+	 * @param session The session holding the decryption key
+	 *
+	 * @throws NullPointerException If any of the arguments is null
+	 */
+	public WDCImporter(WDCEncryptionRecord data, WDCSession session) {
+		if(data == null || session == null)
+			throw new NullPointerException();
+		
+		pass = null;
+		this.session = session;
 		encdata = data;
+		input = null;
+	}
+	
+	/**
+	 * Initializes a new instance of this class.
+	 * <blockquote>The stream is read when the database is imported, and it is never closed.</blockquote>
+	 *
+	 * @param in The WDC stream
+	 * @param pass The decryption password
+	 *
+	 * @throws NullPointerException If any of the arguments is null
+	 */
+	public WDCImporter(InputStream in, TextPassword pass) {
+		if(in == null || pass == null)
+			throw new NullPointerException();
+		
+		this.pass = pass;
+		session = null;
+		encdata = null;
+		input = in;
+	}
+	
+	/**
+	 * Initializes a new instance of this class.
+	 * <blockquote>The stream is read when the database is imported, and it is never closed.
+	 * The decryption key is taken from the session, without deriving it again.</blockquote>
+	 *
+	 * @param in The WDC stream
+	 * @param session The session holding the decryption key
+	 *
+	 * @throws NullPointerException If any of the arguments is null
+	 */
+	public WDCImporter(InputStream in, WDCSession session) {
+		if(in == null || session == null)
+			throw new NullPointerException();
+		
+		pass = null;
+		this.session = session;
+		encdata = null;
+		input = in;
+	}
+	
+	/**
+	 * Initializes a new instance of this class.
+	 * <blockquote>The channel is read when the database is imported, and it is never closed.</blockquote>
+	 *
+	 * @param in The WDC stream channel
+	 * @param pass The decryption password
+	 *
+	 * @throws NullPointerException If any of the arguments is null
+	 */
+	public WDCImporter(ReadableByteChannel in, TextPassword pass) {
+		this(Channels.newInputStream(in), pass);
+	}
+	
+	/**
+	 * Initializes a new instance of this class.
+	 * <blockquote>The channel is read when the database is imported, and it is never closed.
+	 * The decryption key is taken from the session, without deriving it again.</blockquote>
+	 *
+	 * @param in The WDC stream channel
+	 * @param session The session holding the decryption key
+	 *
+	 * @throws NullPointerException If any of the arguments is null
+	 */
+	public WDCImporter(ReadableByteChannel in, WDCSession session) {
+		this(Channels.newInputStream(in), session);
 	}
 	
 	public void destroy() throws DestroyFailedException {
-		pass.destroy();
+		if(pass != null)
+			pass.destroy();
+		else
+			session.destroy();
+	}
+	
+	public boolean isDestroyed() { return pass != null ? pass.isDestroyed() : session.isDestroyed(); }
+	
+	/**
+	 * Returns the decryption key, either derived from the password or taken from the session.
+	 * <blockquote>NOTE: The returned key must be manually wiped.</blockquote>
+	 *
+	 * @return The decryption key
+	 *
+	 * @throws NoSuchAlgorithmException If the platform doesn't support the key derivation algorithm
+	 * @throws IllegalStateException If the session has been destroyed or has expired
+	 */
+	private byte[] getKey() throws NoSuchAlgorithmException {
+		return pass != null ? passToDigest(pass) : session.getKey();
+	}
+	
+	/**
+	 * Sets the pool decrypting the chunks of WDC streams and decoding the credential segments.
+	 * <blockquote>The default pool is the common fork-join pool.</blockquote>
+	 *
+	 * @param pool The decryption pool
+	 *
+	 * @throws NullPointerException If <code>pool</code> is null
+	 */
+	public void setPool(ForkJoinPool pool) {
+		if(pool == null)
+			throw new NullPointerException();
+		
+		this.pool = pool;
 	}
 	
-	public boolean isDestroyed() { return pass.isDestroyed(); }
+	/**
+	 * Sets whether the passwords are imported sealed.
+	 * <blockquote>When set, the titles, usernames, descriptions and keyrings are imported as usual, but
+	 * every password is sealed under a random key kept in memory as soon as it is decoded, and only
+	 * decrypted by the first {@link wisedevil.credentials.Credential#getPassword()} call.
+	 * {@link wisedevil.credentials.Credential#sealPassword()} and
+	 * {@link CredentialDatabase#sealPasswords()} seal decrypted passwords again.
+	 * Databases serialized as Java objects, as in older WDC data, are always imported decrypted.
+	 * Passwords are not sealed by default.</blockquote>
+	 *
+	 * @param value True to import the passwords sealed
+	 *
+	 * @see wisedevil.credentials.PasswordSeal
+	 */
+	public void setSealedPasswords(boolean value) {
+		sealed = value;
+	}
 	
 	/**
 	 * Imports the credentials.
@@ -93,80 +274,173 @@ public class WDCImporter implements Importer {
 	 */
 	public CredentialDatabase importDatabase() throws DatabaseImportException {
 		byte[] passdgst = null;
-		byte[] raw = null;
 		
 		try {
-			passdgst = passToDigest(pass.get());
-			raw = decryptDatabase(encdata, passdgst);
-			return deserializeDatabase(raw);
+			passdgst = getKey();
+			
+			final boolean[] legacy = new boolean[1];
 			
+			try(BufferedInputStream bs = decrypt(passdgst, legacy)) {
+				return readDatabase(bs, legacy[0]);
+			}
+		} catch(DatabaseImportException e) {
+			throw e;
 		} catch(Exception e) {
 			throw new DatabaseImportException(e);
 		} finally {
 			if(passdgst != null)
 				Arrays.fill(passdgst, (byte)0);
+		}
+	}
+	
+	/**
+	 * Imports changes exported by {@link WDCExporter#exportChanges(java.io.OutputStream)}
+	 * and applies them to a credential database.
+	 * <blockquote>Changes to records missing from the database are ignored, except for added records.</blockquote>
+	 *
+	 * @param db The credential database to update
+	 *
+	 * @throws NullPointerException If <code>db</code> is null
+	 * @throws DatabaseImportException if an exception occurs during the process
+	 */
+	public void importChanges(CredentialDatabase db) throws DatabaseImportException {
+		if(db == null)
+			throw new NullPointerException();
+		
+		byte[] passdgst = null;
+		
+		try {
+			passdgst = getKey();
 			
-			if(raw != null)
-				Arrays.fill(raw, (byte)0);
+			try(BufferedInputStream bs = decrypt(passdgst, new boolean[1])) {
+				WDCCodec.applyDelta(bs, db);
+			}
+		} catch(DatabaseImportException e) {
+			throw e;
+		} catch(Exception e) {
+			throw new DatabaseImportException(e);
+		} finally {
+			if(passdgst != null)
+				Arrays.fill(passdgst, (byte)0);
 		}
 	}
 	
 	/**
-	 * Decrypts the database using AES/CBC/PKCS5Padding.
+	 * Returns a stream decrypting the data on the fly.
+	 * <blockquote>Closing the returned stream releases its resources, but doesn't close the WDC stream.</blockquote>
 	 *
-	 * @param enc The encrypted data to be decrypted
-	 * @param pass The decryption password (hash)
+	 * @param key The decryption password (hash)
+	 * @param legacy Receives true if the data is in the legacy CBC format, which may hold a serialized database
 	 *
-	 * @return The decrypted database as an array of bytes
+	 * @return The decrypted data stream, which supports marks
 	 *
-	 * @throws NoSuchAlgorithmException If the platform doesn't support AES/CBC
-	 * @throws InvalidKeyException If the key is invalid
-	 * @throws InvalidParameterException If an algorithm method parameter is invalid
-	 * @throws InvalidParameterSpecException If an algorithm parameter spec is invalid
-	 * @throws NoSuchPaddingException If the platform doesn't support PKCS5Padding
-	 * @throws InvalidAlgorithmParameterException If an algorithm parameter is invalid
-	 * @throws IllegalBlockSizeException If the data block size is not correct
-	 * @throws BadPaddingException If the data is not properly padded
+	 * @throws IOException If an input exception occurs while reading the stream header
+	 * @throws DatabaseImportException If the stream is not a supported WDC stream
+	 * @throws GeneralSecurityException If the cipher cannot be initialized
+	 */
+	private BufferedInputStream decrypt(byte[] key, boolean[] legacy) throws IOException, DatabaseImportException, GeneralSecurityException {
+		legacy[0] = encdata != null;
+		
+		if(encdata != null)
+			return decrypt(new ByteArrayInputStream(encdata.getData()), encdata.getIV(), key);
+		
+		DataInputStream ds = new DataInputStream(input);
+		byte[] magic = new byte[STREAM_MAGIC.length];
+		
+		ds.readFully(magic);
+		
+		if(!Arrays.equals(magic, STREAM_MAGIC))
+			throw new DatabaseImportException("Not a WDC stream");
+		
+		int version = ds.readUnsignedByte();
+		
+		if(version == STREAM_VERSION_CBC) {
+			byte[] iv = new byte[IV_SIZE];
+			
+			ds.readFully(iv);
+			legacy[0] = true;
+			
+			return decrypt(input, iv, key);
+		} else if(version != STREAM_VERSION && version != STREAM_VERSION_CHUNKED)
+			throw new DatabaseImportException("Unsupported WDC stream version: " + version);
+		
+		WDCCompression compression = WDCCompression.NONE;
+		
+		if(version == STREAM_VERSION) {
+			int id = ds.readUnsignedByte();
+			
+			compression = WDCCompression.fromId(id);
+			ds.readUnsignedByte(); // The level is only needed to compress
+			
+			if(compression == null)
+				throw new DatabaseImportException("Unsupported WDC compression codec: " + id);
+		}
+		
+		int chunkSize = ds.readInt();
+		byte[] prefix = new byte[NONCE_PREFIX_SIZE];
+		
+		if(chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE)
+			throw new DatabaseImportException("Invalid WDC chunk size: " + chunkSize);
+		
+		ds.readFully(prefix);
+		
+		return new BufferedInputStream(compression.decompress(new ChunkedCipherInputStream(input, key, prefix, chunkSize, pool)));
+	}
+	
+	/**
+	 * Returns a stream decrypting data with AES/CBC/PKCS5Padding on the fly.
+	 * <blockquote>Closing the returned stream releases the cipher, but doesn't close <code>in</code>.</blockquote>
+	 *
+	 * @param in The encrypted data
+	 * @param iv The encryption IV
+	 * @param key The decryption password (hash)
+	 *
+	 * @return The decrypted data stream, which supports marks
+	 *
+	 * @throws GeneralSecurityException If the cipher cannot be initialized
 	 *
 	 * @see <a href="https://gist.github.com/wisedevil/47fd55226a7a4cbcf4c6">Java AES CBC gist</a>
 	 */
-	private static byte[] decryptDatabase(WDCEncryptionRecord enc, byte[] pass)
-		throws NoSuchAlgorithmException,
-			NoSuchPaddingException,
-			InvalidKeyException,
-			InvalidParameterException,
-			InvalidParameterSpecException,
-			InvalidAlgorithmParameterException,
-			IllegalBlockSizeException,
-			BadPaddingException {
-		Cipher c = Cipher.getInstance("AES/CBC/PKCS5Padding");
-		SecretKey seckey = new SecretKeySpec(pass, 0, pass.length, "AES");
-		AlgorithmParameters parms = AlgorithmParameters.getInstance("AES");
-
-		// Init
-		parms.init(new IvParameterSpec(enc.getIV()));
-		c.init(Cipher.DECRYPT_MODE, seckey, parms);
-
-		// Decrypt
-		return c.doFinal(enc.getData());
+	private static BufferedInputStream decrypt(InputStream in, byte[] iv, byte[] key) throws GeneralSecurityException {
+		final WDCCrypto crypto = WDCCrypto.get();
+		final Cipher c = crypto.acquire(Cipher.DECRYPT_MODE, key, iv);
+		
+		return new BufferedInputStream(new CipherInputStream(in, c)) {
+			@Override
+			public void close() {
+				crypto.release(c);
+			}
+		};
 	}
 	
 	/**
-	 * Deserializes the credential database.
+	 * Decodes the database on the fly.
+	 * <blockquote>Databases serialized as Java objects are only accepted from legacy CBC data, and may only
+	 * hold the classes of credential databases.</blockquote>
 	 *
-	 * @param rawdb The database to deserialize as an array of bytes
+	 * @param bs The decrypted data stream
+	 * @param legacy True if the data is in the legacy CBC format
 	 *
-	 * @return The deserialized credential database as a byte array
+	 * @return The deserialized credential database
 	 *
-	 * @throws IOException If an output exception occurs during the deserialization process
+	 * @throws IOException If an input exception occurs during the deserialization process,
+	 * or the data is not an encoded credential database
 	 * @throws ClassNotFoundException If the deserialized object is not a CredentialDatabase object
+	 *
+	 * @see LegacyObjectInputStream
 	 */
-	private static CredentialDatabase deserializeDatabase(byte[] rawdb) throws IOException, ClassNotFoundException {
-		try (
-			ByteArrayInputStream bs = new ByteArrayInputStream(rawdb);
-			ObjectInputStream os = new ObjectInputStream(bs)
-		) {
-			return (CredentialDatabase)os.readObject();
-		}
+	private CredentialDatabase readDatabase(BufferedInputStream bs, boolean legacy) throws IOException, ClassNotFoundException {
+		if(WDCCodec.isEncoded(bs))
+			return WDCCodec.decode(bs, pool, sealed ? new PasswordSeal() : null);
+		
+		if(!legacy)
+			throw new StreamCorruptedException("Not an encoded credential database");
+		
+		final Object res = new LegacyObjectInputStream(bs).readObject();
+		
+		if(!(res instanceof CredentialDatabase))
+			throw new ClassNotFoundException("Not a credential database: " + res.getClass().getName());
+		
+		return (CredentialDatabase)res;
 	}
 }
@@ -0,0 +1,425 @@
+/*
+ * Lazarus: Credentials management library
+ *     Copyright (C) 2014 Alfredo 'wisedevil' Mungo
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wisedevil.credentials.export;
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+
+import java.nio.channels.FileChannel;
+
+import java.nio.charset.StandardCharsets;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import java.security.GeneralSecurityException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+
+import wisedevil.credentials.Credential;
+import wisedevil.credentials.CredentialDatabase;
+import wisedevil.credentials.Keyring;
+import wisedevil.credentials.TextPassword;
+import wisedevil.credentials.export.internal.WDCCodec;
+import wisedevil.credentials.export.internal.WDCCrypto;
+import wisedevil.credentials.export.internal.WipeableByteArrayOutputStream;
+
+import static wisedevil.credentials.export.internal.WDCCrypto.NONCE_SIZE;
+import static wisedevil.credentials.export.internal.WDCUtil.createTempFile;
+import static wisedevil.credentials.export.internal.WDCUtil.exportView;
+import static wisedevil.credentials.export.internal.WDCUtil.passToDigest;
+import static wisedevil.credentials.export.internal.WDCUtil.replaceFile;
+
+/**
+ * This class provides a file-backed store where every credential is encrypted on its own,
+ * so single credentials can be read without decrypting the whole database.
+ *
+ * <p>A WDC record file is made of the <code>WDCR</code> magic number and the format version byte,
+ * followed by a sequence of sealed records and a trailer. Every sealed record is made of its own
+ * random nonce and the AES/GCM encryption of its content, encoded with {@link WDCCodec}. The record
+ * number and title are authenticated along with the content, so records cannot be swapped or moved
+ * without being detected. The records are:</p>
+ * <ol>
+ *   <li>one record per credential, database credentials first, then the credentials only referenced by keyrings;</li>
+ *   <li>the keyrings record, with the keyring members referenced by credential record number;</li>
+ *   <li>the index record, with the title, offset and length of every credential record, and the offset and length of the keyrings record.</li>
+ * </ol>
+ * <p>The trailer holds the offset and length of the index record, followed again by the magic number.</p>
+ *
+ * <p>Version 1 files, whose records are made of a random IV and the unauthenticated AES/CBC encryption of
+ * their content, can still be read.</p>
+ *
+ * @see WDCRecordReader
+ */
+public class WDCRecordFile {
+	/**
+	 * The magic number at the beginning and at the end of a WDC record file.
+	 */
+	static final byte[] FILE_MAGIC = { 'W', 'D', 'C', 'R' };
+	
+	/**
+	 * The WDC record file format version.
+	 */
+	static final byte FILE_VERSION = 2;
+	
+	/**
+	 * The WDC record file format version with unauthenticated AES/CBC records.
+	 */
+	static final byte FILE_VERSION_CBC = 1;
+	
+	/**
+	 * The record number of the keyrings record.
+	 */
+	static final int KEYRINGS_RECORD = -1;
+	
+	/**
+	 * The record number of the index record.
+	 */
+	static final int INDEX_RECORD = -2;
+	
+	/**
+	 * The size of the WDC record file header.
+	 */
+	static final int HEADER_SIZE = FILE_MAGIC.length + 1;
+	
+	/**
+	 * The size of the WDC record file trailer.
+	 */
+	static final int TRAILER_SIZE = Long.BYTES + Integer.BYTES + FILE_MAGIC.length;
+	
+	/**
+	 * The file path.
+	 */
+	private final Path path;
+	
+	/**
+	 * Returns the additional data authenticated with a record.
+	 *
+	 * @param number The record number, or one of {@link #KEYRINGS_RECORD} and {@link #INDEX_RECORD}
+	 * @param title The title of the credential of the record, or null
+	 *
+	 * @return The record number followed by the UTF-8 bytes of the title
+	 */
+	static byte[] recordData(int number, String title) {
+		final byte[] t = title != null ? title.getBytes(StandardCharsets.UTF_8) : new byte[0];
+		
+		return ByteBuffer.allocate(Integer.BYTES + t.length).putInt(number).put(t).array();
+	}
+	
+	/**
+	 * Initializes a new instance of this class.
+	 *
+	 * @param path The file path
+	 *
+	 * @throws NullPointerException If <code>path</code> is null
+	 */
+	public WDCRecordFile(Path path) {
+		if(path == null)
+			throw new NullPointerException();
+		
+		this.path = path;
+	}
+	
+	/**
+	 * Returns the file path.
+	 *
+	 * @return The file path
+	 */
+	public Path getPath() { return path; }
+	
+	/**
+	 * Opens the file for reading.
+	 * <blockquote>Only the index is decrypted; credentials are decrypted when they are read.</blockquote>
+	 *
+	 * @param pass The decryption password
+	 *
+	 * @return A reader for the file, which must be closed
+	 *
+	 * @throws NullPointerException If <code>pass</code> is null
+	 * @throws DatabaseImportException If the file cannot be read or is not a valid WDC record file
+	 */
+	public WDCRecordReader open(TextPassword pass) throws DatabaseImportException {
+		if(pass == null)
+			throw new NullPointerException();
+		
+		byte[] key = null;
+		
+		try {
+			key = passToDigest(pass);
+			
+			return WDCRecordReader.open(path, key);
+		} catch(DatabaseImportException e) {
+			throw e;
+		} catch(Exception e) {
+			throw new DatabaseImportException(e);
+		} finally {
+			if(key != null)
+				Arrays.fill(key, (byte)0);
+		}
+	}
+	
+	/**
+	 * Loads the whole credential database from the file.
+	 *
+	 * @param pass The decryption password
+	 *
+	 * @return The credential database
+	 *
+	 * @throws NullPointerException If <code>pass</code> is null
+	 * @throws DatabaseImportException If the file cannot be read or is not a valid WDC record file
+	 */
+	public CredentialDatabase load(TextPassword pass) throws DatabaseImportException {
+		try(WDCRecordReader reader = open(pass)) {
+			return reader.importDatabase();
+		}
+	}
+	
+	/**
+	 * Saves the credential database to the file, replacing its previous content.
+	 * <blockquote>The file is written to a temporary file which then atomically replaces the target file.
+	 * A {@link wisedevil.credentials.ConcurrentCredentialDatabase} is saved from a snapshot, so that its writers
+	 * can keep going meanwhile.</blockquote>
+	 *
+	 * @param db The credential database
+	 * @param pass The encryption password
+	 *
+	 * @throws NullPointerException If any of the arguments is null
+	 * @throws DatabaseExportException If the file cannot be written
+	 */
+	public void save(CredentialDatabase db, TextPassword pass) throws DatabaseExportException {
+		if(db == null || pass == null)
+			throw new NullPointerException();
+		
+		byte[] key = null;
+		Path tmp = null;
+		
+		try {
+			key = passToDigest(pass);
+			tmp = createTempFile(path);
+			
+			try(FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+				new RecordWriter(ch, key).write(exportView(db));
+				ch.force(true);
+			}
+			
+			replaceFile(tmp, path);
+			tmp = null;
+		} catch(Exception e) {
+			throw new DatabaseExportException(e);
+		} finally {
+			if(key != null)
+				Arrays.fill(key, (byte)0);
+			
+			if(tmp != null)
+				try {
+					Files.deleteIfExists(tmp);
+				} catch(IOException e) {}
+		}
+	}
+	
+	/**
+	 * Writes the records of a WDC record file.
+	 */
+	private static class RecordWriter {
+		/**
+		 * The output channel.
+		 */
+		private final FileChannel ch;
+		
+		/**
+		 * The encryption password (hash).
+		 */
+		private final byte[] key;
+		
+		/**
+		 * The crypto context of the writing thread.
+		 */
+		private final WDCCrypto crypto = WDCCrypto.get();
+		
+		/**
+		 * The plain record buffer.
+		 */
+		private final WipeableByteArrayOutputStream plain = new WipeableByteArrayOutputStream();
+		
+		/**
+		 * Initializes a new instance of this class.
+		 *
+		 * @param ch The output channel
+		 * @param key The encryption password (hash)
+		 */
+		RecordWriter(FileChannel ch, byte[] key) {
+			this.ch = ch;
+			this.key = key;
+		}
+		
+		/**
+		 * Writes the database.
+		 *
+		 * @param db The credential database
+		 *
+		 * @throws GeneralSecurityException If a record cannot be encrypted
+		 * @throws IOException If an output exception occurs
+		 */
+		void write(CredentialDatabase db) throws GeneralSecurityException, IOException {
+			final Map<Credential, Integer> index = new IdentityHashMap<Credential, Integer>();
+			final List<Credential> records = new ArrayList<Credential>();
+			
+			for(Credential c: db.getCredentials()) {
+				index.put(c, records.size());
+				records.add(c);
+			}
+			
+			final int count = records.size();
+			
+			for(Keyring k: db.getKeyrings())
+				for(Credential c: k)
+					if(index.putIfAbsent(c, records.size()) == null)
+						records.add(c);
+			
+			final long[] offsets = new long[records.size()];
+			final int[] lengths = new int[records.size()];
+			
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			
+			header.put(FILE_MAGIC);
+			header.put(FILE_VERSION);
+			header.flip();
+			writeFully(header);
+			
+			try {
+				// Credentials
+				for(int i = 0; i < offsets.length; i++) {
+					offsets[i] = ch.position();
+					
+					try(WDCCodec.Writer w = new WDCCodec.Writer(plain)) {
+						w.writeCredential(records.get(i));
+					}
+					
+					lengths[i] = seal(i, records.get(i).getTitle());
+				}
+				
+				// Keyrings
+				final long keyringsOffset = ch.position();
+				
+				try(WDCCodec.Writer w = new WDCCodec.Writer(plain)) {
+					w.writeVarInt((int)db.getKeyringsStream().count());
+					
+					for(Keyring k: db.getKeyrings()) {
+						w.writeString(k.getTitle());
+						w.writeString(k.getDescription());
+						w.writeVarInt((int)k.stream().count());
+						
+						for(Credential c: k)
+							w.writeVarInt(index.get(c));
+					}
+				}
+				
+				final int keyringsLength = seal(KEYRINGS_RECORD, null);
+				
+				// Index
+				final long indexOffset = ch.position();
+				
+				try(WDCCodec.Writer w = new WDCCodec.Writer(plain)) {
+					w.writeVarInt(count);
+					w.writeVarInt(offsets.length - count);
+					
+					for(int i = 0; i < offsets.length; i++) {
+						w.writeString(records.get(i).getTitle());
+						w.writeVarLong(offsets[i]);
+						w.writeVarInt(lengths[i]);
+					}
+					
+					w.writeVarLong(keyringsOffset);
+					w.writeVarInt(keyringsLength);
+				}
+				
+				final int indexLength = seal(INDEX_RECORD, null);
+				
+				// Trailer
+				ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+				
+				trailer.putLong(indexOffset);
+				trailer.putInt(indexLength);
+				trailer.put(FILE_MAGIC);
+				trailer.flip();
+				writeFully(trailer);
+			} finally {
+				plain.wipe();
+			}
+		}
+		
+		/**
+		 * Encrypts the plain record buffer with a random nonce and writes it as a sealed record.
+		 * <blockquote>The plain record buffer is wiped.</blockquote>
+		 *
+		 * @param number The record number, or one of {@link #KEYRINGS_RECORD} and {@link #INDEX_RECORD}
+		 * @param title The title of the credential of the record, or null
+		 *
+		 * @return The length of the sealed record
+		 *
+		 * @throws GeneralSecurityException If the record cannot be encrypted
+		 * @throws IOException If an output exception occurs
+		 */
+		private int seal(int number, String title) throws GeneralSecurityException, IOException {
+			byte[] nonce = new byte[NONCE_SIZE];
+			
+			crypto.nextBytes(nonce);
+			
+			final Cipher cipher = crypto.acquireAEAD(Cipher.ENCRYPT_MODE, key, nonce);
+			final ByteBuffer rec;
+			
+			try {
+				cipher.updateAAD(recordData(number, title));
+				rec = ByteBuffer.allocate(NONCE_SIZE + cipher.getOutputSize(plain.size()));
+				rec.put(nonce);
+				cipher.doFinal(ByteBuffer.wrap(plain.buffer(), 0, plain.size()), rec);
+			} finally {
+				crypto.release(cipher);
+			}
+			
+			plain.wipe();
+			rec.flip();
+			
+			int len = rec.remaining();
+			
+			writeFully(rec);
+			
+			return len;
+		}
+		
+		/**
+		 * Writes the remaining bytes of a buffer.
+		 *
+		 * @param buf The buffer to write
+		 *
+		 * @throws IOException If an output exception occurs
+		 */
+		private void writeFully(ByteBuffer buf) throws IOException {
+			while(buf.hasRemaining())
+				ch.write(buf);
+		}
+	}
+}
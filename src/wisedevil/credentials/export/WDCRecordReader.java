@@ -0,0 +1,431 @@
+/*
+ * Lazarus: Credentials management library
+ *     Copyright (C) 2014 Alfredo 'wisedevil' Mungo
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wisedevil.credentials.export;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+
+import java.nio.ByteBuffer;
+
+import java.nio.channels.FileChannel;
+
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import java.security.GeneralSecurityException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.crypto.Cipher;
+
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import javax.security.auth.DestroyFailedException;
+
+import wisedevil.credentials.Credential;
+import wisedevil.credentials.CredentialDatabase;
+import wisedevil.credentials.Keyring;
+import wisedevil.credentials.export.internal.WDCCodec;
+import wisedevil.credentials.export.internal.WDCCrypto;
+
+import static wisedevil.credentials.export.WDCRecordFile.FILE_MAGIC;
+import static wisedevil.credentials.export.WDCRecordFile.FILE_VERSION;
+import static wisedevil.credentials.export.WDCRecordFile.FILE_VERSION_CBC;
+import static wisedevil.credentials.export.WDCRecordFile.HEADER_SIZE;
+import static wisedevil.credentials.export.WDCRecordFile.INDEX_RECORD;
+import static wisedevil.credentials.export.WDCRecordFile.KEYRINGS_RECORD;
+import static wisedevil.credentials.export.WDCRecordFile.TRAILER_SIZE;
+import static wisedevil.credentials.export.WDCRecordFile.recordData;
+import static wisedevil.credentials.export.internal.WDCCrypto.NONCE_SIZE;
+import static wisedevil.credentials.export.internal.WDCCrypto.TAG_SIZE;
+import static wisedevil.credentials.export.internal.WDCUtil.IV_SIZE;
+
+/**
+ * This class provides random access to the credentials of a WDC record file.
+ *
+ * <p>Opening a reader only decrypts the file index; every credential is decrypted
+ * from its own record when it is requested. Records which fail authentication, or do not hold
+ * the credential the index assigns them, are rejected. Readers are thread-safe, and hold the
+ * file open and the decryption key in memory until they are closed or destroyed.</p>
+ *
+ * @see WDCRecordFile
+ */
+public class WDCRecordReader implements Importer, AutoCloseable {
+	/**
+	 * The file channel.
+	 */
+	private final FileChannel ch;
+	
+	/**
+	 * The decryption key, or <code>null</code> if the reader has been destroyed.
+	 */
+	private byte[] key;
+	
+	/**
+	 * The record cipher.
+	 */
+	private final Cipher cipher;
+	
+	/**
+	 * The file format version.
+	 */
+	private final int version;
+	
+	/**
+	 * The number of database credential records.
+	 */
+	private final int count;
+	
+	/**
+	 * The offsets of the credential records.
+	 */
+	private final long[] offsets;
+	
+	/**
+	 * The lengths of the credential records.
+	 */
+	private final int[] lengths;
+	
+	/**
+	 * The titles of the credential records.
+	 */
+	private final String[] recordTitles;
+	
+	/**
+	 * The database credential record numbers, indexed by title.
+	 */
+	private final Map<String, Integer> titles;
+	
+	/**
+	 * The offset of the keyrings record.
+	 */
+	private final long keyringsOffset;
+	
+	/**
+	 * The length of the keyrings record.
+	 */
+	private final int keyringsLength;
+	
+	/**
+	 * Opens a WDC record file and reads its index.
+	 *
+	 * @param path The file path
+	 * @param key The decryption password (hash), which is copied
+	 *
+	 * @return The reader
+	 *
+	 * @throws DatabaseImportException If the file is not a valid WDC record file
+	 * @throws GeneralSecurityException If the index cannot be decrypted
+	 * @throws IOException If an input exception occurs
+	 */
+	static WDCRecordReader open(Path path, byte[] key) throws DatabaseImportException, GeneralSecurityException, IOException {
+		FileChannel ch = FileChannel.open(path, StandardOpenOption.READ);
+		
+		try {
+			return new WDCRecordReader(ch, Arrays.copyOf(key, key.length));
+		} catch(DatabaseImportException | GeneralSecurityException | IOException | RuntimeException e) {
+			ch.close();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Initializes a new instance of this class, reading the file index.
+	 *
+	 * @param ch The file channel
+	 * @param key The decryption password (hash)
+	 *
+	 * @throws DatabaseImportException If the file is not a valid WDC record file
+	 * @throws GeneralSecurityException If the index cannot be decrypted
+	 * @throws IOException If an input exception occurs
+	 */
+	private WDCRecordReader(FileChannel ch, byte[] key) throws DatabaseImportException, GeneralSecurityException, IOException {
+		this.ch = ch;
+		this.key = key;
+		
+		final long size = ch.size();
+		
+		if(size < HEADER_SIZE + TRAILER_SIZE)
+			throw new DatabaseImportException("Not a WDC record file");
+		
+		ByteBuffer header = read(0, HEADER_SIZE);
+		ByteBuffer trailer = read(size - TRAILER_SIZE, TRAILER_SIZE);
+		byte[] magic = new byte[FILE_MAGIC.length];
+		
+		header.get(magic);
+		
+		if(!Arrays.equals(magic, FILE_MAGIC))
+			throw new DatabaseImportException("Not a WDC record file");
+		
+		version = header.get() & 0xFF;
+		
+		if(version != FILE_VERSION && version != FILE_VERSION_CBC)
+			throw new DatabaseImportException("Unsupported WDC record file version: " + version);
+		
+		cipher = Cipher.getInstance(version == FILE_VERSION ? WDCCrypto.AEAD_TRANSFORMATION : WDCCrypto.TRANSFORMATION);
+		
+		long indexOffset = trailer.getLong();
+		int indexLength = trailer.getInt();
+		
+		trailer.get(magic);
+		
+		if(!Arrays.equals(magic, FILE_MAGIC))
+			throw new DatabaseImportException("Truncated WDC record file");
+		
+		try(WDCCodec.Reader r = unseal(indexOffset, indexLength, INDEX_RECORD, null)) {
+			count = r.readVarInt();
+			
+			final int total = count + r.readVarInt();
+			
+			if(total < count)
+				throw new DatabaseImportException("Invalid WDC record file index");
+			
+			offsets = new long[total];
+			lengths = new int[total];
+			recordTitles = new String[total];
+			titles = new HashMap<String, Integer>(count * 4 / 3 + 1);
+			
+			for(int i = 0; i < total; i++) {
+				String title = r.readNonNullString();
+				
+				recordTitles[i] = title;
+				offsets[i] = r.readVarLong();
+				lengths[i] = r.readVarInt();
+				
+				if(i < count)
+					titles.put(title, i);
+			}
+			
+			keyringsOffset = r.readVarLong();
+			keyringsLength = r.readVarInt();
+		}
+	}
+	
+	/**
+	 * Returns the titles of the database credentials.
+	 *
+	 * @return The credential titles
+	 */
+	public Set<String> getTitles() {
+		return Collections.unmodifiableSet(titles.keySet());
+	}
+	
+	/**
+	 * Reads a single credential of the database.
+	 * <blockquote>Only the credential's record is decrypted. The record must hold the credential with
+	 * the requested title: records which have been swapped or moved are rejected.</blockquote>
+	 *
+	 * @param title The credential title
+	 *
+	 * @return The credential or <code>null</code> if the database contains no credential with such title
+	 *
+	 * @throws DatabaseImportException If the credential cannot be read
+	 */
+	public synchronized Credential getCredential(String title) throws DatabaseImportException {
+		Integer i = titles.get(title);
+		
+		if(i == null)
+			return null;
+		
+		try {
+			return readCredential(i);
+		} catch(Exception e) {
+			throw new DatabaseImportException(e);
+		}
+	}
+	
+	/**
+	 * Imports the whole credential database.
+	 *
+	 * @return The imported credentials as a CredentialDatabase object
+	 *
+	 * @throws DatabaseImportException if an exception occurs during the process
+	 */
+	public synchronized CredentialDatabase importDatabase() throws DatabaseImportException {
+		try {
+			final CredentialDatabase db = new CredentialDatabase();
+			final List<Credential> credentials = new ArrayList<Credential>(offsets.length);
+			
+			for(int i = 0; i < offsets.length; i++) {
+				Credential c = readCredential(i);
+				
+				credentials.add(c);
+				
+				if(i < count)
+					db.add(c);
+			}
+			
+			try(WDCCodec.Reader r = unseal(keyringsOffset, keyringsLength, KEYRINGS_RECORD, null)) {
+				for(int i = r.readVarInt(); i > 0; i--) {
+					Keyring k = new Keyring(r.readNonNullString());
+					
+					k.setDescription(r.readString());
+					
+					for(int j = r.readVarInt(); j > 0; j--) {
+						int idx = r.readVarInt();
+						
+						if(idx >= credentials.size())
+							throw new DatabaseImportException("Invalid credential reference: " + idx);
+						
+						k.add(credentials.get(idx));
+					}
+					
+					db.add(k);
+				}
+			}
+			
+			db.clearModified();
+			
+			return db;
+		} catch(DatabaseImportException e) {
+			throw e;
+		} catch(Exception e) {
+			throw new DatabaseImportException(e);
+		}
+	}
+	
+	/**
+	 * Reads and decrypts a credential record.
+	 *
+	 * @param i The record number
+	 *
+	 * @return The credential
+	 *
+	 * @throws GeneralSecurityException If the record cannot be decrypted or authenticated
+	 * @throws IOException If an input exception occurs or the record holds another credential
+	 */
+	private Credential readCredential(int i) throws GeneralSecurityException, IOException {
+		try(WDCCodec.Reader r = unseal(offsets[i], lengths[i], i, recordTitles[i])) {
+			final Credential c = r.readCredential();
+			
+			if(!c.getTitle().equals(recordTitles[i]))
+				throw new StreamCorruptedException("Record " + i + " does not hold the indexed credential");
+			
+			return c;
+		}
+	}
+	
+	/**
+	 * Reads and decrypts a sealed record.
+	 * <blockquote>The records of version 2 files are authenticated along with their number and title.</blockquote>
+	 *
+	 * @param offset The record offset
+	 * @param length The record length
+	 * @param number The record number, or one of <code>KEYRINGS_RECORD</code> and <code>INDEX_RECORD</code>
+	 * @param title The title of the credential of the record, or null
+	 *
+	 * @return A codec reader for the record content
+	 *
+	 * @throws GeneralSecurityException If the record cannot be decrypted or authenticated
+	 * @throws IOException If an input exception occurs
+	 */
+	private WDCCodec.Reader unseal(long offset, int length, int number, String title) throws GeneralSecurityException, IOException {
+		if(key == null)
+			throw new IllegalStateException("The reader has been destroyed");
+		
+		final int ivSize = version == FILE_VERSION ? NONCE_SIZE : IV_SIZE;
+		
+		if(offset < HEADER_SIZE || length < ivSize || offset + length > ch.size() - TRAILER_SIZE)
+			throw new IOException("Invalid record position");
+		
+		final ByteBuffer rec = read(offset, length);
+		final byte[] iv = new byte[ivSize];
+		
+		rec.get(iv);
+		
+		if(version == FILE_VERSION) {
+			cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"), new GCMParameterSpec(TAG_SIZE * 8, iv));
+			cipher.updateAAD(recordData(number, title));
+		} else
+			cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+		
+		final byte[] plain = cipher.doFinal(rec.array(), ivSize, length - ivSize);
+		
+		return new WDCCodec.Reader(new ByteArrayInputStream(plain)) {
+			@Override
+			public void close() {
+				super.close();
+				Arrays.fill(plain, (byte)0);
+			}
+		};
+	}
+	
+	/**
+	 * Reads a region of the file.
+	 *
+	 * @param offset The region offset
+	 * @param length The region length
+	 *
+	 * @return A heap buffer holding the region
+	 *
+	 * @throws IOException If an input exception occurs
+	 */
+	private ByteBuffer read(long offset, int length) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(length);
+		
+		while(buf.hasRemaining()) {
+			int n = ch.read(buf, offset + buf.position());
+			
+			if(n < 0)
+				throw new EOFException();
+		}
+		
+		buf.flip();
+		
+		return buf;
+	}
+	
+	/**
+	 * Closes the file and wipes the decryption key.
+	 *
+	 * @throws DatabaseImportException If the file cannot be closed
+	 */
+	@Override
+	public synchronized void close() throws DatabaseImportException {
+		if(key != null) {
+			Arrays.fill(key, (byte)0);
+			key = null;
+		}
+		
+		try {
+			ch.close();
+		} catch(IOException e) {
+			throw new DatabaseImportException(e);
+		}
+	}
+	
+	public void destroy() throws DestroyFailedException {
+		try {
+			close();
+		} catch(DatabaseImportException e) {
+			throw new DestroyFailedException(e.getMessage());
+		}
+	}
+	
+	public synchronized boolean isDestroyed() { return key == null; }
+}
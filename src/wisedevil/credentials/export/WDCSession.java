@@ -0,0 +1,181 @@
+/*
+ * Lazarus: Credentials management library
+ *     Copyright (C) 2014 Alfredo 'wisedevil' Mungo
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wisedevil.credentials.export;
+
+import java.security.NoSuchAlgorithmException;
+
+import java.util.Arrays;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.security.auth.Destroyable;
+
+import wisedevil.credentials.TextPassword;
+
+import static wisedevil.credentials.export.internal.WDCUtil.passToDigest;
+
+/**
+ * This class holds the encryption key derived from a WDC password, so that it can be used
+ * to repeatedly import and export databases without deriving it again.
+ *
+ * <p>The key is derived once, when the session is created, and the password is not retained.
+ * The session can be given an idle timeout, after which the key is destroyed: a session is idle
+ * when it hasn't been used to import or export a database. Using a destroyed session throws an
+ * {@link IllegalStateException}.</p>
+ *
+ * <p>This class is thread-safe.</p>
+ */
+public final class WDCSession implements Destroyable {
+	/**
+	 * The encryption key or <code>null</code> if the session has been destroyed.
+	 */
+	private byte[] key;
+	
+	/**
+	 * The idle timeout in nanoseconds, or 0 for no timeout.
+	 */
+	private final long timeout;
+	
+	/**
+	 * The time of the last use of the key, as returned by {@link System#nanoTime()}.
+	 */
+	private long lastUse;
+	
+	/**
+	 * The scheduled expiry check or <code>null</code> if there is no timeout.
+	 */
+	private ScheduledFuture<?> expiry;
+	
+	/**
+	 * Initializes a new session without an idle timeout.
+	 *
+	 * @param pass The WDC password
+	 *
+	 * @throws NullPointerException If <code>pass</code> is null
+	 * @throws NoSuchAlgorithmException If the platform doesn't support the key derivation algorithm
+	 */
+	public WDCSession(TextPassword pass) throws NoSuchAlgorithmException {
+		this(pass, 0, TimeUnit.NANOSECONDS);
+	}
+	
+	/**
+	 * Initializes a new session.
+	 *
+	 * @param pass The WDC password
+	 * @param timeout The idle timeout, or 0 for no timeout
+	 * @param unit The idle timeout unit
+	 *
+	 * @throws NullPointerException If <code>pass</code> or <code>unit</code> is null
+	 * @throws IllegalArgumentException If <code>timeout</code> is negative
+	 * @throws NoSuchAlgorithmException If the platform doesn't support the key derivation algorithm
+	 */
+	public WDCSession(TextPassword pass, long timeout, TimeUnit unit) throws NoSuchAlgorithmException {
+		if(pass == null || unit == null)
+			throw new NullPointerException();
+		
+		if(timeout < 0)
+			throw new IllegalArgumentException("Negative idle timeout");
+		
+		key = passToDigest(pass);
+		this.timeout = unit.toNanos(timeout);
+		lastUse = System.nanoTime();
+		
+		if(this.timeout > 0)
+			synchronized(this) {
+				expiry = Expiry.SCHEDULER.schedule(this::expire, this.timeout, TimeUnit.NANOSECONDS);
+			}
+	}
+	
+	/**
+	 * Returns a copy of the encryption key, and resets the idle timeout.
+	 * <blockquote>NOTE: The returned copy must be manually wiped.</blockquote>
+	 *
+	 * @return A copy of the encryption key
+	 *
+	 * @throws IllegalStateException If the session has been destroyed or has expired
+	 */
+	synchronized byte[] getKey() {
+		final long now = System.nanoTime();
+		
+		if(key != null && timeout > 0 && now - lastUse >= timeout)
+			destroy();
+		
+		if(key == null)
+			throw new IllegalStateException("WDC session destroyed");
+		
+		lastUse = now;
+		
+		return Arrays.copyOf(key, key.length);
+	}
+	
+	/**
+	 * Destroys the session, wiping the encryption key.
+	 */
+	public synchronized void destroy() {
+		if(key == null)
+			return;
+		
+		Arrays.fill(key, (byte)0);
+		key = null;
+		
+		if(expiry != null) {
+			expiry.cancel(false);
+			expiry = null;
+		}
+	}
+	
+	public synchronized boolean isDestroyed() { return key == null; }
+	
+	/**
+	 * Destroys the session if it has been idle for longer than the timeout,
+	 * or schedules another check otherwise.
+	 */
+	private synchronized void expire() {
+		if(key == null)
+			return;
+		
+		final long idle = System.nanoTime() - lastUse;
+		
+		if(idle >= timeout)
+			destroy();
+		else
+			expiry = Expiry.SCHEDULER.schedule(this::expire, timeout - idle, TimeUnit.NANOSECONDS);
+	}
+	
+	/**
+	 * Lazily holds the scheduler checking session expiries.
+	 */
+	private static class Expiry {
+		/**
+		 * The expiry scheduler, running on a single daemon thread.
+		 * <blockquote>Cancelled checks are removed at once, so destroyed sessions are not retained.</blockquote>
+		 */
+		static final ScheduledThreadPoolExecutor SCHEDULER = new ScheduledThreadPoolExecutor(1, r -> {
+			Thread t = new Thread(r, "WDC session expiry");
+			
+			t.setDaemon(true);
+			
+			return t;
+		});
+		
+		static {
+			SCHEDULER.setRemoveOnCancelPolicy(true);
+		}
+	}
+}
@@ -0,0 +1,80 @@
+/*
+ * Lazarus: Credentials management library
+ *     Copyright (C) 2014 Alfredo 'wisedevil' Mungo
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wisedevil.credentials.export.internal;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An input stream reading the remaining bytes of a {@link ByteBuffer}.
+ * <blockquote>The buffer is read in place, so mapped and direct buffers are never
+ * copied to the heap as a whole.</blockquote>
+ */
+public class ByteBufferInputStream extends InputStream {
+	/**
+	 * The buffer to read.
+	 */
+	private final ByteBuffer buf;
+	
+	/**
+	 * Initializes a new instance of this class.
+	 *
+	 * @param buf The buffer to read, starting from its current position
+	 *
+	 * @throws NullPointerException If <code>buf</code> is null
+	 */
+	public ByteBufferInputStream(ByteBuffer buf) {
+		if(buf == null)
+			throw new NullPointerException();
+		
+		this.buf = buf;
+	}
+	
+	@Override
+	public int read() {
+		return buf.hasRemaining() ? buf.get() & 0xFF : -1;
+	}
+	
+	@Override
+	public int read(byte[] b, int off, int len) {
+		if(len == 0)
+			return 0;
+		
+		if(!buf.hasRemaining())
+			return -1;
+		
+		len = Math.min(len, buf.remaining());
+		buf.get(b, off, len);
+		
+		return len;
+	}
+	
+	@Override
+	public long skip(long n) {
+		int len = (int)Math.max(0, Math.min(n, buf.remaining()));
+		
+		buf.position(buf.position() + len);
+		
+		return len;
+	}
+	
+	@Override
+	public int available() {
+		return buf.remaining();
+	}
+}
@@ -0,0 +1,274 @@
+/*
+ * Lazarus: Credentials management library
+ *     Copyright (C) 2014 Alfredo 'wisedevil' Mungo
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wisedevil.credentials.export.internal;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.security.GeneralSecurityException;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import javax.crypto.Cipher;
+
+import static wisedevil.credentials.export.internal.ChunkedCipherOutputStream.FINAL_CHUNK;
+import static wisedevil.credentials.export.internal.ChunkedCipherOutputStream.HEADER_SIZE;
+import static wisedevil.credentials.export.internal.ChunkedCipherOutputStream.nonce;
+import static wisedevil.credentials.export.internal.ChunkedCipherOutputStream.putInt;
+
+/**
+ * An input stream decrypting data written by {@link ChunkedCipherOutputStream}, in parallel.
+ *
+ * <p>Chunks are read from the underlying stream in order and decrypted by a fork-join pool
+ * while the previous chunks are being read. The underlying stream is never read past the last chunk.
+ * A stream ending before its last chunk, or a chunk failing authentication, raises an {@link IOException}.</p>
+ *
+ * <blockquote>Closing this stream doesn't close the underlying stream.</blockquote>
+ */
+public class ChunkedCipherInputStream extends InputStream {
+	/**
+	 * The underlying input stream.
+	 */
+	private final DataInputStream in;
+	
+	/**
+	 * The decryption key.
+	 */
+	private final byte[] key;
+	
+	/**
+	 * The stream nonce prefix.
+	 */
+	private final byte[] prefix;
+	
+	/**
+	 * The plain chunk size.
+	 */
+	private final int chunkSize;
+	
+	/**
+	 * The decryption pool.
+	 */
+	private final ForkJoinPool pool;
+	
+	/**
+	 * The maximum number of chunks in flight.
+	 */
+	private final int window;
+	
+	/**
+	 * The chunks being decrypted, in stream order.
+	 */
+	private final ArrayDeque<ForkJoinTask<byte[]>> pending = new ArrayDeque<ForkJoinTask<byte[]>>();
+	
+	/**
+	 * The current plain chunk or <code>null</code> if no chunk has been decrypted yet.
+	 */
+	private byte[] buf;
+	
+	/**
+	 * The position in the current plain chunk.
+	 */
+	private int pos = 0;
+	
+	/**
+	 * The index of the next chunk to read.
+	 */
+	private long index = 0;
+	
+	/**
+	 * True if the last chunk has been read from the underlying stream.
+	 */
+	private boolean last = false;
+	
+	/**
+	 * Initializes a new instance of this class.
+	 *
+	 * @param in The underlying input stream
+	 * @param key The decryption key, which is copied
+	 * @param prefix The stream nonce prefix
+	 * @param chunkSize The plain chunk size
+	 * @param pool The decryption pool
+	 */
+	public ChunkedCipherInputStream(InputStream in, byte[] key, byte[] prefix, int chunkSize, ForkJoinPool pool) {
+		this.in = new DataInputStream(in);
+		this.key = Arrays.copyOf(key, key.length);
+		this.prefix = Arrays.copyOf(prefix, prefix.length);
+		this.chunkSize = chunkSize;
+		this.pool = pool;
+		window = Math.max(2, pool.getParallelism() * 2);
+	}
+	
+	@Override
+	public int read() throws IOException {
+		if(!fill())
+			return -1;
+		
+		return buf[pos++] & 0xFF;
+	}
+	
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if(len == 0)
+			return 0;
+		
+		if(!fill())
+			return -1;
+		
+		int n = Math.min(len, buf.length - pos);
+		
+		System.arraycopy(buf, pos, b, off, n);
+		pos += n;
+		
+		return n;
+	}
+	
+	@Override
+	public int available() {
+		return buf != null ? buf.length - pos : 0;
+	}
+	
+	/**
+	 * Releases the chunks in flight and wipes the decrypted data.
+	 */
+	@Override
+	public void close() {
+		for(ForkJoinTask<byte[]> t: pending)
+			t.cancel(false);
+		
+		pending.clear();
+		wipe();
+		Arrays.fill(key, (byte)0);
+	}
+	
+	/**
+	 * Makes the next plain chunk current, if the current chunk has been read.
+	 *
+	 * @return False if the end of the stream has been reached
+	 *
+	 * @throws IOException If a chunk cannot be read or decrypted
+	 */
+	private boolean fill() throws IOException {
+		while(buf == null || pos == buf.length) {
+			wipe();
+			
+			while(!last && pending.size() < window)
+				readChunk();
+			
+			if(pending.isEmpty())
+				return false;
+			
+			try {
+				buf = pending.poll().join();
+			} catch(RuntimeException e) {
+				throw new IOException("Cannot decrypt chunk", e.getCause() != null ? e.getCause() : e);
+			}
+			
+			pos = 0;
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Reads the next chunk from the underlying stream and submits it for decryption.
+	 * <blockquote>The last chunk is decrypted on the calling thread if no other chunk is in flight,
+	 * so that small streams don't pay for a hand-off to the pool.</blockquote>
+	 *
+	 * @throws IOException If the chunk cannot be read
+	 */
+	private void readChunk() throws IOException {
+		if(index > 0xFFFFFFFFL)
+			throw new IOException("Too many chunks");
+		
+		final int header;
+		
+		try {
+			header = in.readInt();
+		} catch(EOFException e) {
+			throw new EOFException("Truncated WDC stream");
+		}
+		
+		final int length = header & ~FINAL_CHUNK;
+		
+		if(length > chunkSize)
+			throw new IOException("Invalid WDC chunk length: " + length);
+		
+		final byte[] sealed = new byte[length + WDCCrypto.TAG_SIZE];
+		final long idx = index++;
+		
+		in.readFully(sealed);
+		last = (header & FINAL_CHUNK) != 0;
+		
+		final ForkJoinTask<byte[]> task = ForkJoinTask.adapt(() -> open(sealed, header, idx));
+		
+		if(last && pending.isEmpty())
+			task.quietlyInvoke();
+		else
+			pool.execute(task);
+		
+		pending.add(task);
+	}
+	
+	/**
+	 * Decrypts and authenticates a chunk.
+	 *
+	 * @param sealed The encrypted chunk and its tag
+	 * @param header The chunk header
+	 * @param idx The chunk index
+	 *
+	 * @return The plain chunk
+	 *
+	 * @throws IOException If the chunk cannot be decrypted or fails authentication
+	 */
+	private byte[] open(byte[] sealed, int header, long idx) throws IOException {
+		final WDCCrypto crypto = WDCCrypto.get();
+		final byte[] aad = new byte[HEADER_SIZE];
+		
+		putInt(aad, 0, header);
+		
+		try {
+			final Cipher c = crypto.acquireAEAD(Cipher.DECRYPT_MODE, key, nonce(prefix, idx));
+			
+			try {
+				c.updateAAD(aad);
+				
+				return c.doFinal(sealed);
+			} finally {
+				crypto.release(c);
+			}
+		} catch(GeneralSecurityException e) {
+			throw new IOException("WDC chunk authentication failed", e);
+		}
+	}
+	
+	/**
+	 * Wipes the current plain chunk.
+	 */
+	private void wipe() {
+		if(buf != null) {
+			Arrays.fill(buf, (byte)0);
+			buf = null;
+		}
+	}
+}
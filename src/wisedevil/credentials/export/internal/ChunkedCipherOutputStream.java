@@ -0,0 +1,305 @@
+/*
+ * Lazarus: Credentials management library
+ *     Copyright (C) 2014 Alfredo 'wisedevil' Mungo
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wisedevil.credentials.export.internal;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.security.GeneralSecurityException;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import javax.crypto.Cipher;
+
+/**
+ * An output stream encrypting data in independently authenticated chunks, in parallel.
+ *
+ * <p>The data is split into chunks of a fixed size, only the last chunk being possibly shorter
+ * (or empty). Every chunk is written as a big-endian int header, holding the plain chunk length
+ * and the {@link #FINAL_CHUNK} flag for the last chunk, followed by the chunk encrypted with AES/GCM
+ * and its authentication tag. The nonce of a chunk is made of the stream nonce prefix and the chunk
+ * index, and the chunk header is authenticated along with the chunk, so that chunks cannot be
+ * reordered, truncated or dropped without being detected.</p>
+ *
+ * <p>Chunks are encrypted by a fork-join pool while the following chunks are being written,
+ * and written to the underlying stream in order. A bounded number of chunks is in flight at any time.</p>
+ *
+ * @see ChunkedCipherInputStream
+ */
+public class ChunkedCipherOutputStream extends OutputStream {
+	/**
+	 * The chunk header flag marking the last chunk of a stream.
+	 */
+	public static final int FINAL_CHUNK = 0x80000000;
+	
+	/**
+	 * The size of a chunk header.
+	 */
+	public static final int HEADER_SIZE = Integer.BYTES;
+	
+	/**
+	 * The underlying output stream.
+	 */
+	private final OutputStream out;
+	
+	/**
+	 * The encryption key.
+	 */
+	private final byte[] key;
+	
+	/**
+	 * The stream nonce prefix.
+	 */
+	private final byte[] prefix;
+	
+	/**
+	 * The plain chunk size.
+	 */
+	private final int chunkSize;
+	
+	/**
+	 * The encryption pool.
+	 */
+	private final ForkJoinPool pool;
+	
+	/**
+	 * The maximum number of chunks in flight.
+	 */
+	private final int window;
+	
+	/**
+	 * The chunks being encrypted, in stream order.
+	 */
+	private final ArrayDeque<ForkJoinTask<byte[]>> pending = new ArrayDeque<ForkJoinTask<byte[]>>();
+	
+	/**
+	 * The current plain chunk.
+	 */
+	private byte[] buf;
+	
+	/**
+	 * The length of the current plain chunk.
+	 */
+	private int count = 0;
+	
+	/**
+	 * The index of the current chunk.
+	 */
+	private long index = 0;
+	
+	/**
+	 * True if the stream has been closed.
+	 */
+	private boolean closed = false;
+	
+	/**
+	 * Initializes a new instance of this class.
+	 *
+	 * @param out The underlying output stream
+	 * @param key The encryption key, which is copied
+	 * @param prefix The stream nonce prefix, which must never be reused with the same key
+	 * @param chunkSize The plain chunk size
+	 * @param pool The encryption pool
+	 */
+	public ChunkedCipherOutputStream(OutputStream out, byte[] key, byte[] prefix, int chunkSize, ForkJoinPool pool) {
+		this.out = out;
+		this.key = Arrays.copyOf(key, key.length);
+		this.prefix = Arrays.copyOf(prefix, prefix.length);
+		this.chunkSize = chunkSize;
+		this.pool = pool;
+		window = Math.max(2, pool.getParallelism() * 2);
+		buf = new byte[chunkSize];
+	}
+	
+	@Override
+	public void write(int b) throws IOException {
+		if(count == chunkSize)
+			submit(false);
+		
+		buf[count++] = (byte)b;
+	}
+	
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while(len > 0) {
+			if(count == chunkSize)
+				submit(false);
+			
+			int n = Math.min(len, chunkSize - count);
+			
+			System.arraycopy(b, off, buf, count, n);
+			count += n;
+			off += n;
+			len -= n;
+		}
+	}
+	
+	/**
+	 * Writes the chunks that have been encrypted so far, and flushes the underlying stream.
+	 * <blockquote>The current chunk is not written until it is full or the stream is closed.</blockquote>
+	 */
+	@Override
+	public void flush() throws IOException {
+		while(!pending.isEmpty() && pending.peek().isDone())
+			drain();
+		
+		out.flush();
+	}
+	
+	/**
+	 * Writes the last chunk and closes the underlying stream.
+	 */
+	@Override
+	public void close() throws IOException {
+		if(closed)
+			return;
+		
+		closed = true;
+		
+		try {
+			submit(true);
+			
+			while(!pending.isEmpty())
+				drain();
+			
+			out.close();
+		} finally {
+			for(ForkJoinTask<byte[]> t: pending)
+				t.cancel(false);
+			
+			Arrays.fill(key, (byte)0);
+		}
+	}
+	
+	/**
+	 * Submits the current chunk for encryption, and starts a new chunk.
+	 * <blockquote>The last chunk is encrypted on the calling thread if no other chunk is in flight,
+	 * so that small streams don't pay for a hand-off to the pool.</blockquote>
+	 *
+	 * @param last True if the current chunk is the last chunk
+	 *
+	 * @throws IOException If the stream has too many chunks, or a chunk cannot be written
+	 */
+	private void submit(boolean last) throws IOException {
+		if(index > 0xFFFFFFFFL)
+			throw new IOException("Too many chunks");
+		
+		final byte[] chunk = buf;
+		final int length = count;
+		final long idx = index++;
+		
+		if(last && pending.isEmpty()) {
+			out.write(seal(chunk, length, idx, true));
+			return;
+		}
+		
+		pending.add(pool.submit(ForkJoinTask.adapt(() -> seal(chunk, length, idx, last))));
+		buf = last ? null : new byte[chunkSize];
+		count = 0;
+		
+		if(pending.size() >= window)
+			drain();
+	}
+	
+	/**
+	 * Waits for the first chunk in flight to be encrypted, and writes it.
+	 *
+	 * @throws IOException If the chunk cannot be encrypted or written
+	 */
+	private void drain() throws IOException {
+		final byte[] sealed;
+		
+		try {
+			sealed = pending.poll().join();
+		} catch(RuntimeException e) {
+			throw new IOException("Cannot encrypt chunk", e.getCause() != null ? e.getCause() : e);
+		}
+		
+		out.write(sealed);
+	}
+	
+	/**
+	 * Encrypts a chunk, and wipes it.
+	 *
+	 * @param chunk The plain chunk
+	 * @param length The plain chunk length
+	 * @param idx The chunk index
+	 * @param last True if the chunk is the last chunk
+	 *
+	 * @return The chunk header, followed by the encrypted chunk and its tag
+	 *
+	 * @throws IOException If the chunk cannot be encrypted
+	 */
+	private byte[] seal(byte[] chunk, int length, long idx, boolean last) throws IOException {
+		final WDCCrypto crypto = WDCCrypto.get();
+		final byte[] sealed = new byte[HEADER_SIZE + length + WDCCrypto.TAG_SIZE];
+		final int header = last ? length | FINAL_CHUNK : length;
+		
+		putInt(sealed, 0, header);
+		
+		try {
+			final Cipher c = crypto.acquireAEAD(Cipher.ENCRYPT_MODE, key, nonce(prefix, idx));
+			
+			try {
+				c.updateAAD(sealed, 0, HEADER_SIZE);
+				c.doFinal(chunk, 0, length, sealed, HEADER_SIZE);
+			} finally {
+				crypto.release(c);
+			}
+		} catch(GeneralSecurityException e) {
+			throw new IOException(e);
+		} finally {
+			Arrays.fill(chunk, 0, length, (byte)0);
+		}
+		
+		return sealed;
+	}
+	
+	/**
+	 * Returns the nonce of a chunk.
+	 *
+	 * @param prefix The stream nonce prefix
+	 * @param idx The chunk index
+	 *
+	 * @return The chunk nonce
+	 */
+	static byte[] nonce(byte[] prefix, long idx) {
+		final byte[] nonce = Arrays.copyOf(prefix, WDCCrypto.NONCE_SIZE);
+		
+		putInt(nonce, prefix.length, (int)idx);
+		
+		return nonce;
+	}
+	
+	/**
+	 * Writes a big-endian int to an array.
+	 *
+	 * @param b The array
+	 * @param off The offset
+	 * @param v The value
+	 */
+	static void putInt(byte[] b, int off, int v) {
+		b[off] = (byte)(v >>> 24);
+		b[off + 1] = (byte)(v >>> 16);
+		b[off + 2] = (byte)(v >>> 8);
+		b[off + 3] = (byte)v;
+	}
+}
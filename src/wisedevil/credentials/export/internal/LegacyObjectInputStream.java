@@ -0,0 +1,75 @@
+/*
+ * Lazarus: Credentials management library
+ *     Copyright (C) 2014 Alfredo 'wisedevil' Mungo
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wisedevil.credentials.export.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * An object input stream that only deserializes credential databases, as serialized in older WDC data.
+ * <blockquote>Classes other than the serializable classes of the <code>wisedevil.credentials</code> package
+ * and the JDK types their serialized form refers to are rejected before being loaded, so that crafted
+ * data cannot instantiate arbitrary classes.</blockquote>
+ */
+public class LegacyObjectInputStream extends ObjectInputStream {
+	/**
+	 * The names of the classes that can be deserialized.
+	 */
+	private static final Set<String> ALLOWED = new HashSet<String>(Arrays.asList(
+		"wisedevil.credentials.CredentialDatabase",
+		"wisedevil.credentials.ConcurrentCredentialDatabase",
+		"wisedevil.credentials.Credential",
+		"wisedevil.credentials.Keyring",
+		"wisedevil.credentials.TextPassword",
+		"wisedevil.credentials.DirectPassword",
+		"java.util.HashSet",
+		"java.util.LinkedHashSet",
+		"[C"
+	));
+	
+	/**
+	 * Initializes a new instance of this class.
+	 *
+	 * @param in The underlying input stream
+	 *
+	 * @throws IOException If an input exception occurs while reading the stream header
+	 */
+	public LegacyObjectInputStream(InputStream in) throws IOException {
+		super(in);
+	}
+	
+	@Override
+	protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+		if(!ALLOWED.contains(desc.getName()))
+			throw new InvalidClassException(desc.getName(), "Class not allowed in WDC data");
+		
+		return super.resolveClass(desc);
+	}
+	
+	@Override
+	protected Class<?> resolveProxyClass(String[] interfaces) throws IOException, ClassNotFoundException {
+		throw new InvalidClassException("Proxy classes not allowed in WDC data");
+	}
+}
@@ -0,0 +1,48 @@
+/*
+ * Lazarus: Credentials management library
+ *     Copyright (C) 2014 Alfredo 'wisedevil' Mungo
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wisedevil.credentials.export.internal;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An output stream that flushes, but doesn't close, the underlying stream when closed.
+ * <blockquote>This allows stream chains to be closed (and thus finalized) without
+ * closing a stream owned by the caller.</blockquote>
+ */
+public class UnclosableOutputStream extends FilterOutputStream {
+	/**
+	 * Initializes a new instance of this class.
+	 *
+	 * @param out The underlying output stream
+	 */
+	public UnclosableOutputStream(OutputStream out) {
+		super(out);
+	}
+	
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		out.write(b, off, len);
+	}
+	
+	@Override
+	public void close() throws IOException {
+		out.flush();
+	}
+}
@@ -0,0 +1,1298 @@
+/*
+ * Lazarus: Credentials management library
+ *     Copyright (C) 2014 Alfredo 'wisedevil' Mungo
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wisedevil.credentials.export.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Function;
+
+import javax.security.auth.DestroyFailedException;
+
+import wisedevil.credentials.Credential;
+import wisedevil.credentials.CredentialDatabase;
+import wisedevil.credentials.DatabaseChanges;
+import wisedevil.credentials.DirectPassword;
+import wisedevil.credentials.Keyring;
+import wisedevil.credentials.Password;
+import wisedevil.credentials.PasswordSeal;
+import wisedevil.credentials.TextPassword;
+
+/**
+ * Binary codec for credential databases.
+ *
+ * <p>The encoding starts with the <code>WDB</code> magic number and the codec version byte.
+ * Integers are stored as unsigned LEB128 varints and strings as their UTF-8 length
+ * (plus one, zero meaning <code>null</code>) followed by their UTF-8 bytes.
+ * The encoded database is laid out as follows:</p>
+ * <ol>
+ *   <li>the number of credentials in the database and the number of credentials only referenced by keyrings;</li>
+ *   <li>the number of credential segments and the segments: credential count, length in bytes and the
+ *   credentials (title, user, description and password);</li>
+ *   <li>the number of keyrings;</li>
+ *   <li>the keyrings: title, description, member count and the index of every member credential.</li>
+ * </ol>
+ *
+ * <p>A password is stored as a type byte (see <code>PASSWORD_*</code>) followed by its data.</p>
+ *
+ * <p>The codec also encodes the changes made to a database since it was last marked as not
+ * modified. Encoded changes start with the <code>WDD</code> magic number and the codec version byte,
+ * followed by the titles of the removed credentials and keyrings, the old and new titles of the renamed
+ * credentials and keyrings, the added or modified credentials and the added or modified keyrings.
+ * Keyring members are stored as a reference byte (see <code>MEMBER_*</code>) followed by the
+ * title of a database credential or by a whole credential.</p>
+ */
+public final class WDCCodec {
+	/**
+	 * The magic number at the beginning of an encoded database.
+	 */
+	public static final byte[] MAGIC = { 'W', 'D', 'B' };
+	
+	/**
+	 * The magic number at the beginning of encoded database changes.
+	 */
+	public static final byte[] DELTA_MAGIC = { 'W', 'D', 'D' };
+	
+	/**
+	 * The codec version.
+	 * <blockquote>Version 2 stores credentials in segments (see {@link #encode(CredentialDatabase, OutputStream)}).</blockquote>
+	 */
+	public static final byte VERSION = 2;
+	
+	/**
+	 * The version of the codec storing credentials in a single sequence.
+	 */
+	public static final byte VERSION_SEQUENTIAL = 1;
+	
+	/**
+	 * The version of the encoded database changes.
+	 */
+	public static final byte DELTA_VERSION = 1;
+	
+	/**
+	 * The number of credentials in a segment.
+	 */
+	public static final int SEGMENT_SIZE = 1024;
+	
+	/**
+	 * Keyring member type for credentials of the database, stored by title.
+	 */
+	public static final int MEMBER_REFERENCE = 0;
+	
+	/**
+	 * Keyring member type for credentials not in the database, stored as a whole.
+	 */
+	public static final int MEMBER_INLINE = 1;
+	
+	/**
+	 * Password type for credentials with no password.
+	 */
+	public static final int PASSWORD_NONE = 0;
+	
+	/**
+	 * Password type for {@link TextPassword} passwords.
+	 */
+	public static final int PASSWORD_TEXT = 1;
+	
+	/**
+	 * Password type for {@link DirectPassword} passwords.
+	 */
+	public static final int PASSWORD_DIRECT = 2;
+	
+	/**
+	 * This class is not meant to be instantiated.
+	 */
+	private WDCCodec() {}
+	
+	/**
+	 * Returns true if the stream starts with an encoded database.
+	 * <blockquote>The stream is reset to its current position.</blockquote>
+	 *
+	 * @param in The input stream, which must support marks
+	 *
+	 * @return True if the stream starts with the codec magic number
+	 *
+	 * @throws IOException If an input exception occurs
+	 */
+	public static boolean isEncoded(InputStream in) throws IOException {
+		byte[] magic = new byte[MAGIC.length];
+		int n = 0;
+		
+		in.mark(MAGIC.length);
+		
+		for(int r; n < magic.length && (r = in.read(magic, n, magic.length - n)) != -1;)
+			n += r;
+		
+		in.reset();
+		
+		return Arrays.equals(magic, MAGIC);
+	}
+	
+	/**
+	 * Encodes a credential database.
+	 * <blockquote>The stream is flushed but not closed.
+	 * Credentials are stored in segments of {@link #SEGMENT_SIZE} credentials, each one made of its
+	 * credential count, its length in bytes and its credentials, so that segments can be decoded in parallel.</blockquote>
+	 *
+	 * @param db The credential database
+	 * @param out The output stream
+	 *
+	 * @throws IOException If an output exception occurs
+	 */
+	public static void encode(CredentialDatabase db, OutputStream out) throws IOException {
+		try(Writer w = new Writer(out)) {
+			final Map<Credential, Integer> index = new IdentityHashMap<Credential, Integer>();
+			final List<Credential> records = new ArrayList<Credential>();
+			
+			db.getCredentials().forEach(c -> {
+				index.put(c, index.size());
+				records.add(c);
+			});
+			
+			final int count = index.size();
+			
+			for(Keyring k: db.getKeyrings())
+				for(Credential c: k)
+					if(index.putIfAbsent(c, index.size()) == null)
+						records.add(c);
+			
+			w.write(MAGIC);
+			w.writeByte(VERSION);
+			w.writeVarInt(count);
+			w.writeVarInt(records.size() - count);
+			w.writeVarInt((records.size() + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+			
+			final WipeableByteArrayOutputStream segment = new WipeableByteArrayOutputStream();
+			
+			try {
+				for(int i = 0; i < records.size(); i += SEGMENT_SIZE) {
+					final int n = Math.min(SEGMENT_SIZE, records.size() - i);
+					
+					try(Writer sw = new Writer(segment)) {
+						for(Credential c: records.subList(i, i + n))
+							sw.writeCredential(c);
+					}
+					
+					w.writeVarInt(n);
+					w.writeVarInt(segment.size());
+					w.write(segment.buffer(), 0, segment.size());
+					segment.wipe();
+				}
+			} finally {
+				segment.wipe();
+			}
+			
+			w.writeVarInt((int)db.getKeyringsStream().count());
+			
+			for(Keyring k: db.getKeyrings()) {
+				w.writeString(k.getTitle());
+				w.writeString(k.getDescription());
+				w.writeVarInt((int)k.stream().count());
+				
+				for(Credential c: k)
+					w.writeVarInt(index.get(c));
+			}
+		}
+	}
+	
+	/**
+	 * Decodes a credential database, decoding its segments in the common fork-join pool.
+	 * <blockquote>The decoded database and its records are marked as not modified.</blockquote>
+	 *
+	 * @param in The input stream
+	 *
+	 * @return The credential database
+	 *
+	 * @throws IOException If an input exception occurs or the data is not a valid encoded database
+	 */
+	public static CredentialDatabase decode(InputStream in) throws IOException {
+		return decode(in, ForkJoinPool.commonPool());
+	}
+	
+	/**
+	 * Decodes a credential database.
+	 * <blockquote>The segments are read in order and decoded in parallel into partial results, which are
+	 * merged into the database in order; keyring references are resolved once all the credentials are decoded.
+	 * A bounded number of segments is in flight at any time.
+	 * The decoded database and its records are marked as not modified.</blockquote>
+	 *
+	 * @param in The input stream
+	 * @param pool The pool decoding the segments
+	 *
+	 * @return The credential database
+	 *
+	 * @throws IOException If an input exception occurs or the data is not a valid encoded database
+	 */
+	public static CredentialDatabase decode(InputStream in, ForkJoinPool pool) throws IOException {
+		return decode(in, pool, null);
+	}
+	
+	/**
+	 * Decodes a credential database, sealing the passwords.
+	 * <blockquote>The passwords are sealed straight from the decoded data, and are only decrypted
+	 * when first read. See {@link #decode(InputStream, ForkJoinPool)}.</blockquote>
+	 *
+	 * @param in The input stream
+	 * @param pool The pool decoding the segments
+	 * @param seal The seal of the passwords, or null to decrypt them
+	 *
+	 * @return The credential database
+	 *
+	 * @throws IOException If an input exception occurs or the data is not a valid encoded database
+	 */
+	public static CredentialDatabase decode(InputStream in, ForkJoinPool pool, PasswordSeal seal) throws IOException {
+		try(Reader r = new Reader(in, seal)) {
+			byte[] magic = new byte[MAGIC.length];
+			
+			r.readFully(magic);
+			
+			if(!Arrays.equals(magic, MAGIC))
+				throw new StreamCorruptedException("Not an encoded credential database");
+			
+			int version = r.readByte();
+			
+			if(version != VERSION && version != VERSION_SEQUENTIAL)
+				throw new StreamCorruptedException("Unsupported codec version: " + version);
+			
+			final CredentialDatabase db = new CredentialDatabase();
+			final int count = r.readVarInt();
+			final int total = count + r.readVarInt();
+			
+			if(total < count)
+				throw new StreamCorruptedException("Invalid credential count");
+			
+			final List<Credential> credentials = new ArrayList<Credential>(Math.min(total, 1 << 16));
+			
+			if(version == VERSION_SEQUENTIAL) {
+				for(int i = 0; i < total; i++)
+					merge(db, credentials, count, r.readCredential());
+			} else
+				readSegments(r, pool, db, credentials, count, total, seal);
+			
+			for(int i = r.readVarInt(); i > 0; i--) {
+				Keyring k = new Keyring(r.readNonNullString());
+				
+				k.setDescription(r.readString());
+				
+				for(int j = r.readVarInt(); j > 0; j--) {
+					int idx = r.readVarInt();
+					
+					if(idx >= credentials.size())
+						throw new StreamCorruptedException("Invalid credential reference: " + idx);
+					
+					k.add(credentials.get(idx));
+				}
+				
+				db.add(k);
+			}
+			
+			db.clearModified();
+			
+			return db;
+		}
+	}
+	
+	/**
+	 * Reads the credential segments and decodes them in parallel.
+	 * <blockquote>The last segment is decoded on the calling thread if no other segment is in flight,
+	 * so that small databases don't pay for a hand-off to the pool.</blockquote>
+	 *
+	 * @param r The reader
+	 * @param pool The pool decoding the segments
+	 * @param db The credential database
+	 * @param credentials Receives the decoded credentials
+	 * @param count The number of credentials in the database
+	 * @param total The number of credentials
+	 * @param seal The seal of the passwords, or null to decrypt them
+	 *
+	 * @throws IOException If an input exception occurs or a segment is not valid
+	 */
+	private static void readSegments(Reader r, ForkJoinPool pool, CredentialDatabase db, List<Credential> credentials, int count, int total, PasswordSeal seal) throws IOException {
+		final ArrayDeque<ForkJoinTask<Credential[]>> pending = new ArrayDeque<ForkJoinTask<Credential[]>>();
+		final int window = Math.max(2, pool.getParallelism() * 2);
+		final int segments = r.readVarInt();
+		int read = 0;
+		
+		try {
+			for(int i = 0; i < segments; i++) {
+				final int n = r.readVarInt();
+				final int length = r.readVarInt();
+				
+				if(n > SEGMENT_SIZE || n > total - read)
+					throw new StreamCorruptedException("Invalid segment size: " + n);
+				
+				final byte[] data = new byte[length];
+				
+				r.readFully(data);
+				read += n;
+				
+				final ForkJoinTask<Credential[]> task = ForkJoinTask.adapt(() -> decodeSegment(data, n, seal));
+				
+				if(i == segments - 1 && pending.isEmpty())
+					task.quietlyInvoke();
+				else
+					pool.execute(task);
+				
+				pending.add(task);
+				
+				if(pending.size() >= window)
+					mergeSegment(pending.poll(), db, credentials, count);
+			}
+			
+			while(!pending.isEmpty())
+				mergeSegment(pending.poll(), db, credentials, count);
+		} finally {
+			for(ForkJoinTask<Credential[]> t: pending)
+				t.cancel(false);
+		}
+		
+		if(read != total)
+			throw new StreamCorruptedException("Invalid credential count");
+	}
+	
+	/**
+	 * Decodes a credential segment, and wipes it.
+	 *
+	 * @param data The segment data
+	 * @param n The number of credentials in the segment
+	 * @param seal The seal of the passwords, or null to decrypt them
+	 *
+	 * @return The decoded credentials
+	 *
+	 * @throws IOException If the segment is not valid
+	 */
+	private static Credential[] decodeSegment(byte[] data, int n, PasswordSeal seal) throws IOException {
+		try(Reader r = new Reader(new ByteArrayInputStream(data), seal)) {
+			final Credential[] res = new Credential[n];
+			
+			for(int i = 0; i < n; i++)
+				res[i] = r.readCredential();
+			
+			return res;
+		} finally {
+			Arrays.fill(data, (byte)0);
+		}
+	}
+	
+	/**
+	 * Waits for a segment to be decoded, and merges its credentials.
+	 *
+	 * @param task The segment decoding task
+	 * @param db The credential database
+	 * @param credentials Receives the decoded credentials
+	 * @param count The number of credentials in the database
+	 *
+	 * @throws IOException If the segment is not valid
+	 */
+	private static void mergeSegment(ForkJoinTask<Credential[]> task, CredentialDatabase db, List<Credential> credentials, int count) throws IOException {
+		final Credential[] segment;
+		
+		try {
+			segment = task.join();
+		} catch(RuntimeException e) {
+			if(e.getCause() instanceof IOException)
+				throw (IOException)e.getCause();
+			
+			throw e;
+		}
+		
+		for(Credential c: segment)
+			merge(db, credentials, count, c);
+	}
+	
+	/**
+	 * Merges a decoded credential.
+	 *
+	 * @param db The credential database
+	 * @param credentials Receives the decoded credentials
+	 * @param count The number of credentials in the database
+	 * @param c The decoded credential, which is added to the database if among the first <code>count</code> credentials
+	 */
+	private static void merge(CredentialDatabase db, List<Credential> credentials, int count, Credential c) {
+		if(credentials.size() < count)
+			db.add(c);
+		
+		credentials.add(c);
+	}
+	
+	/**
+	 * Encodes the changes made to a credential database.
+	 * <blockquote>The stream is flushed but not closed.</blockquote>
+	 *
+	 * @param changes The changes, as taken from the database
+	 * @param out The output stream
+	 *
+	 * @throws IOException If an output exception occurs
+	 *
+	 * @see CredentialDatabase#getChanges()
+	 * @see CredentialDatabase#drainChanges(boolean)
+	 */
+	public static void encodeDelta(DatabaseChanges changes, OutputStream out) throws IOException {
+		try(Writer w = new Writer(out)) {
+			w.write(DELTA_MAGIC);
+			w.writeByte(DELTA_VERSION);
+			
+			writeTitles(w, changes.getRemovedCredentials());
+			writeTitles(w, changes.getRemovedKeyrings());
+			writeRenames(w, changes.getRenamedCredentials());
+			writeRenames(w, changes.getRenamedKeyrings());
+			
+			w.writeVarInt(changes.getModifiedCredentials().size());
+			
+			for(Credential c: changes.getModifiedCredentials())
+				w.writeCredential(c);
+			
+			w.writeVarInt(changes.getModifiedKeyrings().size());
+			
+			for(Keyring k: changes.getModifiedKeyrings()) {
+				w.writeString(k.getTitle());
+				w.writeString(k.getDescription());
+				w.writeVarInt((int)k.stream().count());
+				
+				for(Credential c: k)
+					if(changes.isDatabaseCredential(c)) {
+						w.writeByte(MEMBER_REFERENCE);
+						w.writeString(c.getTitle());
+					} else {
+						w.writeByte(MEMBER_INLINE);
+						w.writeCredential(c);
+					}
+			}
+		}
+	}
+	
+	/**
+	 * Decodes database changes and applies them to a credential database.
+	 * <blockquote>Changes to records missing from the database are ignored, except for added records.</blockquote>
+	 *
+	 * @param in The input stream
+	 * @param db The credential database
+	 *
+	 * @throws IOException If an input exception occurs or the data is not valid encoded changes
+	 *
+	 * @see #encodeDelta(DatabaseChanges, OutputStream)
+	 */
+	public static void applyDelta(InputStream in, CredentialDatabase db) throws IOException {
+		try(Reader r = new Reader(in)) {
+			byte[] magic = new byte[DELTA_MAGIC.length];
+			
+			r.readFully(magic);
+			
+			if(!Arrays.equals(magic, DELTA_MAGIC))
+				throw new StreamCorruptedException("Not encoded database changes");
+			
+			int version = r.readByte();
+			
+			if(version != DELTA_VERSION)
+				throw new StreamCorruptedException("Unsupported codec version: " + version);
+			
+			// Removals
+			for(int i = r.readVarInt(); i > 0; i--) {
+				Credential c = db.findCredential(r.readNonNullString());
+				
+				if(c != null)
+					db.remove(c);
+			}
+			
+			for(int i = r.readVarInt(); i > 0; i--) {
+				Keyring k = db.findKeyring(r.readNonNullString());
+				
+				if(k != null)
+					db.remove(k);
+			}
+			
+			// Renames: records are taken out of the database first, so titles can be swapped
+			final Map<Credential, String> credentialRenames = new IdentityHashMap<Credential, String>();
+			final Map<Keyring, String> keyringRenames = new IdentityHashMap<Keyring, String>();
+			
+			for(int i = r.readVarInt(); i > 0; i--) {
+				Credential c = db.findCredential(r.readNonNullString());
+				String title = r.readNonNullString();
+				
+				if(c != null) {
+					db.remove(c);
+					credentialRenames.put(c, title);
+				}
+			}
+			
+			for(int i = r.readVarInt(); i > 0; i--) {
+				Keyring k = db.findKeyring(r.readNonNullString());
+				String title = r.readNonNullString();
+				
+				if(k != null) {
+					db.remove(k);
+					keyringRenames.put(k, title);
+				}
+			}
+			
+			credentialRenames.forEach((c, title) -> {
+				c.setTitle(title);
+				db.add(c);
+			});
+			
+			keyringRenames.forEach((k, title) -> {
+				k.setTitle(title);
+				db.add(k);
+			});
+			
+			// Credentials
+			for(int i = r.readVarInt(); i > 0; i--) {
+				Credential c = r.readCredential();
+				Credential old = db.findCredential(c.getTitle());
+				
+				if(old == null)
+					db.add(c);
+				else {
+					if(c.getUser() != null)
+						old.setUser(c.getUser());
+					
+					if(c.getDescription() != null)
+						old.setDescription(c.getDescription());
+					
+					old.setPassword(c.getPassword());
+				}
+			}
+			
+			// Keyrings
+			for(int i = r.readVarInt(); i > 0; i--) {
+				String title = r.readNonNullString();
+				Keyring k = db.findKeyring(title);
+				
+				if(k == null) {
+					k = new Keyring(title);
+					db.add(k);
+				} else {
+					List<Credential> members = new ArrayList<Credential>();
+					
+					k.forEach(members::add);
+					members.forEach(k::remove);
+				}
+				
+				k.setDescription(r.readString());
+				
+				for(int j = r.readVarInt(); j > 0; j--) {
+					int type = r.readByte();
+					Credential c;
+					
+					if(type == MEMBER_REFERENCE)
+						c = db.findCredential(r.readNonNullString());
+					else if(type == MEMBER_INLINE)
+						c = r.readCredential();
+					else
+						throw new StreamCorruptedException("Invalid keyring member type: " + type);
+					
+					if(c != null)
+						k.add(c);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Writes a list of titles.
+	 *
+	 * @param w The writer
+	 * @param titles The titles
+	 *
+	 * @throws IOException If an output exception occurs
+	 */
+	private static void writeTitles(Writer w, Iterable<String> titles) throws IOException {
+		final List<String> list = new ArrayList<String>();
+		
+		titles.forEach(list::add);
+		w.writeVarInt(list.size());
+		
+		for(String t: list)
+			w.writeString(t);
+	}
+	
+	/**
+	 * Writes a list of renames.
+	 *
+	 * @param w The writer
+	 * @param renames The map from the old titles to the new titles
+	 *
+	 * @throws IOException If an output exception occurs
+	 */
+	private static void writeRenames(Writer w, Map<String, String> renames) throws IOException {
+		w.writeVarInt(renames.size());
+		
+		for(Map.Entry<String, String> e: renames.entrySet()) {
+			w.writeString(e.getKey());
+			w.writeString(e.getValue());
+		}
+	}
+	
+	/**
+	 * Buffered writer for the codec primitives.
+	 * <blockquote>The buffer is zeroed when the writer is closed, as it may hold passwords.</blockquote>
+	 */
+	public static class Writer implements AutoCloseable {
+		/**
+		 * The output stream.
+		 */
+		private final OutputStream out;
+		
+		/**
+		 * The output buffer.
+		 */
+		private final byte[] buf = new byte[8192];
+		
+		/**
+		 * The number of buffered bytes.
+		 */
+		private int len = 0;
+		
+		/**
+		 * Initializes a new instance of this class.
+		 *
+		 * @param out The output stream
+		 */
+		public Writer(OutputStream out) {
+			this.out = out;
+		}
+		
+		/**
+		 * Writes a byte.
+		 *
+		 * @param b The byte to write
+		 *
+		 * @throws IOException If an output exception occurs
+		 */
+		public void writeByte(int b) throws IOException {
+			if(len == buf.length)
+				drain();
+			
+			buf[len++] = (byte)b;
+		}
+		
+		/**
+		 * Writes an array of bytes.
+		 *
+		 * @param b The bytes to write
+		 *
+		 * @throws IOException If an output exception occurs
+		 */
+		public void write(byte[] b) throws IOException {
+			write(b, 0, b.length);
+		}
+		
+		/**
+		 * Writes a range of an array of bytes.
+		 *
+		 * @param b The bytes to write
+		 * @param off The offset of the first byte
+		 * @param count The number of bytes
+		 *
+		 * @throws IOException If an output exception occurs
+		 */
+		public void write(byte[] b, int off, int count) throws IOException {
+			for(final int end = off + count; off < end;) {
+				if(len == buf.length)
+					drain();
+				
+				int n = Math.min(end - off, buf.length - len);
+				
+				System.arraycopy(b, off, buf, len, n);
+				len += n;
+				off += n;
+			}
+		}
+		
+		/**
+		 * Writes a non-negative integer as an unsigned varint.
+		 *
+		 * @param value The value to write
+		 *
+		 * @throws IOException If an output exception occurs
+		 */
+		public void writeVarInt(int value) throws IOException {
+			if(len + 5 > buf.length)
+				drain();
+			
+			while((value & ~0x7F) != 0) {
+				buf[len++] = (byte)((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			
+			buf[len++] = (byte)value;
+		}
+		
+		/**
+		 * Writes a non-negative long integer as an unsigned varint.
+		 *
+		 * @param value The value to write
+		 *
+		 * @throws IOException If an output exception occurs
+		 */
+		public void writeVarLong(long value) throws IOException {
+			if(len + 10 > buf.length)
+				drain();
+			
+			while((value & ~0x7FL) != 0) {
+				buf[len++] = (byte)((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			
+			buf[len++] = (byte)value;
+		}
+		
+		/**
+		 * Writes a string as its UTF-8 length plus one, followed by its UTF-8 bytes.
+		 *
+		 * @param value The string to write, possibly <code>null</code>
+		 *
+		 * @throws IOException If an output exception occurs
+		 */
+		public void writeString(String value) throws IOException {
+			if(value == null)
+				writeVarInt(0);
+			else {
+				byte[] b = value.getBytes(StandardCharsets.UTF_8);
+				
+				writeVarInt(b.length + 1);
+				write(b);
+			}
+		}
+		
+		/**
+		 * Writes characters as their UTF-8 length followed by their UTF-8 bytes.
+		 * <blockquote>The characters are encoded straight into the buffer, without intermediate copies.</blockquote>
+		 *
+		 * @param value The characters to write
+		 *
+		 * @throws IOException If an output exception occurs
+		 */
+		public void writeChars(char[] value) throws IOException {
+			writeChars(CharBuffer.wrap(value));
+		}
+		
+		/**
+		 * Writes characters as their UTF-8 length followed by their UTF-8 bytes.
+		 * <blockquote>The remaining characters of <code>value</code> are encoded straight into the buffer,
+		 * without intermediate copies; the buffer position is left unchanged.</blockquote>
+		 *
+		 * @param value The characters to write
+		 *
+		 * @throws IOException If an output exception occurs
+		 */
+		public void writeChars(CharBuffer value) throws IOException {
+			final int p = value.position();
+			int n = 0;
+			
+			for(int i = 0; i < value.remaining(); i++) {
+				char c = value.get(p + i);
+				
+				if(c < 0x80)
+					n += 1;
+				else if(c < 0x800)
+					n += 2;
+				else if(Character.isHighSurrogate(c) && i + 1 < value.remaining() && Character.isLowSurrogate(value.get(p + i + 1))) {
+					n += 4;
+					i++;
+				} else
+					n += 3;
+			}
+			
+			writeVarInt(n);
+			
+			for(int i = 0; i < value.remaining(); i++) {
+				char c = value.get(p + i);
+				
+				if(len + 4 > buf.length)
+					drain();
+				
+				if(c < 0x80)
+					buf[len++] = (byte)c;
+				else if(c < 0x800) {
+					buf[len++] = (byte)(0xC0 | (c >> 6));
+					buf[len++] = (byte)(0x80 | (c & 0x3F));
+				} else if(Character.isHighSurrogate(c) && i + 1 < value.remaining() && Character.isLowSurrogate(value.get(p + i + 1))) {
+					int cp = Character.toCodePoint(c, value.get(p + ++i));
+					
+					buf[len++] = (byte)(0xF0 | (cp >> 18));
+					buf[len++] = (byte)(0x80 | ((cp >> 12) & 0x3F));
+					buf[len++] = (byte)(0x80 | ((cp >> 6) & 0x3F));
+					buf[len++] = (byte)(0x80 | (cp & 0x3F));
+				} else {
+					buf[len++] = (byte)(0xE0 | (c >> 12));
+					buf[len++] = (byte)(0x80 | ((c >> 6) & 0x3F));
+					buf[len++] = (byte)(0x80 | (c & 0x3F));
+				}
+			}
+		}
+		
+		/**
+		 * Writes a password.
+		 *
+		 * @param value The password to write, possibly <code>null</code>
+		 *
+		 * @throws IOException If an output exception occurs or the password type is not supported
+		 */
+		public void writePassword(Password value) throws IOException {
+			if(value == null)
+				writeByte(PASSWORD_NONE);
+			else if(value instanceof TextPassword) {
+				writeByte(PASSWORD_TEXT);
+				((TextPassword)value).withChars(this::writeChars);
+			} else if(value instanceof DirectPassword) {
+				writeByte(PASSWORD_DIRECT);
+				((DirectPassword)value).withChars(this::writeChars);
+			} else
+				throw new IOException("Unsupported password type: " + value.getClass().getName());
+		}
+		
+		/**
+		 * Writes a credential.
+		 * <blockquote>A sealed password is written from a private decrypted copy, destroyed afterwards, so that
+		 * the decrypted password shared with other readers is left untouched.</blockquote>
+		 *
+		 * @param c The credential to write
+		 *
+		 * @throws IOException If an output exception occurs
+		 */
+		public void writeCredential(Credential c) throws IOException {
+			writeString(c.getTitle());
+			writeString(c.getUser());
+			writeString(c.getDescription());
+			
+			final Password copy = c.copySealedPassword();
+			
+			if(copy != null)
+				try {
+					writePassword(copy);
+				} finally {
+					try {
+						copy.destroy();
+					} catch(DestroyFailedException e) {
+						// Plain passwords are always destroyed
+					}
+				}
+			else
+				writePassword(c.getPassword());
+		}
+		
+		/**
+		 * Writes the buffered bytes to the output stream.
+		 *
+		 * @throws IOException If an output exception occurs
+		 */
+		private void drain() throws IOException {
+			out.write(buf, 0, len);
+			Arrays.fill(buf, 0, len, (byte)0);
+			len = 0;
+		}
+		
+		/**
+		 * Writes the buffered bytes and flushes the output stream.
+		 *
+		 * @throws IOException If an output exception occurs
+		 */
+		public void flush() throws IOException {
+			drain();
+			out.flush();
+		}
+		
+		/**
+		 * Flushes the writer and zeroes its buffer.
+		 * <blockquote>The output stream is not closed.</blockquote>
+		 *
+		 * @throws IOException If an output exception occurs
+		 */
+		@Override
+		public void close() throws IOException {
+			try {
+				flush();
+			} finally {
+				Arrays.fill(buf, (byte)0);
+			}
+		}
+	}
+	
+	/**
+	 * Buffered reader for the codec primitives.
+	 * <blockquote>The buffer is zeroed when the reader is closed, as it may hold passwords.</blockquote>
+	 */
+	public static class Reader implements AutoCloseable {
+		/**
+		 * The input stream.
+		 */
+		private final InputStream in;
+		
+		/**
+		 * The input buffer.
+		 */
+		private final byte[] buf = new byte[8192];
+		
+		/**
+		 * The position of the next byte in the buffer.
+		 */
+		private int pos = 0;
+		
+		/**
+		 * The number of buffered bytes.
+		 */
+		private int len = 0;
+		
+		/**
+		 * The seal of the passwords, or null to decrypt them.
+		 */
+		private final PasswordSeal seal;
+		
+		/**
+		 * Initializes a new instance of this class.
+		 *
+		 * @param in The input stream
+		 */
+		public Reader(InputStream in) {
+			this(in, null);
+		}
+		
+		/**
+		 * Initializes a new instance of this class.
+		 *
+		 * @param in The input stream
+		 * @param seal The seal of the passwords, or null to decrypt them
+		 */
+		public Reader(InputStream in, PasswordSeal seal) {
+			this.in = in;
+			this.seal = seal;
+		}
+		
+		/**
+		 * Fills the buffer.
+		 *
+		 * @throws IOException If an input exception occurs
+		 * @throws EOFException If the end of the stream has been reached
+		 */
+		private void fill() throws IOException {
+			Arrays.fill(buf, 0, len, (byte)0);
+			pos = len = 0;
+			
+			int n = in.read(buf);
+			
+			if(n <= 0)
+				throw new EOFException();
+			
+			len = n;
+		}
+		
+		/**
+		 * Reads an unsigned byte.
+		 *
+		 * @return The byte
+		 *
+		 * @throws IOException If an input exception occurs
+		 */
+		public int readByte() throws IOException {
+			if(pos == len)
+				fill();
+			
+			return buf[pos++] & 0xFF;
+		}
+		
+		/**
+		 * Reads bytes until the array is full.
+		 *
+		 * @param b The destination array
+		 *
+		 * @throws IOException If an input exception occurs
+		 */
+		public void readFully(byte[] b) throws IOException {
+			for(int off = 0; off < b.length;) {
+				if(pos == len)
+					fill();
+				
+				int n = Math.min(b.length - off, len - pos);
+				
+				System.arraycopy(buf, pos, b, off, n);
+				pos += n;
+				off += n;
+			}
+		}
+		
+		/**
+		 * Reads a non-negative integer stored as an unsigned varint.
+		 *
+		 * @return The value
+		 *
+		 * @throws IOException If an input exception occurs or the varint is malformed
+		 */
+		public int readVarInt() throws IOException {
+			int value = 0;
+			
+			for(int shift = 0; shift < 32; shift += 7) {
+				int b = readByte();
+				
+				value |= (b & 0x7F) << shift;
+				
+				if((b & 0x80) == 0) {
+					if(value < 0)
+						break;
+					
+					return value;
+				}
+			}
+			
+			throw new StreamCorruptedException("Malformed varint");
+		}
+		
+		/**
+		 * Reads a non-negative long integer stored as an unsigned varint.
+		 *
+		 * @return The value
+		 *
+		 * @throws IOException If an input exception occurs or the varint is malformed
+		 */
+		public long readVarLong() throws IOException {
+			long value = 0;
+			
+			for(int shift = 0; shift < 64; shift += 7) {
+				int b = readByte();
+				
+				value |= (long)(b & 0x7F) << shift;
+				
+				if((b & 0x80) == 0) {
+					if(value < 0)
+						break;
+					
+					return value;
+				}
+			}
+			
+			throw new StreamCorruptedException("Malformed varint");
+		}
+		
+		/**
+		 * Reads a string.
+		 *
+		 * @return The string, possibly <code>null</code>
+		 *
+		 * @throws IOException If an input exception occurs
+		 */
+		public String readString() throws IOException {
+			int n = readVarInt() - 1;
+			
+			if(n < 0)
+				return null;
+			
+			if(len - pos >= n) {
+				String res = new String(buf, pos, n, StandardCharsets.UTF_8);
+				
+				pos += n;
+				
+				return res;
+			}
+			
+			byte[] b = new byte[n];
+			
+			readFully(b);
+			
+			return new String(b, StandardCharsets.UTF_8);
+		}
+		
+		/**
+		 * Reads a string which must not be <code>null</code> or empty.
+		 *
+		 * @return The string
+		 *
+		 * @throws IOException If an input exception occurs or the string is <code>null</code> or empty
+		 */
+		public String readNonNullString() throws IOException {
+			String res = readString();
+			
+			if(res == null || res.isEmpty())
+				throw new StreamCorruptedException("Missing title");
+			
+			return res;
+		}
+		
+		/**
+		 * Reads characters stored as their UTF-8 length followed by their UTF-8 bytes.
+		 * <blockquote>The characters are decoded straight from the buffer, without intermediate copies.</blockquote>
+		 *
+		 * @return The characters
+		 *
+		 * @throws IOException If an input exception occurs or the UTF-8 data is malformed
+		 */
+		public char[] readChars() throws IOException {
+			final int n = readVarInt();
+			char[] res = new char[n];
+			int cnt = 0;
+			
+			for(int i = 0; i < n; i++) {
+				int b = readByte();
+				int cp;
+				
+				if(b < 0x80)
+					cp = b;
+				else if((b & 0xE0) == 0xC0) {
+					cp = ((b & 0x1F) << 6) | readContinuation();
+					i += 1;
+				} else if((b & 0xF0) == 0xE0) {
+					cp = ((b & 0x0F) << 12) | (readContinuation() << 6) | readContinuation();
+					i += 2;
+				} else if((b & 0xF8) == 0xF0) {
+					cp = ((b & 0x07) << 18) | (readContinuation() << 12) | (readContinuation() << 6) | readContinuation();
+					i += 3;
+				} else {
+					Arrays.fill(res, '\0');
+					throw new StreamCorruptedException("Malformed UTF-8 data");
+				}
+				
+				if(i >= n || !Character.isValidCodePoint(cp)) {
+					Arrays.fill(res, '\0');
+					throw new StreamCorruptedException("Malformed UTF-8 data");
+				}
+				
+				cnt += Character.toChars(cp, res, cnt);
+			}
+			
+			if(cnt == n)
+				return res;
+			
+			char[] exact = Arrays.copyOf(res, cnt);
+			
+			Arrays.fill(res, '\0');
+			
+			return exact;
+		}
+		
+		/**
+		 * Reads a UTF-8 continuation byte.
+		 *
+		 * @return The payload bits of the byte
+		 *
+		 * @throws IOException If an input exception occurs or the byte is not a continuation byte
+		 */
+		private int readContinuation() throws IOException {
+			int b = readByte();
+			
+			if((b & 0xC0) != 0x80)
+				throw new StreamCorruptedException("Malformed UTF-8 data");
+			
+			return b & 0x3F;
+		}
+		
+		/**
+		 * Reads a password.
+		 *
+		 * @return The password, possibly <code>null</code>
+		 *
+		 * @throws IOException If an input exception occurs or the password type is not supported
+		 */
+		public Password readPassword() throws IOException {
+			int type = readByte();
+			
+			switch(type) {
+				case PASSWORD_NONE:
+					return null;
+				
+				case PASSWORD_TEXT:
+					return seal != null ? readSealed(TextPassword::new) : new TextPassword(readChars());
+				
+				case PASSWORD_DIRECT:
+					return seal != null ? readSealed(DirectPassword::new) : new DirectPassword(readChars());
+				
+				default:
+					throw new StreamCorruptedException("Unsupported password type: " + type);
+			}
+		}
+		
+		/**
+		 * Reads the UTF-8 bytes of a password, and seals them.
+		 * <blockquote>The bytes are sealed straight from the buffer when possible, without intermediate copies.</blockquote>
+		 *
+		 * @param type Creates the decrypted password from its characters
+		 *
+		 * @return The sealed password
+		 *
+		 * @throws IOException If an input exception occurs
+		 */
+		private Password readSealed(Function<char[], ? extends Password> type) throws IOException {
+			final int n = readVarInt();
+			
+			if(len - pos >= n) {
+				final Password res = seal.seal(buf, pos, n, type);
+				
+				pos += n;
+				
+				return res;
+			}
+			
+			final byte[] b = new byte[n];
+			
+			try {
+				readFully(b);
+				
+				return seal.seal(b, 0, n, type);
+			} finally {
+				Arrays.fill(b, (byte)0);
+			}
+		}
+		
+		/**
+		 * Reads a credential.
+		 *
+		 * @return The credential
+		 *
+		 * @throws IOException If an input exception occurs
+		 */
+		public Credential readCredential() throws IOException {
+			Credential c = new Credential(readNonNullString());
+			String user = readString();
+			String description = readString();
+			Password pass = readPassword();
+			
+			if(user != null)
+				c.setUser(user);
+			
+			if(description != null)
+				c.setDescription(description);
+			
+			if(pass != null)
+				c.setPassword(pass);
+			
+			return c;
+		}
+		
+		/**
+		 * Zeroes the reader buffer.
+		 * <blockquote>The input stream is not closed.</blockquote>
+		 */
+		@Override
+		public void close() {
+			Arrays.fill(buf, (byte)0);
+		}
+	}
+}
@@ -0,0 +1,181 @@
+/*
+ * Lazarus: Credentials management library
+ *     Copyright (C) 2014 Alfredo 'wisedevil' Mungo
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wisedevil.credentials.export.internal;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+import javax.crypto.Cipher;
+
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Holds the cryptographic objects used by the WDC import/export classes, so that they are
+ * looked up once per thread rather than once per call.
+ *
+ * <p>Each thread gets its own context, so contexts are never shared between threads.
+ * A cipher is acquired for a single operation and released once the operation is done;
+ * a cipher acquired while another one is still in use is created anew, so nested operations
+ * are safe.</p>
+ *
+ * <blockquote>Released ciphers are re-initialized with a blank key, so that they don't
+ * retain the key of the last operation.</blockquote>
+ */
+public final class WDCCrypto {
+	/**
+	 * The WDC cipher transformation.
+	 */
+	public static final String TRANSFORMATION = "AES/CBC/PKCS5Padding";
+	
+	/**
+	 * The WDC authenticated cipher transformation.
+	 */
+	public static final String AEAD_TRANSFORMATION = "AES/GCM/NoPadding";
+	
+	/**
+	 * The size of the authenticated cipher nonce.
+	 */
+	public static final int NONCE_SIZE = 12;
+	
+	/**
+	 * The size of the authenticated cipher tag.
+	 */
+	public static final int TAG_SIZE = 16;
+	
+	/**
+	 * The blank key and IV used to reset released ciphers.
+	 */
+	private static final byte[] BLANK = new byte[WDCUtil.IV_SIZE];
+	
+	/**
+	 * The context of each thread.
+	 */
+	private static final ThreadLocal<WDCCrypto> CONTEXT = ThreadLocal.withInitial(WDCCrypto::new);
+	
+	/**
+	 * The random number generator.
+	 */
+	private final SecureRandom random = new SecureRandom();
+	
+	/**
+	 * The idle cipher or <code>null</code> if it is in use.
+	 */
+	private Cipher cipher;
+	
+	/**
+	 * The idle authenticated cipher or <code>null</code> if it is in use.
+	 */
+	private Cipher aeadCipher;
+	
+	/**
+	 * Initializes a new instance of this class.
+	 */
+	private WDCCrypto() {}
+	
+	/**
+	 * Returns the context of the current thread.
+	 *
+	 * @return The crypto context
+	 */
+	public static WDCCrypto get() { return CONTEXT.get(); }
+	
+	/**
+	 * Fills an array with random bytes.
+	 *
+	 * @param bytes The array to fill
+	 */
+	public void nextBytes(byte[] bytes) { random.nextBytes(bytes); }
+	
+	/**
+	 * Acquires a cipher, initialized for a single operation.
+	 * <blockquote>The cipher must be released by the same thread once the operation is done.</blockquote>
+	 *
+	 * @param mode The cipher mode, either {@link Cipher#ENCRYPT_MODE} or {@link Cipher#DECRYPT_MODE}
+	 * @param key The AES key
+	 * @param iv The IV
+	 *
+	 * @return The initialized cipher
+	 *
+	 * @throws GeneralSecurityException If the cipher is not available or cannot be initialized
+	 *
+	 * @see #release(Cipher)
+	 */
+	public Cipher acquire(int mode, byte[] key, byte[] iv) throws GeneralSecurityException {
+		Cipher c = cipher;
+		
+		cipher = null;
+		
+		if(c == null)
+			c = Cipher.getInstance(TRANSFORMATION);
+		
+		c.init(mode, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+		
+		return c;
+	}
+	
+	/**
+	 * Acquires an authenticated cipher, initialized for a single operation.
+	 * <blockquote>The cipher must be released by the same thread once the operation is done.</blockquote>
+	 *
+	 * @param mode The cipher mode, either {@link Cipher#ENCRYPT_MODE} or {@link Cipher#DECRYPT_MODE}
+	 * @param key The AES key
+	 * @param nonce The nonce, which must never be reused with the same key
+	 *
+	 * @return The initialized cipher
+	 *
+	 * @throws GeneralSecurityException If the cipher is not available or cannot be initialized
+	 *
+	 * @see #release(Cipher)
+	 */
+	public Cipher acquireAEAD(int mode, byte[] key, byte[] nonce) throws GeneralSecurityException {
+		Cipher c = aeadCipher;
+		
+		aeadCipher = null;
+		
+		if(c == null)
+			c = Cipher.getInstance(AEAD_TRANSFORMATION);
+		
+		c.init(mode, new SecretKeySpec(key, "AES"), new GCMParameterSpec(TAG_SIZE * 8, nonce));
+		
+		return c;
+	}
+	
+	/**
+	 * Releases a cipher acquired from this context.
+	 *
+	 * @param c The cipher
+	 *
+	 * @see #acquire(int, byte[], byte[])
+	 * @see #acquireAEAD(int, byte[], byte[])
+	 */
+	public void release(Cipher c) {
+		try {
+			if(AEAD_TRANSFORMATION.equals(c.getAlgorithm())) {
+				c.init(Cipher.DECRYPT_MODE, new SecretKeySpec(BLANK, "AES"), new GCMParameterSpec(TAG_SIZE * 8, BLANK, 0, NONCE_SIZE));
+				aeadCipher = c;
+			} else {
+				c.init(Cipher.DECRYPT_MODE, new SecretKeySpec(BLANK, "AES"), new IvParameterSpec(BLANK));
+				cipher = c;
+			}
+		} catch(GeneralSecurityException e) {
+			// The cipher is dropped
+		}
+	}
+}
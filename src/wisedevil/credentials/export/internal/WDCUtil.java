@@ -17,25 +17,80 @@
  */
 package wisedevil.credentials.export.internal;
 
+import java.io.IOException;
+
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 
 import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
 import java.util.Arrays;
 
+import wisedevil.credentials.ConcurrentCredentialDatabase;
+import wisedevil.credentials.CredentialDatabase;
+import wisedevil.credentials.TextPassword;
+
 /**
  * Contains utilities for the WDC import/export classes.
  *
  * @see wisedevil.credentials.export.WDCExporter
  */
 public class WDCUtil {
+	/**
+	 * The magic number at the beginning of a WDC stream.
+	 */
+	public static final byte[] STREAM_MAGIC = { 'W', 'D', 'C' };
+	
+	/**
+	 * The WDC stream format version.
+	 * <blockquote>Version 3 streams record the compression codec and level in their header.</blockquote>
+	 */
+	public static final byte STREAM_VERSION = 3;
+	
+	/**
+	 * The version of WDC streams encrypted in authenticated chunks, see {@link ChunkedCipherOutputStream}.
+	 */
+	public static final byte STREAM_VERSION_CHUNKED = 2;
+	
+	/**
+	 * The version of WDC streams encrypted as a whole with AES/CBC.
+	 */
+	public static final byte STREAM_VERSION_CBC = 1;
+	
+	/**
+	 * The default size of the plain chunks of a WDC stream.
+	 */
+	public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+	
+	/**
+	 * The maximum size of the plain chunks of a WDC stream.
+	 */
+	public static final int MAX_CHUNK_SIZE = 16 * 1024 * 1024;
+	
+	/**
+	 * The size of the random nonce prefix of a chunked WDC stream.
+	 */
+	public static final int NONCE_PREFIX_SIZE = 8;
+	
+	/**
+	 * The size of the AES encryption IV.
+	 */
+	public static final int IV_SIZE = 16;
+	
 	/**
 	 * Returns an MD-5 digest of the database encryption password.
-	 * <blockquote>This algorithm performs an MD-5 hash on a UTF-8 representation of the password.</blockquote>
+	 * <blockquote>This algorithm performs an MD-5 hash on a UTF-8 representation of the password.
+	 * The UTF-8 representation is wiped once hashed.</blockquote>
 	 *
 	 * @param pass The plain encryption password
 	 *
@@ -45,11 +100,93 @@ public class WDCUtil {
 	 */
 	public static byte[] passToDigest(char[] pass) throws NoSuchAlgorithmException {
 		// FIXME: Enhance security for this method
-		Charset cs = Charset.forName("UTF-8");
 		MessageDigest md = MessageDigest.getInstance("MD5");
-		ByteBuffer bbuf = cs.encode(CharBuffer.wrap(pass));
-		byte[] bpass = Arrays.copyOf(bbuf.array(), bbuf.remaining());
+		CharsetEncoder enc = Charset.forName("UTF-8").newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		
+		// Encode into a buffer of the maximum size, so that no unwiped buffer is ever discarded
+		ByteBuffer bbuf = ByteBuffer.allocate((int)(pass.length * enc.maxBytesPerChar()));
+		
+		try {
+			enc.encode(CharBuffer.wrap(pass), bbuf, true);
+			enc.flush(bbuf);
+			bbuf.flip();
+			md.update(bbuf);
+			
+			return md.digest();
+		} finally {
+			Arrays.fill(bbuf.array(), (byte)0);
+		}
+	}
+	
+	/**
+	 * Returns an MD-5 digest of the database encryption password.
+	 * <blockquote>The copy of the password data is wiped once hashed.</blockquote>
+	 *
+	 * @param pass The encryption password
+	 *
+	 * @return The database encryption password digest
+	 *
+	 * @throws NoSuchAlgorithmException If the platform doesn't support MD-5
+	 *
+	 * @see #passToDigest(char[])
+	 */
+	public static byte[] passToDigest(TextPassword pass) throws NoSuchAlgorithmException {
+		char[] data = pass.get();
 		
-		return md.digest(bpass);
+		try {
+			return passToDigest(data);
+		} finally {
+			Arrays.fill(data, '\0');
+		}
+	}
+	
+	/**
+	 * Returns the credential database to export in place of a database.
+	 * <blockquote>A {@link ConcurrentCredentialDatabase} is exported from a snapshot, so that its writers can keep
+	 * going while it is encoded. Other databases are not thread-safe, and are exported as they are.</blockquote>
+	 *
+	 * @param db The credential database
+	 *
+	 * @return A snapshot of <code>db</code>, or <code>db</code> itself
+	 *
+	 * @see CredentialDatabase#snapshot()
+	 */
+	public static CredentialDatabase exportView(CredentialDatabase db) {
+		return db instanceof ConcurrentCredentialDatabase ? db.snapshot() : db;
+	}
+	
+	/**
+	 * Creates a temporary file in the same directory of a file, to be later moved over it.
+	 *
+	 * @param path The path of the file to replace
+	 *
+	 * @return The temporary file path
+	 *
+	 * @throws IOException If the file cannot be created
+	 *
+	 * @see #replaceFile(Path, Path)
+	 */
+	public static Path createTempFile(Path path) throws IOException {
+		Path dir = path.toAbsolutePath().getParent();
+		
+		return Files.createTempFile(dir, path.getFileName().toString() + ".", ".tmp");
+	}
+	
+	/**
+	 * Replaces a file with a temporary file, atomically if supported by the file system.
+	 *
+	 * @param tmp The temporary file path
+	 * @param path The path of the file to replace
+	 *
+	 * @throws IOException If the file cannot be replaced
+	 */
+	public static void replaceFile(Path tmp, Path path) throws IOException {
+		try {
+			Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch(AtomicMoveNotSupportedException e) {
+			Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+		}
 	}
 }
@@ -0,0 +1,51 @@
+/*
+ * Lazarus: Credentials management library
+ *     Copyright (C) 2014 Alfredo 'wisedevil' Mungo
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wisedevil.credentials.export.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * A byte array output stream whose buffer can be accessed in place and wiped.
+ * <blockquote>This avoids leaving plain copies of sensitive data behind, as
+ * {@link ByteArrayOutputStream#toByteArray()} and {@link ByteArrayOutputStream#reset()} do.</blockquote>
+ */
+public class WipeableByteArrayOutputStream extends ByteArrayOutputStream {
+	/**
+	 * Initializes a new instance of this class.
+	 */
+	public WipeableByteArrayOutputStream() {
+		super();
+	}
+	
+	/**
+	 * Returns the internal buffer.
+	 * <blockquote>Only the first {@link #size()} bytes are valid.</blockquote>
+	 *
+	 * @return The internal buffer
+	 */
+	public byte[] buffer() { return buf; }
+	
+	/**
+	 * Zeroes the internal buffer and resets the stream.
+	 */
+	public void wipe() {
+		Arrays.fill(buf, (byte)0);
+		reset();
+	}
+}
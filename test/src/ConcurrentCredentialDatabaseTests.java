@@ -0,0 +1,388 @@
+import wisedevil.test.annotation.*;
+import wisedevil.test.result.*;
+import static wisedevil.test.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import wisedevil.credentials.*;
+
+@Name("ConcurrentCredentialDatabase methods")
+@ResultManager(ConsoleResultManager.class)
+public class ConcurrentCredentialDatabaseTests {
+	static final int THREADS = 8;
+	
+	ConcurrentCredentialDatabase cd;
+	
+	public void setup() {
+		cd = new ConcurrentCredentialDatabase();
+		
+		cd.add(new Credential("First"));
+		cd.add(new Credential("Second"));
+		cd.add(new Keyring("First"));
+	}
+	
+	public void cleanup() {
+		cd = null;
+	}
+	
+	/**
+	 * Runs a task on several threads at once and waits for them.
+	 */
+	static void parallel(Runnable task) throws InterruptedException {
+		final CountDownLatch start = new CountDownLatch(1);
+		final List<Thread> threads = new ArrayList<Thread>();
+		
+		for(int i = 0; i < THREADS; i++) {
+			Thread t = new Thread(() -> {
+				try {
+					start.await();
+				} catch(InterruptedException e) {
+					return;
+				}
+				
+				task.run();
+			});
+			
+			t.start();
+			threads.add(t);
+		}
+		
+		start.countDown();
+		
+		for(Thread t : threads)
+			t.join();
+	}
+	
+	@Test
+	public void find_test() {
+		Credential c = cd.findCredential("Second");
+		
+		assert c != null && cd.findKeyring("First") != null;
+		
+		c.setTitle("Renamed");
+		assert cd.findCredential("Second") == null: "Old title still indexed";
+		assert cd.findCredential("Renamed") == c: "New title not indexed";
+		
+		c.setTitle("First");
+		assert cd.findCredential("Renamed") == c: "Conflicting rename not reverted";
+		assert !cd.add(new Credential("First")): "Duplicate credential added";
+	}
+	
+	@Test
+	public void unique_add_test() {
+		final AtomicInteger added = new AtomicInteger();
+		
+		try {
+			parallel(() -> {
+				for(int i = 0; i < 1000; i++)
+					if(cd.add(new Credential("title" + i)))
+						added.incrementAndGet();
+			});
+		} catch(InterruptedException e) {
+			fail();
+		}
+		
+		assert added.get() == 1000: "Duplicate titles added: " + added.get();
+		assert cd.getCredentialsStream().count() == 1002;
+	}
+	
+	@Test
+	public void concurrent_rename_test() {
+		final List<Credential> cs = new ArrayList<Credential>();
+		
+		for(int i = 0; i < THREADS; i++) {
+			Credential c = new Credential("rename" + i);
+			
+			cd.add(c);
+			cs.add(c);
+		}
+		
+		final AtomicInteger next = new AtomicInteger();
+		
+		try {
+			// Every thread renames its own credential to the same title
+			parallel(() -> cs.get(next.getAndIncrement()).setTitle("Target"));
+		} catch(InterruptedException e) {
+			fail();
+		}
+		
+		assert cs.stream().filter(c -> c.getTitle().equals("Target")).count() == 1: "Title taken twice";
+		assert cd.findCredential("Target").getTitle().equals("Target");
+		
+		for(Credential c : cs)
+			assert cd.findCredential(c.getTitle()) == c: "Index out of sync for " + c.getTitle();
+	}
+	
+	@Test
+	public void concurrent_tracking_test() {
+		cd.clearModified();
+		
+		final AtomicInteger next = new AtomicInteger();
+		
+		try {
+			parallel(() -> {
+				final int t = next.getAndIncrement();
+				
+				for(int i = 0; i < 500; i++) {
+					Credential c = new Credential("t" + t + "_" + i);
+					
+					cd.add(c);
+					c.setUser("user");
+					
+					if(i % 2 == 0)
+						cd.remove(c);
+					
+					cd.getModifiedCredentials().forEach(x -> {});
+				}
+			});
+		} catch(InterruptedException e) {
+			fail();
+		}
+		
+		int n = 0;
+		
+		for(Credential c : cd.getModifiedCredentials()) {
+			assert cd.findCredential(c.getTitle()) == c: "Removed credential still tracked";
+			n++;
+		}
+		
+		assert n == THREADS * 250: "Wrong modified count: " + n;
+		assert !cd.getRemovedCredentials().iterator().hasNext(): "Added and removed credentials reported";
+		
+		cd.clearModified();
+		assert !cd.isModified();
+	}
+	
+	@Test
+	public void serialization_test() {
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			
+			try(ObjectOutputStream oos = new ObjectOutputStream(out)) {
+				oos.writeObject(cd);
+			}
+			
+			try(ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+				ConcurrentCredentialDatabase db = (ConcurrentCredentialDatabase)ois.readObject();
+				
+				assert db.findCredential("Second") != null;
+				assert !db.isModified();
+				assert db.add(new Credential("Third")): "Deserialized database not usable";
+			}
+		} catch(Exception e) {
+			e.printStackTrace();
+			fail();
+		}
+	}
+	
+	@Test
+	public void snapshot_test() {
+		final AtomicInteger next = new AtomicInteger();
+		final List<CredentialDatabase> snapshots = new ArrayList<CredentialDatabase>();
+		
+		try {
+			parallel(() -> {
+				final int t = next.getAndIncrement();
+				
+				for(int i = 0; i < 300; i++) {
+					if(t == 0 && i % 30 == 0) {
+						CredentialDatabase s = cd.snapshot();
+						
+						synchronized(snapshots) {
+							snapshots.add(s);
+						}
+					}
+					
+					Credential c = new Credential("s" + t + "_" + i);
+					
+					cd.add(c);
+					cd.findKeyring("First").getTitle();
+					
+					if(i % 3 == 0)
+						cd.remove(c);
+				}
+			});
+		} catch(InterruptedException e) {
+			fail();
+		}
+		
+		assert snapshots.size() == 10;
+		
+		for(CredentialDatabase s : snapshots)
+			assert s.getCredentialsStream().allMatch(c -> s.findCredential(c.getTitle()) == c): "Inconsistent snapshot";
+		
+		assert cd.snapshot().getCredentialsStream().count() == cd.getCredentialsStream().count();
+	}
+	
+	@Test
+	public void snapshot_rename_test() {
+		final Credential c = cd.findCredential("Second");
+		final Keyring k = cd.findKeyring("First");
+		final AtomicInteger next = new AtomicInteger();
+		final AtomicInteger inconsistent = new AtomicInteger();
+		
+		k.add(c);
+		
+		try {
+			parallel(() -> {
+				final int t = next.getAndIncrement();
+				
+				for(int i = 0; i < 2000; i++)
+					if(t == 0)
+						// Renames to "First" are rejected and restored
+						c.setTitle(i % 2 == 0 ? "First" : "Second" + i);
+					else if(t == 1) {
+						CredentialDatabase s = cd.snapshot();
+						
+						if(s.getCredentialsStream().anyMatch(x -> s.findCredential(x.getTitle()) != x))
+							inconsistent.incrementAndGet();
+						
+						if(!s.findKeyring("First").stream().allMatch(x -> s.findCredential(x.getTitle()) == x))
+							inconsistent.incrementAndGet();
+					}
+			});
+		} catch(InterruptedException e) {
+			fail();
+		}
+		
+		assert inconsistent.get() == 0: "Snapshots with half applied renames: " + inconsistent.get();
+		assert cd.findCredential(c.getTitle()) == c;
+	}
+	
+	@Test
+	public void listener_test() {
+		final AtomicInteger added = new AtomicInteger();
+		final AtomicInteger next = new AtomicInteger();
+		
+		cd.addChangeListener(events -> events.forEach(e -> {
+			if(e.getType() == ChangeEvent.Type.ADDED)
+				added.incrementAndGet();
+		}));
+		
+		try {
+			parallel(() -> {
+				final int t = next.getAndIncrement();
+				
+				for(int i = 0; i < 200; i++)
+					cd.add(new Credential("l" + t + "_" + i));
+			});
+		} catch(InterruptedException e) {
+			fail();
+		}
+		
+		assert added.get() == THREADS * 200: "Lost events: " + added.get();
+	}
+	
+	@Test
+	public void transaction_test() {
+		final AtomicInteger next = new AtomicInteger();
+		final AtomicInteger failed = new AtomicInteger();
+		
+		try {
+			// Every thread tries to claim the same titles in one transaction
+			parallel(() -> {
+				final int t = next.getAndIncrement();
+				final DatabaseTransaction tx = cd.begin();
+				
+				for(int i = 0; i < 100; i++)
+					tx.add(new Credential("tx" + i, "owner" + t, null));
+				
+				try {
+					tx.commit();
+				} catch(IllegalStateException e) {
+					failed.incrementAndGet();
+				}
+			});
+		} catch(InterruptedException e) {
+			fail();
+		}
+		
+		assert failed.get() == THREADS - 1: "Transactions not atomic: " + failed.get() + " failed";
+		
+		final String owner = cd.findCredential("tx0").getUser();
+		
+		for(int i = 0; i < 100; i++)
+			assert cd.findCredential("tx" + i).getUser().equals(owner): "Transactions interleaved";
+	}
+	
+	@Test
+	public void concurrent_index_test() {
+		final AtomicInteger next = new AtomicInteger();
+		final Credential shared = cd.findCredential("Second");
+		
+		try {
+			parallel(() -> {
+				final int t = next.getAndIncrement();
+				final Keyring k = new Keyring("k" + t);
+				
+				cd.add(k);
+				k.add(shared);
+				
+				for(int i = 0; i < 200; i++) {
+					Credential c = new Credential("t" + t + "_" + i, "shared", null);
+					
+					cd.add(c);
+					k.add(c);
+					
+					if(i % 2 == 0)
+						c.setUser("t" + t);
+				}
+			});
+		} catch(InterruptedException e) {
+			fail();
+		}
+		
+		int n = 0;
+		
+		for(Credential c : cd.findCredentialsByUser("shared")) {
+			assert c.getUser().equals("shared");
+			n++;
+		}
+		
+		assert n == THREADS * 100: "Wrong indexed count: " + n;
+		n = 0;
+		
+		for(Keyring k : cd.findKeyrings(shared)) {
+			assert cd.findKeyring(k.getTitle()) == k;
+			n++;
+		}
+		
+		assert n == THREADS: "Wrong keyring count: " + n;
+		
+		for(Keyring k : cd.findKeyrings(shared))
+			assert cd.countCredentials(Collections.singleton(k), Collections.emptySet(), Collections.emptySet()) == 201;
+	}
+	
+	@Test
+	public void concurrent_search_test() {
+		final AtomicInteger next = new AtomicInteger();
+		
+		try {
+			parallel(() -> {
+				final int t = next.getAndIncrement();
+				
+				for(int i = 0; i < 200; i++) {
+					Credential c = new Credential("t" + t + "_" + i);
+					
+					cd.add(c);
+					c.setDescription("shared word" + t + " draft");
+					c.setDescription("shared word" + t);
+					cd.searchCredentials("shared", 10);
+				}
+			});
+		} catch(InterruptedException e) {
+			fail();
+		}
+		
+		assert cd.searchCredentials("shared", THREADS * 1000).size() == THREADS * 200;
+		assert cd.searchCredentials("draft", 10).isEmpty(): "Stale words indexed";
+		assert cd.searchCredentials("word3 word5", 1000).size() == 400;
+	}
+}
@@ -2,7 +2,11 @@ import wisedevil.test.annotation.*;
 import wisedevil.test.result.*;
 import static wisedevil.test.Assert.*;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 import wisedevil.credentials.*;
 
 @Name("CredentialDatabase methods")
@@ -125,4 +129,579 @@ public class CredentialDatabaseTests {
 				fail();
 		});
 	}
+	
+	@Test
+	public void find_test() {
+		Credential c = cd.findCredential("Second");
+		Keyring k = cd.findKeyring("Second");
+		
+		assert c != null && c.getTitle().equals("Second");
+		assert k != null && k.getTitle().equals("Second");
+		assert cd.findCredential("Fourth") == null;
+		assert cd.findKeyring("Third") == null;
+		
+		c.setTitle("Renamed");
+		assert cd.findCredential("Second") == null: "Old title still indexed";
+		assert cd.findCredential("Renamed") == c: "New title not indexed";
+		
+		c.setTitle("First");
+		assert cd.findCredential("Renamed") == c: "Conflicting rename not reverted";
+		assert cd.findCredential("First") != c;
+		
+		assert cd.remove(c);
+		assert cd.findCredential("Renamed") == null;
+		assert !cd.add(new Keyring("First")): "Duplicate keyring added";
+	}
+	
+	@Test
+	public void modified_tracking_test() {
+		cd.clearModified();
+		assert !cd.isModified(): "Database still modified after clear";
+		assert !cd.getModifiedCredentials().iterator().hasNext();
+		
+		Credential c = cd.findCredential("Second");
+		c.setUser("user");
+		assert cd.isModified();
+		
+		Iterator<Credential> it = cd.getModifiedCredentials().iterator();
+		assert it.next() == c && !it.hasNext(): "Wrong modified credentials";
+		assert !cd.getModifiedKeyrings().iterator().hasNext();
+		
+		cd.clearModified();
+		cd.findKeyring("First").add(c);
+		assert cd.getModifiedKeyrings().iterator().next() == cd.findKeyring("First");
+		
+		cd.clearModified();
+		cd.remove(c);
+		assert cd.isModified(): "Removal not tracked";
+	}
+	
+	@Test
+	public void drain_changes_test() {
+		cd.clearModified();
+		
+		final Credential c = cd.findCredential("First");
+		final Credential d = new Credential("Fourth");
+		
+		c.setTitle("Renamed");
+		cd.add(d);
+		cd.remove(cd.findCredential("Second"));
+		
+		final DatabaseChanges changes = cd.drainChanges(false);
+		
+		assert !cd.isModified(): "Database still modified after drain";
+		assert changes.getRenamedCredentials().get("First").equals("Renamed");
+		assert changes.getRemovedCredentials().iterator().next().equals("Second");
+		assert changes.getModifiedCredentials().stream().anyMatch(x -> x.getTitle().equals("Fourth"));
+		assert changes.getModifiedCredentials().stream().noneMatch(x -> x == c || x == d): "Live records returned";
+		
+		// Changes made after the drain are merged with the restored ones
+		c.setTitle("Again");
+		cd.findCredential("Third").setUser("user");
+		changes.restore();
+		
+		assert cd.isModified();
+		assert cd.getRenamedCredentials().size() == 1 && cd.getRenamedCredentials().get("First").equals("Again");
+		assert cd.getRemovedCredentials().iterator().next().equals("Second");
+		assert cd.getChanges().getModifiedCredentials().size() == 3;
+		assertException(changes::restore, IllegalStateException.class);
+		assertException(cd.getChanges()::restore, IllegalStateException.class);
+		
+		// Drained additions removed meanwhile leave no trace
+		cd.clearModified();
+		cd.add(new Credential("Fifth"));
+		
+		final DatabaseChanges added = cd.drainChanges(false);
+		
+		cd.remove(cd.findCredential("Fifth"));
+		added.restore();
+		assert !cd.getRemovedCredentials().iterator().hasNext();
+		assert !cd.getModifiedCredentials().iterator().hasNext();
+	}
+	
+	@Test
+	public void snapshot_test() {
+		final Credential c = cd.findCredential("First");
+		final Keyring k = cd.findKeyring("First");
+		
+		k.add(c);
+		
+		final CredentialDatabase s1 = cd.snapshot();
+		
+		c.setUser("changed");
+		cd.add(new Credential("Fourth"));
+		cd.remove(cd.findCredential("Second"));
+		
+		assert s1.findCredential("First").getUser() == null: "Snapshot sees later changes";
+		assert s1.findCredential("Fourth") == null && s1.findCredential("Second") != null;
+		assert s1.findCredential("First") != c: "Snapshot shares live records";
+		assert s1.findKeyring("First").stream().anyMatch(x -> x == s1.findCredential("First")): "Keyring members not shared";
+		assert !s1.isModified();
+		
+		final CredentialDatabase s2 = cd.snapshot();
+		
+		assert s2.findCredential("First").getUser().equals("changed");
+		assert s2.findCredential("Third") == s1.findCredential("Third"): "Unchanged copy not shared";
+		assert s2.findCredential("Third").getUser() == cd.findCredential("Third").getUser(): "Snapshot copy normalized";
+		assert s2.findCredential("Third").getDescription() == cd.findCredential("Third").getDescription();
+		assert s2.findKeyring("Second") == s1.findKeyring("Second"): "Unchanged keyring copy not shared";
+		assert s2.findKeyring("First") != s1.findKeyring("First"): "Keyring copy with stale members shared";
+		
+		assertException(() -> s2.add(new Credential("Fifth")), UnsupportedOperationException.class);
+		assertException(() -> s2.findCredential("Third").setUser("user"), UnsupportedOperationException.class);
+		assertException(() -> s2.findKeyring("First").add(c), UnsupportedOperationException.class);
+		assertNoException(() -> s2.clearModified());
+	}
+	
+	@Test
+	public void listener_test() {
+		final List<ChangeEvent> seen = new ArrayList<ChangeEvent>();
+		final ChangeListener l = events -> seen.addAll(events);
+		final Credential c = cd.findCredential("First");
+		
+		cd.addChangeListener(l);
+		
+		c.setUser("user");
+		c.setPassword(new TextPassword("pass".toCharArray()));
+		c.setTitle("Second"); // Rejected
+		c.setTitle("Renamed");
+		cd.findKeyring("First").add(c);
+		cd.remove(cd.findCredential("Third"));
+		
+		assert seen.size() == 5: "Wrong event count: " + seen;
+		assert seen.get(0).getType() == ChangeEvent.Type.USER && seen.get(0).getCredential() == c && seen.get(0).getNewValue().equals("user");
+		assert seen.get(1).getType() == ChangeEvent.Type.PASSWORD && seen.get(1).getNewValue() == null;
+		assert seen.get(2).getType() == ChangeEvent.Type.TITLE && seen.get(2).getOldValue().equals("First") && seen.get(2).getNewValue().equals("Renamed");
+		assert seen.get(3).getType() == ChangeEvent.Type.MEMBER_ADDED && seen.get(3).getKeyring() == cd.findKeyring("First") && seen.get(3).getCredential() == c;
+		assert seen.get(4).getType() == ChangeEvent.Type.REMOVED && seen.get(4).getCredential().getTitle().equals("Third");
+		
+		cd.removeChangeListener(l);
+		c.setUser("other");
+		assert seen.size() == 5: "Removed listener still called";
+	}
+	
+	@Test
+	public void batch_test() {
+		final List<List<ChangeEvent>> batches = new ArrayList<List<ChangeEvent>>();
+		final Credential c = cd.findCredential("First");
+		
+		cd.addChangeListener(batches::add);
+		cd.batch(() -> {
+			c.setUser("a");
+			c.setUser("b");
+			c.setTitle("Renamed");
+			c.setTitle("First");
+			cd.batch(() -> cd.add(new Credential("Fourth")));
+			c.setDescription("desc");
+		});
+		
+		assert batches.size() == 1: "Batch delivered in " + batches.size() + " parts";
+		
+		final List<ChangeEvent> b = batches.get(0);
+		
+		assert b.size() == 3: "Changes not coalesced: " + b;
+		assert b.get(0).getType() == ChangeEvent.Type.USER && b.get(0).getOldValue() == null && b.get(0).getNewValue().equals("b");
+		assert b.get(1).getType() == ChangeEvent.Type.ADDED && b.get(1).getCredential().getTitle().equals("Fourth");
+		assert b.get(2).getType() == ChangeEvent.Type.DESCRIPTION;
+		
+		assertException(() -> cd.batch(() -> {
+			c.setUser("c");
+			throw new IllegalStateException();
+		}), IllegalStateException.class);
+		
+		assert batches.size() == 2 && batches.get(1).get(0).getNewValue().equals("c"): "Failed batch not delivered";
+		
+		// Changes with other changes in between keep their order
+		final Credential d = cd.findCredential("Second");
+		
+		cd.batch(() -> {
+			c.setTitle("tmp");
+			d.setTitle("First");
+			c.setTitle("Second");
+		});
+		
+		final List<ChangeEvent> s = batches.get(2);
+		
+		assert s.size() == 3: "Non-consecutive changes coalesced: " + s;
+		assert s.get(0).getSource() == c && s.get(0).getNewValue().equals("tmp");
+		assert s.get(1).getSource() == d && s.get(1).getNewValue().equals("First");
+		assert s.get(2).getSource() == c && s.get(2).getOldValue().equals("tmp") && s.get(2).getNewValue().equals("Second");
+	}
+	
+	@Test
+	public void transaction_test() {
+		final Credential first = cd.findCredential("First");
+		final Credential second = cd.findCredential("Second");
+		final List<Credential> bulk = new ArrayList<Credential>();
+		final List<List<ChangeEvent>> batches = new ArrayList<List<ChangeEvent>>();
+		
+		for(int i = 0; i < 1000; i++)
+			bulk.add(new Credential("bulk" + i));
+		
+		cd.clearModified();
+		cd.addChangeListener(batches::add);
+		
+		// Swap titles, replace a removed credential and rename an added one
+		cd.begin()
+			.rename(first, "Second")
+			.rename(second, "First")
+			.remove(cd.findCredential("Third"))
+			.add(new Credential("Third"))
+			.addAll(bulk)
+			.rename(bulk.get(0), "renamed")
+			.commit();
+		
+		assert cd.findCredential("First") == second && cd.findCredential("Second") == first: "Titles not swapped";
+		assert cd.findCredential("Third") != null;
+		assert cd.findCredential("renamed") == bulk.get(0) && cd.findCredential("bulk0") == null;
+		assert cd.getCredentialsStream().count() == 1003;
+		assert cd.getRenamedCredentials().get("First").equals("Second") && cd.getRenamedCredentials().get("Second").equals("First");
+		assert cd.getRemovedCredentials().iterator().next().equals("Third"): "Replaced credential not reported as removed";
+		assert batches.size() == 1: "Changes not delivered as one batch";
+		
+		// Conflicts leave the database unchanged
+		final DatabaseTransaction tx = cd.begin()
+			.add(new Credential("new"))
+			.rename(first, "Third");
+		
+		assertException(() -> tx.commit(), IllegalStateException.class);
+		assertException(() -> cd.begin().add(new Credential("x")).add(new Credential("x")).commit(), IllegalStateException.class);
+		assertException(() -> cd.begin().rename(first, "y").rename(second, "y").commit(), IllegalStateException.class);
+		assertException(() -> cd.begin().add(new Credential("z")).add(new Keyring("First")).commit(), IllegalStateException.class);
+		
+		assert cd.findCredential("new") == null && first.getTitle().equals("Second"): "Failed transaction applied";
+		assert cd.findCredential("x") == null && cd.findCredential("z") == null: "Failed transaction applied";
+		assert batches.size() == 1;
+		
+		// Records outside the database cannot be renamed
+		final Credential foreign = new Credential("foreign");
+		
+		assertException(() -> cd.begin().rename(foreign, "w").commit(), IllegalStateException.class);
+		assertException(() -> cd.begin().remove(first).rename(first, "w").commit(), IllegalStateException.class);
+		assertException(() -> cd.begin().rename(new Keyring("foreign"), "w").commit(), IllegalStateException.class);
+		
+		assert foreign.getTitle().equals("foreign") && first.getTitle().equals("Second"): "Record outside the database renamed";
+		assert cd.findCredential("Second") == first;
+		assert batches.size() == 1;
+		
+		// Removed and added again, a record can be renamed
+		cd.begin().remove(first).add(first).rename(first, "Again").commit();
+		assert cd.findCredential("Again") == first && cd.findCredential("Second") == null;
+		cd.begin().rename(first, "Second").commit();
+		
+		// Adding a record of the database or renaming it to its own title does nothing
+		cd.begin().add(first).rename(second, "First").add(cd.findKeyring("First")).commit();
+		assert cd.getCredentialsStream().count() == 1003;
+		
+		assertException(() -> cd.snapshot().begin().add(new Credential("z")).commit(), UnsupportedOperationException.class);
+	}
+	
+	@Test
+	public void secondary_index_test() {
+		final Credential first = cd.findCredential("First");
+		final Credential second = cd.findCredential("Second");
+		final Keyring k1 = cd.findKeyring("First");
+		final Keyring k2 = cd.findKeyring("Second");
+		
+		first.setUser("alice");
+		second.setUser("alice");
+		cd.findCredential("Third").setUser("bob");
+		
+		assert count(cd.findCredentialsByUser("alice")) == 2;
+		assert cd.findCredentialsByUser("bob").iterator().next() == cd.findCredential("Third");
+		assert count(cd.findCredentialsByUser("carol")) == 0;
+		
+		second.setUser("carol");
+		assert cd.findCredentialsByUser("alice").iterator().next() == first: "Username change not indexed";
+		assert cd.findCredentialsByUser("carol").iterator().next() == second;
+		
+		k1.add(first);
+		k2.add(first);
+		k2.add(second);
+		
+		assert count(cd.findKeyrings(first)) == 2;
+		assert cd.findKeyrings(second).iterator().next() == k2;
+		assert count(cd.findKeyrings(cd.findCredential("Third"))) == 0;
+		
+		k2.remove(first);
+		assert cd.findKeyrings(first).iterator().next() == k1: "Membership change not indexed";
+		
+		// Snapshots have their own indexes
+		final CredentialDatabase s = cd.snapshot();
+		
+		assert s.findCredentialsByUser("alice").iterator().next() == s.findCredential("First");
+		assert s.findKeyrings(s.findCredential("First")).iterator().next() == s.findKeyring("First");
+		
+		// Removed records are no longer indexed
+		cd.remove(first);
+		cd.remove(k2);
+		
+		assert count(cd.findCredentialsByUser("alice")) == 0;
+		assert count(cd.findKeyrings(second)) == 0;
+		assert cd.findKeyrings(first).iterator().next() == k1: "Keyrings of a removed credential not kept";
+		
+		first.setUser("dave");
+		assert count(cd.findCredentialsByUser("dave")) == 0;
+		
+		cd.begin().add(new Credential("Fourth", "dave", null)).add(k2).commit();
+		assert count(cd.findCredentialsByUser("dave")) == 1;
+		assert cd.findKeyrings(second).iterator().next() == k2;
+		
+		assertException(() -> cd.findCredentialsByUser(null), NullPointerException.class);
+		assertException(() -> cd.findKeyrings(null), NullPointerException.class);
+	}
+	
+	@Test
+	public void search_test() {
+		final Credential first = cd.findCredential("First");
+		final Credential second = cd.findCredential("Second");
+		final Credential third = cd.findCredential("Third");
+		
+		first.setDescription("Production database, EU region");
+		second.setDescription("Staging database");
+		third.setDescription("Production mail server");
+		cd.findKeyring("Second").setDescription("Database admins");
+		
+		List<Credential> res = cd.searchCredentials("production database", 10);
+		
+		assert res.size() == 3 && res.get(0) == first: "Wrong ranking: " + res;
+		assert cd.searchCredentials("PRODUCTION", 10).size() == 2: "Search not case-insensitive";
+		assert cd.searchCredentials("eu-region", 10).get(0) == first;
+		assert cd.searchCredentials("database", 1).size() == 1;
+		assert cd.searchCredentials("database", 0).isEmpty();
+		assert cd.searchCredentials("unknown", 10).isEmpty();
+		assert cd.searchKeyrings("database", 10).get(0) == cd.findKeyring("Second");
+		
+		// Title and description changes are indexed
+		third.setTitle("Mailer");
+		second.setDescription("Staging");
+		
+		assert cd.searchCredentials("mailer", 10).get(0) == third;
+		assert cd.searchCredentials("third", 10).isEmpty();
+		assert cd.searchCredentials("database", 10).size() == 1;
+		
+		// Records added once the indexes are built are indexed too
+		cd.add(new Credential("Added"));
+		assert cd.searchCredentials("added", 10).size() == 1 && cd.findCredentialsByPrefix("add", 10).size() == 1;
+		cd.remove(cd.findCredential("Added"));
+		assert cd.searchCredentials("added", 10).isEmpty() && cd.findCredentialsByPrefix("add", 10).isEmpty();
+		
+		// Rejected renames are not
+		first.setTitle("Mailer");
+		assert cd.searchCredentials("first", 10).get(0) == first && cd.searchCredentials("mailer", 10).size() == 1;
+		
+		// Snapshots are searchable, removed records are not
+		final CredentialDatabase s = cd.snapshot();
+		
+		cd.remove(first);
+		assert cd.searchCredentials("production", 10).size() == 1;
+		assert s.searchCredentials("production", 10).size() == 2;
+		
+		assertException(() -> cd.searchCredentials(null, 1), NullPointerException.class);
+		assertException(() -> cd.searchKeyrings("x", -1), IllegalArgumentException.class);
+	}
+	
+	@Test
+	public void title_lookup_test() {
+		final Credential first = cd.findCredential("First");
+		
+		cd.add(new Credential("Firewall"));
+		cd.add(new Credential("fir"));
+		cd.add(new Credential("Fist"));
+		
+		List<Credential> res = cd.findCredentialsByPrefix("fir", 10);
+		
+		assert res.size() == 3 && res.get(0).getTitle().equals("fir") && res.get(1).getTitle().equals("Firewall") && res.get(2) == first: "Wrong completions: " + res;
+		assert cd.findCredentialsByPrefix("FIRS", 10).get(0) == first;
+		assert cd.findCredentialsByPrefix("firstly", 10).isEmpty();
+		assert cd.findCredentialsByPrefix("x", 10).isEmpty();
+		assert cd.findCredentialsByPrefix("f", 2).size() == 2;
+		assert cd.findCredentialsByPrefix("", 100).size() == 6;
+		assert cd.findKeyringsByPrefix("sec", 10).get(0) == cd.findKeyring("Second");
+		
+		res = cd.findSimilarCredentials("frist", 2, 10);
+		assert res.size() == 2 && res.get(0).getTitle().equals("Fist") && res.get(1) == first: "Wrong fuzzy matches: " + res;
+		assert cd.findSimilarCredentials("frist", 1, 10).size() == 1: "Distance not bounded";
+		assert cd.findSimilarCredentials("first", 0, 10).get(0) == first;
+		assert cd.findSimilarKeyrings("secnd", 1, 10).get(0) == cd.findKeyring("Second");
+		
+		// Title changes are followed
+		first.setTitle("Primary");
+		assert cd.findCredentialsByPrefix("fir", 10).size() == 2;
+		assert cd.findCredentialsByPrefix("prim", 10).get(0) == first;
+		
+		cd.remove(cd.findCredential("fir"));
+		assert cd.findCredentialsByPrefix("fir", 10).get(0).getTitle().equals("Firewall");
+		assert cd.findSimilarCredentials("fir", 1, 10).isEmpty();
+		
+		assertException(() -> cd.findCredentialsByPrefix(null, 1), NullPointerException.class);
+		assertException(() -> cd.findSimilarKeyrings("x", -1, 1), IllegalArgumentException.class);
+	}
+	
+	@Test
+	public void keyring_algebra_test() {
+		final Keyring a = cd.findKeyring("First");
+		final Keyring b = cd.findKeyring("Second");
+		final Keyring c = new Keyring("Third");
+		final List<Credential> cs = new ArrayList<Credential>();
+		
+		for(int i = 0; i < 10000; i++) {
+			Credential x = new Credential("c" + i);
+			
+			cs.add(x);
+			cd.add(x);
+			
+			if(i % 2 == 0)
+				a.add(x);
+			
+			if(i % 3 == 0)
+				b.add(x);
+		}
+		
+		for(int i = 0; i < 10000; i += 5)
+			c.add(cs.get(i));
+		
+		cd.add(c);
+		
+		final List<Keyring> none = Collections.emptyList();
+		
+		// In A and B but not in C: multiples of 6, but not of 5
+		List<Credential> res = cd.findCredentials(Arrays.asList(a, b), none, Collections.singleton(c));
+		
+		assert res.size() == 1667 - 334: "Wrong count: " + res.size();
+		
+		for(Credential x: res) {
+			final int i = Integer.parseInt(x.getTitle().substring(1));
+			
+			assert i % 6 == 0 && i % 5 != 0;
+		}
+		
+		assert cd.countCredentials(none, Arrays.asList(a, b), none) == 5000 + 3334 - 1667;
+		assert cd.countCredentials(none, none, Arrays.asList(a, b, c)) == 3 + 10000 - (5000 + 3334 + 2000 - 1667 - 1000 - 667 + 334);
+		
+		// Membership changes, removals and credentials outside the database
+		final Credential outside = new Credential("outside");
+		
+		a.remove(cs.get(0));
+		a.add(outside);
+		cd.remove(cs.get(2));
+		
+		assert cd.countCredentials(Collections.singleton(a), none, none) == 4998;
+		
+		cd.add(outside);
+		assert cd.findCredentials(Collections.singleton(a), none, Collections.singleton(b)).contains(outside): "Added member not indexed";
+		
+		cd.remove(c);
+		assert cd.countCredentials(Collections.singleton(c), none, none) == 0;
+		assert cd.countCredentials(none, none, Collections.singleton(c)) == cd.getCredentialsStream().count();
+		
+		// Snapshots
+		final CredentialDatabase s = cd.snapshot();
+		
+		assert s.countCredentials(Collections.singleton(s.findKeyring("First")), none, none) == 4999;
+		
+		assertException(() -> cd.findCredentials(null, none, none), NullPointerException.class);
+	}
+	
+	private static long count(Iterable<?> values) {
+		long res = 0;
+		
+		for(Object x: values)
+			res++;
+		
+		return res;
+	}
+	
+	@Test
+	public void query_test() {
+		final Keyring a = cd.findKeyring("First");
+		final Keyring b = cd.findKeyring("Second");
+		
+		for(int i = 0; i < 5000; i++) {
+			Credential x = new Credential("Item" + i, i % 10 == 0 ? "admin" : "user" + i, null);
+			
+			x.setDescription(i % 7 == 0 ? "shared backup key" : "key");
+			cd.add(x);
+			
+			if(i % 2 == 0)
+				a.add(x);
+			
+			if(i % 3 == 0)
+				b.add(x);
+		}
+		
+		// Every source must give the same results as a scan
+		assert cd.query().userIs("admin").inKeyring(a).notInKeyring(b).list().size() == cd.getCredentialsStream().filter(x -> "admin".equals(x.getUser()) && a.stream().anyMatch(y -> y == x) && b.stream().noneMatch(y -> y == x)).count();
+		assert cd.query().userIs("admin").explain().startsWith("USER");
+		assert cd.query().inKeyring(b).notInKeyring(a).explain().startsWith("KEYRING");
+		assert cd.query().descriptionHasWords("Backup shared").list().size() == 715;
+		assert cd.query().descriptionHasWords("backup").titleStartsWith("item7").list().stream().allMatch(x -> x.getTitle().startsWith("Item7") && x.getDescription().contains("backup"));
+		assert cd.query().titleIs("Item42").list().get(0).getUser().equals("user42");
+		assert cd.query().titleIs("Item42").userIs("admin").list().isEmpty();
+		assert cd.query().titleStartsWith("ITEM12").list().size() == 111;
+		assert cd.query().where(x -> x.getTitle().endsWith("99")).list().size() == 50;
+		
+		// Sorting and pages
+		final List<Credential> sorted = cd.query().titleStartsWith("item").inKeyring(a).orderByTitle().list();
+		
+		assert sorted.size() == 2500;
+		
+		for(int i = 1; i < sorted.size(); i++)
+			assert sorted.get(i - 1).getTitle().compareToIgnoreCase(sorted.get(i).getTitle()) < 0: "Unsorted results";
+		
+		final List<Credential> paged = new ArrayList<Credential>();
+		
+		for(int i = 0; i < 26; i++)
+			paged.addAll(cd.query().titleStartsWith("item").inKeyring(a).orderByTitle().page(i, 100).list());
+		
+		assert paged.equals(sorted): "Pages do not add up to the results";
+		assert cd.query().orderByTitle().limit(10).explain().startsWith("PREFIX");
+		
+		final List<Credential> top = cd.query().userIs("admin").orderBy((x, y) -> y.getTitle().compareTo(x.getTitle())).skip(2).limit(3).list();
+		
+		assert top.size() == 3 && top.get(0).getTitle().equals("Item970");
+		
+		// Lazy evaluation: only the needed pages are read
+		final int[] tested = { 0 };
+		
+		assert cd.query().inKeyring(a).where(x -> ++tested[0] > 0).stream().findFirst().isPresent();
+		assert tested[0] < 100: "Whole result set evaluated";
+		
+		// Changes and snapshots
+		final CredentialDatabase s = cd.snapshot();
+		
+		cd.findCredential("Item0").setUser("root");
+		assert cd.query().userIs("admin").list().size() == 499;
+		assert s.query().userIs("admin").list().size() == 500;
+		
+		assertException(() -> cd.query().userIs(null), NullPointerException.class);
+		assertException(() -> cd.query().page(-1, 10), IllegalArgumentException.class);
+	}
+	
+	@Test
+	public void capacity_test() {
+		final Iterable<Credential> view = cd.getCredentials();
+		final DatabaseTransaction tx = cd.begin();
+		
+		tx.add(new Credential("Fourth"));
+		tx.commit();
+		cd.ensureCapacity(100000, 100000);
+		cd.add(new Credential("Fifth"));
+		
+		int n = 0;
+		
+		for(Credential c: view)
+			n++;
+		
+		assert n == 5: "View not updated: " + n;
+		assert cd.findCredential("Fifth") != null;
+		
+		// Hints on an empty database presize the indexes
+		final CredentialDatabase db = new CredentialDatabase();
+		final Iterable<Keyring> keyrings = db.getKeyrings();
+		
+		db.ensureCapacity(1000, 1000);
+		db.add(new Keyring("First"));
+		assert keyrings.iterator().hasNext(): "View of the replaced index";
+	}
 }
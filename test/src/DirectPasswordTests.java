@@ -0,0 +1,130 @@
+import wisedevil.test.result.*;
+import wisedevil.test.annotation.*;
+import static wisedevil.test.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import wisedevil.credentials.*;
+
+@Name("DirectPassword methods test case")
+@ResultManager(ConsoleResultManager.class)
+public class DirectPasswordTests {
+	@Test
+	public void equals_test() {
+		DirectPassword t1, t2, t3, t4;
+		
+		t1 = new DirectPassword("secret".toCharArray());
+		t2 = new DirectPassword("segrat".toCharArray());
+		t3 = new DirectPassword("Secret".toCharArray());
+		t4 = new DirectPassword("secret".toCharArray());
+		
+		assert !t1.equals(t2): "Error detecting difference";
+		assert !t1.equals(t3): "Error detecting case";
+		assert t1.equals(t4): "Error detecting equality";
+		assert t1.hashCode() == t4.hashCode(): "Error hashing equal passwords";
+		assert !t1.equals(new TextPassword("secret".toCharArray())): "Error detecting type";
+	}
+	
+	@Test
+	public void get_test() {
+		DirectPassword t1, t2, t3;
+		char[] src = "first".toCharArray();
+		char[] big = new char[5000];
+		
+		Arrays.fill(big, '\u20ac');
+		
+		t1 = new DirectPassword(src);
+		t2 = new DirectPassword(new char[0]);
+		t3 = new DirectPassword(Arrays.copyOf(big, big.length));
+		
+		assert Arrays.equals(t1.get(), "first".toCharArray());
+		assert t1.length() == 5;
+		assert t2.get().length == 0;
+		assert Arrays.equals(t3.get(), big): "Error storing large password";
+		assert Arrays.equals(src, new char[5]): "Source array not zeroed";
+	}
+	
+	@Test
+	public void with_chars_test() {
+		final DirectPassword t1 = new DirectPassword("first".toCharArray());
+		final StringBuilder seen = new StringBuilder();
+		
+		t1.withChars(chars -> seen.append(chars));
+		t1.withChars(chars -> {
+			assert chars.isReadOnly(): "Writable view lent";
+			assert chars.remaining() == 5: "View not rewound";
+		});
+		
+		assert seen.toString().equals("first");
+		
+		t1.destroy();
+		
+		assertException(new Runnable() {
+			public void run() {
+				t1.withChars(chars -> {});
+			}
+		}, IllegalStateException.class);
+	}
+	
+	@Test
+	public void destroy_test() {
+		final DirectPassword t1 = new DirectPassword("secret".toCharArray());
+		
+		assert !t1.isDestroyed();
+		
+		t1.destroy();
+		t1.destroy();
+		
+		assert t1.isDestroyed();
+		assert !t1.equals(new DirectPassword("secret".toCharArray())): "Destroyed password still equal";
+		
+		assertException(new Runnable() {
+			public void run() {
+				t1.get();
+			}
+		}, IllegalStateException.class);
+		
+		// A freed block must come back zeroed
+		DirectPassword t2 = new DirectPassword(new char[3]);
+		
+		assert Arrays.equals(t2.get(), new char[3]);
+	}
+	
+	@Test
+	public void serialization_test() {
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			
+			try(ObjectOutputStream oos = new ObjectOutputStream(out)) {
+				oos.writeObject(new DirectPassword("serial".toCharArray()));
+			}
+			
+			try(ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+				DirectPassword p = (DirectPassword)ois.readObject();
+				
+				assert Arrays.equals(p.get(), "serial".toCharArray());
+			}
+		} catch(Exception e) {
+			e.printStackTrace();
+			fail();
+		}
+	}
+	
+	@Test
+	public void exceptions_test() {
+		assertException(new Runnable() {
+			public void run() {
+				new DirectPassword(null);
+			}
+		}, NullPointerException.class);
+		
+		assertNoException(new Runnable() {
+			public void run() {
+				new DirectPassword("".toCharArray());
+			}
+		});
+	}
+}
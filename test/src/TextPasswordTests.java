@@ -34,6 +34,49 @@ public class TextPasswordTests {
 		assert t2.get().length == 0;
 	}
 	
+	@Test
+	public void with_chars_test() {
+		final TextPassword t1 = new TextPassword("first".toCharArray());
+		final StringBuilder seen = new StringBuilder();
+		
+		t1.withChars(chars -> seen.append(chars));
+		t1.withChars(chars -> {
+			assert chars.isReadOnly(): "Writable view lent";
+			assert chars.remaining() == 5: "View not rewound";
+			
+			chars.get();
+		});
+		
+		assert seen.toString().equals("first");
+		assert Arrays.equals(t1.get(), "first".toCharArray()): "Password altered by the view";
+	}
+	
+	@Test
+	public void destroy_test() {
+		TextPassword t1 = new TextPassword("secret".toCharArray());
+		TextPassword t2 = new TextPassword(new char[0]);
+		
+		assert !t1.isDestroyed();
+		assert !t2.isDestroyed(): "Empty password reported as destroyed";
+		
+		try {
+			t1.destroy();
+		} catch(Exception e) {
+			fail();
+		}
+		
+		assert t1.isDestroyed();
+		assert Arrays.equals(t1.get(), new char[6]): "Password not zeroed";
+		assertException(() -> t1.withChars(chars -> {}), IllegalStateException.class);
+		
+		// Only destroy() marks a password as destroyed
+		final char[] data = "wiped".toCharArray();
+		final TextPassword t3 = new TextPassword(data);
+		
+		Arrays.fill(data, '\0');
+		assert !t3.isDestroyed(): "Wiped array reported as destroyed";
+	}
+	
 	@Test
 	public void exceptions_test() {
 		assertException(new Runnable() {
@@ -42,6 +85,12 @@ public class TextPasswordTests {
 			}
 		}, NullPointerException.class);
 		
+		assertException(new Runnable() {
+			public void run() {
+				new TextPassword("".toCharArray()).withChars(null);
+			}
+		}, NullPointerException.class);
+		
 		assertNoException(new Runnable() {
 			public void run() {
 				new TextPassword("".toCharArray());
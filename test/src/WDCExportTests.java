@@ -4,19 +4,57 @@ import wisedevil.test.result.*;
 
 import static wisedevil.test.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.lang.reflect.InvocationTargetException;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import wisedevil.credentials.ConcurrentCredentialDatabase;
 import wisedevil.credentials.Credential;
 import wisedevil.credentials.Keyring;
 import wisedevil.credentials.CredentialDatabase;
+import wisedevil.credentials.DirectPassword;
 import wisedevil.credentials.TextPassword;
+import wisedevil.credentials.export.WDCCompression;
 import wisedevil.credentials.export.WDCEncryptionRecord;
 import wisedevil.credentials.export.WDCExporter;
+import wisedevil.credentials.export.WDCFile;
+import wisedevil.credentials.export.WDCRecordFile;
+import wisedevil.credentials.export.WDCRecordReader;
+import wisedevil.credentials.export.WDCSession;
 import wisedevil.credentials.export.WDCImporter;
 import wisedevil.credentials.export.DatabaseExportException;
+import wisedevil.credentials.export.DatabaseImportException;
+
+import wisedevil.credentials.export.internal.ChunkedCipherOutputStream;
+import wisedevil.credentials.export.internal.WDCCodec;
+import wisedevil.credentials.export.internal.WDCCrypto;
 
+import static wisedevil.credentials.export.internal.WDCUtil.NONCE_PREFIX_SIZE;
+import static wisedevil.credentials.export.internal.WDCUtil.STREAM_MAGIC;
+import static wisedevil.credentials.export.internal.WDCUtil.STREAM_VERSION;
+import static wisedevil.credentials.export.internal.WDCUtil.STREAM_VERSION_CBC;
 import static wisedevil.credentials.export.internal.WDCUtil.passToDigest;
 
 @Name("WDCExport test case")
@@ -150,5 +188,941 @@ public class WDCExportTests {
 			fail();
 		}
 	}
-
+	
+	@Test
+	public void stream_export_test() {
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			WDCExporter exporter = new WDCExporter(cd, new TextPassword("hello".toCharArray()));
+			
+			exporter.exportDatabase(out);
+			
+			byte[] raw = out.toByteArray();
+			
+			assert raw[0] == 'W' && raw[1] == 'D' && raw[2] == 'C': "Wrong magic number";
+			assert raw[3] == 3: "Wrong format version";
+			
+			CredentialDatabase dbi = new WDCImporter(new ByteArrayInputStream(raw), new TextPassword("hello".toCharArray())).importDatabase();
+			
+			assert dbi.getCredentialsStream().count() == 3;
+			assert dbi.findKeyring("first").stream().count() == 2;
+			
+			// Version 1 streams are still imported
+			WDCEncryptionRecord rec = exporter.exportDatabase();
+			ByteArrayOutputStream v1 = new ByteArrayOutputStream();
+			
+			v1.write(new byte[] { 'W', 'D', 'C', 1 });
+			v1.write(rec.getIV());
+			v1.write(rec.getData());
+			dbi = new WDCImporter(new ByteArrayInputStream(v1.toByteArray()), new TextPassword("hello".toCharArray())).importDatabase();
+			
+			assert dbi.getCredentialsStream().count() == 3;
+		} catch(Exception e) {
+			e.printStackTrace();
+			fail();
+		}
+	}
+	
+	@Test
+	public void chunked_stream_test() {
+		try {
+			for(int i = 0; i < 1000; i++) {
+				Credential c = new Credential("bulk" + i);
+				
+				c.setUser("user" + i);
+				c.setPassword(new TextPassword(("password" + i).toCharArray()));
+				cd.add(c);
+			}
+			
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			WDCExporter exporter = new WDCExporter(cd, new TextPassword("hello".toCharArray()));
+			
+			exporter.setChunkSize(1024);
+			exporter.setPool(new ForkJoinPool(4));
+			exporter.exportDatabase(out);
+			out.write(new byte[] { 1, 2, 3 });
+			
+			final byte[] raw = out.toByteArray();
+			ByteArrayInputStream in = new ByteArrayInputStream(raw);
+			WDCImporter importer = new WDCImporter(in, new TextPassword("hello".toCharArray()));
+			
+			importer.setPool(new ForkJoinPool(4));
+			
+			CredentialDatabase dbi = importer.importDatabase();
+			
+			assert dbi.getCredentialsStream().count() == 1003;
+			assert dbi.findCredential("bulk999").getPassword().equals(new TextPassword("password999".toCharArray()));
+			assert in.available() == 3: "Stream read past the last chunk";
+			
+			// Tampered and truncated streams are rejected
+			final byte[] tampered = Arrays.copyOf(raw, raw.length);
+			
+			tampered[5000] ^= 1;
+			
+			for(final byte[] bad: new byte[][] { tampered, Arrays.copyOf(raw, raw.length - 2000) })
+				assertException(new Runnable() {
+					public void run() {
+						try {
+							new WDCImporter(new ByteArrayInputStream(bad), new TextPassword("hello".toCharArray())).importDatabase();
+						} catch(DatabaseImportException e) {
+							throw new IllegalStateException(e);
+						}
+					}
+				}, IllegalStateException.class);
+		} catch(Exception e) {
+			e.printStackTrace();
+			fail();
+		}
+	}
+	
+	@Test
+	public void compression_test() {
+		try {
+			for(int i = 0; i < 1000; i++) {
+				Credential c = new Credential("bulk" + i, "user@example.com", null);
+				
+				c.setDescription("Shared account");
+				cd.add(c);
+			}
+			
+			ByteArrayOutputStream plain = new ByteArrayOutputStream();
+			ByteArrayOutputStream packed = new ByteArrayOutputStream();
+			final WDCExporter exporter = new WDCExporter(cd, new TextPassword("hello".toCharArray()));
+			
+			exporter.exportDatabase(plain);
+			exporter.setCompression(WDCCompression.DEFLATE, 6);
+			exporter.exportDatabase(packed);
+			
+			byte[] raw = packed.toByteArray();
+			
+			assert raw[4] == 1 && raw[5] == 6: "Compression not recorded in the header";
+			assert raw.length < plain.size() / 2: "Database not compressed";
+			
+			CredentialDatabase dbi = new WDCImporter(new ByteArrayInputStream(raw), new TextPassword("hello".toCharArray())).importDatabase();
+			
+			assert dbi.getCredentialsStream().count() == 1003;
+			assert dbi.findCredential("bulk999").getDescription().equals("Shared account");
+			
+			assertException(new Runnable() {
+				public void run() {
+					exporter.setCompression(WDCCompression.DEFLATE, 10);
+				}
+			}, IllegalArgumentException.class);
+		} catch(Exception e) {
+			e.printStackTrace();
+			fail();
+		}
+	}
+	
+	@Test
+	public void stream_import_test() {
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			
+			new WDCExporter(cd, new TextPassword("hello".toCharArray())).exportDatabase(Channels.newChannel(out));
+			
+			WDCImporter importer = new WDCImporter(Channels.newChannel(new ByteArrayInputStream(out.toByteArray())), new TextPassword("hello".toCharArray()));
+			CredentialDatabase dbi = importer.importDatabase();
+			
+			assert dbi.findCredential("third") != null;
+			assert dbi.findKeyring("second").stream().count() == 2;
+		} catch(Exception e) {
+			e.printStackTrace();
+			fail();
+		}
+		
+		assertException(new Runnable() {
+			public void run() {
+				try {
+					new WDCImporter(new ByteArrayInputStream(new byte[32]), new TextPassword("hello".toCharArray())).importDatabase();
+				} catch(DatabaseImportException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		}, IllegalStateException.class);
+	}
+	
+	@Test
+	public void file_test() {
+		Path dir = null;
+		
+		try {
+			dir = Files.createTempDirectory("wdc");
+			
+			final WDCFile f = new WDCFile(dir.resolve("test.wdc"));
+			
+			f.save(cd, new TextPassword("hello".toCharArray()));
+			cd.findCredential("first").setUser("changed");
+			f.save(cd, new TextPassword("hello".toCharArray()));
+			
+			CredentialDatabase dbi = f.load(new TextPassword("hello".toCharArray()));
+			
+			assert dbi.findCredential("first").getUser().equals("changed");
+			assert dbi.findKeyring("first").stream().count() == 2;
+			assert Files.list(dir).count() == 1: "Temporary files left behind";
+			
+			byte[] raw = Files.readAllBytes(f.getPath());
+			
+			Files.write(f.getPath(), Arrays.copyOf(raw, raw.length - 1));
+			
+			assertException(new Runnable() {
+				public void run() {
+					try {
+						f.load(new TextPassword("hello".toCharArray()));
+					} catch(DatabaseImportException e) {
+						throw new IllegalStateException(e);
+					}
+				}
+			}, IllegalStateException.class);
+		} catch(Exception e) {
+			e.printStackTrace();
+			fail();
+		} finally {
+			if(dir != null)
+				try {
+					Files.deleteIfExists(dir.resolve("test.wdc"));
+					Files.deleteIfExists(dir);
+				} catch(Exception e) {}
+		}
+	}
+	
+	@Test
+	public void concurrent_export_test() {
+		final ConcurrentCredentialDatabase db = new ConcurrentCredentialDatabase();
+		final Keyring k = new Keyring("k");
+		final AtomicBoolean stop = new AtomicBoolean();
+		Path dir = null;
+		
+		db.add(k);
+		
+		final Thread writer = new Thread(() -> {
+			for(int i = 0; !stop.get(); i++) {
+				Credential c = new Credential("c" + i);
+				
+				db.add(c);
+				k.add(c);
+				
+				if(i >= 200) {
+					Credential old = db.findCredential("c" + (i - 200));
+					
+					db.remove(old);
+					k.remove(old);
+				}
+			}
+		});
+		
+		writer.start();
+		
+		try {
+			dir = Files.createTempDirectory("wdc");
+			
+			final WDCSession session = new WDCSession(new TextPassword("hello".toCharArray()));
+			final WDCRecordFile rf = new WDCRecordFile(dir.resolve("test.wdr"));
+			
+			for(int i = 0; i < 20; i++) {
+				ByteArrayOutputStream bs = new ByteArrayOutputStream();
+				
+				new WDCExporter(db, session).exportDatabase(bs);
+				rf.save(db, new TextPassword("hello".toCharArray()));
+				
+				for(CredentialDatabase dbi: Arrays.asList(new WDCImporter(new ByteArrayInputStream(bs.toByteArray()), session).importDatabase(), rf.load(new TextPassword("hello".toCharArray())))) {
+					assert dbi.getCredentialsStream().allMatch(c -> dbi.findCredential(c.getTitle()) == c);
+					assert dbi.findKeyring("k") != null;
+				}
+			}
+		} catch(Exception e) {
+			e.printStackTrace();
+			fail();
+		} finally {
+			stop.set(true);
+			
+			try {
+				writer.join();
+			} catch(InterruptedException e) {}
+			
+			if(dir != null)
+				try {
+					Files.deleteIfExists(dir.resolve("test.wdr"));
+					Files.deleteIfExists(dir);
+				} catch(Exception e) {}
+		}
+	}
+	
+	@Test
+	public void concurrent_append_test() {
+		final ConcurrentCredentialDatabase db = new ConcurrentCredentialDatabase();
+		final AtomicBoolean stop = new AtomicBoolean();
+		Path dir = null;
+		
+		final Thread writer = new Thread(() -> {
+			for(int i = 0; !stop.get() && i < 100000; i++) {
+				db.add(new Credential("c" + i));
+				
+				if(i % 3 == 0)
+					db.findCredential("c" + (i / 3)).setUser("user" + i);
+			}
+		});
+		
+		try {
+			dir = Files.createTempDirectory("wdc");
+			
+			final WDCFile f = new WDCFile(dir.resolve("test.wdc"));
+			final WDCSession session = new WDCSession(new TextPassword("hello".toCharArray()));
+			
+			f.save(db, session);
+			writer.start();
+			
+			for(int i = 0; i < 20; i++)
+				f.append(db, session);
+			
+			stop.set(true);
+			writer.join();
+			f.append(db, session);
+			
+			final CredentialDatabase dbi = f.load(session);
+			
+			assert dbi.getCredentialsStream().count() == db.getCredentialsStream().count(): "Changes lost while appending";
+			assert db.getCredentialsStream().allMatch(c -> Objects.equals(dbi.findCredential(c.getTitle()).getUser(), c.getUser()));
+			
+			// Changes that could not be saved are tracked again
+			db.add(new Credential("last"));
+			
+			final WDCFile bad = new WDCFile(dir.resolve("missing").resolve("test.wdc"));
+			
+			assertException(new Runnable() {
+				public void run() {
+					try {
+						bad.save(db, session);
+					} catch(DatabaseExportException e) {
+						throw new IllegalStateException(e);
+					}
+				}
+			}, IllegalStateException.class);
+			
+			assert db.isModified(): "Changes lost by a failed save";
+			f.append(db, session);
+			assert f.load(session).findCredential("last") != null;
+		} catch(Exception e) {
+			e.printStackTrace();
+			fail();
+		} finally {
+			stop.set(true);
+			
+			try {
+				writer.join();
+			} catch(InterruptedException e) {}
+			
+			if(dir != null)
+				try {
+					Files.deleteIfExists(dir.resolve("test.wdc"));
+					Files.deleteIfExists(dir);
+				} catch(Exception e) {}
+		}
+	}
+	
+	@Test
+	public void journal_test() {
+		Path dir = null;
+		
+		try {
+			dir = Files.createTempDirectory("wdc");
+			
+			final WDCFile f = new WDCFile(dir.resolve("test.wdc"));
+			final TextPassword pass = new TextPassword("hello".toCharArray());
+			
+			f.append(cd, pass);
+			assert !cd.isModified();
+			assert f.getJournalSize() == 0;
+			
+			cd.findCredential("first").setUser("changed");
+			cd.findCredential("second").setTitle("renamed");
+			cd.remove(cd.findCredential("third"));
+			cd.findKeyring("first").setDescription("desc");
+			f.append(cd, pass);
+			
+			Credential c = new Credential("fourth");
+			
+			cd.add(c);
+			cd.findKeyring("second").add(c);
+			f.append(cd, pass);
+			
+			assert f.getJournalSize() > 0;
+			
+			long journaled = Files.size(f.getPath());
+			
+			// A truncated journal entry is ignored
+			Files.write(f.getPath(), new byte[] { 0, 0, 0, 0, 0, 0, 1, 0, 1, 2 }, java.nio.file.StandardOpenOption.APPEND);
+			
+			CredentialDatabase dbi = f.load(pass);
+			
+			assert !dbi.isModified();
+			assert dbi.findCredential("first").getUser().equals("changed");
+			assert dbi.findCredential("second") == null;
+			assert dbi.findCredential("renamed") != null;
+			assert dbi.findCredential("third") == null;
+			assert dbi.findCredential("fourth") != null;
+			assert dbi.findKeyring("first").getDescription().equals("desc");
+			assert dbi.findKeyring("second").stream().anyMatch(x -> x == dbi.findCredential("fourth"));
+			assert dbi.findKeyring("second").stream().anyMatch(x -> x == dbi.findCredential("renamed"));
+			
+			dbi.findCredential("fourth").setUser("user");
+			f.append(dbi, pass);
+			assert Files.size(f.getPath()) > journaled;
+			
+			f.compactAsync(pass, Runnable::run).join();
+			
+			assert f.getJournalSize() == 0;
+			assert Files.list(dir).count() == 1: "Temporary files left behind";
+			
+			CredentialDatabase dbc = f.load(pass);
+			
+			assert dbc.getCredentialsStream().count() == 3;
+			assert dbc.findCredential("fourth").getUser().equals("user");
+			assert dbc.findKeyring("second").stream().count() == 3: "Orphan credential dropped";
+		} catch(Exception e) {
+			e.printStackTrace();
+			fail();
+		} finally {
+			if(dir != null)
+				try {
+					Files.deleteIfExists(dir.resolve("test.wdc"));
+					Files.deleteIfExists(dir);
+				} catch(Exception e) {}
+		}
+	}
+	
+	@Test
+	public void session_test() {
+		Path dir = null;
+		
+		try {
+			dir = Files.createTempDirectory("wdc");
+			
+			final WDCFile f = new WDCFile(dir.resolve("test.wdc"));
+			final WDCSession session = new WDCSession(new TextPassword("hello".toCharArray()), 1, TimeUnit.MINUTES);
+			
+			f.save(cd, session);
+			cd.findCredential("first").setUser("changed");
+			f.append(cd, session);
+			
+			assert f.load(new TextPassword("hello".toCharArray())).findCredential("first").getUser().equals("changed");
+			assert f.load(session).findCredential("first").getUser().equals("changed");
+			
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			
+			new WDCExporter(cd, session).exportDatabase(out);
+			assert new WDCImporter(new ByteArrayInputStream(out.toByteArray()), session).importDatabase().findCredential("first") != null;
+			
+			session.destroy();
+			assert session.isDestroyed();
+			
+			assertException(new Runnable() {
+				public void run() {
+					try {
+						f.load(session);
+					} catch(DatabaseImportException e) {
+						throw new IllegalStateException(e);
+					}
+				}
+			}, IllegalStateException.class);
+			
+			WDCSession idle = new WDCSession(new TextPassword("hello".toCharArray()), 50, TimeUnit.MILLISECONDS);
+			
+			Thread.sleep(500);
+			assert idle.isDestroyed(): "Idle session not destroyed";
+		} catch(Exception e) {
+			e.printStackTrace();
+			fail();
+		} finally {
+			if(dir != null)
+				try {
+					Files.deleteIfExists(dir.resolve("test.wdc"));
+					Files.deleteIfExists(dir);
+				} catch(Exception e) {}
+		}
+	}
+	
+	@Test
+	public void crypto_context_test() {
+		try {
+			final WDCCrypto crypto = WDCCrypto.get();
+			final byte[] key = passToDigest("hello".toCharArray());
+			final byte[] iv = new byte[16];
+			
+			crypto.nextBytes(iv);
+			
+			Cipher enc = crypto.acquire(Cipher.ENCRYPT_MODE, key, iv);
+			Cipher dec = crypto.acquire(Cipher.DECRYPT_MODE, key, iv);
+			
+			assert enc != dec: "Cipher in use acquired twice";
+			assert Arrays.equals(dec.doFinal(enc.doFinal("test".getBytes())), "test".getBytes());
+			
+			crypto.release(enc);
+			crypto.release(dec);
+			
+			assert crypto.acquire(Cipher.ENCRYPT_MODE, key, iv) == dec: "Released cipher not reused";
+			assert WDCCrypto.get() == crypto;
+			
+			final WDCCrypto[] other = new WDCCrypto[1];
+			Thread t = new Thread(() -> other[0] = WDCCrypto.get());
+			
+			t.start();
+			t.join();
+			assert other[0] != crypto: "Crypto context shared between threads";
+		} catch(Exception e) {
+			e.printStackTrace();
+			fail();
+		}
+	}
+	
+	@Test
+	public void codec_test() {
+		try {
+			Credential c = cd.findCredential("first");
+			Credential orphan = new Credential("orphan", "nobody", null);
+			
+			c.setUser("j\u00f6rg");
+			c.setDescription("multi\nline");
+			c.setPassword(new TextPassword("p\u00e4ss \ud83d\udd11 \u20ac".toCharArray()));
+			cd.findKeyring("second").add(orphan);
+			cd.findKeyring("second").setDescription("keys");
+			cd.findCredential("third").setPassword(new DirectPassword("off heap".toCharArray()));
+			
+			WDCEncryptionRecord rec = new WDCExporter(cd, new TextPassword("hello".toCharArray())).exportDatabase();
+			CredentialDatabase dbi = new WDCImporter(rec, new TextPassword("hello".toCharArray())).importDatabase();
+			Credential ci = dbi.findCredential("first");
+			
+			assert ci.getUser().equals("j\u00f6rg");
+			assert ci.getDescription().equals("multi\nline");
+			assert ci.getPassword().equals(c.getPassword()): "Wrong password";
+			assert dbi.findCredential("second").getUser() == null;
+			assert dbi.findCredential("second").getPassword() == null;
+			assert dbi.findCredential("third").getPassword() instanceof DirectPassword: "Wrong password type";
+			assert Arrays.equals(((DirectPassword)dbi.findCredential("third").getPassword()).get(), "off heap".toCharArray());
+			assert dbi.findCredential("orphan") == null: "Orphan credential added to the database";
+			assert dbi.findKeyring("second").getDescription().equals("keys");
+			assert dbi.findKeyring("second").stream().anyMatch(x -> x.getTitle().equals("orphan") && x.getUser().equals("nobody"));
+			assert dbi.findKeyring("first").stream().anyMatch(x -> x == dbi.findCredential("third")): "Keyring members not shared";
+			assert !dbi.isModified();
+			
+			// Snapshots encode like the database, null usernames included
+			ByteArrayOutputStream live = new ByteArrayOutputStream(), snap = new ByteArrayOutputStream();
+			
+			WDCCodec.encode(dbi, live);
+			WDCCodec.encode(dbi.snapshot(), snap);
+			assert Arrays.equals(live.toByteArray(), snap.toByteArray()): "Snapshot encoded differently";
+		} catch(Exception e) {
+			e.printStackTrace();
+			fail();
+		}
+	}
+	
+	@Test
+	public void segmented_codec_test() {
+		try {
+			final Keyring bulk = new Keyring("bulk");
+			
+			for(int i = 0; i < 5000; i++) {
+				Credential c = new Credential("bulk" + i, "user" + i, null);
+				
+				if(i % 2 == 0)
+					cd.add(c);
+				
+				bulk.add(c);
+			}
+			
+			cd.add(bulk);
+			
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			
+			WDCCodec.encode(cd, out);
+			
+			CredentialDatabase dbi = WDCCodec.decode(new ByteArrayInputStream(out.toByteArray()), new ForkJoinPool(4));
+			
+			assert dbi.getCredentialsStream().count() == 2503;
+			assert dbi.findKeyring("bulk").stream().count() == 5000;
+			assert dbi.findCredential("bulk4998").getUser().equals("user4998");
+			assert dbi.findCredential("bulk4999") == null: "Orphan credential added to the database";
+			assert dbi.findKeyring("bulk").stream().anyMatch(x -> x == dbi.findCredential("bulk0")): "Keyring members not shared";
+			
+			// Version 1 encoding
+			out.reset();
+			
+			try(WDCCodec.Writer w = new WDCCodec.Writer(out)) {
+				w.write(WDCCodec.MAGIC);
+				w.writeByte(WDCCodec.VERSION_SEQUENTIAL);
+				w.writeVarInt(1);
+				w.writeVarInt(0);
+				w.writeCredential(new Credential("single", "user", null));
+				w.writeVarInt(0);
+			}
+			
+			assert WDCCodec.decode(new ByteArrayInputStream(out.toByteArray())).findCredential("single").getUser().equals("user");
+		} catch(Exception e) {
+			e.printStackTrace();
+			fail();
+		}
+	}
+	
+	@Test
+	public void sealed_import_test() {
+		try {
+			cd.findCredential("first").setPassword(new TextPassword("p\u00e4ss \ud83d\udd11".toCharArray()));
+			cd.findCredential("second").setPassword(new TextPassword(new char[0]));
+			cd.findCredential("third").setPassword(new DirectPassword("off heap".toCharArray()));
+			
+			for(int i = 0; i < 3000; i++)
+				cd.add(new Credential("bulk" + i, "user" + i, new TextPassword(("password" + i).toCharArray())));
+			
+			WDCEncryptionRecord rec = new WDCExporter(cd, new TextPassword("hello".toCharArray())).exportDatabase();
+			WDCImporter imp = new WDCImporter(rec, new TextPassword("hello".toCharArray()));
+			
+			imp.setSealedPasswords(true);
+			
+			CredentialDatabase dbi = imp.importDatabase();
+			Credential ci = dbi.findCredential("first");
+			
+			assert ci.isPasswordSealed() && dbi.findCredential("bulk2999").isPasswordSealed(): "Password not sealed";
+			assert dbi.findCredential("bulk2999").getUser().equals("user2999");
+			
+			TextPassword p = (TextPassword)ci.getPassword();
+			
+			assert !ci.isPasswordSealed() && ci.getPassword() == p: "Password not kept decrypted";
+			assert p.equals(cd.findCredential("first").getPassword()): "Wrong password";
+			assert ((TextPassword)dbi.findCredential("second").getPassword()).get().length == 0;
+			assert Arrays.equals(((DirectPassword)dbi.findCredential("third").getPassword()).get(), "off heap".toCharArray());
+			
+			// Sealing again
+			assert ci.sealPassword() && p.isDestroyed() && ci.isPasswordSealed();
+			assert !ci.sealPassword();
+			assert ci.getPassword().equals(cd.findCredential("first").getPassword()): "Password not decrypted again";
+			assert dbi.sealPasswords() == 3;
+			assert !dbi.isModified();
+			
+			// Exporting keeps the passwords sealed, and leaves decrypted passwords in use alone
+			final TextPassword used = (TextPassword)dbi.findCredential("bulk9").getPassword();
+			
+			rec = new WDCExporter(dbi, new TextPassword("hello".toCharArray())).exportDatabase();
+			new WDCExporter(dbi.snapshot(), new TextPassword("hello".toCharArray())).exportDatabase();
+			assert dbi.findCredential("bulk7").isPasswordSealed(): "Password left decrypted by the export";
+			assert !used.isDestroyed() && dbi.findCredential("bulk9").getPassword() == used: "Password in use destroyed by the export";
+			assert used.equals(new TextPassword("password9".toCharArray()));
+			assert dbi.findCredential("bulk9").copySealedPassword().equals(used) && dbi.findCredential("first").copySealedPassword() != null;
+			assert cd.findCredential("first").copySealedPassword() == null;
+			
+			CredentialDatabase dbe = new WDCImporter(rec, new TextPassword("hello".toCharArray())).importDatabase();
+			
+			assert dbe.findCredential("bulk7").getPassword().equals(new TextPassword("password7".toCharArray()));
+			assert !dbe.findCredential("bulk7").isPasswordSealed();
+			
+			// Serialization stores the decrypted password
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			
+			try(ObjectOutputStream oos = new ObjectOutputStream(out)) {
+				oos.writeObject(dbi.findCredential("bulk8"));
+			}
+			
+			try(ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+				Credential cs = (Credential)ois.readObject();
+				
+				assert cs.getPassword().equals(new TextPassword("password8".toCharArray())) && !cs.isPasswordSealed();
+			}
+		} catch(Exception e) {
+			e.printStackTrace();
+			fail();
+		}
+	}
+	
+	@Test
+	public void record_file_tamper_test() {
+		Path dir = null;
+		
+		try {
+			dir = Files.createTempDirectory("wdc");
+			
+			final WDCRecordFile f = new WDCRecordFile(dir.resolve("test.wdr"));
+			final CredentialDatabase db = new CredentialDatabase();
+			
+			db.add(new Credential("a", "u", null));
+			db.add(new Credential("b", "u", null));
+			f.save(db, new TextPassword("hello".toCharArray()));
+			
+			// Swap the two credential records, which have the same length
+			final byte[] data = Files.readAllBytes(f.getPath());
+			final int indexOffset = (int)ByteBuffer.wrap(data, data.length - 16, 8).getLong();
+			final int len = (indexOffset - 5 - (WDCCrypto.NONCE_SIZE + 1 + WDCCrypto.TAG_SIZE)) / 2;
+			final byte[] swapped = data.clone();
+			
+			System.arraycopy(data, 5, swapped, 5 + len, len);
+			System.arraycopy(data, 5 + len, swapped, 5, len);
+			Files.write(f.getPath(), swapped);
+			
+			try(WDCRecordReader r = f.open(new TextPassword("hello".toCharArray()))) {
+				assertException(() -> read(r, "a"), IllegalStateException.class);
+				assertException(() -> read(r, "b"), IllegalStateException.class);
+			}
+			
+			// Alter a byte of a record
+			final byte[] altered = data.clone();
+			
+			altered[5 + len + 20] ^= 1;
+			Files.write(f.getPath(), altered);
+			
+			try(WDCRecordReader r = f.open(new TextPassword("hello".toCharArray()))) {
+				assert r.getCredential("a").getUser().equals("u");
+				assertException(() -> read(r, "b"), IllegalStateException.class);
+				assertException(() -> {
+					try {
+						r.importDatabase();
+					} catch(DatabaseImportException e) {
+						throw new IllegalStateException(e);
+					}
+				}, IllegalStateException.class);
+			}
+			
+			// Version 1 files are still read, but a record must hold the indexed credential
+			Files.write(f.getPath(), recordFileV1("a", new Credential("a", "u", null)));
+			
+			try(WDCRecordReader r = f.open(new TextPassword("hello".toCharArray()))) {
+				assert r.getCredential("a").getUser().equals("u");
+			}
+			
+			Files.write(f.getPath(), recordFileV1("a", new Credential("b", "u", null)));
+			
+			try(WDCRecordReader r = f.open(new TextPassword("hello".toCharArray()))) {
+				assertException(() -> read(r, "a"), IllegalStateException.class);
+			}
+		} catch(Exception e) {
+			e.printStackTrace();
+			fail();
+		} finally {
+			if(dir != null)
+				try {
+					Files.deleteIfExists(dir.resolve("test.wdr"));
+					Files.deleteIfExists(dir);
+				} catch(Exception e) {}
+		}
+	}
+	
+	/**
+	 * Reads a credential of a record file, wrapping failures.
+	 */
+	static Credential read(WDCRecordReader r, String title) {
+		try {
+			return r.getCredential(title);
+		} catch(DatabaseImportException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * Builds a version 1 record file holding one credential, indexed under a title.
+	 */
+	static byte[] recordFileV1(String title, Credential c) throws Exception {
+		final byte[] key = passToDigest("hello".toCharArray());
+		final ByteArrayOutputStream file = new ByteArrayOutputStream();
+		
+		file.write(new byte[] { 'W', 'D', 'C', 'R', 1 });
+		
+		final byte[] cred = sealV1(key, w -> w.writeCredential(c));
+		final byte[] keyrings = sealV1(key, w -> w.writeVarInt(0));
+		final long credOffset = file.size();
+		
+		file.write(cred);
+		
+		final long keyringsOffset = file.size();
+		
+		file.write(keyrings);
+		
+		final byte[] index = sealV1(key, w -> {
+			w.writeVarInt(1);
+			w.writeVarInt(0);
+			w.writeString(title);
+			w.writeVarLong(credOffset);
+			w.writeVarInt(cred.length);
+			w.writeVarLong(keyringsOffset);
+			w.writeVarInt(keyrings.length);
+		});
+		final long indexOffset = file.size();
+		
+		file.write(index);
+		file.write(ByteBuffer.allocate(16).putLong(indexOffset).putInt(index.length).put(new byte[] { 'W', 'D', 'C', 'R' }).array());
+		
+		return file.toByteArray();
+	}
+	
+	/**
+	 * Encodes and seals a version 1 record.
+	 */
+	static byte[] sealV1(byte[] key, RecordContent content) throws Exception {
+		final ByteArrayOutputStream plain = new ByteArrayOutputStream();
+		
+		try(WDCCodec.Writer w = new WDCCodec.Writer(plain)) {
+			content.write(w);
+		}
+		
+		final byte[] iv = new byte[16];
+		final Cipher c = Cipher.getInstance("AES/CBC/PKCS5Padding");
+		
+		c.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+		
+		final byte[] enc = c.doFinal(plain.toByteArray());
+		final byte[] res = Arrays.copyOf(iv, iv.length + enc.length);
+		
+		System.arraycopy(enc, 0, res, iv.length, enc.length);
+		
+		return res;
+	}
+	
+	/**
+	 * Writes the content of a record.
+	 */
+	interface RecordContent {
+		void write(WDCCodec.Writer w) throws Exception;
+	}
+	
+	@Test
+	public void legacy_import_test() {
+		try {
+			byte[] iv = new byte[16];
+			byte[] key = passToDigest("hello".toCharArray());
+			ByteArrayOutputStream bs = new ByteArrayOutputStream();
+			
+			try(ObjectOutputStream os = new ObjectOutputStream(bs)) {
+				os.writeObject(cd);
+			}
+			
+			Cipher c = Cipher.getInstance("AES/CBC/PKCS5Padding");
+			
+			c.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+			
+			WDCEncryptionRecord rec = new WDCEncryptionRecord(c.doFinal(bs.toByteArray()), iv);
+			CredentialDatabase dbi = new WDCImporter(rec, new TextPassword("hello".toCharArray())).importDatabase();
+			
+			assert dbi.findKeyring("second").stream().count() == 2;
+			assert dbi.findCredential("third") != null;
+		} catch(Exception e) {
+			e.printStackTrace();
+			fail();
+		}
+	}
+	
+	@Test
+	public void legacy_import_filter_test() {
+		try {
+			final byte[] iv = new byte[16];
+			final byte[] key = passToDigest("hello".toCharArray());
+			final Cipher c = Cipher.getInstance("AES/CBC/PKCS5Padding");
+			
+			c.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+			
+			// Version 1 streams may hold serialized databases
+			ByteArrayOutputStream bs = new ByteArrayOutputStream();
+			
+			bs.write(STREAM_MAGIC);
+			bs.write(STREAM_VERSION_CBC);
+			bs.write(iv);
+			bs.write(c.doFinal(serialize(cd)));
+			
+			assert new WDCImporter(new ByteArrayInputStream(bs.toByteArray()), new TextPassword("hello".toCharArray())).importDatabase().findCredential("third") != null;
+			
+			// Other classes are rejected
+			final HashSet<Object> set = new HashSet<Object>();
+			
+			set.add(new Date());
+			
+			for(Object o: new Object[] { new ArrayList<Object>(), set }) {
+				final WDCEncryptionRecord rec = new WDCEncryptionRecord(c.doFinal(serialize(o)), iv);
+				
+				try {
+					new WDCImporter(rec, new TextPassword("hello".toCharArray())).importDatabase();
+					fail();
+				} catch(DatabaseImportException e) {
+					assert e.getCause() instanceof InvalidClassException: "Class not rejected: " + e.getCause();
+				}
+			}
+			
+			// Current streams never hold serialized databases
+			final byte[] prefix = new byte[NONCE_PREFIX_SIZE];
+			
+			bs = new ByteArrayOutputStream();
+			bs.write(STREAM_MAGIC);
+			bs.write(STREAM_VERSION);
+			bs.write(0); // No compression
+			bs.write(0);
+			bs.write(new byte[] { 0, 0, 16, 0 });
+			bs.write(prefix);
+			
+			try(ChunkedCipherOutputStream cs = new ChunkedCipherOutputStream(bs, key, prefix, 4096, ForkJoinPool.commonPool())) {
+				cs.write(serialize(cd));
+			}
+			
+			try {
+				new WDCImporter(new ByteArrayInputStream(bs.toByteArray()), new TextPassword("hello".toCharArray())).importDatabase();
+				fail();
+			} catch(DatabaseImportException e) {
+				assert e.getCause() instanceof StreamCorruptedException: "Serialized database accepted: " + e.getCause();
+			}
+		} catch(Exception e) {
+			e.printStackTrace();
+			fail();
+		}
+	}
+	
+	private byte[] serialize(Object o) throws IOException {
+		ByteArrayOutputStream bs = new ByteArrayOutputStream();
+		
+		try(ObjectOutputStream os = new ObjectOutputStream(bs)) {
+			os.writeObject(o);
+		}
+		
+		return bs.toByteArray();
+	}
+	
+	@Test
+	public void record_file_test() {
+		Path dir = null;
+		
+		try {
+			dir = Files.createTempDirectory("wdc");
+			
+			WDCRecordFile f = new WDCRecordFile(dir.resolve("test.wdr"));
+			
+			cd.findCredential("second").setPassword(new TextPassword("secret".toCharArray()));
+			cd.findKeyring("first").add(new Credential("orphan"));
+			f.save(cd, new TextPassword("hello".toCharArray()));
+			
+			try(WDCRecordReader r = f.open(new TextPassword("hello".toCharArray()))) {
+				assert r.getTitles().size() == 3;
+				assert r.getCredential("missing") == null;
+				assert r.getCredential("orphan") == null: "Orphan credential indexed";
+				assert r.getCredential("second").getPassword().equals(new TextPassword("secret".toCharArray()));
+				
+				CredentialDatabase dbi = r.importDatabase();
+				
+				assert dbi.getCredentialsStream().count() == 3;
+				assert dbi.findKeyring("first").stream().count() == 3;
+				assert dbi.findKeyring("second").stream().anyMatch(x -> x == dbi.findCredential("third"));
+			}
+			
+			assertException(new Runnable() {
+				public void run() {
+					try {
+						new WDCFile(f.getPath()).load(new TextPassword("hello".toCharArray()));
+					} catch(Exception e) {
+						throw new IllegalStateException(e);
+					}
+				}
+			}, IllegalStateException.class);
+		} catch(Exception e) {
+			e.printStackTrace();
+			fail();
+		} finally {
+			if(dir != null)
+				try {
+					Files.deleteIfExists(dir.resolve("test.wdr"));
+					Files.deleteIfExists(dir);
+				} catch(Exception e) {}
+		}
+	}
 }